@@ -0,0 +1,329 @@
+package com.connerblair.buffers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lends out byte arrays for reading and writing messages, and takes them back
+ * to lend again, so a connector in a steady state allocates no new arrays.
+ * <br>
+ * Arrays are pooled in size classes, each a power of two from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE}; a request is served from the
+ * smallest class that holds it, and larger requests get an array of their own
+ * that is not pooled. Each thread keeps a small cache of each class, so most
+ * buffers are acquired and released without touching shared state. A cache
+ * that fills up passes half of its buffers to the shared pool of the class,
+ * and an empty cache takes from it, both without locking. A thread that only
+ * lives as long as one connection should call {@link #disableThreadCache()},
+ * so its buffers stay in the shared pools and their budget rather than being
+ * lost with the thread. <br>
+ * With leak detection on, the arena remembers where each buffer that has not
+ * been released was acquired, so a test can check that every buffer came
+ * back. <br>
+ * The shared pools can be given a budget, past which released buffers are
+ * left to the garbage collector rather than kept. <br>
+ * All of the connectors share the arena returned by {@link #shared()}.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class BufferArena {
+	public static final int MIN_SIZE = 256;
+	public static final int MAX_SIZE = 64 * 1024;
+	public static final int DEF_CACHE_SIZE = 16;
+	public static final int DEF_POOL_SIZE = 1024;
+	public static final long UNLIMITED = 0;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	private static final BufferArena SHARED = new BufferArena(DEF_CACHE_SIZE, DEF_POOL_SIZE);
+
+	// The cache of a thread that keeps no buffers for itself.
+	private static final Cache NO_CACHE = new Cache(SIZE_CLASSES, 0);
+
+	private final int cacheSize;
+	private final BufferQueue[] pools;
+	private final ThreadLocal<Cache> caches;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private volatile long maxPooledBytes = UNLIMITED;
+	private volatile boolean leakDetection = false;
+	private final ConcurrentHashMap<PooledBuffer, Throwable> outstanding = new ConcurrentHashMap<PooledBuffer, Throwable>();
+
+	/**
+	 * Creates a new instance of the BufferArena class, with the specified
+	 * cache and pool sizes.
+	 *
+	 * @param cacheSize
+	 *            The most buffers of each size class a thread keeps for
+	 *            itself.
+	 * @param poolSize
+	 *            The most buffers of each size class kept in the shared pool.
+	 */
+	public BufferArena(int cacheSize, int poolSize) {
+		if (cacheSize < 0 || poolSize < 1) {
+			throw new IllegalArgumentException("The cache size must not be negative, and the pool size must be positive.");
+		}
+
+		this.cacheSize = cacheSize;
+		this.pools = new BufferQueue[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			pools[i] = new BufferQueue(poolSize);
+		}
+		this.caches = ThreadLocal.withInitial(() -> new Cache(SIZE_CLASSES, cacheSize));
+	}
+
+	/**
+	 * Accessor method for the arena shared by the connectors.
+	 *
+	 * @return {@linkplain BufferArena} The shared arena.
+	 */
+	public static BufferArena shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Borrows a buffer of at least the given size. The buffer holds one
+	 * reference, which the caller must release.
+	 *
+	 * @param size
+	 *            The number of bytes needed.
+	 * @return {@linkplain PooledBuffer} The buffer.
+	 */
+	public PooledBuffer acquire(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("The size must not be negative. Size: " + size);
+		}
+
+		PooledBuffer buffer;
+		if (size > MAX_SIZE) {
+			allocated.incrementAndGet();
+			buffer = new PooledBuffer(this, size, -1);
+		} else {
+			int sizeClass = sizeClass(size);
+			buffer = caches.get().poll(sizeClass);
+			if (buffer == null) {
+				buffer = pools[sizeClass].poll();
+				if (buffer != null) {
+					pooledBytes.addAndGet(-buffer.capacity());
+				}
+			}
+			if (buffer == null) {
+				allocated.incrementAndGet();
+				buffer = new PooledBuffer(this, MIN_SIZE << sizeClass, sizeClass);
+			}
+		}
+
+		buffer.acquired();
+		if (leakDetection) {
+			outstanding.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here."));
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Stops the calling thread from keeping buffers for itself, and passes the
+	 * buffers it has kept to the shared pools. <br>
+	 * The buffers the thread acquires and releases afterwards come from and
+	 * go to the shared pools, within their budget.
+	 */
+	public void disableThreadCache() {
+		Cache cache = caches.get();
+		caches.set(NO_CACHE);
+
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			PooledBuffer buffer;
+			while ((buffer = cache.poll(i)) != null) {
+				offerToPool(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Accessor method for the number of arrays the arena has allocated, which
+	 * stops growing once the arena has enough buffers to go around.
+	 *
+	 * @return long The number of arrays allocated.
+	 */
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * Accessor method for the number of bytes held in the shared pools.
+	 *
+	 * @return long The bytes of the buffers waiting in the shared pools, not
+	 *         counting those cached by threads.
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * Accessor method for the most bytes the shared pools may hold.
+	 *
+	 * @return long The budget in bytes, or {@link #UNLIMITED}.
+	 */
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	/**
+	 * Mutator method for the most bytes the shared pools may hold. <br>
+	 * Buffers released while the pools are at their budget are dropped, and
+	 * allocated again when next needed. Each thread's cache is bounded by the
+	 * cache size, outside this budget, unless the thread has called
+	 * {@link #disableThreadCache()}. Lowering the budget does not empty the
+	 * pools at once; they shrink as buffers are acquired.
+	 *
+	 * @param maxPooledBytes
+	 *            The new budget in bytes, or {@link #UNLIMITED}.
+	 */
+	public void setMaxPooledBytes(long maxPooledBytes) {
+		if (maxPooledBytes < 0) {
+			throw new IllegalArgumentException("The pooled bytes budget must not be negative. Value: " + maxPooledBytes);
+		}
+
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * Accessor method to see if the arena remembers where unreleased buffers
+	 * were acquired.
+	 *
+	 * @return boolean True if leak detection is on, false if not.
+	 */
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * Mutator method for whether the arena remembers where unreleased buffers
+	 * were acquired. <br>
+	 * This records a stack trace for each buffer acquired, so it is meant for
+	 * tests. Only buffers acquired while it is on are tracked.
+	 *
+	 * @param leakDetection
+	 *            True to track buffers, false to not.
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		if (!leakDetection) {
+			outstanding.clear();
+		}
+	}
+
+	/**
+	 * Finds the buffers acquired with leak detection on that have not been
+	 * released.
+	 *
+	 * @return {@linkplain List} The stack traces of where each buffer was
+	 *         acquired.
+	 */
+	public List<Throwable> getLeaks() {
+		return new ArrayList<Throwable>(outstanding.values());
+	}
+
+	/**
+	 * Takes back a buffer whose last reference was released. A buffer too
+	 * large for any size class is only forgotten.
+	 *
+	 * @param buffer
+	 *            The buffer released.
+	 */
+	void recycle(PooledBuffer buffer) {
+		if (leakDetection) {
+			outstanding.remove(buffer);
+		}
+
+		int sizeClass = buffer.sizeClass();
+		if (sizeClass < 0) {
+			return;
+		}
+
+		Cache cache = caches.get();
+		if (cache.offer(sizeClass, buffer)) {
+			return;
+		}
+
+		// Pass half of the full cache on, so the next releases stay local.
+		for (int i = cacheSize / 2; i > 0; i--) {
+			PooledBuffer spilled = cache.poll(sizeClass);
+			if (spilled == null || !offerToPool(spilled)) {
+				break;
+			}
+		}
+		if (!cache.offer(sizeClass, buffer)) {
+			offerToPool(buffer);
+		}
+	}
+
+	/**
+	 * Passes a buffer to the shared pool of its size class, if the pool has
+	 * room and the pools are within their budget. A buffer that is not taken
+	 * is left to the garbage collector.
+	 */
+	private boolean offerToPool(PooledBuffer buffer) {
+		long budget = maxPooledBytes;
+		if (budget != UNLIMITED && pooledBytes.get() + buffer.capacity() > budget) {
+			return false;
+		}
+		if (!pools[buffer.sizeClass()].offer(buffer)) {
+			return false;
+		}
+
+		pooledBytes.addAndGet(buffer.capacity());
+		return true;
+	}
+
+	/**
+	 * Finds the smallest size class that holds the given size.
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * The buffers one thread keeps for itself, as a stack for each size
+	 * class.
+	 */
+	private static final class Cache {
+		private final PooledBuffer[][] stacks;
+		private final int[] sizes;
+
+		private Cache(int sizeClasses, int cacheSize) {
+			this.stacks = new PooledBuffer[sizeClasses][cacheSize];
+			this.sizes = new int[sizeClasses];
+		}
+
+		private PooledBuffer poll(int sizeClass) {
+			if (sizes[sizeClass] == 0) {
+				return null;
+			}
+
+			int top = --sizes[sizeClass];
+			PooledBuffer buffer = stacks[sizeClass][top];
+			stacks[sizeClass][top] = null;
+			return buffer;
+		}
+
+		private boolean offer(int sizeClass, PooledBuffer buffer) {
+			PooledBuffer[] stack = stacks[sizeClass];
+			if (sizes[sizeClass] == stack.length) {
+				return false;
+			}
+
+			stack[sizes[sizeClass]++] = buffer;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.connerblair.buffers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue of buffers that any number of threads can offer to and poll
+ * from without locking. <br>
+ * Each slot has a sequence number that says whether it is ready to be filled
+ * or emptied on the current lap of the ring, so a thread claims a slot by
+ * moving the head or tail on with a single compare and set, and never sees a
+ * slot that another thread is still filling. Nothing is allocated after the
+ * queue is created.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class BufferQueue {
+	private final AtomicReferenceArray<PooledBuffer> buffers;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Creates a new, empty instance of the BufferQueue class.
+	 *
+	 * @param capacity
+	 *            The most buffers the queue holds, which is rounded up to a
+	 *            power of two.
+	 */
+	BufferQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		this.buffers = new AtomicReferenceArray<PooledBuffer>(size);
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a buffer to the queue, if it is not full.
+	 *
+	 * @param buffer
+	 *            The buffer to add.
+	 * @return boolean True if the buffer was added, false if the queue is
+	 *         full.
+	 */
+	boolean offer(PooledBuffer buffer) {
+		while (true) {
+			long position = tail.get();
+			int slot = (int) (position & mask);
+			long difference = sequences.get(slot) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					buffers.lazySet(slot, buffer);
+					sequences.set(slot, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes a buffer from the queue.
+	 *
+	 * @return {@linkplain PooledBuffer} The buffer, or null if the queue is
+	 *         empty.
+	 */
+	PooledBuffer poll() {
+		while (true) {
+			long position = head.get();
+			int slot = (int) (position & mask);
+			long difference = sequences.get(slot) - (position + 1);
+
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					PooledBuffer buffer = buffers.get(slot);
+					buffers.lazySet(slot, null);
+					sequences.set(slot, position + mask + 1);
+					return buffer;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+}
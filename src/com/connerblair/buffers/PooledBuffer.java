@@ -0,0 +1,138 @@
+package com.connerblair.buffers;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A byte array borrowed from a {@linkplain BufferArena}. <br>
+ * A buffer starts with one reference, held by whoever acquired it. Each
+ * {@link #retain()} adds a reference for another holder, and each
+ * {@link #release()} drops one; the array goes back to its arena when the
+ * last is dropped, and must not be used after that. The array may be longer
+ * than was asked for, since arrays are pooled in a few sizes.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class PooledBuffer {
+	private static final VarHandle REFERENCES;
+
+	static {
+		try {
+			REFERENCES = MethodHandles.lookup().findVarHandle(PooledBuffer.class, "references", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final BufferArena arena;
+	private final byte[] array;
+	private final int sizeClass;
+
+	@SuppressWarnings("unused")
+	private volatile int references;
+
+	/**
+	 * Creates a new instance of the PooledBuffer class, around a new array.
+	 *
+	 * @param arena
+	 *            The arena the buffer was acquired from.
+	 * @param capacity
+	 *            The length of the array.
+	 * @param sizeClass
+	 *            The size class of the array in its arena, or -1 if it is too
+	 *            large to be pooled.
+	 */
+	PooledBuffer(BufferArena arena, int capacity, int sizeClass) {
+		this.arena = arena;
+		this.array = new byte[capacity];
+		this.sizeClass = sizeClass;
+	}
+
+	/**
+	 * Accessor method for the array of the buffer.
+	 *
+	 * @return byte[] The array, which holds whatever its last holder left in
+	 *         it.
+	 */
+	public byte[] array() {
+		return array;
+	}
+
+	/**
+	 * Accessor method for the length of the array of the buffer.
+	 *
+	 * @return int The capacity in bytes.
+	 */
+	public int capacity() {
+		return array.length;
+	}
+
+	/**
+	 * Accessor method for the number of references to the buffer.
+	 *
+	 * @return int The number of references, or 0 if the buffer has been
+	 *         released.
+	 */
+	public int refCount() {
+		return references;
+	}
+
+	/**
+	 * Adds a reference to the buffer, for another holder that will release
+	 * it.
+	 *
+	 * @return {@linkplain PooledBuffer} This buffer.
+	 */
+	public PooledBuffer retain() {
+		int count;
+		do {
+			count = references;
+			if (count <= 0) {
+				throw new IllegalStateException("The buffer has already been released.");
+			}
+		} while (!REFERENCES.compareAndSet(this, count, count + 1));
+
+		return this;
+	}
+
+	/**
+	 * Drops a reference to the buffer, and returns the array to its arena if
+	 * it was the last.
+	 *
+	 * @return boolean True if the buffer was returned, false if it is still
+	 *         held.
+	 */
+	public boolean release() {
+		int count;
+		do {
+			count = references;
+			if (count <= 0) {
+				throw new IllegalStateException("The buffer has already been released.");
+			}
+		} while (!REFERENCES.compareAndSet(this, count, count - 1));
+
+		if (count > 1) {
+			return false;
+		}
+
+		arena.recycle(this);
+		return true;
+	}
+
+	/**
+	 * Accessor for the size class of the buffer in its arena.
+	 *
+	 * @return int The size class, or -1 if the buffer is not pooled.
+	 */
+	int sizeClass() {
+		return sizeClass;
+	}
+
+	/**
+	 * Gives the buffer its first reference, when it is handed out.
+	 */
+	void acquired() {
+		references = 1;
+	}
+}
@@ -0,0 +1,110 @@
+package com.connerblair.buffers;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An output stream that collects what is written to it in buffers borrowed
+ * from a {@linkplain BufferArena}. <br>
+ * When the buffer fills, the stream moves to one of the next size class and
+ * returns the old one, so unlike a ByteArrayOutputStream it leaves no
+ * outgrown arrays behind. The buffer is returned when the stream is closed.
+ * It is not thread safe.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class PooledOutputStream extends OutputStream {
+	private final BufferArena arena;
+	private PooledBuffer buffer;
+	private int count = 0;
+
+	/**
+	 * Creates a new instance of the PooledOutputStream class, starting with a
+	 * buffer of at least the given size.
+	 *
+	 * @param arena
+	 *            The arena to borrow buffers from.
+	 * @param size
+	 *            The size of the first buffer.
+	 */
+	public PooledOutputStream(BufferArena arena, int size) {
+		this.arena = arena;
+		this.buffer = arena.acquire(size);
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buffer.array()[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer.array(), count, len);
+		count += len;
+	}
+
+	/**
+	 * Accessor method for the number of bytes written.
+	 *
+	 * @return int The size of the stream.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Accessor method for the buffer holding what was written, which is only
+	 * valid until more is written or the stream is closed.
+	 *
+	 * @return byte[] The array of the buffer, holding the bytes written at
+	 *         its start.
+	 */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	/**
+	 * Copies what was written into an array of its own.
+	 *
+	 * @return byte[] The bytes written.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer.array(), count);
+	}
+
+	/**
+	 * Empties the stream, keeping its buffer.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the buffer to its arena. The stream must not be used after it
+	 * is closed.
+	 */
+	@Override
+	public void close() {
+		if (buffer != null) {
+			buffer.release();
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Moves to a larger buffer if the current one cannot hold the given size.
+	 */
+	private void ensureCapacity(int size) {
+		if (size <= buffer.capacity()) {
+			return;
+		}
+
+		PooledBuffer grown = arena.acquire(Math.max(size, 2 * buffer.capacity()));
+		System.arraycopy(buffer.array(), 0, grown.array(), 0, count);
+		buffer.release();
+		buffer = grown;
+	}
+}
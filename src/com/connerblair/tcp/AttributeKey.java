@@ -0,0 +1,74 @@
+package com.connerblair.tcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for an object attribute stored on a {@linkplain ClientConnection}.
+ * <br>
+ * Each key is given its own slot when it is created, so keys should be created
+ * once and kept in static final fields rather than created per lookup.
+ *
+ * This class cannot be inherited from.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ * @param <T>
+ *            The type of the value stored under this key.
+ */
+public final class AttributeKey<T> {
+	private static final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final String name;
+	private final int index;
+
+	/**
+	 * Creates a new instance of the AttributeKey class, with the specified name
+	 * and slot index.
+	 *
+	 * @param name
+	 *            The name of the key.
+	 * @param index
+	 *            The slot the key's value is stored in.
+	 */
+	private AttributeKey(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Creates a new attribute key with the given name. <br>
+	 * Every call returns a distinct key, even if the name has been used before.
+	 *
+	 * @param name
+	 *            The name of the key, used only for debugging.
+	 * @return {@linkplain AttributeKey} The new key.
+	 * @throws IllegalStateException
+	 *             If every attribute slot has already been given out.
+	 */
+	public static <T> AttributeKey<T> newKey(String name) {
+		return new AttributeKey<T>(name, ConnectionAttributes.allocateIndex(nextIndex));
+	}
+
+	/**
+	 * Accessor for the name of the key.
+	 *
+	 * @return String The name of the key.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Accessor for the slot the key's value is stored in.
+	 *
+	 * @return int The slot index of the key.
+	 */
+	int getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,93 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@linkplain TCPEndpoint} backed by a blocking {@linkplain SocketChannel},
+ * used for Unix domain sockets. <br>
+ * The streams call the channel directly rather than going through
+ * {@linkplain java.nio.channels.Channels}, whose streams let a blocked read
+ * hold up every write on the same channel.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class ChannelEndpoint implements TCPEndpoint {
+	private final SocketChannel channel;
+
+	/**
+	 * Creates a new instance of the ChannelEndpoint class, with the specified
+	 * channel.
+	 * 
+	 * @param channel
+	 *            The connected {@linkplain SocketChannel}.
+	 */
+	ChannelEndpoint(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void configure() throws IOException {
+		channel.configureBlocking(true);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		try {
+			SocketAddress remote = channel.getRemoteAddress();
+			return remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
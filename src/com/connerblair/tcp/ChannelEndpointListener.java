@@ -0,0 +1,115 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A {@linkplain TCPEndpointListener} backed by a blocking
+ * {@linkplain ServerSocketChannel} bound to a Unix domain socket. <br>
+ * The socket file is removed when the listener is closed.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class ChannelEndpointListener implements TCPEndpointListener {
+	// The file type bits of a Unix file mode, and the type of a socket.
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFSOCK = 0140000;
+
+	private final ServerSocketChannel serverChannel;
+	private final UnixDomainSocketAddress address;
+
+	/**
+	 * Creates a new instance of the ChannelEndpointListener class, bound to the
+	 * specified Unix domain socket address. <br>
+	 * A socket file left behind at the address by a server that is gone is
+	 * replaced. Anything else at the address, including the socket of a live
+	 * server, is left alone and the bind fails.
+	 * 
+	 * @param address
+	 *            The {@linkplain UnixDomainSocketAddress} to bind to.
+	 * @param backlog
+	 *            The size of the backlog when accepting incoming connections.
+	 * @throws IOException
+	 *             If the channel could not be bound, or the address is in
+	 *             use.
+	 */
+	ChannelEndpointListener(UnixDomainSocketAddress address, int backlog) throws IOException {
+		this.address = address;
+
+		removeStaleSocket(address);
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			serverChannel.bind(address, backlog);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the socket file at the given address if it was left behind by a
+	 * server that is gone, which is known by a connection to it being
+	 * refused.
+	 * 
+	 * @param address
+	 *            The {@linkplain UnixDomainSocketAddress} to bind to.
+	 * @throws IOException
+	 *             If something other than a stale socket is at the address.
+	 */
+	private static void removeStaleSocket(UnixDomainSocketAddress address) throws IOException {
+		Path path = address.getPath();
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		if (!isSocket(path)) {
+			throw new BindException("The path exists and is not a socket: " + path);
+		}
+
+		try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			probe.connect(address);
+		} catch (ConnectException e) {
+			Files.deleteIfExists(path);
+			return;
+		}
+
+		throw new BindException("Address already in use: " + path);
+	}
+
+	/**
+	 * Checks whether the file at the given path is a socket. Where the file
+	 * type is not available, any file that is not a regular file, directory
+	 * or link is taken to be one.
+	 */
+	private static boolean isSocket(Path path) throws IOException {
+		try {
+			int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+			return (mode & S_IFMT) == S_IFSOCK;
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+		}
+	}
+
+	@Override
+	public TCPEndpoint accept() throws IOException {
+		return new ChannelEndpoint(serverChannel.accept());
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			serverChannel.close();
+		} finally {
+			Files.deleteIfExists(address.getPath());
+		}
+	}
+}
@@ -1,13 +1,23 @@
 package com.connerblair.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import com.connerblair.buffers.PooledBuffer;
 import com.connerblair.exceptions.ConnectionException;
 
 /**
@@ -20,13 +30,51 @@ import com.connerblair.exceptions.ConnectionException;
  * @version 1.0
  */
 public final class ClientConnection {
+	// How long the input reader thread waits between checks of the memory
+	// limits.
+	private static final long MEMORY_WAIT_NANOS = 1000000L;
+
 	private TCPServer parentServer;
-	private Socket clientSocket;
+	private TCPEndpoint endpoint;
+	private final InProcessEndpoint inProcess;
+	private final InetAddress clientAddress;
+	private final boolean admitted;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private volatile ConcurrentHashMap<String, String> info;
+	private volatile ConnectionAttributes attributes = new ConnectionAttributes();
+	private volatile Set<String> topics = ConcurrentHashMap.newKeySet();
+
+	private volatile String journalKey;
+	private volatile TCPSession session;
+	private boolean resumed = false;
+	private final Object sequenceLock = new Object();
+
+	private DataInputStream input;
+	private volatile DataOutputStream output;
 
-	private Hashtable<String, String> info;
+	private final ConcurrentLinkedQueue<byte[]>[] outbound = newLanes();
+	private final int[] weights;
+	private final int[] credits;
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+	private final AtomicInteger pendingFrames = new AtomicInteger();
+	private final AtomicLong sentFrames = new AtomicLong();
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private volatile byte[] controlFrame;
+	private final AtomicLong sentControlFrames = new AtomicLong();
+	private final AtomicLong droppedControlFrames = new AtomicLong();
+	private final Object writtenLock = new Object();
+	private final AtomicInteger writtenWaiters = new AtomicInteger();
+	private final AtomicLong memoryUsed = new AtomicLong();
+	private final AtomicLong peakMemoryUsed = new AtomicLong();
+	private volatile ConnectionException failure;
+	private volatile boolean handlingMessage = false;
+	private final TCPInboundPublisher inboundPublisher = new TCPInboundPublisher();
 
-	private ObjectInputStream input;
-	private ObjectOutputStream output;
+	private TCPTokenBucket messageBucket;
+	private TCPTokenBucket byteBucket;
+	private long throttleGraceNanos;
+	private long throttledSince;
 
 	private final Object inputReaderLock = new Object();
 	private boolean inputReaderThreadRunning = false;
@@ -44,32 +92,57 @@ public final class ClientConnection {
 	 *            communicates.
 	 */
 	public ClientConnection(TCPServer parentServer, Socket clientSocket) {
-		this.parentServer = parentServer;
-		this.clientSocket = clientSocket;
+		this(parentServer, new SocketEndpoint(clientSocket));
+	}
 
-		// Create a Hashtable to store client information.
-		info = new Hashtable<String, String>();
+	/**
+	 * Creates a new instance of the ClientConnection class, with the specified
+	 * parent server and endpoint.
+	 * 
+	 * @param parentServer
+	 *            The {@linkplain TCPServer} that owns this client connection
+	 *            object.
+	 * @param endpoint
+	 *            The {@linkplain TCPEndpoint} through which this client
+	 *            communicates.
+	 */
+	ClientConnection(TCPServer parentServer, TCPEndpoint endpoint) {
+		this(parentServer, endpoint, false);
+	}
 
-		// Set the server timeout.
-		try {
-			this.clientSocket.setSoTimeout(0);
-		} catch (SocketException e) {
-			parentServer.handleClientException(this, e);
-		}
+	/**
+	 * Creates a new instance of the ClientConnection class, with the specified
+	 * parent server and endpoint, that may count toward the server's
+	 * connection limits.
+	 * 
+	 * @param parentServer
+	 *            The {@linkplain TCPServer} that owns this client connection
+	 *            object.
+	 * @param endpoint
+	 *            The {@linkplain TCPEndpoint} through which this client
+	 *            communicates.
+	 * @param admitted
+	 *            True if the server admitted the connection under its
+	 *            connection limits, so it is released when closed.
+	 */
+	ClientConnection(TCPServer parentServer, TCPEndpoint endpoint, boolean admitted) {
+		this.parentServer = parentServer;
+		this.admitted = admitted;
+		this.endpoint = endpoint;
+		this.inProcess = endpoint instanceof InProcessEndpoint ? (InProcessEndpoint) endpoint : null;
+		this.clientAddress = endpoint.getInetAddress();
+		this.weights = parentServer.getPriorityWeights();
+		this.credits = weights == null ? null : weights.clone();
 
-		// Create the input and output stream objects.
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			parentServer.handleClientException(this, e);
-		}
+		// Create a map to store client information.
+		info = new ConcurrentHashMap<String, String>();
 
-		// Start the input listening thread.
+		// Start the input listening thread. The streams are set up on that
+		// thread, so the thread accepting connections is never held up.
 		synchronized (inputReaderLock) {
 			inputReaderThreadRunning = true;
 		}
-		inputReaderThread = new ClientConnectionInputReaderThread(this);
+		inputReaderThread = new ClientConnectionInputReaderThread(parentServer.getClientConnections(), this);
 		inputReaderThread.start();
 	}
 
@@ -80,15 +153,48 @@ public final class ClientConnection {
 	 *            The {@link Object} to send to the client.
 	 */
 	public void sendToClient(Object msg) {
-		// Make sure the socket and output stream exist.
-		if (clientSocket == null || output == null) {
-			parentServer.handleClientException(this, new ConnectionException("Client socket does not exist."));
+		sendToClient(msg, TCPPriority.Normal);
+	}
+
+	/**
+	 * Sends the given message to the client, with the given priority. <br>
+	 * The message goes ahead of queued messages of a lower priority, at the
+	 * next frame boundary. Journaled and session messages must arrive in the
+	 * order they are numbered, so on a connection that has either they all
+	 * keep the normal priority. In-process clients have no outbound queue, so
+	 * the priority has no effect on them.
+	 * 
+	 * @param msg
+	 *            The {@link Object} to send to the client.
+	 * @param priority
+	 *            The {@linkplain TCPPriority} of the message.
+	 */
+	public void sendToClient(Object msg, TCPPriority priority) {
+		msg = parentServer.interceptOutbound(this, msg);
+		if (msg == null) {
 			return;
 		}
 
-		// Send the object over the socket.
+		// Journaled and session messages are always serialized, so they can
+		// be sent again.
+		if (isSequenced()) {
+			try {
+				sendSequenced(TCPFrameCodec.encode(msg));
+			} catch (IOException e) {
+				parentServer.handleClientException(this, e);
+			}
+			return;
+		}
+
+		// An in-process client may take the message as it is.
+		if (inProcess != null && inProcess.passesReferences()) {
+			sendInProcess(msg);
+			return;
+		}
+
+		// Serialize the object and send it over the socket.
 		try {
-			output.writeObject(msg);
+			sendFrame(TCPFrameCodec.encode(msg), priority);
 		} catch (IOException e) {
 			parentServer.handleClientException(this, e);
 		}
@@ -98,24 +204,51 @@ public final class ClientConnection {
 	 * Closes the connection between the server and this client.
 	 */
 	public void closeConnection() {
+		// Only the first call closes the connection.
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+
 		// Set the running flag to false.
 		synchronized (inputReaderLock) {
 			inputReaderThreadRunning = false;
 		}
 
-		// Join the thread back into the master thread.
+		// Close the socket first, so the input reader thread is woken from
+		// any blocking read or wait for demand, and a sender blocked writing
+		// to the socket while it holds the session is released.
 		try {
-			inputReaderThread.join();
-		} catch (InterruptedException e) {
+			endpoint.close();
+		} catch (IOException e) {
 			parentServer.handleClientException(this, e);
 		}
+		inboundPublisher.close();
+		signalWritten();
 
-		// Close the socket and the stream objects.
-		try {
-			if (clientSocket != null) {
-				clientSocket.close();
+		// Drop every topic subscription held by this client. A session keeps
+		// its topic patterns, so they can be restored when it is resumed.
+		TCPSession currentSession = session;
+		if (currentSession != null) {
+			parentServer.removeSubscriptions(this);
+			parentServer.releaseSession(currentSession, this);
+		} else {
+			for (String topic : topics) {
+				parentServer.unsubscribe(this, topic);
+			}
+		}
+
+		// Join the thread back into the master thread, unless this is being
+		// called from that thread.
+		if (Thread.currentThread() != inputReaderThread) {
+			try {
+				inputReaderThread.join();
+			} catch (InterruptedException e) {
+				parentServer.handleClientException(this, e);
 			}
+		}
 
+		// Close the stream objects.
+		try {
 			if (input != null) {
 				input.close();
 			}
@@ -128,7 +261,27 @@ public final class ClientConnection {
 		} finally {
 			output = null;
 			input = null;
-			clientSocket = null;
+			endpoint = null;
+		}
+
+		// Any message that was never written is dropped.
+		for (ConcurrentLinkedQueue<byte[]> lane : outbound) {
+			byte[] unsent;
+			while ((unsent = lane.poll()) != null) {
+				pendingFrames.decrementAndGet();
+				frameDropped(unsent);
+				releaseMemory(unsent.length);
+			}
+		}
+
+		// The reader thread has stopped, so the inbound subscriber can be
+		// completed.
+		inboundPublisher.complete();
+
+		// Stop counting this client toward the server's connection limits.
+		// A connection the server did not admit was never counted.
+		if (admitted) {
+			parentServer.releaseConnection(clientAddress);
 		}
 
 		// Call the server hook method for a disconnected client.
@@ -138,15 +291,115 @@ public final class ClientConnection {
 	/**
 	 * Accessor for the host address of the socket.
 	 * 
-	 * @return {@linkplain InetAddress} The address of the socket.
+	 * @return {@linkplain InetAddress} The address of the socket, or null if
+	 *         the connection is closed or does not use a network address.
 	 */
 	public InetAddress getInetAddress() {
-		return clientSocket == null ? null : clientSocket.getInetAddress();
+		return endpoint == null ? null : clientAddress;
+	}
+
+	/**
+	 * Accessor for the memory held by the client, counted against the
+	 * server's memory limits.
+	 * 
+	 * @return long The number of bytes of the frame being read from the
+	 *         client and the frames waiting to be written to it.
+	 */
+	public long getMemoryUsed() {
+		return memoryUsed.get();
+	}
+
+	/**
+	 * Accessor for the most memory the client has held at once.
+	 * 
+	 * @return long The peak number of bytes held by the client.
+	 */
+	public long getPeakMemoryUsed() {
+		return peakMemoryUsed.get();
+	}
+
+	/**
+	 * Accessor for a typed attribute of the client. <br>
+	 * This call does not take a lock and costs about as much as a field read.
+	 * 
+	 * @param key
+	 *            The key the attribute is stored under.
+	 * @return T The value of the attribute, or null if it has not been set.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(AttributeKey<T> key) {
+		return (T) attributes.get(key.getIndex());
+	}
+
+	/**
+	 * Mutator for a typed attribute of the client.
+	 * 
+	 * @param key
+	 *            The key to store the attribute under.
+	 * @param value
+	 *            The new value of the attribute, or null to clear it.
+	 */
+	public <T> void setAttribute(AttributeKey<T> key, T value) {
+		attributes.set(key.getIndex(), value);
+	}
+
+	/**
+	 * Atomically sets a typed attribute of the client if it currently holds
+	 * the expected value.
+	 * 
+	 * @param key
+	 *            The key the attribute is stored under.
+	 * @param expected
+	 *            The value the attribute must currently hold.
+	 * @param value
+	 *            The new value of the attribute.
+	 * @return boolean True if the attribute was set, false if not.
+	 */
+	public <T> boolean compareAndSetAttribute(AttributeKey<T> key, T expected, T value) {
+		return attributes.compareAndSet(key.getIndex(), expected, value);
+	}
+
+	/**
+	 * Accessor for a long attribute of the client. <br>
+	 * The value is never boxed.
+	 * 
+	 * @param key
+	 *            The key the attribute is stored under.
+	 * @return long The value of the attribute, or zero if it has not been set.
+	 */
+	public long getLongAttribute(LongAttributeKey key) {
+		return attributes.getLong(key.getIndex());
+	}
+
+	/**
+	 * Mutator for a long attribute of the client.
+	 * 
+	 * @param key
+	 *            The key to store the attribute under.
+	 * @param value
+	 *            The new value of the attribute.
+	 */
+	public void setLongAttribute(LongAttributeKey key, long value) {
+		attributes.setLong(key.getIndex(), value);
+	}
+
+	/**
+	 * Atomically adds to a long attribute of the client.
+	 * 
+	 * @param key
+	 *            The key the attribute is stored under.
+	 * @param delta
+	 *            The amount to add to the attribute.
+	 * @return long The value of the attribute after the addition.
+	 */
+	public long addToLongAttribute(LongAttributeKey key, long delta) {
+		return attributes.addLong(key.getIndex(), delta);
 	}
 
 	/**
 	 * Mutator for the stored info about the client. <br>
-	 * Client info is stored as a key/value pair.
+	 * Client info is stored as a key/value pair. Prefer typed attributes for
+	 * values that are read on every message.
 	 * 
 	 * @param key
 	 *            A String representing the key by which to store the value.
@@ -170,13 +423,900 @@ public final class ClientConnection {
 	}
 
 	/**
-	 * Accessor for the input stream provided by the client socket.
+	 * Accessor for the key the messages of this connection are journaled
+	 * under.
+	 * 
+	 * @return String The journal key, or null if the connection is not
+	 *         journaled.
+	 */
+	public String getJournalKey() {
+		return journalKey;
+	}
+
+	/**
+	 * Mutator for the key the messages of this connection are journaled
+	 * under. <br>
+	 * Once set, every message sent to the client is appended to the server's
+	 * {@linkplain TCPJournal} before it is sent, and numbered from one for
+	 * each key. The key should identify the client rather than the
+	 * connection, so a client that reconnects can be given the same key and
+	 * resumed. This has no effect if the server has no journal.
+	 * 
+	 * @param journalKey
+	 *            The new journal key, or null to stop journaling.
+	 */
+	public void setJournalKey(String journalKey) {
+		this.journalKey = journalKey;
+	}
+
+	/**
+	 * Sends the client every journaled message for its key after the given
+	 * sequence number. <br>
+	 * No other message is sent to the client until the replay is done, so
+	 * replayed and new messages arrive in sequence order. Messages already
+	 * deleted from the journal by its retention limits are skipped. On a
+	 * connection with a session, the replayed messages are numbered as new
+	 * session messages.
+	 * 
+	 * @param sequence
+	 *            The sequence number of the last message the client handled,
+	 *            or zero to replay every message.
+	 */
+	public void resumeFrom(long sequence) {
+		if (!isJournaled()) {
+			parentServer.handleClientException(this, new ConnectionException("The connection is not journaled."));
+			return;
+		}
+
+		synchronized (sequenceLock) {
+			TCPSession currentSession = session;
+			try {
+				parentServer.getJournal().replay(journalKey, sequence,
+						currentSession != null ? currentSession::send : this::sendFrame);
+			} catch (IOException e) {
+				parentServer.handleClientException(this, e);
+			}
+		}
+	}
+
+	/**
+	 * Accessor for the messages received from the client, as a
+	 * {@linkplain Flow.Publisher}. <br>
+	 * While a subscriber is attached, it receives every message that passes
+	 * the server's interceptors, instead of the handlers and the client
+	 * message received hook. The next message is not read from the socket
+	 * until the subscriber has requested it, so a slow subscriber slows the
+	 * client down through TCP flow control. Only one subscriber may be
+	 * attached at a time. It is completed when the connection closes.
+	 * 
+	 * @return {@linkplain Flow.Publisher} The inbound messages of the client.
+	 */
+	public Flow.Publisher<Object> inbound() {
+		return inboundPublisher;
+	}
+
+	/**
+	 * Creates a {@linkplain Flow.Subscriber} that sends every message it
+	 * receives to the client. <br>
+	 * It requests one message at a time, and only once the last one has been
+	 * written to the socket, so a client that reads slowly slows the
+	 * publisher down instead of growing the outbound queues.
+	 * Completing the publisher does not close the connection, and an error
+	 * from the publisher is passed to the client exception hook.
+	 * 
+	 * @return {@linkplain Flow.Subscriber} A subscriber that sends to the
+	 *         client.
+	 */
+	public Flow.Subscriber<Object> outbound() {
+		return new TCPOutboundSubscriber(this::sendToClient, this::awaitWritten,
+				e -> parentServer.handleClientException(this, e));
+	}
+
+	/**
+	 * Accessor for the token the client resumes its session with.
+	 * 
+	 * @return String The session token, or null if the client has no
+	 *         session.
+	 */
+	public String getSessionToken() {
+		TCPSession currentSession = session;
+		return currentSession == null ? null : currentSession.getToken();
+	}
+
+	/**
+	 * Accessor for the topic patterns this client is subscribed to.
+	 * 
+	 * @return {@linkplain Set} The topic patterns of this client.
+	 */
+	Set<String> getTopics() {
+		return topics;
+	}
+
+	/**
+	 * Sets up the socket and the input and output streams of the connection.
+	 * <br>
+	 * This is called on the input reader thread before any message is read.
+	 * 
+	 * @return boolean True if the streams were set up successfully, false if
+	 *         not.
+	 */
+	boolean openStreams() {
+		// Set up the endpoint, which clears the socket timeout.
+		try {
+			endpoint.configure();
+		} catch (IOException e) {
+			parentServer.handleClientException(this, e);
+		}
+
+		// Set up the rate limits. These are only used by the input reader
+		// thread.
+		if (parentServer.getMessageRateLimit() != TCPServer.UNLIMITED) {
+			messageBucket = new TCPTokenBucket(parentServer.getMessageRateLimit());
+		}
+		if (parentServer.getByteRateLimit() != TCPServer.UNLIMITED) {
+			byteBucket = new TCPTokenBucket(parentServer.getByteRateLimit());
+		}
+		throttleGraceNanos = TimeUnit.MILLISECONDS.toNanos(parentServer.getThrottleGracePeriod());
+
+		// In-process connections pass messages without streams.
+		if (inProcess != null) {
+			return true;
+		}
+
+		// Create the input and output stream objects.
+		try {
+			input = new DataInputStream(new BufferedInputStream(endpoint.getInputStream()));
+			output = new DataOutputStream(new BufferedOutputStream(endpoint.getOutputStream()));
+		} catch (IOException e) {
+			parentServer.handleClientException(this, e);
+			return false;
+		}
+
+		// Write anything that was sent before the streams existed.
+		flushOutbound();
+
+		return true;
+	}
+
+	/**
+	 * Queues an already encoded message frame to be written to the client.
+	 * <br>
+	 * The frame is written by whichever sending thread holds the connection's
+	 * writer flag, so frames from different threads are never interleaved and
+	 * a thread never waits on another thread's write.
+	 * 
+	 * @param frame
+	 *            The encoded message to send.
+	 */
+	void sendFrame(byte[] frame) {
+		sendFrame(frame, TCPPriority.Normal);
+	}
+
+	/**
+	 * Queues an already encoded message frame to be written to the client, in
+	 * the outbound lane of the given priority.
 	 * 
-	 * @return {@linkplain ObjectInputStream} The input stream provided by the
-	 *         client socket.
+	 * @param frame
+	 *            The encoded message to send.
+	 * @param priority
+	 *            The {@linkplain TCPPriority} of the message.
 	 */
-	ObjectInputStream getConnectionInputStream() {
-		return input;
+	void sendFrame(byte[] frame, TCPPriority priority) {
+		if (queueFrame(frame, priority)) {
+			flushOutbound();
+		}
+	}
+
+	/**
+	 * Sends an encoded control frame to the client, ahead of its queued
+	 * messages. <br>
+	 * Control frames are written like messages, but are not counted among
+	 * the messages sent or dropped.
+	 * 
+	 * @param frame
+	 *            The encoded control frame to send.
+	 */
+	void sendControlFrame(byte[] frame) {
+		controlFrame = frame;
+		sendFrame(frame, TCPPriority.High);
+	}
+
+	/**
+	 * Queues an already encoded message frame in the outbound lane of the
+	 * given priority, without writing it. <br>
+	 * This never blocks, so it may be called while holding a lock that a
+	 * sender blocked on a full socket must not hold. The caller writes the
+	 * frame with {@link #flushOutbound()} once the lock is released.
+	 * 
+	 * @param frame
+	 *            The encoded message to send.
+	 * @param priority
+	 *            The {@linkplain TCPPriority} of the message.
+	 * @return boolean True if the frame was queued and needs flushing, false
+	 *         if it was dropped or already handed to an in-process client.
+	 */
+	boolean queueFrame(byte[] frame, TCPPriority priority) {
+		// Make sure the connection is still open, and has not been failed.
+		if (closed.get() || failure != null) {
+			frameDropped(frame);
+			parentServer.handleClientException(this, new ConnectionException("Client socket does not exist."));
+			return false;
+		}
+
+		// In-process frames go straight to the client's lock-free queue.
+		if (inProcess != null) {
+			boolean sent = sendInProcess(new InProcessEndpoint.EncodedFrame(frame));
+			if (frame == controlFrame) {
+				(sent ? sentControlFrames : droppedControlFrames).incrementAndGet();
+			}
+			return false;
+		}
+
+		// A client that cannot fit another message is not reading what it
+		// is sent, so it is dropped rather than left to hold more memory.
+		if (!reserveMemory(frame.length)) {
+			frameDropped(frame);
+			fail(new ConnectionException("The client exceeded its memory limit with messages waiting to be written. Memory used: " + memoryUsed.get()));
+			return false;
+		}
+
+		pendingFrames.incrementAndGet();
+		outbound[priority.ordinal()].offer(frame);
+		return true;
+	}
+
+	/**
+	 * Sends an encoded message to the client, journaling and numbering it
+	 * first if the connection is journaled or has a session. <br>
+	 * Messages published to a topic are sent through here, so each
+	 * subscriber journals them under its own key.
+	 * 
+	 * @param frame
+	 *            The encoded message to send.
+	 */
+	void deliverFrame(byte[] frame) {
+		if (isSequenced()) {
+			sendSequenced(frame);
+		} else {
+			sendFrame(frame);
+		}
+	}
+
+	/**
+	 * Waits for the client to open or resume its session, if the server uses
+	 * sessions. <br>
+	 * This is called on the input reader thread before the connected hook,
+	 * so a resumed client already has its info, attributes and topic
+	 * patterns back when the hook runs.
+	 * 
+	 * @return {@linkplain Object} The first message of a client that does not
+	 *         use sessions, which is yet to be handled, or null.
+	 * @throws IOException
+	 *             If the first message could not be read.
+	 * @throws ClassNotFoundException
+	 *             If the class of the first message cannot be found.
+	 * @throws ConnectionException
+	 *             If the client is over its rate limits.
+	 */
+	Object openSession() throws IOException, ClassNotFoundException, ConnectionException {
+		if (!parentServer.isSessionsEnabled()) {
+			return null;
+		}
+
+		Object msg = readMessage();
+		if (!(msg instanceof TCPSession.Hello)) {
+			return msg;
+		}
+		TCPSession.Hello hello = (TCPSession.Hello) msg;
+
+		TCPSession resumedSession = hello.getToken() == null ? null : parentServer.findSession(hello.getToken());
+
+		// The connection that still holds the session is usually one the
+		// client has given up on, whose socket may be full. It is closed
+		// first, so the session is taken over without waiting for it.
+		ClientConnection holder = resumedSession == null ? null : resumedSession.getOwner();
+		if (holder != null && holder != this) {
+			holder.closeConnection();
+		}
+
+		ClientConnection previous = null;
+		synchronized (sequenceLock) {
+			if (resumedSession != null) {
+				try {
+					previous = resumedSession.attach(this, hello.getReceived(), System.nanoTime());
+
+					info = resumedSession.getInfo();
+					attributes = resumedSession.getAttributes();
+					topics = resumedSession.getTopics();
+					session = resumedSession;
+					resumed = true;
+				} catch (IOException e) {
+					// The session expired while it was being resumed.
+					resumedSession = null;
+				}
+			}
+
+			if (resumedSession == null) {
+				TCPSession newSession = parentServer.openSession(this, info, attributes, topics);
+				session = newSession;
+				newSession.welcome();
+			}
+		}
+
+		// The connection the session was taken from is closed before the
+		// topic patterns are restored, so no message is published to both.
+		if (previous != null) {
+			previous.closeConnection();
+		}
+		if (resumed) {
+			parentServer.restoreSubscriptions(this);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Waits until the inbound subscriber, if there is one, has requested a
+	 * message. Only the input reader thread calls this.
+	 */
+	void awaitDemand() {
+		inboundPublisher.awaitDemand();
+	}
+
+	/**
+	 * Passes a received message to the inbound subscriber, if there is one.
+	 * 
+	 * @param msg
+	 *            The message received.
+	 * @return boolean True if the subscriber took the message, false if not.
+	 */
+	boolean publishInbound(Object msg) {
+		return inboundPublisher.offer(msg);
+	}
+
+	/**
+	 * Fails the inbound subscriber, if there is one, because the connection
+	 * could not be read.
+	 * 
+	 * @param e
+	 *            The exception thrown by the read.
+	 */
+	void failInbound(Exception e) {
+		inboundPublisher.error(e);
+	}
+
+	/**
+	 * Accessor for whether this connection resumed an existing session.
+	 * 
+	 * @return boolean True if a session was resumed, false if not.
+	 */
+	boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Checks whether messages on this connection are journaled or numbered
+	 * for a session. <br>
+	 * This is true as soon as the server uses sessions, so a message sent
+	 * while the session is being opened is ordered against the reply.
+	 * 
+	 * @return boolean True if messages must be sent in sequence, false if
+	 *         not.
+	 */
+	private boolean isSequenced() {
+		return session != null || parentServer.isSessionsEnabled() || isJournaled();
+	}
+
+	/**
+	 * Checks whether messages on this connection are journaled.
+	 * 
+	 * @return boolean True if the connection has a journal key and the server
+	 *         has a journal, false if not.
+	 */
+	private boolean isJournaled() {
+		return journalKey != null && parentServer.getJournal() != null;
+	}
+
+	/**
+	 * Appends an encoded message to the journal and sends it to the client
+	 * through its session, if it has one. <br>
+	 * The message is still sent if it could not be journaled.
+	 * 
+	 * @param frame
+	 *            The encoded message to send.
+	 */
+	private void sendSequenced(byte[] frame) {
+		// Journaling and queueing are done together, so messages are queued
+		// in the order of their sequence numbers.
+		synchronized (sequenceLock) {
+			TCPJournal journal = parentServer.getJournal();
+			String key = journalKey;
+			if (journal != null && key != null) {
+				try {
+					journal.append(TCPJournal.OUTBOUND, key, frame);
+				} catch (IOException e) {
+					parentServer.handleClientException(this, e);
+				}
+			}
+
+			// A session sends to whichever connection holds it, or keeps the
+			// message until the client resumes.
+			TCPSession currentSession = session;
+			if (currentSession != null) {
+				currentSession.send(frame);
+			} else {
+				sendFrame(frame);
+			}
+		}
+	}
+
+	/**
+	 * Appends an encoded message received from the client to the journal, if
+	 * the journal records received messages.
+	 * 
+	 * @param frame
+	 *            The encoded message received.
+	 */
+	private void journalInbound(byte[] frame) {
+		journalInbound(frame, frame.length);
+	}
+
+	/**
+	 * Records the start of an array as a frame received from the client, if
+	 * the server journals inbound messages.
+	 * 
+	 * @param frame
+	 *            The array holding the frame.
+	 * @param length
+	 *            The length of the frame.
+	 */
+	private void journalInbound(byte[] frame, int length) {
+		TCPJournal journal = parentServer.getJournal();
+		String key = journalKey;
+		if (journal == null || key == null || !journal.isRecordInbound()) {
+			return;
+		}
+
+		try {
+			journal.append(TCPJournal.INBOUND, key, frame, length);
+		} catch (IOException e) {
+			parentServer.handleClientException(this, e);
+		}
+	}
+
+	/**
+	 * Hands a message to an in-process client.
+	 * 
+	 * @param item
+	 *            An encoded frame, or the message itself if the connection
+	 *            passes references.
+	 * @return boolean True if the message was handed over, false if it was
+	 *         dropped.
+	 */
+	private boolean sendInProcess(Object item) {
+		try {
+			inProcess.send(item);
+			sentFrames.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			droppedFrames.incrementAndGet();
+			parentServer.handleClientException(this, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Counts a frame that will never be written.
+	 */
+	private void frameDropped(byte[] frame) {
+		droppedFrames.incrementAndGet();
+		if (frame == controlFrame) {
+			droppedControlFrames.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes every queued frame to the socket, if no other thread is already
+	 * doing so. <br>
+	 * The output stream is flushed once per batch of frames rather than once
+	 * per frame. The next frame is chosen from the priority lanes after each
+	 * frame is written, so a frame queued in a higher lane during a batch is
+	 * written next.
+	 */
+	void flushOutbound() {
+		// The queues are checked again after the writer flag is released, so
+		// a frame queued during the final flush is not left behind.
+		while (hasOutbound() && writing.compareAndSet(false, true)) {
+			try {
+				DataOutputStream out = output;
+				if (out == null || closed.get()) {
+					return;
+				}
+				boolean checksums = parentServer.isFrameChecksums();
+
+				int written = 0;
+				int control = 0;
+				long bytes = 0;
+				try {
+					byte[] frame;
+					while ((frame = nextOutbound()) != null) {
+						written++;
+						if (frame == controlFrame) {
+							control++;
+						}
+						bytes += frame.length;
+						TCPFrameCodec.writeFrame(out, frame, checksums);
+					}
+					out.flush();
+
+					sentFrames.addAndGet(written);
+					sentControlFrames.addAndGet(control);
+				} catch (IOException e) {
+					droppedFrames.addAndGet(written);
+					droppedControlFrames.addAndGet(control);
+					parentServer.handleClientException(this, e);
+				} finally {
+					pendingFrames.addAndGet(-written);
+					releaseMemory(bytes);
+					signalWritten();
+				}
+			} finally {
+				writing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every frame queued before this call has been written to the
+	 * socket or dropped, or the connection has closed. <br>
+	 * Frames are counted rather than tracked, so a frame queued by another
+	 * thread may be waited on in place of one queued by the caller, which
+	 * still keeps the caller from queueing faster than the socket drains.
+	 */
+	void awaitWritten() {
+		// The finished count is read first, so a batch finishing in between
+		// makes the target too low rather than too high.
+		long target = sentFrames.get() + droppedFrames.get();
+		target += pendingFrames.get();
+
+		synchronized (writtenLock) {
+			writtenWaiters.incrementAndGet();
+			try {
+				while (!closed.get() && failure == null && sentFrames.get() + droppedFrames.get() < target) {
+					writtenLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				writtenWaiters.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Wakes the threads waiting in {@link #awaitWritten()}, if there are any.
+	 */
+	private void signalWritten() {
+		if (writtenWaiters.get() > 0) {
+			synchronized (writtenLock) {
+				writtenLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether any frame is waiting to be written.
+	 * 
+	 * @return boolean True if a lane holds a frame, false if not.
+	 */
+	private boolean hasOutbound() {
+		for (ConcurrentLinkedQueue<byte[]> lane : outbound) {
+			if (!lane.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the next frame to write from the priority lanes. Only the thread
+	 * holding the writer flag calls this. <br>
+	 * Without weights, the highest lane holding a frame is always taken.
+	 * With weights, each lane may take as many frames as its weight before
+	 * every lane is given its weight again, highest lane first.
+	 * 
+	 * @return byte[] The next frame, or null if every lane is empty.
+	 */
+	private byte[] nextOutbound() {
+		if (weights == null) {
+			for (ConcurrentLinkedQueue<byte[]> lane : outbound) {
+				byte[] frame = lane.poll();
+				if (frame != null) {
+					return frame;
+				}
+			}
+			return null;
+		}
+
+		// A second pass is only needed when every lane holding a frame has
+		// used up its turn.
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < outbound.length; i++) {
+				if (credits[i] > 0) {
+					byte[] frame = outbound[i].poll();
+					if (frame != null) {
+						credits[i]--;
+						return frame;
+					}
+				}
+			}
+			System.arraycopy(weights, 0, credits, 0, credits.length);
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the outbound lanes, one for each priority.
+	 * 
+	 * @return {@linkplain ConcurrentLinkedQueue}[] The empty lanes, highest
+	 *         priority first.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ConcurrentLinkedQueue<byte[]>[] newLanes() {
+		ConcurrentLinkedQueue<byte[]>[] lanes = new ConcurrentLinkedQueue[TCPPriority.values().length];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+		return lanes;
+	}
+
+	/**
+	 * Accessor for the number of messages sent to the client so far, not
+	 * counting control frames.
+	 * 
+	 * @return long The number of messages written to the socket.
+	 */
+	long getSentFrames() {
+		return sentFrames.get() - sentControlFrames.get();
+	}
+
+	/**
+	 * Accessor for the number of messages that were never written to the
+	 * client, not counting control frames.
+	 * 
+	 * @return long The number of dropped messages.
+	 */
+	long getDroppedFrames() {
+		return droppedFrames.get() - droppedControlFrames.get();
+	}
+
+	/**
+	 * Accessor to check if the connection has nothing left to do. <br>
+	 * A connection is idle once it is closed, or when no message is waiting to
+	 * be written and no received message is being read or handled.
+	 * 
+	 * @return boolean True if the connection is idle, false if not.
+	 */
+	boolean isIdle() {
+		return closed.get() || (pendingFrames.get() == 0 && !handlingMessage);
+	}
+
+	/**
+	 * Accessor to check if the connection has been closed.
+	 * 
+	 * @return boolean True if the connection is closed, false if not.
+	 */
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Reads the next message sent by the client. <br>
+	 * This call blocks until a whole message has been received.
+	 * 
+	 * @return {@linkplain Object} The message sent by the client.
+	 * @throws IOException
+	 *             If the message could not be read.
+	 * @throws ClassNotFoundException
+	 *             If the class of the message cannot be found.
+	 */
+	Object readMessage() throws IOException, ClassNotFoundException, ConnectionException {
+		// In-process messages are either encoded frames or the message itself.
+		if (inProcess != null) {
+			Object item = inProcess.receive();
+			handlingMessage = true;
+			throttle(messageBucket, 1);
+			if (!(item instanceof InProcessEndpoint.EncodedFrame)) {
+				if (isJournaled() && parentServer.getJournal().isRecordInbound()) {
+					journalInbound(TCPFrameCodec.encode(item));
+				}
+				return item;
+			}
+
+			byte[] frame = ((InProcessEndpoint.EncodedFrame) item).getFrame();
+			checkMessageSize(frame.length);
+			throttle(byteBucket, frame.length);
+			journalInbound(frame);
+			return TCPFrameCodec.decode(frame, frame.length, parentServer.getInboundFilter());
+		}
+
+		// The size and rate limits are applied to the frame length, before
+		// the body is read or deserialized.
+		// The connection is busy from the moment a frame starts to arrive,
+		// so a drain does not close it with the message half handled.
+		int header = TCPFrameCodec.readFrameHeader(input);
+		handlingMessage = true;
+		int length = TCPFrameCodec.frameLength(header);
+		checkMessageSize(length);
+		throttle(messageBucket, 1);
+		throttle(byteBucket, length);
+		awaitMemory(length);
+
+		// The body is read into a pooled buffer, which is done with once the
+		// message is deserialized and journaled.
+		try {
+			PooledBuffer frame = TCPFrameCodec.readFrameBody(input, header);
+			try {
+				journalInbound(frame.array(), length);
+				return TCPFrameCodec.decode(frame.array(), length, parentServer.getInboundFilter());
+			} finally {
+				frame.release();
+			}
+		} finally {
+			releaseMemory(length);
+		}
+	}
+
+	/**
+	 * Checks the length of a message from the client against the server's
+	 * message size limit.
+	 * 
+	 * @param length
+	 *            The length of the serialized message.
+	 * @throws ConnectionException
+	 *             If the message is too large.
+	 */
+	private void checkMessageSize(int length) throws ConnectionException {
+		int max = parentServer.getMaxMessageSize();
+		if (max != TCPServer.UNLIMITED && length > max) {
+			throw new ConnectionException("The client sent a message larger than the max message size. Length: " + length);
+		}
+	}
+
+	/**
+	 * Waits until the memory limits allow a frame of the given length to be
+	 * read. <br>
+	 * No more data is read from the socket while waiting, as with the rate
+	 * limits, and a client that stays over its limit for longer than the
+	 * grace period is disconnected.
+	 * 
+	 * @param length
+	 *            The length of the frame.
+	 * @throws ConnectionException
+	 *             If the frame can never fit, or the client has been over its
+	 *             limit for longer than the grace period.
+	 */
+	private void awaitMemory(int length) throws ConnectionException {
+		long limit = parentServer.getClientMemoryLimit();
+		if (limit != TCPServer.UNLIMITED && length > limit) {
+			throw new ConnectionException("The client sent a message larger than its memory limit. Length: " + length);
+		}
+
+		long since = 0;
+		while (!reserveMemory(length)) {
+			long now = System.nanoTime();
+			if (since == 0) {
+				since = now;
+			} else if (now - since > throttleGraceNanos) {
+				throw new ConnectionException("The client exceeded its memory limit for longer than the grace period.");
+			}
+
+			LockSupport.parkNanos(MEMORY_WAIT_NANOS);
+		}
+	}
+
+	/**
+	 * Sets aside memory for this client under its own and the server's memory
+	 * limits.
+	 * 
+	 * @param bytes
+	 *            The number of bytes to set aside.
+	 * @return boolean True if the memory was set aside, false if it would go
+	 *         over a limit.
+	 */
+	private boolean reserveMemory(long bytes) {
+		long limit = parentServer.getClientMemoryLimit();
+		long used;
+		do {
+			used = memoryUsed.get();
+			if (limit != TCPServer.UNLIMITED && used + bytes > limit) {
+				return false;
+			}
+		} while (!memoryUsed.compareAndSet(used, used + bytes));
+
+		if (!parentServer.reserveMemory(bytes)) {
+			memoryUsed.addAndGet(-bytes);
+			return false;
+		}
+
+		long total = used + bytes;
+		long peak = peakMemoryUsed.get();
+		while (total > peak && !peakMemoryUsed.compareAndSet(peak, total)) {
+			peak = peakMemoryUsed.get();
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back memory set aside by {@link #reserveMemory(long)}.
+	 * 
+	 * @param bytes
+	 *            The number of bytes to give back.
+	 */
+	private void releaseMemory(long bytes) {
+		memoryUsed.addAndGet(-bytes);
+		parentServer.releaseMemory(bytes);
+	}
+
+	/**
+	 * Closes the endpoint of the connection from any thread, so the input
+	 * reader thread reports the given failure and closes the connection. <br>
+	 * This never waits on the reader thread, so it is safe to call while
+	 * holding a lock the reader thread may need.
+	 * 
+	 * @param e
+	 *            The {@linkplain ConnectionException} to report.
+	 */
+	private void fail(ConnectionException e) {
+		if (failure != null) {
+			return;
+		}
+		failure = e;
+
+		TCPEndpoint current = endpoint;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException ex) {
+				parentServer.handleClientException(this, ex);
+			}
+		}
+		inboundPublisher.close();
+		signalWritten();
+	}
+
+	/**
+	 * Waits until the given rate limit allows the given amount through. <br>
+	 * No more data is read from the socket while waiting, so the client is
+	 * slowed down by TCP flow control. A client that stays over its limit for
+	 * longer than the grace period is disconnected.
+	 * 
+	 * @param bucket
+	 *            The rate limit to wait on, or null if there is no limit.
+	 * @param amount
+	 *            The number of messages or bytes to take from the limit.
+	 * @throws ConnectionException
+	 *             If the client has been over the limit for longer than the
+	 *             grace period.
+	 */
+	private void throttle(TCPTokenBucket bucket, long amount) throws ConnectionException {
+		if (bucket == null) {
+			return;
+		}
+
+		long wait;
+		while ((wait = bucket.tryAcquire(amount)) > 0) {
+			long now = System.nanoTime();
+			if (throttledSince == 0) {
+				throttledSince = now;
+			} else if (now - throttledSince > throttleGraceNanos) {
+				throw new ConnectionException("The client exceeded its rate limit for longer than the grace period.");
+			}
+
+			LockSupport.parkNanos(wait);
+		}
+
+		throttledSince = 0;
 	}
 
 	/**
@@ -201,24 +1341,49 @@ public final class ClientConnection {
 	}
 
 	/**
-	 * Performs a call to the parent server's client message received hook
-	 * method, with the given Object.
+	 * Performs a call to the parent server's client resumed hook method.
+	 */
+	void clientResumed() {
+		parentServer.clientResumed(this);
+	}
+
+	/**
+	 * Passes the given Object through the parent server's interceptors, then
+	 * to its handler for the type, or to the client message received hook
+	 * method.
 	 * 
 	 * @param msg
 	 *            The {@linkplain Object} that is received from the client.
 	 */
 	void clientMessageReceived(Object msg) {
-		parentServer.clientMessageReceived(this, msg);
+		handlingMessage = true;
+		try {
+			parentServer.messageReceived(this, msg);
+		} finally {
+			handlingMessage = false;
+		}
+	}
+
+	/**
+	 * Marks the message last read from the client as done with, for a message
+	 * that was not passed to {@link #clientMessageReceived(Object)}.
+	 */
+	void messageDone() {
+		handlingMessage = false;
 	}
 
 	/**
 	 * Performs a call to the parent server's handle client exception hook
-	 * method, with the given Exception.
+	 * method, with the given Exception, or with the reason the connection
+	 * was failed if it was.
 	 * 
 	 * @param e
 	 *            The {@linkplain Exception} that is thrown by the client.
 	 */
 	void handleClientException(Exception e) {
-		parentServer.handleClientException(this, e);
+		// A connection failed from another thread reports why, rather than
+		// the error from the closed endpoint.
+		ConnectionException cause = failure;
+		parentServer.handleClientException(this, cause != null ? cause : e);
 	}
 }
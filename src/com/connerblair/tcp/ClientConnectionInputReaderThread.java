@@ -1,5 +1,7 @@
 package com.connerblair.tcp;
 
+import com.connerblair.buffers.BufferArena;
+
 /**
  * The thread that accepts message from a client connection and returns them to
  * the server.
@@ -12,14 +14,17 @@ class ClientConnectionInputReaderThread extends Thread {
 
 	/**
 	 * Creates a new instance of the ClientConnectionInputReaderThread class,
-	 * with the specified ClientConnection.
+	 * with the specified thread group and ClientConnection.
 	 * 
+	 * @param group
+	 *            The {@linkplain ThreadGroup} of the server's client
+	 *            connections.
 	 * @param parentConnection
 	 *            The {@linkplain ClientConnection} object that represents the
 	 *            connection that owns this object.
 	 */
-	ClientConnectionInputReaderThread(ClientConnection parentConnection) {
-		super();
+	ClientConnectionInputReaderThread(ThreadGroup group, ClientConnection parentConnection) {
+		super(group, "ClientConnection_Reader");
 		this.parentConnection = parentConnection;
 	}
 
@@ -28,20 +33,71 @@ class ClientConnectionInputReaderThread extends Thread {
 	 */
 	@Override
 	public void run() {
-		// Call the client connected hook method.
-		parentConnection.clientConnected();
+		// The thread ends with the connection, so its buffers are kept in
+		// the shared pools rather than in a cache that would be lost with it.
+		BufferArena.shared().disableThreadCache();
+
+		// Set up the connection streams before anything else.
+		if (!parentConnection.openStreams()) {
+			parentConnection.closeConnection();
+			return;
+		}
 
+		// Wait for the client to open or resume its session, if the server
+		// uses sessions.
 		Object msg;
+		try {
+			msg = parentConnection.openSession();
+		} catch (Exception e) {
+			if (parentConnection.isInputReaderThreadRunning()) {
+				parentConnection.handleClientException(e);
+			}
+			parentConnection.closeConnection();
+			return;
+		}
+
+		// Call the client connected or resumed hook method.
+		if (parentConnection.isResumed()) {
+			parentConnection.clientResumed();
+		} else {
+			parentConnection.clientConnected();
+		}
+
+		// Handle the first message of a client that does not use sessions.
+		if (msg != null) {
+			parentConnection.clientMessageReceived(msg);
+		} else {
+			parentConnection.messageDone();
+		}
 
 		while (parentConnection.isInputReaderThreadRunning()) {
 			try {
+				// Wait for the inbound subscriber, if there is one, to ask
+				// for the next message before reading it.
+				parentConnection.awaitDemand();
+				if (!parentConnection.isInputReaderThreadRunning()) {
+					break;
+				}
+
 				// Read the object and pass it to the server via the client
 				// message received hook method.
-				msg = parentConnection.getConnectionInputStream().readObject();
+				msg = parentConnection.readMessage();
+
+				// A late session request is ignored once the session has
+				// been opened, or when the server does not use sessions.
+				if (msg instanceof TCPSession.Hello) {
+					parentConnection.messageDone();
+					continue;
+				}
+
 				parentConnection.clientMessageReceived(msg);
 			} catch (Exception e) {
-				parentConnection.handleClientException(e);
-				parentConnection.closeConnection();
+				// A failed read after the connection was closed is expected.
+				if (parentConnection.isInputReaderThreadRunning()) {
+					parentConnection.handleClientException(e);
+					parentConnection.failInbound(e);
+					parentConnection.closeConnection();
+				}
 			}
 		}
 	}
@@ -0,0 +1,163 @@
+package com.connerblair.tcp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The typed attribute store of a {@linkplain ClientConnection}. <br>
+ * Values are held in fixed size pages that are allocated the first time one of
+ * their slots is written. Pages are never copied or resized, so reads and
+ * writes go straight to an array slot through a {@linkplain VarHandle} without
+ * taking a lock.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class ConnectionAttributes {
+	static final int PAGE_SHIFT = 5;
+	static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	static final int PAGE_COUNT = 32;
+	static final int MAX_KEYS = PAGE_SIZE * PAGE_COUNT;
+
+	private static final int SLOT_MASK = PAGE_SIZE - 1;
+
+	private static final VarHandle OBJECT_PAGES = MethodHandles.arrayElementVarHandle(Object[][].class);
+	private static final VarHandle OBJECT_SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+	private static final VarHandle LONG_PAGES = MethodHandles.arrayElementVarHandle(long[][].class);
+	private static final VarHandle LONG_SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final Object[][] objectPages = new Object[PAGE_COUNT][];
+	private final long[][] longPages = new long[PAGE_COUNT][];
+
+	/**
+	 * Gives out the next slot index from the given counter.
+	 *
+	 * @param nextIndex
+	 *            The counter of the key type the slot is for.
+	 * @return int The slot index.
+	 * @throws IllegalStateException
+	 *             If every slot has already been given out.
+	 */
+	static int allocateIndex(AtomicInteger nextIndex) {
+		int index = nextIndex.getAndIncrement();
+		if (index >= MAX_KEYS) {
+			throw new IllegalStateException("No more than " + MAX_KEYS + " attribute keys of one type can be created.");
+		}
+
+		return index;
+	}
+
+	/**
+	 * Accessor for the object value in the given slot.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @return {@linkplain Object} The value in the slot, or null if unset.
+	 */
+	Object get(int index) {
+		Object[] page = (Object[]) OBJECT_PAGES.getAcquire(objectPages, index >>> PAGE_SHIFT);
+		return page == null ? null : OBJECT_SLOTS.getAcquire(page, index & SLOT_MASK);
+	}
+
+	/**
+	 * Mutator for the object value in the given slot.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @param value
+	 *            The new value of the slot.
+	 */
+	void set(int index, Object value) {
+		OBJECT_SLOTS.setRelease(objectPage(index), index & SLOT_MASK, value);
+	}
+
+	/**
+	 * Atomically replaces the object value in the given slot if it is the
+	 * expected value.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @param expected
+	 *            The value the slot must hold.
+	 * @param value
+	 *            The new value of the slot.
+	 * @return boolean True if the value was replaced, false if not.
+	 */
+	boolean compareAndSet(int index, Object expected, Object value) {
+		return OBJECT_SLOTS.compareAndSet(objectPage(index), index & SLOT_MASK, expected, value);
+	}
+
+	/**
+	 * Accessor for the long value in the given slot.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @return long The value in the slot, or zero if unset.
+	 */
+	long getLong(int index) {
+		long[] page = (long[]) LONG_PAGES.getAcquire(longPages, index >>> PAGE_SHIFT);
+		return page == null ? 0L : (long) LONG_SLOTS.getAcquire(page, index & SLOT_MASK);
+	}
+
+	/**
+	 * Mutator for the long value in the given slot.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @param value
+	 *            The new value of the slot.
+	 */
+	void setLong(int index, long value) {
+		LONG_SLOTS.setRelease(longPage(index), index & SLOT_MASK, value);
+	}
+
+	/**
+	 * Atomically adds to the long value in the given slot.
+	 *
+	 * @param index
+	 *            The slot index.
+	 * @param delta
+	 *            The amount to add.
+	 * @return long The value of the slot after the addition.
+	 */
+	long addLong(int index, long delta) {
+		return (long) LONG_SLOTS.getAndAdd(longPage(index), index & SLOT_MASK, delta) + delta;
+	}
+
+	/**
+	 * Accessor for the object page holding the given slot, allocating it if
+	 * needed.
+	 */
+	private Object[] objectPage(int index) {
+		int pageIndex = index >>> PAGE_SHIFT;
+
+		Object[] page = (Object[]) OBJECT_PAGES.getAcquire(objectPages, pageIndex);
+		if (page == null) {
+			// Another thread may allocate the same page, so keep whichever won.
+			Object[] created = new Object[PAGE_SIZE];
+			Object[] witness = (Object[]) OBJECT_PAGES.compareAndExchange(objectPages, pageIndex, null, created);
+			page = witness == null ? created : witness;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Accessor for the long page holding the given slot, allocating it if
+	 * needed.
+	 */
+	private long[] longPage(int index) {
+		int pageIndex = index >>> PAGE_SHIFT;
+
+		long[] page = (long[]) LONG_PAGES.getAcquire(longPages, pageIndex);
+		if (page == null) {
+			// Another thread may allocate the same page, so keep whichever won.
+			long[] created = new long[PAGE_SIZE];
+			long[] witness = (long[]) LONG_PAGES.compareAndExchange(longPages, pageIndex, null, created);
+			page = witness == null ? created : witness;
+		}
+
+		return page;
+	}
+}
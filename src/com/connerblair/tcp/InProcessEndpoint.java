@@ -0,0 +1,209 @@
+package com.connerblair.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@linkplain TCPEndpoint} that connects a client and a server in the same
+ * JVM. <br>
+ * Messages are handed to the peer through a pair of lock-free queues instead
+ * of streams. Each message is either an encoded frame, or, when the endpoint
+ * passes references, the message object itself. The reading thread parks while
+ * its queue is empty and is unparked by the sender.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class InProcessEndpoint implements TCPEndpoint {
+	private final ConcurrentLinkedQueue<Object> inbound;
+	private final ConcurrentLinkedQueue<Object> outbound;
+	private final boolean passReferences;
+	private InProcessEndpoint peer;
+
+	private volatile Thread receiver;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new instance of the InProcessEndpoint class, that reads from
+	 * and writes to the specified queues.
+	 *
+	 * @param inbound
+	 *            The queue of messages sent by the peer.
+	 * @param outbound
+	 *            The queue of messages sent to the peer.
+	 * @param passReferences
+	 *            Whether messages are passed by reference rather than
+	 *            serialized.
+	 */
+	private InProcessEndpoint(ConcurrentLinkedQueue<Object> inbound, ConcurrentLinkedQueue<Object> outbound,
+			boolean passReferences) {
+		this.inbound = inbound;
+		this.outbound = outbound;
+		this.passReferences = passReferences;
+	}
+
+	/**
+	 * Creates the two ends of a new in-process connection.
+	 *
+	 * @param passReferences
+	 *            Whether messages are passed by reference rather than
+	 *            serialized.
+	 * @return InProcessEndpoint[] The client end followed by the server end.
+	 */
+	static InProcessEndpoint[] pair(boolean passReferences) {
+		ConcurrentLinkedQueue<Object> toServer = new ConcurrentLinkedQueue<Object>();
+		ConcurrentLinkedQueue<Object> toClient = new ConcurrentLinkedQueue<Object>();
+
+		InProcessEndpoint client = new InProcessEndpoint(toClient, toServer, passReferences);
+		InProcessEndpoint server = new InProcessEndpoint(toServer, toClient, passReferences);
+		client.peer = server;
+		server.peer = client;
+
+		return new InProcessEndpoint[] { client, server };
+	}
+
+	/**
+	 * Accessor for whether messages are passed by reference rather than
+	 * serialized. <br>
+	 * Messages passed by reference are shared between the sender and the
+	 * receiver, so neither should change a message after it has been sent.
+	 *
+	 * @return boolean True if messages are passed by reference, false if they
+	 *         are serialized.
+	 */
+	boolean passesReferences() {
+		return passReferences;
+	}
+
+	/**
+	 * Hands a message to the peer and wakes its reading thread.
+	 *
+	 * @param item
+	 *            An {@linkplain EncodedFrame}, or the message itself if the
+	 *            endpoint passes references.
+	 * @throws IOException
+	 *             If either end of the connection is closed.
+	 */
+	void send(Object item) throws IOException {
+		if (closed || peer.closed) {
+			throw new IOException("The in-process connection is closed.");
+		}
+
+		outbound.offer(item);
+
+		Thread waiting = peer.receiver;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * Takes the next message sent by the peer. <br>
+	 * This call blocks until a message arrives or the connection is closed.
+	 * Messages sent before the peer closed the connection are still delivered.
+	 *
+	 * @return {@linkplain Object} An {@linkplain EncodedFrame}, or the message
+	 *         itself if it was passed by reference.
+	 * @throws IOException
+	 *             If this end is closed, or the peer has closed and every
+	 *             message has been delivered.
+	 */
+	Object receive() throws IOException {
+		// The receiver is published before the queue is checked, so a message
+		// offered after the check always finds a thread to unpark.
+		receiver = Thread.currentThread();
+
+		while (true) {
+			Object item = inbound.poll();
+			if (item != null) {
+				return item;
+			}
+
+			if (closed) {
+				throw new IOException("The in-process connection is closed.");
+			}
+
+			if (peer.closed) {
+				item = inbound.poll();
+				if (item != null) {
+					return item;
+				}
+				throw new EOFException("The peer closed the in-process connection.");
+			}
+
+			LockSupport.park(this);
+		}
+	}
+
+	@Override
+	public void configure() throws IOException {
+		// Nothing to set up.
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("In-process endpoints do not use streams.");
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("In-process endpoints do not use streams.");
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+
+		// Wake both readers, so each sees the connection is closed.
+		Thread waiting = receiver;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+		waiting = peer.receiver;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * A serialized message passed between in-process endpoints. <br>
+	 * Frames are wrapped so they are never mistaken for a message that was
+	 * passed by reference.
+	 *
+	 * @author Conner Blair
+	 * @version 1.0
+	 */
+	static final class EncodedFrame {
+		private final byte[] frame;
+
+		/**
+		 * Creates a new instance of the EncodedFrame class, that holds the
+		 * specified frame body.
+		 *
+		 * @param frame
+		 *            The serialized message.
+		 */
+		EncodedFrame(byte[] frame) {
+			this.frame = frame;
+		}
+
+		/**
+		 * Accessor for the serialized message.
+		 *
+		 * @return byte[] The body of the frame.
+		 */
+		byte[] getFrame() {
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * A {@linkplain TCPEndpointListener} that accepts connections from clients in
+ * the same JVM. <br>
+ * Listeners are registered under a name while they are open, and clients
+ * connect by name without touching the network.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class InProcessEndpointListener implements TCPEndpointListener {
+	private static final ConcurrentHashMap<String, InProcessEndpointListener> listeners = new ConcurrentHashMap<String, InProcessEndpointListener>();
+	private static final Object CLOSED = new Object();
+
+	private final String name;
+	private final boolean passReferences;
+	private final LinkedTransferQueue<Object> offered = new LinkedTransferQueue<Object>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new instance of the InProcessEndpointListener class, and
+	 * registers it under the specified name.
+	 *
+	 * @param name
+	 *            The name clients connect to.
+	 * @param passReferences
+	 *            Whether messages on accepted connections are passed by
+	 *            reference rather than serialized.
+	 * @throws IOException
+	 *             If another listener is registered under the name.
+	 */
+	InProcessEndpointListener(String name, boolean passReferences) throws IOException {
+		this.name = name;
+		this.passReferences = passReferences;
+
+		if (listeners.putIfAbsent(name, this) != null) {
+			throw new BindException("An in-process server is already bound to the name: " + name);
+		}
+	}
+
+	/**
+	 * Connects to the listener registered under the specified name.
+	 *
+	 * @param name
+	 *            The name of the listener.
+	 * @return {@linkplain TCPEndpoint} The client end of the new connection.
+	 * @throws IOException
+	 *             If no listener is registered under the name.
+	 */
+	static TCPEndpoint connect(String name) throws IOException {
+		InProcessEndpointListener listener = listeners.get(name);
+		if (listener == null || listener.closed) {
+			throw new ConnectException("No in-process server is bound to the name: " + name);
+		}
+
+		InProcessEndpoint[] pair = InProcessEndpoint.pair(listener.passReferences);
+		listener.offered.offer(pair[1]);
+
+		// The listener may have closed after the connection was offered.
+		if (listener.closed) {
+			pair[0].close();
+			throw new ConnectException("No in-process server is bound to the name: " + name);
+		}
+
+		return pair[0];
+	}
+
+	@Override
+	public TCPEndpoint accept() throws IOException {
+		Object next;
+		try {
+			next = offered.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a connection.");
+		}
+
+		// Put the marker back, so every other acceptor is woken too.
+		if (next == CLOSED) {
+			offered.offer(CLOSED);
+			throw new IOException("The listener is closed.");
+		}
+
+		return (TCPEndpoint) next;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		listeners.remove(name, this);
+
+		// Refuse any connection that was offered but never accepted.
+		Object next;
+		while ((next = offered.poll()) != null) {
+			if (next != CLOSED) {
+				((TCPEndpoint) next).close();
+			}
+		}
+		offered.offer(CLOSED);
+	}
+}
@@ -0,0 +1,73 @@
+package com.connerblair.tcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A key for a primitive long attribute stored on a
+ * {@linkplain ClientConnection}. <br>
+ * Values stored under these keys are never boxed. Unset values read as zero.
+ * Like {@linkplain AttributeKey}, keys should be created once and kept in
+ * static final fields.
+ *
+ * This class cannot be inherited from.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class LongAttributeKey {
+	private static final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final String name;
+	private final int index;
+
+	/**
+	 * Creates a new instance of the LongAttributeKey class, with the specified
+	 * name and slot index.
+	 *
+	 * @param name
+	 *            The name of the key.
+	 * @param index
+	 *            The slot the key's value is stored in.
+	 */
+	private LongAttributeKey(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Creates a new long attribute key with the given name. <br>
+	 * Every call returns a distinct key, even if the name has been used before.
+	 *
+	 * @param name
+	 *            The name of the key, used only for debugging.
+	 * @return {@linkplain LongAttributeKey} The new key.
+	 * @throws IllegalStateException
+	 *             If every attribute slot has already been given out.
+	 */
+	public static LongAttributeKey newKey(String name) {
+		return new LongAttributeKey(name, ConnectionAttributes.allocateIndex(nextIndex));
+	}
+
+	/**
+	 * Accessor for the name of the key.
+	 *
+	 * @return String The name of the key.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Accessor for the slot the key's value is stored in.
+	 *
+	 * @return int The slot index of the key.
+	 */
+	int getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
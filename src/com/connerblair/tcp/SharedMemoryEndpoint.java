@@ -0,0 +1,213 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * A {@linkplain TCPEndpoint} backed by a memory-mapped file shared by two
+ * processes on the same host. <br>
+ * The file holds one {@linkplain SharedMemoryRing} for each direction. A client
+ * creates the file under a temporary name and renames it into the server's
+ * directory once it is mapped, and the server claims the file, maps it, and
+ * deletes it, leaving only the two mappings. The server then marks the file
+ * ready, and the client waits for that before it uses the connection, giving
+ * up if no server accepts it in time.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class SharedMemoryEndpoint implements TCPEndpoint {
+	static final String RING_FILE_SUFFIX = ".ring";
+	static final String TEMP_FILE_SUFFIX = ".tmp";
+	static final String CLAIMED_FILE_SUFFIX = ".claimed";
+	static final int RING_CAPACITY = 1 << 20;
+	static final long CONNECT_TIMEOUT_MILLIS = 5000L;
+
+	private static final int RING_SIZE = SharedMemoryRing.size(RING_CAPACITY);
+
+	private final SharedMemoryRing inbound;
+	private final SharedMemoryRing outbound;
+
+	/**
+	 * Creates a new instance of the SharedMemoryEndpoint class, over the
+	 * specified mapping.
+	 * 
+	 * @param mapping
+	 *            The mapping of the shared file.
+	 * @param server
+	 *            True if this is the server's end of the connection, false if
+	 *            it is the client's.
+	 */
+	private SharedMemoryEndpoint(MappedByteBuffer mapping, boolean server) {
+		// The first ring carries data from the client to the server.
+		SharedMemoryRing toServer = new SharedMemoryRing(mapping.slice(0, RING_SIZE));
+		SharedMemoryRing toClient = new SharedMemoryRing(mapping.slice(RING_SIZE, RING_SIZE));
+
+		this.inbound = server ? toServer : toClient;
+		this.outbound = server ? toClient : toServer;
+
+		inbound.claimConsumer();
+		outbound.claimProducer();
+		if (server) {
+			toServer.markReady();
+		}
+	}
+
+	/**
+	 * Connects to a server that accepts shared memory connections in the given
+	 * directory.
+	 * 
+	 * @param directory
+	 *            The directory the server is watching.
+	 * @return {@linkplain SharedMemoryEndpoint} The client's end of the new
+	 *         connection.
+	 * @throws IOException
+	 *             If the shared file could not be created, or no server
+	 *             accepted the connection within
+	 *             {@link #CONNECT_TIMEOUT_MILLIS}.
+	 */
+	static SharedMemoryEndpoint connect(Path directory) throws IOException {
+		String name = UUID.randomUUID().toString();
+		Path temp = directory.resolve(name + TEMP_FILE_SUFFIX);
+		Path offered = directory.resolve(name + RING_FILE_SUFFIX);
+
+		SharedMemoryEndpoint endpoint = new SharedMemoryEndpoint(map(temp, true), false);
+		try {
+			Files.move(temp, offered, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		if (awaitReady(endpoint.outbound)) {
+			return endpoint;
+		}
+
+		// Take the offer back. If the file is gone a server has claimed it,
+		// so give it one more timeout to finish accepting.
+		try {
+			Files.move(offered, temp, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(temp);
+		} catch (NoSuchFileException e) {
+			if (awaitReady(endpoint.outbound)) {
+				return endpoint;
+			}
+		}
+
+		endpoint.close();
+		throw new ConnectException("No server accepted the shared memory connection in " + directory + " within "
+				+ CONNECT_TIMEOUT_MILLIS + " ms.");
+	}
+
+	/**
+	 * Waits up to {@link #CONNECT_TIMEOUT_MILLIS} for the server to mark the
+	 * given ring ready.
+	 */
+	private static boolean awaitReady(SharedMemoryRing ring) throws IOException {
+		long deadline = System.nanoTime() + CONNECT_TIMEOUT_MILLIS * 1000000L;
+		long idle = 0;
+		while (!ring.isReady()) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new ConnectException("Interrupted while waiting for the server to accept the connection.");
+			}
+
+			idle = SharedMemoryRing.backoff(idle);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Accepts the connection offered by the given shared file. <br>
+	 * The file is claimed with an atomic rename, so when several acceptors see
+	 * the same file only one of them gets it.
+	 * 
+	 * @param file
+	 *            The shared file created by the client.
+	 * @return {@linkplain SharedMemoryEndpoint} The server's end of the
+	 *         connection.
+	 * @throws IOException
+	 *             If the file could not be claimed or mapped.
+	 */
+	static SharedMemoryEndpoint accept(Path file) throws IOException {
+		Path claimed = file.resolveSibling(file.getFileName() + CLAIMED_FILE_SUFFIX);
+		Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+
+		try {
+			return new SharedMemoryEndpoint(map(claimed, false), true);
+		} finally {
+			Files.deleteIfExists(claimed);
+		}
+	}
+
+	@Override
+	public void configure() {
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return inbound.read(b, off, len);
+			}
+		};
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				outbound.write(b, off, len);
+			}
+		};
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		outbound.closeProducer();
+		inbound.closeConsumer();
+	}
+
+	/**
+	 * Maps the given file for reading and writing, creating it first if asked.
+	 */
+	private static MappedByteBuffer map(Path file, boolean create) throws IOException {
+		try (FileChannel channel = create
+				? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * RING_SIZE);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@linkplain TCPEndpointListener} that accepts shared memory connections
+ * offered in a directory. <br>
+ * Clients offer a connection by renaming a mapped file into the directory,
+ * which is picked up through a {@linkplain WatchService}. Files left in the
+ * directory by an earlier run are removed when the listener is created.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class SharedMemoryEndpointListener implements TCPEndpointListener {
+	private final Path directory;
+	private final WatchService watcher;
+	private final ConcurrentLinkedQueue<Path> offered = new ConcurrentLinkedQueue<Path>();
+
+	/**
+	 * Creates a new instance of the SharedMemoryEndpointListener class, that
+	 * watches the specified directory.
+	 * 
+	 * @param directory
+	 *            The directory to accept connections in. It is created if it
+	 *            does not exist.
+	 * @throws IOException
+	 *             If the directory could not be watched.
+	 */
+	SharedMemoryEndpointListener(Path directory) throws IOException {
+		this.directory = directory;
+
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*{" + SharedMemoryEndpoint.RING_FILE_SUFFIX
+				+ "," + SharedMemoryEndpoint.TEMP_FILE_SUFFIX + "," + SharedMemoryEndpoint.CLAIMED_FILE_SUFFIX + "}")) {
+			for (Path file : stale) {
+				Files.deleteIfExists(file);
+			}
+		}
+
+		watcher = directory.getFileSystem().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+	}
+
+	@Override
+	public TCPEndpoint accept() throws IOException {
+		while (true) {
+			Path file = offered.poll();
+			if (file != null) {
+				try {
+					return SharedMemoryEndpoint.accept(file);
+				} catch (NoSuchFileException e) {
+					// Another acceptor claimed the file first.
+					continue;
+				}
+			}
+
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (ClosedWatchServiceException e) {
+				throw new IOException("The listener is closed.", e);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for a connection.");
+			}
+
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					rescan();
+				} else if (event.context().toString().endsWith(SharedMemoryEndpoint.RING_FILE_SUFFIX)) {
+					offered.add(directory.resolve((Path) event.context()));
+				}
+			}
+			key.reset();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	/**
+	 * Offers every connection file in the directory, after watch events were
+	 * lost.
+	 */
+	private void rescan() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SharedMemoryEndpoint.RING_FILE_SUFFIX)) {
+			for (Path file : files) {
+				offered.add(file);
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring of bytes held in shared memory. <br>
+ * The ring starts with a header holding the producer and consumer positions
+ * on their own cache lines, followed by flags for each side closing. The
+ * producer copies bytes in and then publishes its position with a release
+ * write, and the consumer reads that position with an acquire read before
+ * copying the bytes out, so the two sides can live in different processes.
+ * A side waiting on the other spins briefly, then yields, then parks for
+ * longer and longer, so an idle connection costs little CPU. On a single
+ * processor the spinning is skipped, since it only delays the other side.
+ * <br>
+ * Each side also records the process it lives in, and a side that has been
+ * waiting for a while checks that the other side's process still exists, so
+ * a peer that dies without closing its side is noticed.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class SharedMemoryRing {
+	static final int HEADER_SIZE = 256;
+
+	private static final int TAIL_OFFSET = 0;
+	private static final int HEAD_OFFSET = 64;
+	private static final int PRODUCER_CLOSED_OFFSET = 128;
+	private static final int PRODUCER_PID_OFFSET = 136;
+	private static final int PRODUCER_START_OFFSET = 144;
+	private static final int CONSUMER_CLOSED_OFFSET = 192;
+	private static final int CONSUMER_PID_OFFSET = 200;
+	private static final int CONSUMER_START_OFFSET = 208;
+	private static final int READY_OFFSET = 216;
+
+	// Spinning only helps when the other side can run at the same time.
+	private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 20000 : 0;
+	private static final int YIELD_LIMIT = SPIN_LIMIT + 100;
+	private static final long PARK_NANOS = 50000L;
+	private static final long MAX_PARK_NANOS = 10000000L;
+	// How many parks pass between checks that the other side is alive.
+	private static final int PEER_CHECK_PARKS = 16;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+
+	/**
+	 * Creates a new instance of the SharedMemoryRing class, over the specified
+	 * region of shared memory.
+	 * 
+	 * @param region
+	 *            The region holding the ring. Its size must be
+	 *            {@link #size(int)} of a power of two capacity.
+	 */
+	SharedMemoryRing(ByteBuffer region) {
+		this.buffer = region;
+		this.capacity = region.capacity() - HEADER_SIZE;
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Accessor for the number of bytes of shared memory a ring needs.
+	 * 
+	 * @param capacity
+	 *            The number of data bytes the ring holds. Must be a power of
+	 *            two.
+	 * @return int The size of the ring's region.
+	 */
+	static int size(int capacity) {
+		return HEADER_SIZE + capacity;
+	}
+
+	/**
+	 * Copies available bytes out of the ring, waiting until at least one is
+	 * available.
+	 * 
+	 * @param b
+	 *            The array to copy the bytes into.
+	 * @param off
+	 *            The offset in the array to start at.
+	 * @param len
+	 *            The most bytes to copy.
+	 * @return int The number of bytes copied, or -1 if the producer has closed
+	 *         and the ring is empty.
+	 * @throws IOException
+	 *             If the consumer side has been closed.
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		// Only the consumer moves the head, so it can be read plainly.
+		long head = (long) LONGS.getOpaque(buffer, HEAD_OFFSET);
+
+		long available;
+		long idle = 0;
+		while ((available = (long) LONGS.getAcquire(buffer, TAIL_OFFSET) - head) == 0) {
+			if (isClosed(CONSUMER_CLOSED_OFFSET)) {
+				throw new IOException("The endpoint is closed.");
+			}
+
+			// The producer publishes its last bytes before closing, so check
+			// for them once more after seeing it closed. A producer whose
+			// process has died is treated as closed.
+			if ((isClosed(PRODUCER_CLOSED_OFFSET) || (isPeerCheckDue(idle) && !isAlive(PRODUCER_PID_OFFSET, PRODUCER_START_OFFSET)))
+					&& (long) LONGS.getAcquire(buffer, TAIL_OFFSET) == head) {
+				return -1;
+			}
+
+			idle = backoff(idle);
+		}
+
+		int count = (int) Math.min(available, len);
+		int index = (int) (head & mask);
+		int first = Math.min(count, capacity - index);
+
+		buffer.get(HEADER_SIZE + index, b, off, first);
+		if (first < count) {
+			buffer.get(HEADER_SIZE, b, off + first, count - first);
+		}
+
+		LONGS.setRelease(buffer, HEAD_OFFSET, head + count);
+
+		return count;
+	}
+
+	/**
+	 * Copies bytes into the ring, waiting for the consumer to make room as
+	 * needed.
+	 * 
+	 * @param b
+	 *            The array holding the bytes.
+	 * @param off
+	 *            The offset in the array to start at.
+	 * @param len
+	 *            The number of bytes to copy.
+	 * @throws IOException
+	 *             If either side has been closed.
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		// Only the producer moves the tail, so it can be read plainly.
+		long tail = (long) LONGS.getOpaque(buffer, TAIL_OFFSET);
+
+		while (len > 0) {
+			long free;
+			long idle = 0;
+			while (true) {
+				if (isClosed(CONSUMER_CLOSED_OFFSET) || isClosed(PRODUCER_CLOSED_OFFSET)) {
+					throw new IOException("The endpoint is closed.");
+				}
+
+				free = capacity - (tail - (long) LONGS.getAcquire(buffer, HEAD_OFFSET));
+				if (free > 0) {
+					break;
+				}
+
+				if (isPeerCheckDue(idle) && !isAlive(CONSUMER_PID_OFFSET, CONSUMER_START_OFFSET)) {
+					throw new IOException("The process at the other end of the endpoint has exited.");
+				}
+
+				idle = backoff(idle);
+			}
+
+			int count = (int) Math.min(free, len);
+			int index = (int) (tail & mask);
+			int first = Math.min(count, capacity - index);
+
+			buffer.put(HEADER_SIZE + index, b, off, first);
+			if (first < count) {
+				buffer.put(HEADER_SIZE, b, off + first, count - first);
+			}
+
+			tail += count;
+			LONGS.setRelease(buffer, TAIL_OFFSET, tail);
+
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Marks the producer side as closed. The consumer reads whatever is left
+	 * and then sees the end of the stream.
+	 */
+	void closeProducer() {
+		LONGS.setRelease(buffer, PRODUCER_CLOSED_OFFSET, 1L);
+	}
+
+	/**
+	 * Marks the consumer side as closed. Further writes by the producer fail.
+	 */
+	void closeConsumer() {
+		LONGS.setRelease(buffer, CONSUMER_CLOSED_OFFSET, 1L);
+	}
+
+	/**
+	 * Records the current process as the producer, so the consumer can tell if
+	 * it dies.
+	 */
+	void claimProducer() {
+		claim(PRODUCER_PID_OFFSET, PRODUCER_START_OFFSET);
+	}
+
+	/**
+	 * Records the current process as the consumer, so the producer can tell
+	 * if it dies.
+	 */
+	void claimConsumer() {
+		claim(CONSUMER_PID_OFFSET, CONSUMER_START_OFFSET);
+	}
+
+	/**
+	 * Marks the ring as ready, once the side that accepts the connection has
+	 * claimed its ends.
+	 */
+	void markReady() {
+		LONGS.setRelease(buffer, READY_OFFSET, 1L);
+	}
+
+	/**
+	 * Accessor to check if the ring has been marked ready.
+	 * 
+	 * @return boolean True if the ring is ready, false if not.
+	 */
+	boolean isReady() {
+		return isClosed(READY_OFFSET);
+	}
+
+	/**
+	 * Records the id and start time of the current process at the given
+	 * offsets.
+	 */
+	private void claim(int pidOffset, int startOffset) {
+		ProcessHandle self = ProcessHandle.current();
+		LONGS.setRelease(buffer, startOffset, self.info().startInstant().map(Instant::toEpochMilli).orElse(0L));
+		LONGS.setRelease(buffer, pidOffset, self.pid());
+	}
+
+	/**
+	 * Checks that the process recorded at the given offsets still exists. The
+	 * start time is compared as well, so a process that reused the id is not
+	 * mistaken for it. A side that has not been claimed is taken to be alive.
+	 */
+	private boolean isAlive(int pidOffset, int startOffset) {
+		long pid = (long) LONGS.getAcquire(buffer, pidOffset);
+		if (pid == 0L) {
+			return true;
+		}
+
+		Optional<ProcessHandle> process = ProcessHandle.of(pid);
+		if (process.isEmpty() || !process.get().isAlive()) {
+			return false;
+		}
+
+		long start = (long) LONGS.getAcquire(buffer, startOffset);
+		Optional<Instant> started = process.get().info().startInstant();
+		return start == 0L || started.isEmpty() || started.get().toEpochMilli() == start;
+	}
+
+	/**
+	 * Checks whether a side that has waited the given number of times should
+	 * check that the other side is alive.
+	 */
+	private static boolean isPeerCheckDue(long idle) {
+		return idle >= YIELD_LIMIT && (idle - YIELD_LIMIT) % PEER_CHECK_PARKS == PEER_CHECK_PARKS - 1;
+	}
+
+	/**
+	 * Accessor to check one of the closed flags.
+	 */
+	private boolean isClosed(int offset) {
+		return (long) LONGS.getAcquire(buffer, offset) != 0L;
+	}
+
+	/**
+	 * Waits a little before the ring is checked again. <br>
+	 * Once spinning and yielding are used up, the park time doubles with each
+	 * wait up to {@link #MAX_PARK_NANOS}.
+	 * 
+	 * @param idle
+	 *            The number of times the caller has already waited.
+	 * @return long The new number of times the caller has waited.
+	 */
+	static long backoff(long idle) {
+		if (idle < SPIN_LIMIT) {
+			Thread.onSpinWait();
+		} else if (idle < YIELD_LIMIT) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(PARK_NANOS << Math.min(idle - YIELD_LIMIT, 8), MAX_PARK_NANOS));
+		}
+
+		return idle + 1;
+	}
+}
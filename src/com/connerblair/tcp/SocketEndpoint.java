@@ -0,0 +1,66 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A {@linkplain TCPEndpoint} backed by a TCP {@linkplain Socket}. <br>
+ * If the socket is an {@linkplain SSLSocket}, the TLS handshake is completed
+ * when the endpoint is configured, so it runs on the thread that will read
+ * from the socket.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class SocketEndpoint implements TCPEndpoint {
+	private final Socket socket;
+
+	/**
+	 * Creates a new instance of the SocketEndpoint class, with the specified
+	 * socket.
+	 * 
+	 * @param socket
+	 *            The connected {@linkplain Socket}.
+	 */
+	SocketEndpoint(Socket socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	public void configure() throws IOException {
+		socket.setSoTimeout(0);
+
+		// Frames are already batched before each flush, so Nagle's algorithm
+		// would only delay small replies and the TLS handshake.
+		socket.setTcpNoDelay(true);
+
+		if (socket instanceof SSLSocket) {
+			((SSLSocket) socket).startHandshake();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
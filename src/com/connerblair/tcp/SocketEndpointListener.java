@@ -0,0 +1,35 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * A {@linkplain TCPEndpointListener} backed by a TCP {@linkplain ServerSocket}.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class SocketEndpointListener implements TCPEndpointListener {
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Creates a new instance of the SocketEndpointListener class, with the
+	 * specified server socket.
+	 * 
+	 * @param serverSocket
+	 *            The bound {@linkplain ServerSocket}.
+	 */
+	SocketEndpointListener(ServerSocket serverSocket) {
+		this.serverSocket = serverSocket;
+	}
+
+	@Override
+	public TCPEndpoint accept() throws IOException {
+		return new SocketEndpoint(serverSocket.accept());
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+}
@@ -1,12 +1,28 @@
 package com.connerblair.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
-
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import com.connerblair.buffers.PooledBuffer;
 import com.connerblair.exceptions.ConnectionException;
 
 /**
@@ -18,13 +34,32 @@ import com.connerblair.exceptions.ConnectionException;
 public abstract class TCPClient {
 	public static int DEF_PORT = -1;
 	public static String DEF_HOST = "localhost";
+	public static final int UNLIMITED = 0;
+	public static final int DEF_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
 
 	private int port;
 	private InetAddress host;
-
-	private Socket clientSocket;
-	private ObjectInputStream input;
-	private ObjectOutputStream output;
+	private Path unixSocketPath;
+	private Path sharedMemoryDirectory;
+	private String inProcessName;
+	private boolean useSessions = false;
+	private SSLContext sslContext;
+	private boolean frameChecksums = false;
+	private boolean verifyHostname = true;
+	private int maxMessageSize = DEF_MAX_MESSAGE_SIZE;
+
+	private volatile String sessionToken;
+	private volatile long sessionReceived;
+	private volatile boolean sessionOpen = false;
+
+	private TCPEndpoint endpoint;
+	private InProcessEndpoint inProcess;
+	private DataInputStream input;
+	private DataOutputStream output;
+	private final Object outputLock = new Object();
+	private final TCPMessageRouter<TCPClient> router = new TCPMessageRouter<TCPClient>();
+	private final TCPInterceptorChain<TCPClient> interceptors = new TCPInterceptorChain<TCPClient>();
+	private final TCPInboundPublisher inboundPublisher = new TCPInboundPublisher();
 
 	private final Object clientReaderLock = new Object();
 	private boolean clientReaderRunning = false;
@@ -83,15 +118,28 @@ public abstract class TCPClient {
 			return;
 		}
 
-		// Create the input and output objects.
+		// Create the input and output objects. In-process connections pass
+		// messages without streams.
 		try {
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			if (inProcess == null) {
+				output = new DataOutputStream(new BufferedOutputStream(endpoint.getOutputStream()));
+				input = new DataInputStream(new BufferedInputStream(endpoint.getInputStream()));
+			}
 		} catch (IOException e) {
 			handleException(e);
 			closeConnection();
 		}
 
+		// Let a new inbound subscriber attach to this connection.
+		inboundPublisher.reset();
+
+		// Open a new session, or resume the last one. Messages are only
+		// counted once the server has replied.
+		sessionOpen = false;
+		if (useSessions && endpoint != null) {
+			sendMessage(new TCPSession.Hello(sessionToken, sessionReceived));
+		}
+
 		// Start the input reader thread.
 		clientReaderRunning = true;
 		clientReaderThread = new TCPClientInputReaderThread(this);
@@ -107,19 +155,29 @@ public abstract class TCPClient {
 			clientReaderRunning = false;
 		}
 
-		// Join the reader thread.
+		// Close the socket first, so the reader thread is woken from any
+		// blocking read or wait for demand.
 		try {
-			clientReaderThread.join();
-		} catch (InterruptedException e) {
+			if (endpoint != null) {
+				endpoint.close();
+			}
+		} catch (IOException e) {
 			handleException(e);
 		}
+		inboundPublisher.close();
+
+		// Join the reader thread, unless this is being called from that
+		// thread.
+		if (clientReaderThread != null && Thread.currentThread() != clientReaderThread) {
+			try {
+				clientReaderThread.join();
+			} catch (InterruptedException e) {
+				handleException(e);
+			}
+		}
 
 		// Close all objects.
 		try {
-			if (clientSocket != null) {
-				clientSocket.close();
-			}
-
 			if (input != null) {
 				input.close();
 			}
@@ -132,9 +190,14 @@ public abstract class TCPClient {
 		} finally {
 			output = null;
 			input = null;
-			clientSocket = null;
+			endpoint = null;
+			inProcess = null;
 		}
 
+		// The reader thread has stopped, so the inbound subscriber can be
+		// completed.
+		inboundPublisher.complete();
+
 		// Call connection closed hook method.
 		connectionClosed();
 	}
@@ -146,20 +209,125 @@ public abstract class TCPClient {
 	 *            The {@linkplain Object} to send to the server.
 	 */
 	public final void sendToServer(Object msg) {
-		// Check for null socket and output stream.
-		if (clientSocket == null || output == null) {
-			handleException(new ConnectionException("Client socket does not exist."));
-			return;
+		if (!interceptors.isEmpty()) {
+			msg = interceptors.outbound(this, msg);
 		}
+		if (msg != null) {
+			sendMessage(msg);
+		}
+	}
 
-		// Send object.
-		try {
-			output.writeObject(msg);
-		} catch (IOException e) {
-			handleException(e);
+	/**
+	 * Sends the given Object to the server, without passing it through the
+	 * interceptors.
+	 * 
+	 * @param msg
+	 *            The {@linkplain Object} to send to the server.
+	 */
+	private void sendMessage(Object msg) {
+		// Synchronized so that messages sent from different threads are never
+		// interleaved.
+		synchronized (outputLock) {
+			// Check for null socket and output stream.
+			if (endpoint == null || (output == null && inProcess == null)) {
+				handleException(new ConnectionException("Client socket does not exist."));
+				return;
+			}
+
+			// Send object.
+			try {
+				if (inProcess != null) {
+					inProcess.send(inProcess.passesReferences() ? msg
+							: new InProcessEndpoint.EncodedFrame(TCPFrameCodec.encode(msg)));
+					return;
+				}
+
+				TCPFrameCodec.writeFrame(output, TCPFrameCodec.encode(msg), frameChecksums);
+				output.flush();
+			} catch (IOException e) {
+				handleException(e);
+			}
 		}
 	}
 
+	/**
+	 * Registers a handler for messages of the given type, and of every
+	 * subtype, received from the server. <br>
+	 * A message goes to the handler of its own class, or else of its nearest
+	 * registered superclass, or else of its nearest registered interface.
+	 * Messages with no handler are passed to
+	 * {@link #handleMessageFromServer(Object)}.
+	 * 
+	 * @param <T>
+	 *            The type of message to handle.
+	 * @param type
+	 *            The class of message to handle.
+	 * @param handler
+	 *            The handler to call with the message, or null to remove the
+	 *            handler for the type.
+	 */
+	public final <T> void on(Class<T> type, Consumer<? super T> handler) {
+		router.register(type, handler == null ? null : (client, msg) -> handler.accept(type.cast(msg)));
+	}
+
+	/**
+	 * Adds an interceptor that every message to and from the server passes
+	 * through. <br>
+	 * Interceptors run in the order they were added. Received messages pass
+	 * through them before they are routed to a handler, and sent messages
+	 * before they are serialized.
+	 * 
+	 * @param interceptor
+	 *            The interceptor to add.
+	 */
+	public final void addInterceptor(TCPInterceptor<? super TCPClient> interceptor) {
+		interceptors.add(interceptor);
+	}
+
+	/**
+	 * Removes an interceptor added with
+	 * {@link #addInterceptor(TCPInterceptor)}.
+	 * 
+	 * @param interceptor
+	 *            The interceptor to remove.
+	 */
+	public final void removeInterceptor(TCPInterceptor<? super TCPClient> interceptor) {
+		if (!interceptors.remove(interceptor)) {
+			handleException(new ConnectionException("The interceptor was never added."));
+		}
+	}
+
+	/**
+	 * Accessor method for the messages received from the server, as a
+	 * {@linkplain Flow.Publisher}. <br>
+	 * While a subscriber is attached, it receives every message that passes
+	 * the interceptors, instead of the handlers and the handle message from
+	 * server hook. The next message is not read from the socket until the
+	 * subscriber has requested it, so a slow subscriber slows the server down
+	 * through TCP flow control. Only one subscriber may be attached at a
+	 * time. It is completed when the connection closes, and a new one may be
+	 * attached once the connection is opened again.
+	 * 
+	 * @return {@linkplain Flow.Publisher} The inbound messages of the client.
+	 */
+	public final Flow.Publisher<Object> inbound() {
+		return inboundPublisher;
+	}
+
+	/**
+	 * Creates a {@linkplain Flow.Subscriber} that sends every message it
+	 * receives to the server. <br>
+	 * It requests one message at a time, and only once the last one has been
+	 * sent. Completing the publisher does not close the connection, and an
+	 * error from the publisher is passed to the exception hook.
+	 * 
+	 * @return {@linkplain Flow.Subscriber} A subscriber that sends to the
+	 *         server.
+	 */
+	public final Flow.Subscriber<Object> outbound() {
+		return new TCPOutboundSubscriber(this::sendToServer, this::handleException);
+	}
+
 	/**
 	 * Accessor method to see if the client is currently connected to the
 	 * server.
@@ -232,6 +400,283 @@ public abstract class TCPClient {
 		}
 	}
 
+	/**
+	 * Accessor method for the path of the Unix domain socket the client
+	 * connects to.
+	 * 
+	 * @return {@linkplain Path} The path of the socket, or null if the client
+	 *         connects to a TCP port.
+	 */
+	public final Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * Mutator method to change the path of the Unix domain socket the client
+	 * connects to.
+	 * 
+	 * @param unixSocketPath
+	 *            The new path of the socket, or null to connect to a TCP port.
+	 */
+	public final void setUnixSocketPath(String unixSocketPath) {
+		try {
+			setUnixSocketPath(unixSocketPath == null ? null : Paths.get(unixSocketPath));
+		} catch (InvalidPathException e) {
+			handleException(new ConnectionException("Invalid socket path. Path: " + unixSocketPath, e));
+		}
+	}
+
+	/**
+	 * Mutator method to change the path of the Unix domain socket the client
+	 * connects to. <br>
+	 * When set, the client connects to the socket instead of the host and
+	 * port, with the same hooks and message handling.
+	 * 
+	 * @param unixSocketPath
+	 *            The new path of the socket, or null to connect to a TCP port.
+	 */
+	public final void setUnixSocketPath(Path unixSocketPath) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change socket path while client is running."));
+		} else {
+			this.unixSocketPath = unixSocketPath;
+		}
+	}
+
+	/**
+	 * Accessor method for the directory of the shared memory server the client
+	 * connects to.
+	 * 
+	 * @return {@linkplain Path} The directory, or null if the client does not
+	 *         use shared memory.
+	 */
+	public final Path getSharedMemoryDirectory() {
+		return sharedMemoryDirectory;
+	}
+
+	/**
+	 * Mutator method to change the directory of the shared memory server the
+	 * client connects to.
+	 * 
+	 * @param sharedMemoryDirectory
+	 *            The new directory, or null to not use shared memory.
+	 */
+	public final void setSharedMemoryDirectory(String sharedMemoryDirectory) {
+		try {
+			setSharedMemoryDirectory(sharedMemoryDirectory == null ? null : Paths.get(sharedMemoryDirectory));
+		} catch (InvalidPathException e) {
+			handleException(new ConnectionException("Invalid directory. Path: " + sharedMemoryDirectory, e));
+		}
+	}
+
+	/**
+	 * Mutator method to change the directory of the shared memory server the
+	 * client connects to. <br>
+	 * When set, the client connects through memory-mapped ring buffers
+	 * instead of a socket, with the same hooks and message handling. This
+	 * takes priority over the Unix socket path and the host and port.
+	 * 
+	 * @param sharedMemoryDirectory
+	 *            The new directory, or null to not use shared memory.
+	 */
+	public final void setSharedMemoryDirectory(Path sharedMemoryDirectory) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change shared memory directory while client is running."));
+		} else {
+			this.sharedMemoryDirectory = sharedMemoryDirectory;
+		}
+	}
+
+	/**
+	 * Accessor method for the name of the in-process server the client
+	 * connects to.
+	 * 
+	 * @return {@linkplain String} The name of the server, or null if the
+	 *         client connects over a transport.
+	 */
+	public final String getInProcessName() {
+		return inProcessName;
+	}
+
+	/**
+	 * Mutator method to change the name of the in-process server the client
+	 * connects to. <br>
+	 * When set, the client connects to a server in the same JVM through
+	 * memory, with the same hooks and message handling. Whether messages are
+	 * passed by reference is decided by the server. This takes priority over
+	 * every other transport.
+	 * 
+	 * @param inProcessName
+	 *            The new name of the server, or null to connect over a
+	 *            transport.
+	 */
+	public final void setInProcessName(String inProcessName) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change in-process name while client is running."));
+		} else {
+			this.inProcessName = inProcessName;
+		}
+	}
+
+	/**
+	 * Accessor method for the TLS context the client connects with.
+	 * 
+	 * @return {@linkplain SSLContext} The TLS context, or null if the client
+	 *         does not use TLS.
+	 */
+	public final SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Mutator method to change the TLS context the client connects with. <br>
+	 * When set, connections to the host and port use TLS. Sessions are cached
+	 * by the context, so clients that share one context resume earlier
+	 * handshakes with the same server instead of doing a full handshake. This
+	 * has no effect on the other transports.
+	 * 
+	 * @param sslContext
+	 *            The new TLS context, or null to not use TLS.
+	 */
+	public final void setSSLContext(SSLContext sslContext) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change TLS context while client is running."));
+		} else {
+			this.sslContext = sslContext;
+		}
+	}
+
+	/**
+	 * Accessor method for whether the server's certificate must match the
+	 * host name.
+	 * 
+	 * @return boolean True if the host name is verified, false if not.
+	 */
+	public final boolean isVerifyHostname() {
+		return verifyHostname;
+	}
+
+	/**
+	 * Mutator method to change whether the server's certificate must match
+	 * the host name. This is enabled by default.
+	 * 
+	 * @param verifyHostname
+	 *            True to verify the host name, false to not.
+	 */
+	public final void setVerifyHostname(boolean verifyHostname) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change host name verification while client is running."));
+		} else {
+			this.verifyHostname = verifyHostname;
+		}
+	}
+
+	/**
+	 * Accessor method for whether the frames sent to the server end with a
+	 * checksum.
+	 * 
+	 * @return boolean True if frames are sent with checksums, false if not.
+	 */
+	public final boolean isFrameChecksums() {
+		return frameChecksums;
+	}
+
+	/**
+	 * Mutator method to change whether the frames sent to the server end with
+	 * a CRC32C checksum. <br>
+	 * Frames received with a checksum are always checked, before they are
+	 * deserialized, and a frame that does not match closes the connection.
+	 * The server must be of a version that reads checksums.
+	 * 
+	 * @param frameChecksums
+	 *            True to send frames with checksums, false to not.
+	 */
+	public final void setFrameChecksums(boolean frameChecksums) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change frame checksums while client is running."));
+		} else {
+			this.frameChecksums = frameChecksums;
+		}
+	}
+
+	/**
+	 * Accessor method for the largest message the client accepts from the
+	 * server.
+	 * 
+	 * @return int The limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Mutator method to change the largest message the client accepts from
+	 * the server. <br>
+	 * The limit is checked against the length at the start of each frame,
+	 * before any memory is set aside for it, and a larger frame closes the
+	 * connection, so a corrupt or hostile length cannot exhaust the client's
+	 * memory.
+	 * 
+	 * @param maxMessageSize
+	 *            The new limit in bytes of a serialized message, or
+	 *            {@link #UNLIMITED}.
+	 */
+	public final void setMaxMessageSize(int maxMessageSize) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change the max message size while client is running."));
+		} else if (maxMessageSize < 0) {
+			handleException(new ConnectionException("The max message size cannot be negative. Value: " + maxMessageSize));
+		} else {
+			this.maxMessageSize = maxMessageSize;
+		}
+	}
+
+	/**
+	 * Accessor method for whether the client opens a session with the server.
+	 * 
+	 * @return boolean True if the client uses sessions, false if not.
+	 */
+	public final boolean isUseSessions() {
+		return useSessions;
+	}
+
+	/**
+	 * Mutator method to change whether the client opens a session with the
+	 * server. <br>
+	 * When enabled, the client is given a session token the first time it
+	 * connects. Each later connection resumes the session, if the server
+	 * still has it, and the server sends again any message the client did not
+	 * handle. The server must use sessions as well.
+	 * 
+	 * @param useSessions
+	 *            True to use sessions, false to not.
+	 */
+	public final void setUseSessions(boolean useSessions) {
+		if (clientReaderRunning) {
+			handleException(new ConnectionException("Can not change session use while client is running."));
+		} else {
+			this.useSessions = useSessions;
+		}
+	}
+
+	/**
+	 * Accessor method for the token of the client's session.
+	 * 
+	 * @return {@linkplain String} The session token, or null if the client has
+	 *         not been given a session.
+	 */
+	public final String getSessionToken() {
+		return sessionToken;
+	}
+
+	/**
+	 * Forgets the client's session, so the next connection opens a new one.
+	 */
+	public final void clearSession() {
+		sessionToken = null;
+		sessionReceived = 0;
+	}
+
 	/**
 	 * Accessor method to check the value of the client reader thread flag. <br>
 	 * The access of the flag is synchronized.
@@ -245,13 +690,143 @@ public abstract class TCPClient {
 	}
 
 	/**
-	 * Accessor method to get the object input stream for the socket.
+	 * Reads the next message sent by the server. <br>
+	 * This call blocks until a whole message has been received.
+	 * 
+	 * @return {@linkplain Object} The message sent by the server.
+	 * @throws IOException
+	 *             If the message could not be read.
+	 * @throws ClassNotFoundException
+	 *             If the class of the message cannot be found.
+	 */
+	Object readMessage() throws IOException, ClassNotFoundException {
+		// In-process messages are either encoded frames or the message itself.
+		if (inProcess != null) {
+			Object item = inProcess.receive();
+			if (item instanceof InProcessEndpoint.EncodedFrame) {
+				return TCPFrameCodec.decode(((InProcessEndpoint.EncodedFrame) item).getFrame());
+			}
+			return item;
+		}
+
+		// The length is checked before a buffer is taken for the body.
+		int header = TCPFrameCodec.readFrameHeader(input);
+		int length = TCPFrameCodec.frameLength(header);
+		if (maxMessageSize != UNLIMITED && length > maxMessageSize) {
+			throw new StreamCorruptedException("The server sent a frame larger than the max message size. Length: " + length);
+		}
+
+		PooledBuffer frame = TCPFrameCodec.readFrameBody(input, header);
+		try {
+			return TCPFrameCodec.decode(frame.array(), length);
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Handles a control message sent by the server.
+	 * 
+	 * @param frame
+	 *            The {@linkplain TCPControlFrame} sent by the server.
+	 */
+	void handleControlFrame(TCPControlFrame frame) {
+		switch (frame) {
+			case GoAway: {
+				serverGoingAway();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Handles the server's reply to the session request sent when the
+	 * connection was opened.
+	 * 
+	 * @param welcome
+	 *            The reply sent by the server.
+	 */
+	void handleSessionWelcome(TCPSession.Welcome welcome) {
+		sessionToken = welcome.getToken();
+		sessionReceived = welcome.getSequence();
+		sessionOpen = true;
+
+		sessionEstablished(welcome.isResumed());
+	}
+
+	/**
+	 * Passes a message from the server through the interceptors, then to the
+	 * inbound subscriber if there is one, or else to the handler registered
+	 * for its type, or to the handle message from server hook if there is
+	 * none.
+	 * 
+	 * @param msg
+	 *            The message sent by the server.
+	 */
+	void messageReceived(Object msg) {
+		if (!interceptors.isEmpty()) {
+			msg = interceptors.inbound(this, msg);
+		}
+		if (msg == null || inboundPublisher.offer(msg)) {
+			return;
+		}
+
+		if (!router.route(this, msg)) {
+			handleMessageFromServer(msg);
+		}
+	}
+
+	/**
+	 * Waits until the inbound subscriber, if there is one, has requested a
+	 * message. Only the reader thread calls this.
+	 */
+	void awaitDemand() {
+		inboundPublisher.awaitDemand();
+	}
+
+	/**
+	 * Fails the inbound subscriber, if there is one, because the connection
+	 * could not be read.
+	 * 
+	 * @param e
+	 *            The exception thrown by the read.
+	 */
+	void failInbound(Exception e) {
+		inboundPublisher.error(e);
+	}
+
+	/**
+	 * Counts a message from the server as handled, if the connection has a
+	 * session. <br>
+	 * Only the input reader thread calls this.
+	 */
+	void messageHandled() {
+		if (sessionOpen) {
+			sessionReceived++;
+		}
+	}
+
+	/**
+	 * Hook method called when the server has opened or resumed the client's
+	 * session. <br>
+	 * Messages the client did not handle on its last connection follow this
+	 * call. The default implementation does nothing.
 	 * 
-	 * @return {@linkplain ObjectInputStream} The stream through which messages
-	 *         from the server are sent.
+	 * @param resumed
+	 *            True if the last session was resumed, false if a new one
+	 *            was opened.
 	 */
-	ObjectInputStream getConnectionInputStream() {
-		return input;
+	protected void sessionEstablished(boolean resumed) {
+	}
+
+	/**
+	 * Hook method called when the server is draining and has asked its clients
+	 * to go away. <br>
+	 * The server closes the connection once the messages it is sending have
+	 * been written, so clients should stop sending new requests. The default
+	 * implementation does nothing.
+	 */
+	protected void serverGoingAway() {
 	}
 
 	/**
@@ -280,6 +855,31 @@ public abstract class TCPClient {
 	 */
 	protected abstract void handleMessageFromServer(Object msg);
 
+	/**
+	 * Connects a socket to the host and port, using TLS if the client has a
+	 * TLS context. <br>
+	 * The host name is given to the TLS socket so the context can find a
+	 * session to resume.
+	 * 
+	 * @return {@linkplain Socket} The connected socket.
+	 * @throws IOException
+	 *             If the socket could not connect.
+	 */
+	private Socket createSocket() throws IOException {
+		if (sslContext == null) {
+			return new Socket(host, port);
+		}
+
+		SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(host.getHostName(), port);
+		if (verifyHostname) {
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(parameters);
+		}
+
+		return socket;
+	}
+
 	/**
 	 * Initializes the socket.
 	 * 
@@ -287,17 +887,35 @@ public abstract class TCPClient {
 	 *         false if not.
 	 */
 	private boolean initialize() {
-		if (host == null) {
+		if (host == null && unixSocketPath == null && sharedMemoryDirectory == null && inProcessName == null) {
 			return false;
 		}
 
 		try {
-			clientSocket = new Socket(host, port);
+			if (inProcessName != null) {
+				endpoint = InProcessEndpointListener.connect(inProcessName);
+			} else if (sharedMemoryDirectory != null) {
+				endpoint = SharedMemoryEndpoint.connect(sharedMemoryDirectory);
+			} else if (unixSocketPath != null) {
+				SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+				try {
+					channel.connect(UnixDomainSocketAddress.of(unixSocketPath));
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+				endpoint = new ChannelEndpoint(channel);
+			} else {
+				endpoint = new SocketEndpoint(createSocket());
+			}
+			endpoint.configure();
 		} catch (IOException e) {
 			handleException(new ConnectionException("Can not intialize socket.", e));
 			return false;
 		}
 
+		inProcess = endpoint instanceof InProcessEndpoint ? (InProcessEndpoint) endpoint : null;
+
 		return true;
 	}
 }
@@ -1,5 +1,7 @@
 package com.connerblair.tcp;
 
+import com.connerblair.buffers.BufferArena;
+
 /**
  * The thread that accepts messages from the server and returns them to the
  * client.
@@ -27,6 +29,10 @@ class TCPClientInputReaderThread extends Thread {
 	 */
 	@Override
 	public void run() {
+		// The thread ends with the connection, so its buffers are kept in
+		// the shared pools rather than in a cache that would be lost with it.
+		BufferArena.shared().disableThreadCache();
+
 		// Call the client connection opened hook method.
 		parentClient.connectionOpened();
 
@@ -34,13 +40,37 @@ class TCPClientInputReaderThread extends Thread {
 
 		while (parentClient.isClientReaderThreadRunning()) {
 			try {
-				// Read the object and pass it to the client via the handle
-				// message from server hook method.
-				msg = parentClient.getConnectionInputStream().readObject();
-				parentClient.handleMessageFromServer(msg);
+				// Wait for the inbound subscriber, if there is one, to ask
+				// for the next message before reading it.
+				parentClient.awaitDemand();
+				if (!parentClient.isClientReaderThreadRunning()) {
+					break;
+				}
+
+				// Read the object and pass it to the client's handler for its
+				// type, or the handle message from server hook method.
+				msg = parentClient.readMessage();
+
+				// Control messages are handled here rather than passed on.
+				if (msg instanceof TCPControlFrame) {
+					parentClient.handleControlFrame((TCPControlFrame) msg);
+					continue;
+				}
+
+				if (msg instanceof TCPSession.Welcome) {
+					parentClient.handleSessionWelcome((TCPSession.Welcome) msg);
+					continue;
+				}
+
+				parentClient.messageReceived(msg);
+				parentClient.messageHandled();
 			} catch (Exception e) {
-				parentClient.handleException(e);
-				parentClient.closeConnection();
+				// A failed read after the connection was closed is expected.
+				if (parentClient.isClientReaderThreadRunning()) {
+					parentClient.handleException(e);
+					parentClient.failInbound(e);
+					parentClient.closeConnection();
+				}
 			}
 		}
 	}
@@ -0,0 +1,13 @@
+package com.connerblair.tcp;
+
+/**
+ * An enumeration of the control messages the server sends to its clients. <br>
+ * Control messages are sent like any other message, but are handled by the
+ * {@linkplain TCPClient} itself rather than passed to its message hook.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+enum TCPControlFrame {
+	GoAway
+}
@@ -0,0 +1,66 @@
+package com.connerblair.tcp;
+
+/**
+ * The outcome of draining a {@linkplain TCPServer}.
+ * 
+ * This class cannot be inherited from.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class TCPDrainResult {
+	private final long flushedMessages;
+	private final long droppedMessages;
+	private final int forcedClosures;
+
+	/**
+	 * Creates a new instance of the TCPDrainResult class, with the specified
+	 * counts.
+	 * 
+	 * @param flushedMessages
+	 *            The number of messages written to clients during the drain.
+	 * @param droppedMessages
+	 *            The number of messages that were never written.
+	 * @param forcedClosures
+	 *            The number of connections closed at the deadline.
+	 */
+	TCPDrainResult(long flushedMessages, long droppedMessages, int forcedClosures) {
+		this.flushedMessages = flushedMessages;
+		this.droppedMessages = droppedMessages;
+		this.forcedClosures = forcedClosures;
+	}
+
+	/**
+	 * Accessor for the number of messages written to clients during the drain.
+	 * 
+	 * @return long The number of flushed messages.
+	 */
+	public long getFlushedMessages() {
+		return flushedMessages;
+	}
+
+	/**
+	 * Accessor for the number of messages that were never written to their
+	 * client.
+	 * 
+	 * @return long The number of dropped messages.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages;
+	}
+
+	/**
+	 * Accessor for the number of connections that were still busy at the
+	 * deadline and had to be closed.
+	 * 
+	 * @return int The number of forced closures.
+	 */
+	public int getForcedClosures() {
+		return forcedClosures;
+	}
+
+	@Override
+	public String toString() {
+		return "Flushed: " + flushedMessages + ", Dropped: " + droppedMessages + ", Forced closures: " + forcedClosures;
+	}
+}
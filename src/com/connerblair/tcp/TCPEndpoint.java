@@ -0,0 +1,60 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * A connected, stream oriented transport between a client and a server. <br>
+ * The {@linkplain ClientConnection} and the {@linkplain TCPClient} only talk to
+ * their peer through this interface, so messages are framed and handled the
+ * same way whatever the underlying transport is.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+interface TCPEndpoint {
+
+	/**
+	 * Prepares the endpoint for use, before its streams are created.
+	 * 
+	 * @throws IOException
+	 *             If the endpoint could not be set up.
+	 */
+	void configure() throws IOException;
+
+	/**
+	 * Accessor for the stream of data sent by the peer.
+	 * 
+	 * @return {@linkplain InputStream} The input stream of the endpoint.
+	 * @throws IOException
+	 *             If the stream could not be created.
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Accessor for the stream of data sent to the peer.
+	 * 
+	 * @return {@linkplain OutputStream} The output stream of the endpoint.
+	 * @throws IOException
+	 *             If the stream could not be created.
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Accessor for the network address of the peer.
+	 * 
+	 * @return {@linkplain InetAddress} The address of the peer, or null if the
+	 *         transport has no network address.
+	 */
+	InetAddress getInetAddress();
+
+	/**
+	 * Closes the endpoint. Any thread blocked reading from it is woken.
+	 * 
+	 * @throws IOException
+	 *             If the endpoint could not be closed.
+	 */
+	void close() throws IOException;
+}
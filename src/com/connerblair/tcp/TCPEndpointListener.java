@@ -0,0 +1,30 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+
+/**
+ * A bound transport that the {@linkplain TCPServer} accepts new connections
+ * from.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ */
+interface TCPEndpointListener {
+
+	/**
+	 * Waits for and accepts the next connection.
+	 * 
+	 * @return {@linkplain TCPEndpoint} The endpoint of the new connection.
+	 * @throws IOException
+	 *             If the listener is closed or the accept failed.
+	 */
+	TCPEndpoint accept() throws IOException;
+
+	/**
+	 * Closes the listener. Any thread blocked accepting from it is woken.
+	 * 
+	 * @throws IOException
+	 *             If the listener could not be closed.
+	 */
+	void close() throws IOException;
+}
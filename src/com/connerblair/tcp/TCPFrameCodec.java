@@ -0,0 +1,246 @@
+package com.connerblair.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.zip.CRC32C;
+
+import com.connerblair.buffers.BufferArena;
+import com.connerblair.buffers.PooledBuffer;
+import com.connerblair.buffers.PooledOutputStream;
+
+/**
+ * Encodes and decodes the frames that carry messages between a
+ * {@linkplain TCPClient} and a {@linkplain ClientConnection}. <br>
+ * Each frame is a four byte length followed by a self-contained serialized
+ * message, so a message can be encoded once and written to any number of
+ * connections. <br>
+ * A frame may also end with a CRC32C checksum of its length and body, which
+ * is marked by the top bit of the length. A reader checks every frame that
+ * carries one before decoding it, so corruption that got past TCP's own
+ * checksum, such as from a faulty middlebox, is found at the frame it
+ * happened in rather than later in deserialization. <br>
+ * Messages are serialized into, and frames read into, buffers from the shared
+ * {@linkplain BufferArena}, so the only arrays left behind are the encoded
+ * frames themselves, which are kept by the outbound queues, sessions and
+ * journal.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPFrameCodec {
+	// Marks a frame that ends with a checksum, in the top bit of its length.
+	private static final int CHECKSUM_FLAG = 0x80000000;
+
+	// The size of the buffer a message is first serialized into.
+	private static final int ENCODE_BUFFER_SIZE = 1024;
+
+	/**
+	 * This class only contains static methods and cannot be instantiated.
+	 */
+	private TCPFrameCodec() {
+	}
+
+	/**
+	 * Serializes the given message into the body of a frame.
+	 *
+	 * @param msg
+	 *            The {@linkplain Object} to serialize.
+	 * @return byte[] The serialized message.
+	 * @throws IOException
+	 *             If the message could not be serialized.
+	 */
+	static byte[] encode(Object msg) throws IOException {
+		try (PooledOutputStream bytes = new PooledOutputStream(BufferArena.shared(), ENCODE_BUFFER_SIZE)) {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(msg);
+			out.flush();
+
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Deserializes the message held in the body of a frame.
+	 *
+	 * @param frame
+	 *            The body of the frame.
+	 * @return {@linkplain Object} The deserialized message.
+	 * @throws IOException
+	 *             If the frame does not hold a valid serialized message.
+	 * @throws ClassNotFoundException
+	 *             If the class of the message cannot be found.
+	 */
+	static Object decode(byte[] frame) throws IOException, ClassNotFoundException {
+		return decode(frame, frame.length);
+	}
+
+	/**
+	 * Deserializes the message held in the start of an array.
+	 *
+	 * @param frame
+	 *            The array holding the body of the frame.
+	 * @param length
+	 *            The length of the body.
+	 * @return {@linkplain Object} The deserialized message.
+	 * @throws IOException
+	 *             If the frame does not hold a valid serialized message.
+	 * @throws ClassNotFoundException
+	 *             If the class of the message cannot be found.
+	 */
+	static Object decode(byte[] frame, int length) throws IOException, ClassNotFoundException {
+		return decode(frame, length, null);
+	}
+
+	/**
+	 * Deserializes the message held in the start of an array, checking it
+	 * against a filter as it is read.
+	 *
+	 * @param frame
+	 *            The array holding the body of the frame.
+	 * @param length
+	 *            The length of the body.
+	 * @param filter
+	 *            The {@linkplain ObjectInputFilter} to check the message
+	 *            against, or null to use the JVM-wide filter.
+	 * @return {@linkplain Object} The deserialized message.
+	 * @throws IOException
+	 *             If the frame does not hold a valid serialized message, or
+	 *             the filter rejects it.
+	 * @throws ClassNotFoundException
+	 *             If the class of the message cannot be found.
+	 */
+	static Object decode(byte[] frame, int length, ObjectInputFilter filter) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame, 0, length))) {
+			if (filter != null) {
+				in.setObjectInputFilter(filter);
+			}
+			return in.readObject();
+		}
+	}
+
+	/**
+	 * Writes the given frame body, prefixed by its length, to the stream. <br>
+	 * The stream is not flushed, so several frames can be written as a batch.
+	 *
+	 * @param out
+	 *            The stream to write the frame to.
+	 * @param frame
+	 *            The body of the frame.
+	 * @throws IOException
+	 *             If the frame could not be written.
+	 */
+	static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+		writeFrame(out, frame, false);
+	}
+
+	/**
+	 * Writes the given frame body, prefixed by its length and optionally
+	 * followed by its checksum, to the stream. <br>
+	 * The stream is not flushed, so several frames can be written as a batch.
+	 *
+	 * @param out
+	 *            The stream to write the frame to.
+	 * @param frame
+	 *            The body of the frame.
+	 * @param checksum
+	 *            True to end the frame with a checksum, false to not.
+	 * @throws IOException
+	 *             If the frame could not be written.
+	 */
+	static void writeFrame(DataOutputStream out, byte[] frame, boolean checksum) throws IOException {
+		if (!checksum) {
+			out.writeInt(frame.length);
+			out.write(frame);
+			return;
+		}
+
+		int header = frame.length | CHECKSUM_FLAG;
+		out.writeInt(header);
+		out.write(frame);
+		out.writeInt(checksum(header, frame, frame.length));
+	}
+
+	/**
+	 * Reads the header that starts the next frame from the stream. <br>
+	 * This call blocks until the header has been read.
+	 *
+	 * @param in
+	 *            The stream to read the header from.
+	 * @return int The header of the frame, which gives the length of the body
+	 *         through {@link #frameLength(int)}.
+	 * @throws IOException
+	 *             If the stream is closed.
+	 */
+	static int readFrameHeader(DataInputStream in) throws IOException {
+		return in.readInt();
+	}
+
+	/**
+	 * Finds the length of a frame body from the header of the frame.
+	 *
+	 * @param header
+	 *            The header of the frame.
+	 * @return int The length of the frame body.
+	 */
+	static int frameLength(int header) {
+		return header & ~CHECKSUM_FLAG;
+	}
+
+	/**
+	 * Reads the frame body that follows the given header from the stream,
+	 * and checks it against its checksum if it has one. <br>
+	 * This call blocks until the whole frame has been read.
+	 *
+	 * @param in
+	 *            The stream to read the body from.
+	 * @param header
+	 *            The header of the frame, as read by
+	 *            {@link #readFrameHeader(DataInputStream)}.
+	 * @return {@linkplain PooledBuffer} A buffer holding the body of the frame
+	 *         at its start, which the caller must release.
+	 * @throws IOException
+	 *             If the stream is closed before the whole frame is read, or
+	 *             the frame does not match its checksum.
+	 */
+	static PooledBuffer readFrameBody(DataInputStream in, int header) throws IOException {
+		int length = frameLength(header);
+		PooledBuffer frame = BufferArena.shared().acquire(length);
+
+		try {
+			in.readFully(frame.array(), 0, length);
+
+			if ((header & CHECKSUM_FLAG) != 0) {
+				int expected = in.readInt();
+				int actual = checksum(header, frame.array(), length);
+				if (actual != expected) {
+					throw new StreamCorruptedException("Frame checksum mismatch. Length: " + length);
+				}
+			}
+		} catch (IOException e) {
+			frame.release();
+			throw e;
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Computes the checksum of a frame, over its header and its body.
+	 */
+	private static int checksum(int header, byte[] frame, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(header >>> 24);
+		crc.update(header >>> 16);
+		crc.update(header >>> 8);
+		crc.update(header);
+		crc.update(frame, 0, length);
+
+		return (int) crc.getValue();
+	}
+}
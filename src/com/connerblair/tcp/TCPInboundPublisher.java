@@ -0,0 +1,178 @@
+package com.connerblair.tcp;
+
+import java.io.EOFException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the messages received on a connection to a
+ * {@linkplain Flow.Subscriber}. <br>
+ * While a subscriber is attached, the connection's reader thread does not read
+ * the next message until the subscriber has requested one, so a slow
+ * subscriber leaves data unread in the socket and the sender is slowed down by
+ * TCP flow control. Without a subscriber, or once it cancels, messages go to
+ * the usual handlers and hooks. The subscriber is completed when the connection
+ * closes.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPInboundPublisher implements Flow.Publisher<Object> {
+	private final AtomicReference<InboundSubscription> current = new AtomicReference<InboundSubscription>();
+	private volatile Thread reader;
+	private volatile boolean closed = false;
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Object> subscriber) {
+		InboundSubscription subscription = new InboundSubscription(subscriber);
+		if (closed || !current.compareAndSet(null, subscription)) {
+			subscriber.onSubscribe(subscription);
+			subscription.fail(new IllegalStateException(closed ? "The connection is closed." : "The connection already has a subscriber."));
+			return;
+		}
+
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Waits until the subscriber, if there is one, has requested a message.
+	 * <br>
+	 * Only the reader thread calls this. It returns at once if there is no
+	 * subscriber, and as soon as the subscriber cancels or the connection is
+	 * closed.
+	 */
+	void awaitDemand() {
+		reader = Thread.currentThread();
+
+		InboundSubscription subscription;
+		while ((subscription = current.get()) != null && subscription.demand.get() == 0 && !closed) {
+			LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Passes a received message to the subscriber, if there is one. <br>
+	 * Only the reader thread calls this.
+	 *
+	 * @param msg
+	 *            The message received.
+	 * @return boolean True if the subscriber took the message, false if it
+	 *         should be handled as usual.
+	 */
+	boolean offer(Object msg) {
+		awaitDemand();
+
+		InboundSubscription subscription = current.get();
+		if (subscription == null || subscription.demand.get() == 0) {
+			return false;
+		}
+
+		subscription.demand.decrementAndGet();
+		subscription.subscriber.onNext(msg);
+		return true;
+	}
+
+	/**
+	 * Stops the reader thread waiting for demand, because the connection is
+	 * closing.
+	 */
+	void close() {
+		closed = true;
+		wakeReader();
+	}
+
+	/**
+	 * Completes the subscriber, if there is one, because the connection has
+	 * closed. <br>
+	 * This is called once the reader thread has stopped, so it never runs at
+	 * the same time as a call to the subscriber's onNext.
+	 */
+	void complete() {
+		closed = true;
+
+		InboundSubscription subscription = current.getAndSet(null);
+		if (subscription != null) {
+			subscription.subscriber.onComplete();
+		}
+	}
+
+	/**
+	 * Fails the subscriber, if there is one, because the connection could
+	 * not be read. Only the reader thread calls this. <br>
+	 * A peer that closed the connection is not an error, so the subscriber is
+	 * left to be completed when the connection closes.
+	 *
+	 * @param error
+	 *            The error that ended the connection.
+	 */
+	void error(Throwable error) {
+		closed = true;
+		wakeReader();
+		if (error instanceof EOFException) {
+			return;
+		}
+
+		InboundSubscription subscription = current.getAndSet(null);
+		if (subscription != null) {
+			subscription.subscriber.onError(error);
+		}
+	}
+
+	/**
+	 * Lets the publisher take a subscriber again, for a connection that is
+	 * being reopened.
+	 */
+	void reset() {
+		closed = false;
+	}
+
+	/**
+	 * Wakes the reader thread if it is waiting for demand.
+	 */
+	private void wakeReader() {
+		Thread waiting = reader;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * The link between the publisher and its subscriber.
+	 */
+	private final class InboundSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super Object> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+
+		private InboundSubscription(Flow.Subscriber<? super Object> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("The number of messages requested must be positive. Requested: " + n));
+				return;
+			}
+
+			// Demand that overflows is treated as unbounded.
+			demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+			wakeReader();
+		}
+
+		@Override
+		public void cancel() {
+			current.compareAndSet(this, null);
+			wakeReader();
+		}
+
+		/**
+		 * Fails a subscriber that could not be attached.
+		 */
+		private void fail(Throwable error) {
+			subscriber.onError(error);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.connerblair.tcp;
+
+/**
+ * A step that every message passes through between the transport and the
+ * application. <br>
+ * Interceptors are added to a {@linkplain TCPServer} or a
+ * {@linkplain TCPClient}, and run in the order they were added. Each one may
+ * pass a message on unchanged, replace it with another, or drop it by
+ * returning null, in which case the later interceptors never see it. An
+ * interceptor that drops a message may still reply to it, such as an
+ * authentication check that sends back an error. <br>
+ * Interceptors are called from many threads at once and must be thread safe.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ * 
+ * @param <C>
+ *            The type of the connection each message belongs to, which is
+ *            {@linkplain ClientConnection} on the server and
+ *            {@linkplain TCPClient} on the client.
+ */
+public interface TCPInterceptor<C> {
+
+	/**
+	 * Called with each message received, before it is handled. The default
+	 * implementation passes the message on unchanged.
+	 * 
+	 * @param connection
+	 *            The connection the message was received on.
+	 * @param msg
+	 *            The message received.
+	 * @return {@linkplain Object} The message to pass on, or null to drop it.
+	 */
+	default Object inbound(C connection, Object msg) {
+		return msg;
+	}
+
+	/**
+	 * Called with each message about to be sent, before it is serialized. The
+	 * default implementation passes the message on unchanged.
+	 * 
+	 * @param connection
+	 *            The connection the message is being sent on.
+	 * @param msg
+	 *            The message being sent.
+	 * @return {@linkplain Object} The message to send, or null to drop it.
+	 */
+	default Object outbound(C connection, Object msg) {
+		return msg;
+	}
+}
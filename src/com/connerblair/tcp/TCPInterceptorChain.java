@@ -0,0 +1,104 @@
+package com.connerblair.tcp;
+
+import java.util.Arrays;
+
+/**
+ * The ordered interceptors of a server or a client. <br>
+ * The interceptors are kept in an array that is replaced whenever one is
+ * added or removed, so a message is passed through them with a plain indexed
+ * loop, without locking or allocating.
+ * 
+ * @author Conner Blair
+ * @version 1.0
+ * 
+ * @param <C>
+ *            The type of the connection each message belongs to.
+ */
+final class TCPInterceptorChain<C> {
+	@SuppressWarnings("rawtypes")
+	private static final TCPInterceptor[] NO_INTERCEPTORS = new TCPInterceptor[0];
+
+	@SuppressWarnings("unchecked")
+	private volatile TCPInterceptor<? super C>[] interceptors = NO_INTERCEPTORS;
+
+	/**
+	 * Adds an interceptor after those already in the chain.
+	 * 
+	 * @param interceptor
+	 *            The interceptor to add.
+	 */
+	synchronized void add(TCPInterceptor<? super C> interceptor) {
+		TCPInterceptor<? super C>[] updated = Arrays.copyOf(interceptors, interceptors.length + 1);
+		updated[interceptors.length] = interceptor;
+		interceptors = updated;
+	}
+
+	/**
+	 * Removes an interceptor from the chain.
+	 * 
+	 * @param interceptor
+	 *            The interceptor to remove.
+	 * @return boolean True if the interceptor was in the chain, false if not.
+	 */
+	synchronized boolean remove(TCPInterceptor<? super C> interceptor) {
+		TCPInterceptor<? super C>[] current = interceptors;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == interceptor) {
+				TCPInterceptor<? super C>[] updated = Arrays.copyOf(current, current.length - 1);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				interceptors = updated;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks whether the chain has any interceptors, so a connection without
+	 * any can skip the chain on every message.
+	 * 
+	 * @return boolean True if the chain is empty, false if not.
+	 */
+	boolean isEmpty() {
+		return interceptors.length == 0;
+	}
+
+	/**
+	 * Passes a received message through every interceptor, in order.
+	 * 
+	 * @param connection
+	 *            The connection the message was received on.
+	 * @param msg
+	 *            The message received.
+	 * @return {@linkplain Object} The message to handle, or null if it was
+	 *         dropped.
+	 */
+	Object inbound(C connection, Object msg) {
+		TCPInterceptor<? super C>[] current = interceptors;
+		for (int i = 0; i < current.length && msg != null; i++) {
+			msg = current[i].inbound(connection, msg);
+		}
+
+		return msg;
+	}
+
+	/**
+	 * Passes a message being sent through every interceptor, in order.
+	 * 
+	 * @param connection
+	 *            The connection the message is being sent on.
+	 * @param msg
+	 *            The message being sent.
+	 * @return {@linkplain Object} The message to send, or null if it was
+	 *         dropped.
+	 */
+	Object outbound(C connection, Object msg) {
+		TCPInterceptor<? super C>[] current = interceptors;
+		for (int i = 0; i < current.length && msg != null; i++) {
+			msg = current[i].outbound(connection, msg);
+		}
+
+		return msg;
+	}
+}
@@ -0,0 +1,584 @@
+package com.connerblair.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of the messages sent to, and optionally received
+ * from, clients. <br>
+ * Messages are journaled under the key of the connection they were sent on,
+ * set with {@link ClientConnection#setJournalKey(String)}, and numbered from
+ * one for each key. A client that reconnects under the same key can then be
+ * sent everything after the last message it handled with
+ * {@link ClientConnection#resumeFrom(long)}. <br>
+ * The journal is a directory of memory-mapped segment files. Appends are
+ * copied into the current segment, and a committer thread forces the written
+ * part of the segment to disk once per flush interval, so many appends share
+ * one write to disk. Whole segments are deleted once they fall outside the
+ * retention limits.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class TCPJournal implements Closeable {
+	public static final int DEF_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final int DEF_FLUSH_INTERVAL = 10;
+	public static final long UNLIMITED = 0;
+
+	static final byte OUTBOUND = 0;
+	static final byte INBOUND = 1;
+
+	private static final String SEGMENT_FILE_SUFFIX = ".journal";
+	private static final int HEADER_SIZE = 4 + 1 + 8 + 2;
+
+	private final Path directory;
+	private final int segmentSize;
+	private volatile boolean recordInbound = false;
+	private volatile long retentionBytes = UNLIMITED;
+	private volatile Duration retentionPeriod = null;
+	private volatile int flushInterval = DEF_FLUSH_INTERVAL;
+
+	private final Object appendLock = new Object();
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final HashMap<String, long[]> outboundSequences = new HashMap<String, long[]>();
+	private final HashMap<String, long[]> inboundSequences = new HashMap<String, long[]>();
+	private Segment active;
+	private long nextSegmentIndex;
+	private long totalBytes;
+
+	private final Thread committer;
+	private volatile boolean open = true;
+
+	/**
+	 * Creates a new instance of the TCPJournal class, that keeps its segments
+	 * in the specified directory with the default segment size.
+	 *
+	 * @param directory
+	 *            The directory of the journal. It is created if it does not
+	 *            exist.
+	 * @throws IOException
+	 *             If the journal could not be opened.
+	 */
+	public TCPJournal(Path directory) throws IOException {
+		this(directory, DEF_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a new instance of the TCPJournal class, that keeps its segments
+	 * in the specified directory with the specified segment size. <br>
+	 * Segments left in the directory by an earlier run are read back, so the
+	 * sequence numbers of each key carry on from where they were.
+	 *
+	 * @param directory
+	 *            The directory of the journal. It is created if it does not
+	 *            exist.
+	 * @param segmentSize
+	 *            The size in bytes of each segment file. A message larger
+	 *            than this is given a segment of its own.
+	 * @throws IOException
+	 *             If the journal could not be opened.
+	 */
+	public TCPJournal(Path directory, int segmentSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("The segment size is too small. Size: " + segmentSize);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(directory);
+		recover();
+
+		committer = new Thread("TCPJournal_Committer") {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Accessor method for the directory of the journal.
+	 *
+	 * @return {@linkplain Path} The directory of the journal.
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Accessor method for the size of each segment file.
+	 *
+	 * @return int The size of each segment, in bytes.
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Accessor method for whether messages received from clients are
+	 * journaled.
+	 *
+	 * @return boolean True if received messages are journaled, false if only
+	 *         sent messages are.
+	 */
+	public boolean isRecordInbound() {
+		return recordInbound;
+	}
+
+	/**
+	 * Mutator method for whether messages received from clients are
+	 * journaled. <br>
+	 * Received messages are numbered separately from sent messages, and are
+	 * never replayed to the client.
+	 *
+	 * @param recordInbound
+	 *            True to journal received messages, false to only journal
+	 *            sent messages.
+	 */
+	public void setRecordInbound(boolean recordInbound) {
+		this.recordInbound = recordInbound;
+	}
+
+	/**
+	 * Accessor method for the most bytes of segments the journal keeps.
+	 *
+	 * @return long The size limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public long getRetentionBytes() {
+		return retentionBytes;
+	}
+
+	/**
+	 * Mutator method for the most bytes of segments the journal keeps. <br>
+	 * The oldest segments are deleted when a new segment would take the
+	 * journal over the limit. The current segment is never deleted.
+	 *
+	 * @param retentionBytes
+	 *            The new size limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public void setRetentionBytes(long retentionBytes) {
+		if (retentionBytes < 0) {
+			throw new IllegalArgumentException("The retention size cannot be negative. Size: " + retentionBytes);
+		}
+
+		this.retentionBytes = retentionBytes;
+	}
+
+	/**
+	 * Accessor method for how long the journal keeps a full segment.
+	 *
+	 * @return {@linkplain Duration} How long segments are kept, or null if
+	 *         they are kept regardless of age.
+	 */
+	public Duration getRetentionPeriod() {
+		return retentionPeriod;
+	}
+
+	/**
+	 * Mutator method for how long the journal keeps a full segment. <br>
+	 * Segments are checked when a new segment is started, and deleted once
+	 * they were last written to longer ago than the period.
+	 *
+	 * @param retentionPeriod
+	 *            How long to keep segments, or null to keep them regardless
+	 *            of age.
+	 */
+	public void setRetentionPeriod(Duration retentionPeriod) {
+		this.retentionPeriod = retentionPeriod;
+	}
+
+	/**
+	 * Accessor method for how often appended messages are forced to disk.
+	 *
+	 * @return int The flush interval in milliseconds.
+	 */
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Mutator method for how often appended messages are forced to disk. <br>
+	 * Messages appended since the last flush are lost if the machine fails,
+	 * but not if only the process does, as they are already in the mapped
+	 * file.
+	 *
+	 * @param flushInterval
+	 *            The new flush interval in milliseconds. Must be positive.
+	 */
+	public void setFlushInterval(int flushInterval) {
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("The flush interval must be positive. Interval: " + flushInterval);
+		}
+
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Accessor method for the sequence number of the last message sent under
+	 * the given key.
+	 *
+	 * @param key
+	 *            The journal key of the connection.
+	 * @return long The sequence number of the last message, or zero if none
+	 *         has been journaled.
+	 */
+	public long getSequence(String key) {
+		synchronized (appendLock) {
+			long[] sequence = outboundSequences.get(key);
+			return sequence == null ? 0 : sequence[0];
+		}
+	}
+
+	/**
+	 * Forces every appended message to disk, stops the committer thread and
+	 * closes the segment files. The journal cannot be used afterwards.
+	 *
+	 * @throws IOException
+	 *             If the segment files could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (appendLock) {
+			if (!open) {
+				return;
+			}
+			open = false;
+
+			active.buffer.force(0, active.end);
+			for (Segment segment : segments) {
+				segment.channel.close();
+			}
+		}
+
+		LockSupport.unpark(committer);
+	}
+
+	/**
+	 * Appends a message to the journal.
+	 *
+	 * @param direction
+	 *            {@link #OUTBOUND} or {@link #INBOUND}.
+	 * @param key
+	 *            The journal key of the connection.
+	 * @param frame
+	 *            The serialized message.
+	 * @return long The sequence number given to the message.
+	 * @throws IOException
+	 *             If the journal is closed or a new segment could not be
+	 *             created.
+	 */
+	long append(byte direction, String key, byte[] frame) throws IOException {
+		return append(direction, key, frame, frame.length);
+	}
+
+	/**
+	 * Appends the message held in the start of an array to the journal.
+	 *
+	 * @param direction
+	 *            {@link #OUTBOUND} or {@link #INBOUND}.
+	 * @param key
+	 *            The journal key of the connection.
+	 * @param frame
+	 *            The array holding the serialized message.
+	 * @param length
+	 *            The length of the serialized message.
+	 * @return long The sequence number given to the message.
+	 * @throws IOException
+	 *             If the journal is closed or a new segment could not be
+	 *             created.
+	 */
+	long append(byte direction, String key, byte[] frame, int length) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > Short.MAX_VALUE) {
+			throw new IOException("The journal key is too long. Length: " + keyBytes.length);
+		}
+		int size = HEADER_SIZE + keyBytes.length + length;
+
+		synchronized (appendLock) {
+			if (!open) {
+				throw new IOException("The journal is closed.");
+			}
+
+			if (active.buffer.capacity() - active.end < size) {
+				roll(size);
+			}
+
+			HashMap<String, long[]> sequences = direction == OUTBOUND ? outboundSequences : inboundSequences;
+			long[] sequence = sequences.get(key);
+			if (sequence == null) {
+				sequence = new long[1];
+				sequences.put(key, sequence);
+			}
+			long seq = ++sequence[0];
+
+			// The length is written last, so a record is only seen once it
+			// is whole.
+			ByteBuffer buffer = active.buffer;
+			int start = active.end;
+			buffer.put(start + 4, direction);
+			buffer.putLong(start + 5, seq);
+			buffer.putShort(start + 13, (short) keyBytes.length);
+			buffer.put(start + HEADER_SIZE, keyBytes);
+			buffer.put(start + HEADER_SIZE + keyBytes.length, frame, 0, length);
+			buffer.putInt(start, size - 4);
+			active.end = start + size;
+
+			return seq;
+		}
+	}
+
+	/**
+	 * Passes every message sent under the given key after the given sequence
+	 * number to the consumer, in order. <br>
+	 * Messages appended while the replay is running are not included.
+	 * Messages in segments already deleted by the retention limits are
+	 * skipped.
+	 *
+	 * @param key
+	 *            The journal key of the connection.
+	 * @param after
+	 *            The sequence number of the last message the client handled.
+	 * @param consumer
+	 *            The {@linkplain Consumer} to pass each serialized message to.
+	 * @throws IOException
+	 *             If the journal is closed.
+	 */
+	void replay(String key, long after, Consumer<byte[]> consumer) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		// Take the segments and how far each is written, then read them
+		// without holding up appends.
+		List<Segment> snapshot;
+		int[] ends;
+		synchronized (appendLock) {
+			if (!open) {
+				throw new IOException("The journal is closed.");
+			}
+
+			snapshot = new ArrayList<Segment>(segments);
+			ends = new int[snapshot.size()];
+			for (int i = 0; i < ends.length; i++) {
+				ends[i] = snapshot.get(i).end;
+			}
+		}
+
+		for (int i = 0; i < ends.length; i++) {
+			ByteBuffer buffer = snapshot.get(i).buffer;
+			int position = 0;
+			while (position < ends[i]) {
+				int size = buffer.getInt(position) + 4;
+				if (buffer.get(position + 4) == OUTBOUND && buffer.getLong(position + 5) > after
+						&& keyMatches(buffer, position, keyBytes)) {
+					int frameStart = position + HEADER_SIZE + keyBytes.length;
+					byte[] frame = new byte[position + size - frameStart];
+					buffer.get(frameStart, frame);
+					consumer.accept(frame);
+				}
+				position += size;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the record at the given position belongs to the given
+	 * key.
+	 */
+	private static boolean keyMatches(ByteBuffer buffer, int position, byte[] keyBytes) {
+		if (buffer.getShort(position + 13) != keyBytes.length) {
+			return false;
+		}
+
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (buffer.get(position + HEADER_SIZE + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Forces the current segment and starts a new one, then deletes the
+	 * segments that are outside the retention limits. <br>
+	 * Must be called while holding the append lock.
+	 *
+	 * @param size
+	 *            The size of the record that did not fit.
+	 */
+	private void roll(int size) throws IOException {
+		active.buffer.force(0, active.end);
+		active.lastWritten = System.currentTimeMillis();
+
+		active = openSegment(nextSegmentIndex++, Math.max(segmentSize, size));
+		segments.add(active);
+		totalBytes += active.buffer.capacity();
+
+		long maxBytes = retentionBytes;
+		Duration maxAge = retentionPeriod;
+		long cutoff = maxAge == null ? Long.MIN_VALUE : System.currentTimeMillis() - maxAge.toMillis();
+		while (segments.size() > 1) {
+			Segment oldest = segments.peekFirst();
+			if ((maxBytes == UNLIMITED || totalBytes <= maxBytes) && oldest.lastWritten >= cutoff) {
+				break;
+			}
+
+			// Mapped buffers stay readable after their file is deleted, so
+			// a replay that is already running is not disturbed.
+			segments.pollFirst();
+			totalBytes -= oldest.buffer.capacity();
+			oldest.channel.close();
+			Files.deleteIfExists(oldest.file);
+		}
+	}
+
+	/**
+	 * Maps the segments left by an earlier run and rebuilds the sequence
+	 * numbers from them. The last segment becomes the current segment.
+	 */
+	private void recover() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_FILE_SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		files.sort(null);
+
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			long index = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+
+			Segment segment = openSegment(index, (int) Files.size(file));
+			segment.lastWritten = Files.getLastModifiedTime(file).toMillis();
+			scan(segment);
+
+			segments.add(segment);
+			totalBytes += segment.buffer.capacity();
+			nextSegmentIndex = index + 1;
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(openSegment(nextSegmentIndex++, segmentSize));
+			totalBytes += segmentSize;
+		}
+		active = segments.peekLast();
+	}
+
+	/**
+	 * Finds the end of the records in a recovered segment, and records the
+	 * highest sequence number of each key.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (buffer.capacity() - position >= HEADER_SIZE) {
+			// A zero length marks the end of the records. A length that runs
+			// past the segment is a record that was never finished.
+			int size = buffer.getInt(position) + 4;
+			if (size < HEADER_SIZE || size > buffer.capacity() - position) {
+				break;
+			}
+
+			int keyLength = buffer.getShort(position + 13);
+			byte[] keyBytes = new byte[keyLength];
+			buffer.get(position + HEADER_SIZE, keyBytes);
+			String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+			HashMap<String, long[]> sequences = buffer.get(position + 4) == OUTBOUND ? outboundSequences : inboundSequences;
+			long[] sequence = sequences.get(key);
+			if (sequence == null) {
+				sequence = new long[1];
+				sequences.put(key, sequence);
+			}
+			sequence[0] = Math.max(sequence[0], buffer.getLong(position + 5));
+
+			position += size;
+		}
+
+		segment.end = position;
+	}
+
+	/**
+	 * Opens and maps the segment file with the given index, creating it if it
+	 * does not exist.
+	 */
+	private Segment openSegment(long index, int capacity) throws IOException {
+		Path file = directory.resolve(String.format("%020d%s", index, SEGMENT_FILE_SUFFIX));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			return new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Forces newly appended messages to disk once per flush interval, until
+	 * the journal is closed.
+	 */
+	private void commitLoop() {
+		Segment forcedSegment = null;
+		int forcedEnd = 0;
+
+		while (open) {
+			LockSupport.parkNanos(this, flushInterval * 1000000L);
+
+			Segment segment;
+			int end;
+			synchronized (appendLock) {
+				if (!open) {
+					return;
+				}
+				segment = active;
+				end = segment.end;
+			}
+
+			// Segments that were rolled past were forced when they filled.
+			if (segment != forcedSegment) {
+				forcedSegment = segment;
+				forcedEnd = 0;
+			}
+			if (end > forcedEnd) {
+				segment.buffer.force(forcedEnd, end - forcedEnd);
+				forcedEnd = end;
+			}
+		}
+	}
+
+	/**
+	 * A mapped segment file of the journal.
+	 */
+	private static final class Segment {
+		private final Path file;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int end;
+		private long lastWritten = Long.MAX_VALUE;
+
+		private Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -1,13 +1,16 @@
 package com.connerblair.tcp;
 
 /**
- * An emumeration representing the three states of the TCP server.
+ * An emumeration representing the states of the TCP server. <br>
+ * The server is only in the starting state while its sockets are being set
+ * up.
  * 
  * @author Conner Blair
  * @version 1.0
  */
 enum TCPListenerState {
 	Stopped,
+	Starting,
 	Paused,
 	Running
 }
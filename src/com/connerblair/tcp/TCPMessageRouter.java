@@ -0,0 +1,128 @@
+package com.connerblair.tcp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Routes received messages to the handler registered for their type. <br>
+ * The handler for each message class is found once and cached in a
+ * {@linkplain ClassValue}, so routing a message is a single lookup no matter
+ * how many types are registered. A message is handled by the handler of its
+ * own class if there is one, then that of its nearest superclass, then that
+ * of the nearest interface it implements. Registering a handler replaces the
+ * whole table, so the cache is rebuilt for the new handlers.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ *
+ * @param <C>
+ *            The type of the context passed to each handler with the
+ *            message.
+ */
+final class TCPMessageRouter<C> {
+	private volatile Table<C> table = new Table<C>(new HashMap<Class<?>, BiConsumer<C, Object>>());
+
+	/**
+	 * Registers the handler for messages of the given type and its subtypes.
+	 * <br>
+	 * A handler already registered for the type is replaced.
+	 *
+	 * @param type
+	 *            The type of message to handle.
+	 * @param handler
+	 *            The handler to call with the context and the message, or
+	 *            null to remove the handler for the type.
+	 */
+	synchronized void register(Class<?> type, BiConsumer<C, Object> handler) {
+		HashMap<Class<?>, BiConsumer<C, Object>> handlers = new HashMap<Class<?>, BiConsumer<C, Object>>(table.handlers);
+		if (handler == null) {
+			handlers.remove(type);
+		} else {
+			handlers.put(type, handler);
+		}
+
+		table = new Table<C>(handlers);
+	}
+
+	/**
+	 * Passes the message to the handler registered for its type.
+	 *
+	 * @param context
+	 *            The context to pass to the handler.
+	 * @param msg
+	 *            The message to route.
+	 * @return boolean True if a handler took the message, false if there is
+	 *         no handler for its type.
+	 */
+	boolean route(C context, Object msg) {
+		if (msg == null) {
+			return false;
+		}
+
+		BiConsumer<C, Object> handler = table.resolved.get(msg.getClass());
+		if (handler == null) {
+			return false;
+		}
+
+		handler.accept(context, msg);
+		return true;
+	}
+
+	/**
+	 * An immutable set of handlers and the cache of which handler each message
+	 * class resolves to.
+	 */
+	private static final class Table<C> {
+		private final HashMap<Class<?>, BiConsumer<C, Object>> handlers;
+		private final ClassValue<BiConsumer<C, Object>> resolved;
+
+		private Table(final HashMap<Class<?>, BiConsumer<C, Object>> handlers) {
+			this.handlers = handlers;
+			this.resolved = new ClassValue<BiConsumer<C, Object>>() {
+				@Override
+				protected BiConsumer<C, Object> computeValue(Class<?> type) {
+					return resolve(handlers, type);
+				}
+			};
+		}
+
+		/**
+		 * Finds the handler for a message class: its own, then that of the
+		 * nearest superclass, then that of the nearest interface, searching
+		 * the interfaces breadth first.
+		 */
+		private static <C> BiConsumer<C, Object> resolve(HashMap<Class<?>, BiConsumer<C, Object>> handlers, Class<?> type) {
+			if (handlers.isEmpty()) {
+				return null;
+			}
+
+			for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+				BiConsumer<C, Object> handler = handlers.get(current);
+				if (handler != null) {
+					return handler;
+				}
+			}
+
+			ArrayDeque<Class<?>> interfaces = new ArrayDeque<Class<?>>();
+			for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+				for (Class<?> implemented : current.getInterfaces()) {
+					interfaces.add(implemented);
+				}
+			}
+			while (!interfaces.isEmpty()) {
+				Class<?> current = interfaces.poll();
+				BiConsumer<C, Object> handler = handlers.get(current);
+				if (handler != null) {
+					return handler;
+				}
+
+				for (Class<?> extended : current.getInterfaces()) {
+					interfaces.add(extended);
+				}
+			}
+
+			return null;
+		}
+	}
+}
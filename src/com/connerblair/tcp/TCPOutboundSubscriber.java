@@ -0,0 +1,86 @@
+package com.connerblair.tcp;
+
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import com.connerblair.exceptions.ConnectionException;
+
+/**
+ * Sends the messages of a {@linkplain Flow.Publisher} over a connection. <br>
+ * One message is requested at a time, and the next is only requested once the
+ * last has been written. A connection that only queues its messages is given
+ * a function that waits for the queue to drain, so a slow peer slows the
+ * publisher down instead of the queue growing. Completing the publisher does
+ * not close the connection.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPOutboundSubscriber implements Flow.Subscriber<Object> {
+	private final Consumer<Object> sender;
+	private final Runnable awaitWritten;
+	private final Consumer<Exception> errorHandler;
+	private Flow.Subscription subscription;
+
+	/**
+	 * Creates a new instance of the TCPOutboundSubscriber class, that sends
+	 * with the specified function, which writes each message before it
+	 * returns.
+	 *
+	 * @param sender
+	 *            The function that sends a message over the connection.
+	 * @param errorHandler
+	 *            The function that reports an error from the publisher.
+	 */
+	TCPOutboundSubscriber(Consumer<Object> sender, Consumer<Exception> errorHandler) {
+		this(sender, () -> {
+		}, errorHandler);
+	}
+
+	/**
+	 * Creates a new instance of the TCPOutboundSubscriber class, that sends
+	 * with the specified function and then waits for the message to be
+	 * written.
+	 *
+	 * @param sender
+	 *            The function that sends a message over the connection.
+	 * @param awaitWritten
+	 *            The function that waits until the messages sent so far have
+	 *            been written.
+	 * @param errorHandler
+	 *            The function that reports an error from the publisher.
+	 */
+	TCPOutboundSubscriber(Consumer<Object> sender, Runnable awaitWritten, Consumer<Exception> errorHandler) {
+		this.sender = sender;
+		this.awaitWritten = awaitWritten;
+		this.errorHandler = errorHandler;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		// Only one publisher may feed the subscriber.
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(Object msg) {
+		sender.accept(msg);
+		awaitWritten.run();
+		subscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable error) {
+		errorHandler.accept(new ConnectionException("The publisher of outbound messages failed.", error));
+	}
+
+	@Override
+	public void onComplete() {
+	}
+}
@@ -0,0 +1,18 @@
+package com.connerblair.tcp;
+
+/**
+ * An enumeration of the priorities a message sent to a client can be given.
+ * <br>
+ * Each priority has its own outbound lane on a connection, and frames are
+ * taken from the lanes one at a time, so a message of a higher priority
+ * goes ahead of lower priority messages that are still queued. How the
+ * lanes share the socket is set by {@link TCPServer#setPriorityWeights(int...)}.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public enum TCPPriority {
+	High,
+	Normal,
+	Low
+}
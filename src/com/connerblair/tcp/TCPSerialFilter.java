@@ -0,0 +1,63 @@
+package com.connerblair.tcp;
+
+import java.io.ObjectInputFilter;
+
+/**
+ * The filter a {@linkplain TCPServer} checks each message from its clients
+ * against while it is deserialized. <br>
+ * A message is refused as soon as it nests objects deeper than the depth
+ * limit or holds an array longer than the array length limit, before the
+ * array is allocated, so a small frame cannot make the server build a huge
+ * object graph. Every other class is passed to the filter set on the server,
+ * or to the JVM-wide filter if there is none. The classes of the messages
+ * the server and client send each other themselves are always allowed, so a
+ * filter that only lists the application's classes does not break sessions.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPSerialFilter implements ObjectInputFilter {
+	private final int maxDepth;
+	private final int maxArrayLength;
+	private final ObjectInputFilter filter;
+
+	/**
+	 * Creates a new instance of the TCPSerialFilter class, with the specified
+	 * limits and class filter.
+	 *
+	 * @param maxDepth
+	 *            The deepest nesting of objects allowed, or
+	 *            {@link TCPServer#UNLIMITED}.
+	 * @param maxArrayLength
+	 *            The longest array allowed, or {@link TCPServer#UNLIMITED}.
+	 * @param filter
+	 *            The {@linkplain ObjectInputFilter} to pass other classes to,
+	 *            or null to use the JVM-wide filter.
+	 */
+	TCPSerialFilter(int maxDepth, int maxArrayLength, ObjectInputFilter filter) {
+		this.maxDepth = maxDepth;
+		this.maxArrayLength = maxArrayLength;
+		this.filter = filter;
+	}
+
+	@Override
+	public Status checkInput(FilterInfo info) {
+		if (maxDepth != TCPServer.UNLIMITED && info.depth() > maxDepth) {
+			return Status.REJECTED;
+		}
+		if (maxArrayLength != TCPServer.UNLIMITED && info.arrayLength() > maxArrayLength) {
+			return Status.REJECTED;
+		}
+
+		Class<?> type = info.serialClass();
+		if (type == null) {
+			return Status.UNDECIDED;
+		}
+		if (type == TCPSession.Hello.class || type == TCPSession.Welcome.class || type == TCPControlFrame.class || type == Enum.class) {
+			return Status.ALLOWED;
+		}
+
+		ObjectInputFilter classFilter = filter != null ? filter : ObjectInputFilter.Config.getSerialFilter();
+		return classFilter == null ? Status.UNDECIDED : classFilter.checkInput(info);
+	}
+}
@@ -1,9 +1,28 @@
 package com.connerblair.tcp;
 
 import java.io.IOException;
+import java.io.ObjectInputFilter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
 
 import com.connerblair.exceptions.ConnectionException;
 
@@ -15,20 +34,65 @@ import com.connerblair.exceptions.ConnectionException;
  */
 public abstract class TCPServer {
 	public static final int DEF_PORT = -1;
-	public static final int DEF_BACKLOG = 10;
-	public static final int DEF_TIMEOUT = 500;
+	public static final int DEF_BACKLOG = Integer.getInteger("com.connerblair.tcp.backlog", 128);
+	public static final int DEF_TIMEOUT = 0;
+	public static final int DEF_ACCEPTORS = 1;
+	public static final int UNLIMITED = 0;
+	public static final int DEF_THROTTLE_GRACE_PERIOD = 5000;
+
+	private static final long DRAIN_POLL_NANOS = 10000000L;
+	public static final int DEF_SESSION_BUFFER_SIZE = 1024;
 
 	private int port;
 	private int backlog;
 	private int timeout;
 	private InetAddress address;
+	private int acceptors = DEF_ACCEPTORS;
+	private boolean reusePort = false;
+	private Path unixSocketPath;
+	private Path sharedMemoryDirectory;
+	private String inProcessName;
+	private boolean passReferences = false;
+	private volatile TCPJournal journal;
+	private volatile Duration sessionTimeout;
+	private int sessionBufferSize = DEF_SESSION_BUFFER_SIZE;
+	private SSLContext sslContext;
+	private boolean needClientAuth = false;
+	private volatile boolean frameChecksums = false;
+	private int[] priorityWeights;
+
+	private int maxConnections = UNLIMITED;
+	private int maxConnectionsPerAddress = UNLIMITED;
+	private int maxAcceptRate = UNLIMITED;
+	private int messageRateLimit = UNLIMITED;
+	private int byteRateLimit = UNLIMITED;
+	private int throttleGracePeriod = DEF_THROTTLE_GRACE_PERIOD;
+
+	private int maxMessageSize = UNLIMITED;
+	private long clientMemoryLimit = UNLIMITED;
+	private long memoryLimit = UNLIMITED;
+	private int maxObjectDepth = UNLIMITED;
+	private int maxArrayLength = UNLIMITED;
+	private ObjectInputFilter serialFilter;
+	private volatile TCPSerialFilter inboundFilter;
+	private final AtomicLong memoryUsed = new AtomicLong();
 
-	private ServerSocket serverSocket;
+	private TCPEndpointListener[] endpointListeners;
+
+	private final AtomicInteger admittedConnections = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> admittedPerAddress = new ConcurrentHashMap<InetAddress, Integer>();
+	private TCPTokenBucket acceptBucket;
+
+	private final TCPTopicIndex topics = new TCPTopicIndex();
+	private final TCPMessageRouter<ClientConnection> router = new TCPMessageRouter<ClientConnection>();
+	private final TCPInterceptorChain<ClientConnection> interceptors = new TCPInterceptorChain<ClientConnection>();
+
+	private final ConcurrentHashMap<String, TCPSession> sessions = new ConcurrentHashMap<String, TCPSession>();
+	private final AtomicLong lastSessionSweep = new AtomicLong(System.nanoTime());
 
 	private ThreadGroup clientConnections;
-	private final Object listenerLock = new Object();
-	private TCPListenerState listenerThreadState = TCPListenerState.Stopped;
-	private TCPServerConnectionListenerThread listenerThread;
+	private final AtomicReference<TCPListenerState> listenerState = new AtomicReference<TCPListenerState>(TCPListenerState.Stopped);
+	private volatile TCPServerConnectionListenerThread[] listenerThreads;
 
 	/**
 	 * Creates a new instance of the TCPServer class, with the default port,
@@ -147,41 +211,58 @@ public abstract class TCPServer {
 	 * Starts the server.
 	 */
 	public final void start() {
-		// This whole block is synchronized because it's path depends on the
-		// value of the thread flag.
-		synchronized (listenerLock) {
-			switch (listenerThreadState) {
-				case Running: {
-					handleException(new ConnectionException("The listener thread is already running."));
-					break;
-				}
-				case Paused: {
-					listenerThreadState = TCPListenerState.Running;
-					break;
-				}
-				case Stopped: {
-					// Initialize the socket.
-					if (!initialize()) {
-						return;
-					}
+		// Resuming from a pause wakes the parked listener threads at once.
+		if (listenerState.compareAndSet(TCPListenerState.Paused, TCPListenerState.Running)) {
+			unparkListeners();
+			return;
+		}
 
-					// Start the listener thread running.
-					listenerThreadState = TCPListenerState.Running;
-					listenerThread = new TCPServerConnectionListenerThread(this);
-					listenerThread.start();
-					break;
-				}
-			}
+		// Only one caller may move the server out of the stopped state.
+		if (!listenerState.compareAndSet(TCPListenerState.Stopped, TCPListenerState.Starting)) {
+			handleException(new ConnectionException("The listener thread is already running."));
+			return;
+		}
+
+		// Initialize the socket.
+		if (!initialize()) {
+			listenerState.set(TCPListenerState.Stopped);
+			return;
+		}
+
+		// Create the listener threads. When each acceptor has its own socket
+		// they are spread across them, otherwise they all accept from the one
+		// shared listener.
+		acceptBucket = maxAcceptRate == UNLIMITED ? null : new TCPTokenBucket(maxAcceptRate);
+		inboundFilter = maxObjectDepth == UNLIMITED && maxArrayLength == UNLIMITED && serialFilter == null ? null
+				: new TCPSerialFilter(maxObjectDepth, maxArrayLength, serialFilter);
+		TCPServerConnectionListenerThread[] threads = new TCPServerConnectionListenerThread[acceptors];
+		for (int i = 0; i < acceptors; i++) {
+			TCPEndpointListener endpointListener = endpointListeners[i % endpointListeners.length];
+			threads[i] = new TCPServerConnectionListenerThread(this, endpointListener, i);
+		}
+		listenerThreads = threads;
+
+		// The server may have been stopped while starting.
+		if (!listenerState.compareAndSet(TCPListenerState.Starting, TCPListenerState.Running)) {
+			listenerThreads = null;
+			closeServerSockets();
+			return;
+		}
+
+		for (TCPServerConnectionListenerThread listenerThread : threads) {
+			listenerThread.start();
 		}
 	}
 
 	/**
-	 * Pauses the server's listening thread.
+	 * Pauses the server's listening thread. <br>
+	 * While paused, no new connections are accepted and they wait in the
+	 * socket backlog instead.
 	 */
 	public final void pause() {
-		// Synchronized access of the thread flag.
-		synchronized (listenerLock) {
-			listenerThreadState = TCPListenerState.Paused;
+		if (!listenerState.compareAndSet(TCPListenerState.Running, TCPListenerState.Paused)) {
+			handleException(new ConnectionException("The listener thread is not running."));
+			return;
 		}
 
 		// Calls the server paused hook method.
@@ -189,30 +270,101 @@ public abstract class TCPServer {
 	}
 
 	/**
-	 * Stops the server's listening thread.
+	 * Stops the server's listening thread. <br>
+	 * Clients that are already connected are left running. Use
+	 * {@link #drain(Duration)} to close them as well.
 	 */
 	public final void stop() {
-		// Synchronized access of the thread flag.
-		synchronized (listenerLock) {
-			listenerThreadState = TCPListenerState.Stopped;
-		}
+		stopListening();
 
-		// Join the listener thread.
-		try {
-			listenerThread.join();
-		} catch (InterruptedException e) {
-			handleException(e);
+		// Call the server stopped hook method.
+		serverStopped();
+	}
+
+	/**
+	 * Stops the server, letting connected clients finish first. <br>
+	 * New connections are no longer accepted, and every client is told to go
+	 * away. Each connection is closed once its queued messages are written and
+	 * the message it is handling is done. Connections that are still busy at
+	 * the deadline are closed anyway.
+	 * 
+	 * @param timeout
+	 *            How long to wait for clients to finish.
+	 * @return {@linkplain TCPDrainResult} The number of messages flushed and
+	 *         dropped during the drain.
+	 */
+	public final TCPDrainResult drain(Duration timeout) {
+		long deadline = System.nanoTime() + timeout.toNanos();
+
+		// Stop accepting new connections.
+		stopListening();
+
+		// Take the connections to drain, and the counts to measure them from.
+		ClientConnection[] clients = getAllClients();
+		long sentBefore = 0;
+		long droppedBefore = 0;
+		for (ClientConnection client : clients) {
+			sentBefore += client.getSentFrames();
+			droppedBefore += client.getDroppedFrames();
 		}
 
-		// Close the socket.
+		// Tell every client to go away.
+		byte[] goAway;
 		try {
-			serverSocket.close();
+			goAway = TCPFrameCodec.encode(TCPControlFrame.GoAway);
 		} catch (IOException e) {
-			handleException(e);
+			handleException(new ConnectionException("The go away message could not be serialized.", e));
+			goAway = null;
+		}
+		if (goAway != null) {
+			// It is a control frame, so it is not counted as a message
+			// flushed or dropped.
+			for (ClientConnection client : clients) {
+				client.sendControlFrame(goAway);
+			}
+		}
+
+		// Close each connection as soon as it is idle, until the deadline.
+		int remaining = clients.length;
+		while (remaining > 0 && deadline - System.nanoTime() > 0) {
+			remaining = 0;
+			for (ClientConnection client : clients) {
+				if (client.isClosed()) {
+					continue;
+				}
+
+				if (client.isIdle()) {
+					client.closeConnection();
+				} else {
+					remaining++;
+				}
+			}
+
+			if (remaining > 0) {
+				LockSupport.parkNanos(DRAIN_POLL_NANOS);
+			}
+		}
+
+		// Force the rest closed.
+		int forcedClosures = 0;
+		for (ClientConnection client : clients) {
+			if (!client.isClosed()) {
+				forcedClosures++;
+				client.closeConnection();
+			}
+		}
+
+		long sentAfter = 0;
+		long droppedAfter = 0;
+		for (ClientConnection client : clients) {
+			sentAfter += client.getSentFrames();
+			droppedAfter += client.getDroppedFrames();
 		}
 
 		// Call the server stopped hook method.
 		serverStopped();
+
+		return new TCPDrainResult(sentAfter - sentBefore, droppedAfter - droppedBefore, forcedClosures);
 	}
 
 	/**
@@ -222,13 +374,186 @@ public abstract class TCPServer {
 	 *            The message to send to all clients.
 	 */
 	public final void sendToAllClients(Object msg) {
-		// Get all connections.
-		Thread[] connections = getAllConnections();
+		sendToAllClients(msg, TCPPriority.Normal);
+	}
 
+	/**
+	 * Sends the given message to all connected clients, with the given
+	 * priority.
+	 * 
+	 * @param msg
+	 *            The message to send to all clients.
+	 * @param priority
+	 *            The {@linkplain TCPPriority} of the message.
+	 */
+	public final void sendToAllClients(Object msg, TCPPriority priority) {
 		// Loop through connections and send message to each one.
-		for (Thread connection : connections) {
-			ClientConnection client = ((ClientConnectionInputReaderThread) connection).getParentConnection();
-			client.sendToClient(msg);
+		for (ClientConnection client : getAllClients()) {
+			client.sendToClient(msg, priority);
+		}
+	}
+
+	/**
+	 * Subscribes the given client to a topic pattern. <br>
+	 * Topics are made of levels separated by '/'. A pattern may use '*' to
+	 * match exactly one level, and '#' as its last level to match zero or more
+	 * levels.
+	 *
+	 * @param client
+	 *            The client to subscribe.
+	 * @param topic
+	 *            The topic pattern to subscribe the client to.
+	 */
+	public final void subscribe(ClientConnection client, String topic) {
+		if (!TCPTopicIndex.isValidPattern(topic)) {
+			handleException(new ConnectionException("Invalid topic pattern. Pattern: " + topic));
+			return;
+		}
+
+		if (topics.subscribe(client, topic)) {
+			client.getTopics().add(topic);
+
+			// A client that closed meanwhile may have dropped its
+			// subscriptions before this one was added, so it is taken out
+			// again. A client that closes after this check finds the pattern
+			// among its topics.
+			if (client.isClosed()) {
+				topics.unsubscribe(client, topic);
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes the given client from a topic pattern.
+	 *
+	 * @param client
+	 *            The client to unsubscribe.
+	 * @param topic
+	 *            The topic pattern the client was subscribed to.
+	 */
+	public final void unsubscribe(ClientConnection client, String topic) {
+		if (!TCPTopicIndex.isValidPattern(topic)) {
+			handleException(new ConnectionException("Invalid topic pattern. Pattern: " + topic));
+			return;
+		}
+
+		if (topics.unsubscribe(client, topic)) {
+			client.getTopics().remove(topic);
+		}
+	}
+
+	/**
+	 * Registers a handler for messages of the given type, and of every
+	 * subtype, received from any client. <br>
+	 * A message goes to the handler of its own class, or else of its nearest
+	 * registered superclass, or else of its nearest registered interface.
+	 * Messages with no handler are passed to
+	 * {@link #clientMessageReceived(ClientConnection, Object)}. The handler for
+	 * each class is looked up once and cached, so routing does not slow down
+	 * as more types are registered.
+	 *
+	 * @param <T>
+	 *            The type of message to handle.
+	 * @param type
+	 *            The class of message to handle.
+	 * @param handler
+	 *            The handler to call with the client and the message, or
+	 *            null to remove the handler for the type.
+	 */
+	public final <T> void on(Class<T> type, BiConsumer<ClientConnection, ? super T> handler) {
+		router.register(type, handler == null ? null : (client, msg) -> handler.accept(client, type.cast(msg)));
+	}
+
+	/**
+	 * Adds an interceptor that every message to and from the clients passes
+	 * through. <br>
+	 * Interceptors run in the order they were added. Received messages pass
+	 * through them before they are routed to a handler, and sent messages
+	 * before they are serialized. A message published to a topic is passed
+	 * through once for each subscriber, and is still serialized only once
+	 * for every subscriber whose interceptors return it unchanged.
+	 *
+	 * @param interceptor
+	 *            The interceptor to add.
+	 */
+	public final void addInterceptor(TCPInterceptor<? super ClientConnection> interceptor) {
+		interceptors.add(interceptor);
+	}
+
+	/**
+	 * Removes an interceptor added with
+	 * {@link #addInterceptor(TCPInterceptor)}.
+	 *
+	 * @param interceptor
+	 *            The interceptor to remove.
+	 */
+	public final void removeInterceptor(TCPInterceptor<? super ClientConnection> interceptor) {
+		if (!interceptors.remove(interceptor)) {
+			handleException(new ConnectionException("The interceptor was never added."));
+		}
+	}
+
+	/**
+	 * Sends the given message to every client subscribed to a pattern that
+	 * matches the topic. <br>
+	 * The message is serialized once, no matter how many clients receive it.
+	 *
+	 * @param topic
+	 *            The topic to publish to. Topics cannot contain wildcards.
+	 * @param msg
+	 *            The message to send to the subscribed clients.
+	 */
+	public final void publish(String topic, Object msg) {
+		if (!TCPTopicIndex.isValidTopic(topic)) {
+			handleException(new ConnectionException("Invalid topic. Topic: " + topic));
+			return;
+		}
+
+		ClientConnection[] subscribers = topics.match(topic);
+		if (subscribers.length == 0) {
+			return;
+		}
+
+		// Without interceptors every subscriber gets the same frame.
+		if (interceptors.isEmpty()) {
+			byte[] frame;
+			try {
+				frame = TCPFrameCodec.encode(msg);
+			} catch (IOException e) {
+				handleException(new ConnectionException("The message could not be serialized.", e));
+				return;
+			}
+
+			for (ClientConnection subscriber : subscribers) {
+				subscriber.deliverFrame(frame);
+			}
+			return;
+		}
+
+		// Encode the message once and send the same frame to every subscriber
+		// whose interceptors leave it unchanged.
+		byte[] frame = null;
+		for (ClientConnection subscriber : subscribers) {
+			Object out = interceptors.outbound(subscriber, msg);
+			if (out == null) {
+				continue;
+			}
+
+			try {
+				if (out != msg) {
+					subscriber.deliverFrame(TCPFrameCodec.encode(out));
+					continue;
+				}
+
+				if (frame == null) {
+					frame = TCPFrameCodec.encode(msg);
+				}
+			} catch (IOException e) {
+				handleException(new ConnectionException("The message could not be serialized.", e));
+				continue;
+			}
+
+			subscriber.deliverFrame(frame);
 		}
 	}
 
@@ -302,7 +627,9 @@ public abstract class TCPServer {
 
 	/**
 	 * Mutator method for the timeout of the server. <br>
-	 * If the server is not stopped, this call will have no effect.
+	 * A timeout of zero, the default, lets the acceptors block until a
+	 * connection arrives. If the server is not stopped, this call will have no
+	 * effect.
 	 * 
 	 * @param timeout
 	 *            The new value of the timeout.
@@ -317,193 +644,1485 @@ public abstract class TCPServer {
 	}
 
 	/**
-	 * Accessor method for the address of the server.
+	 * Accessor method for the number of threads accepting new connections.
 	 * 
-	 * @return {@linkplain InetAddress} The address of the server.
+	 * @return int The number of acceptor threads.
 	 */
-	public final InetAddress getAddress() {
-		return address;
+	public final int getAcceptors() {
+		return acceptors;
 	}
 
 	/**
-	 * Mutator method for the address of the server. <br>
+	 * Mutator method for the number of threads accepting new connections. <br>
 	 * If the server is not stopped, this call will have no effect.
 	 * 
-	 * @param address
-	 *            The new address of the server.
+	 * @param acceptors
+	 *            The new number of acceptor threads. Must be at least one.
 	 */
-	public final void setAddress(String address) {
-		try {
-			setAddress(InetAddress.getByName(address));
-		} catch (UnknownHostException e) {
-			handleException(new ConnectionException("Host name could not be resolved. Name: " + address, e));
+	public final void setAcceptors(int acceptors) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the acceptors while the server is running."));
+			return;
 		}
-	}
 
-	/**
-	 * Mutator method for the address of the server. <br>
-	 * If the server is not stopped, this call will have no effect.
-	 * 
-	 * @param address
-	 *            The new address of the server.
-	 */
-	public final void setAddress(InetAddress address) {
-		if (!isStopped()) {
-			handleException(new ConnectionException("Cannot change the address while the server is running."));
+		if (acceptors < 1) {
+			handleException(new ConnectionException("The server needs at least one acceptor. Acceptors: " + acceptors));
 			return;
 		}
 
-		this.address = address;
+		this.acceptors = acceptors;
 	}
 
 	/**
-	 * Accessor method to check if the server is currently in a running state.
-	 * <br>
-	 * Access to the listener flag is synchronized.
+	 * Accessor method to check if each acceptor binds its own socket with
+	 * SO_REUSEPORT.
 	 * 
-	 * @return boolean True if the sever is in a running state, false if not.
+	 * @return boolean True if each acceptor binds its own socket, false if the
+	 *         acceptors share one socket.
 	 */
-	public final boolean isRunning() {
-		synchronized (listenerLock) {
-			return listenerThreadState == TCPListenerState.Running;
-		}
+	public final boolean isReusePort() {
+		return reusePort;
 	}
 
 	/**
-	 * Accessor method to check if the server is currently in a paused state.
-	 * <br>
-	 * Access to the listener flag is synchronized.
+	 * Mutator method for binding each acceptor its own socket with
+	 * SO_REUSEPORT, so the kernel spreads new connections across them. <br>
+	 * If the platform does not support SO_REUSEPORT, the acceptors share one
+	 * socket instead. If the server is not stopped, this call will have no
+	 * effect.
 	 * 
-	 * @return boolean True if the server is in paused state, false if not.
+	 * @param reusePort
+	 *            True to bind a socket per acceptor, false to share one socket.
 	 */
-	public final boolean isPaused() {
-		synchronized (listenerLock) {
-			return listenerThreadState == TCPListenerState.Paused;
+	public final void setReusePort(boolean reusePort) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the port reuse while the server is running."));
+			return;
 		}
+
+		this.reusePort = reusePort;
 	}
 
 	/**
-	 * Accessor method to check if the server is currently in a stopped state.
-	 * <br>
-	 * Access to the listener flag is synchronized.
+	 * Accessor method for the maximum number of connected clients.
 	 * 
-	 * @return boolean True if the server is in a stopped state, false if not.
+	 * @return int The limit, or {@link #UNLIMITED}.
 	 */
-	public final boolean isStopped() {
-		synchronized (listenerLock) {
-			return listenerThreadState == TCPListenerState.Stopped;
-		}
+	public final int getMaxConnections() {
+		return maxConnections;
 	}
 
 	/**
-	 * Accessor method for the socket of the server.
+	 * Mutator method for the maximum number of connected clients. <br>
+	 * If the server is not stopped, this call will have no effect.
 	 * 
-	 * @return {@linkplain ServerSocket} The socket of the server.
+	 * @param maxConnections
+	 *            The new maximum number of connected clients, or
+	 *            {@link #UNLIMITED}.
 	 */
-	ServerSocket getServerSocket() {
-		return serverSocket;
+	public final void setMaxConnections(int maxConnections) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max connections while the server is running."));
+			return;
+		}
+
+		if (maxConnections < 0) {
+			handleException(new ConnectionException("The max connections cannot be negative. Value: " + maxConnections));
+			return;
+		}
+
+		this.maxConnections = maxConnections;
 	}
 
 	/**
-	 * Accessor method for the thread group of the server.
+	 * Accessor method for the maximum number of connected clients from a single
+	 * address.
 	 * 
-	 * @return {@linkplain ThreadGroup} The thread group of the server.
+	 * @return int The limit, or {@link #UNLIMITED}.
 	 */
-	ThreadGroup getClientConnections() {
-		return clientConnections;
+	public final int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
 	}
 
 	/**
-	 * Accessor for the listener thread state. <br>
-	 * Access of the flag is synchronized.
+	 * Mutator method for the maximum number of connected clients from a single
+	 * address. <br>
+	 * If the server is not stopped, this call will have no effect.
 	 * 
-	 * @return {@linkplain TCPListenerState} The value of the listener thread
-	 *         state flag.
+	 * @param maxConnectionsPerAddress
+	 *            The new maximum number of connected clients from a single
+	 *            address, or {@link #UNLIMITED}.
 	 */
-	TCPListenerState getListenerState() {
-		synchronized (listenerLock) {
-			return listenerThreadState;
+	public final void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max connections per address while the server is running."));
+			return;
+		}
+
+		if (maxConnectionsPerAddress < 0) {
+			handleException(new ConnectionException("The max connections per address cannot be negative. Value: " + maxConnectionsPerAddress));
+			return;
 		}
+
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
 	}
 
 	/**
-	 * Hook method called when a new client has connected to the server.
+	 * Accessor method for the maximum number of connections accepted per
+	 * second.
 	 * 
-	 * @param client
-	 *            The client that has connected to the server.
+	 * @return int The limit, or {@link #UNLIMITED}.
 	 */
-	protected abstract void clientConnected(ClientConnection client);
+	public final int getMaxAcceptRate() {
+		return maxAcceptRate;
+	}
 
 	/**
-	 * Hook method called when a client has disconnected from the server.
+	 * Mutator method for the maximum number of connections accepted per second.
+	 * <br>
+	 * If the server is not stopped, this call will have no effect.
 	 * 
-	 * @param client
-	 *            The client that has disconnected from the server.
+	 * @param maxAcceptRate
+	 *            The new maximum number of connections accepted per second, or
+	 *            {@link #UNLIMITED}.
 	 */
-	protected abstract void clientDisconnected(ClientConnection client);
+	public final void setMaxAcceptRate(int maxAcceptRate) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max accept rate while the server is running."));
+			return;
+		}
+
+		if (maxAcceptRate < 0) {
+			handleException(new ConnectionException("The max accept rate cannot be negative. Value: " + maxAcceptRate));
+			return;
+		}
+
+		this.maxAcceptRate = maxAcceptRate;
+	}
 
 	/**
-	 * Hook method called when a message from a client has been received.
+	 * Accessor method for the maximum number of messages each client may send
+	 * per second.
 	 * 
-	 * @param client
-	 *            The client that sent the message.
-	 * @param msg
-	 *            The message sent by the client.
+	 * @return int The limit, or {@link #UNLIMITED}.
 	 */
-	protected abstract void clientMessageReceived(ClientConnection client, Object msg);
+	public final int getMessageRateLimit() {
+		return messageRateLimit;
+	}
 
 	/**
-	 * Hook method called when a client has thrown an exception.
+	 * Mutator method for the maximum number of messages each client may send
+	 * per second. <br>
+	 * If the server is not stopped, this call will have no effect.
 	 * 
-	 * @param client
-	 *            The client that threw the exception.
-	 * @param e
-	 *            The exception that was thrown by the client.
+	 * @param messageRateLimit
+	 *            The new maximum number of messages each client may send per
+	 *            second, or {@link #UNLIMITED}.
 	 */
-	protected abstract void handleClientException(ClientConnection client, Exception e);
+	public final void setMessageRateLimit(int messageRateLimit) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the message rate limit while the server is running."));
+			return;
+		}
+
+		if (messageRateLimit < 0) {
+			handleException(new ConnectionException("The message rate limit cannot be negative. Value: " + messageRateLimit));
+			return;
+		}
+
+		this.messageRateLimit = messageRateLimit;
+	}
 
 	/**
-	 * Hook method called when the server has thrown an exception.
+	 * Accessor method for the maximum number of bytes each client may send per
+	 * second.
 	 * 
-	 * @param e
-	 *            The exception thrown by the server.
+	 * @return int The limit, or {@link #UNLIMITED}.
 	 */
-	protected abstract void handleException(Exception e);
+	public final int getByteRateLimit() {
+		return byteRateLimit;
+	}
 
 	/**
-	 * Hook method called when the server is started.
+	 * Mutator method for the maximum number of bytes each client may send per
+	 * second. <br>
+	 * If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param byteRateLimit
+	 *            The new maximum number of bytes each client may send per
+	 *            second, or {@link #UNLIMITED}.
 	 */
-	protected abstract void serverStarted();
+	public final void setByteRateLimit(int byteRateLimit) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the byte rate limit while the server is running."));
+			return;
+		}
 
-	/**
-	 * Hook method called when the server is paused.
-	 */
-	protected abstract void serverPaused();
+		if (byteRateLimit < 0) {
+			handleException(new ConnectionException("The byte rate limit cannot be negative. Value: " + byteRateLimit));
+			return;
+		}
+
+		this.byteRateLimit = byteRateLimit;
+	}
 
 	/**
-	 * Hook method called when the server is stopped.
+	 * Accessor method for how long a client may stay over its rate or memory
+	 * limits before it is disconnected.
+	 * 
+	 * @return int The grace period in miliseconds.
 	 */
-	protected abstract void serverStopped();
+	public final int getThrottleGracePeriod() {
+		return throttleGracePeriod;
+	}
 
 	/**
-	 * Initializes the server socket using the port, backlog, timeout, and
-	 * address.
+	 * Mutator method for how long a client may stay over its rate or memory
+	 * limits before it is disconnected. <br>
+	 * While over its limits, the client's messages are not read. If the server
+	 * is not stopped, this call will have no effect.
 	 * 
-	 * @return boolean True if the socket was initialized successfully, false if
-	 *         not.
+	 * @param throttleGracePeriod
+	 *            The new grace period in miliseconds.
 	 */
-	private boolean initialize() {
+	public final void setThrottleGracePeriod(int throttleGracePeriod) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the throttle grace period while the server is running."));
+			return;
+		}
+
+		if (throttleGracePeriod < 0) {
+			handleException(new ConnectionException("The throttle grace period cannot be negative. Value: " + throttleGracePeriod));
+			return;
+		}
+
+		this.throttleGracePeriod = throttleGracePeriod;
+	}
+
+	/**
+	 * Accessor method for the largest message a client may send.
+	 * 
+	 * @return int The limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Mutator method for the largest message a client may send. <br>
+	 * The limit is checked against the length at the start of each frame,
+	 * before any memory is set aside for it, and a client that sends a larger
+	 * message is disconnected. If the server is not stopped, this call will
+	 * have no effect.
+	 * 
+	 * @param maxMessageSize
+	 *            The new limit in bytes of a serialized message, or
+	 *            {@link #UNLIMITED}.
+	 */
+	public final void setMaxMessageSize(int maxMessageSize) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max message size while the server is running."));
+			return;
+		}
+
+		if (maxMessageSize < 0) {
+			handleException(new ConnectionException("The max message size cannot be negative. Value: " + maxMessageSize));
+			return;
+		}
+
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Accessor method for the most memory each client may hold.
+	 * 
+	 * @return long The limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final long getClientMemoryLimit() {
+		return clientMemoryLimit;
+	}
+
+	/**
+	 * Mutator method for the most memory each client may hold. <br>
+	 * A client holds the frame it is sending while it is read, and the frames
+	 * sent to it that are still waiting to be written. A frame from the client
+	 * that does not fit is not read until enough is freed, and a client that
+	 * stays over its limit for longer than the throttle grace period is
+	 * disconnected. A client that does not fit a message sent to it is not
+	 * reading what it is sent, and is disconnected at once. If the server is
+	 * not stopped, this call will have no effect.
+	 * 
+	 * @param clientMemoryLimit
+	 *            The new limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final void setClientMemoryLimit(long clientMemoryLimit) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the client memory limit while the server is running."));
+			return;
+		}
+
+		if (clientMemoryLimit < 0) {
+			handleException(new ConnectionException("The client memory limit cannot be negative. Value: " + clientMemoryLimit));
+			return;
+		}
+
+		this.clientMemoryLimit = clientMemoryLimit;
+	}
+
+	/**
+	 * Accessor method for the most memory all clients together may hold.
+	 * 
+	 * @return long The limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Mutator method for the most memory all clients together may hold. <br>
+	 * This is enforced the same way as the limit of each client. If the
+	 * server is not stopped, this call will have no effect.
+	 * 
+	 * @param memoryLimit
+	 *            The new limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public final void setMemoryLimit(long memoryLimit) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the memory limit while the server is running."));
+			return;
+		}
+
+		if (memoryLimit < 0) {
+			handleException(new ConnectionException("The memory limit cannot be negative. Value: " + memoryLimit));
+			return;
+		}
+
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Accessor method for the memory held by all clients together.
+	 * 
+	 * @return long The number of bytes of frames being read from, or waiting
+	 *         to be written to, the clients.
+	 */
+	public final long getMemoryUsed() {
+		return memoryUsed.get();
+	}
+
+	/**
+	 * Accessor method for the deepest nesting of objects allowed in a message
+	 * from a client.
+	 * 
+	 * @return int The limit, or {@link #UNLIMITED}.
+	 */
+	public final int getMaxObjectDepth() {
+		return maxObjectDepth;
+	}
+
+	/**
+	 * Mutator method for the deepest nesting of objects allowed in a message
+	 * from a client. <br>
+	 * A message that nests deeper is refused while it is deserialized, and
+	 * the client is disconnected. If the server is not stopped, this call
+	 * will have no effect.
+	 * 
+	 * @param maxObjectDepth
+	 *            The new limit, or {@link #UNLIMITED}.
+	 */
+	public final void setMaxObjectDepth(int maxObjectDepth) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max object depth while the server is running."));
+			return;
+		}
+
+		if (maxObjectDepth < 0) {
+			handleException(new ConnectionException("The max object depth cannot be negative. Value: " + maxObjectDepth));
+			return;
+		}
+
+		this.maxObjectDepth = maxObjectDepth;
+	}
+
+	/**
+	 * Accessor method for the longest array allowed in a message from a
+	 * client.
+	 * 
+	 * @return int The limit, or {@link #UNLIMITED}.
+	 */
+	public final int getMaxArrayLength() {
+		return maxArrayLength;
+	}
+
+	/**
+	 * Mutator method for the longest array allowed in a message from a
+	 * client. <br>
+	 * A message holding a longer array is refused before the array is
+	 * allocated, and the client is disconnected. If the server is not
+	 * stopped, this call will have no effect.
+	 * 
+	 * @param maxArrayLength
+	 *            The new limit, or {@link #UNLIMITED}.
+	 */
+	public final void setMaxArrayLength(int maxArrayLength) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the max array length while the server is running."));
+			return;
+		}
+
+		if (maxArrayLength < 0) {
+			handleException(new ConnectionException("The max array length cannot be negative. Value: " + maxArrayLength));
+			return;
+		}
+
+		this.maxArrayLength = maxArrayLength;
+	}
+
+	/**
+	 * Accessor method for the filter the classes in messages from clients are
+	 * checked against.
+	 * 
+	 * @return {@linkplain ObjectInputFilter} The filter, or null if the
+	 *         JVM-wide filter is used.
+	 */
+	public final ObjectInputFilter getSerialFilter() {
+		return serialFilter;
+	}
+
+	/**
+	 * Mutator method for the filter the classes in messages from clients are
+	 * checked against. <br>
+	 * The filter is used in place of the JVM-wide filter, after the depth and
+	 * array length limits. The classes the server and client use for sessions
+	 * and control messages are always allowed. A message the filter rejects
+	 * disconnects the client. This has no effect on in-process clients that
+	 * pass references. If the server is not stopped, this call will have no
+	 * effect.
+	 * 
+	 * @param serialFilter
+	 *            The new {@linkplain ObjectInputFilter}, or null to use the
+	 *            JVM-wide filter.
+	 */
+	public final void setSerialFilter(ObjectInputFilter serialFilter) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the serial filter while the server is running."));
+			return;
+		}
+
+		this.serialFilter = serialFilter;
+	}
+
+	/**
+	 * Accessor method for the path of the Unix domain socket the server binds
+	 * to.
+	 * 
+	 * @return {@linkplain Path} The path of the socket, or null if the server
+	 *         binds to a TCP port.
+	 */
+	public final Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * Mutator method for the path of the Unix domain socket the server binds
+	 * to. <br>
+	 * If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param unixSocketPath
+	 *            The new path of the socket, or null to bind to a TCP port.
+	 */
+	public final void setUnixSocketPath(String unixSocketPath) {
+		try {
+			setUnixSocketPath(unixSocketPath == null ? null : Paths.get(unixSocketPath));
+		} catch (InvalidPathException e) {
+			handleException(new ConnectionException("Invalid socket path. Path: " + unixSocketPath, e));
+		}
+	}
+
+	/**
+	 * Mutator method for the path of the Unix domain socket the server binds
+	 * to. <br>
+	 * When set, the server accepts clients on the socket instead of its TCP
+	 * port, with the same hooks and message handling. Port reuse does not
+	 * apply, and all acceptors share the one socket. If the server is not
+	 * stopped, this call will have no effect.
+	 * 
+	 * @param unixSocketPath
+	 *            The new path of the socket, or null to bind to a TCP port.
+	 */
+	public final void setUnixSocketPath(Path unixSocketPath) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the socket path while the server is running."));
+			return;
+		}
+
+		this.unixSocketPath = unixSocketPath;
+	}
+
+	/**
+	 * Accessor method for the directory the server accepts shared memory
+	 * connections in.
+	 * 
+	 * @return {@linkplain Path} The directory, or null if the server does not
+	 *         use shared memory.
+	 */
+	public final Path getSharedMemoryDirectory() {
+		return sharedMemoryDirectory;
+	}
+
+	/**
+	 * Mutator method for the directory the server accepts shared memory
+	 * connections in.
+	 * 
+	 * @param sharedMemoryDirectory
+	 *            The new directory, or null to not use shared memory.
+	 */
+	public final void setSharedMemoryDirectory(String sharedMemoryDirectory) {
+		try {
+			setSharedMemoryDirectory(sharedMemoryDirectory == null ? null : Paths.get(sharedMemoryDirectory));
+		} catch (InvalidPathException e) {
+			handleException(new ConnectionException("Invalid directory. Path: " + sharedMemoryDirectory, e));
+		}
+	}
+
+	/**
+	 * Mutator method for the directory the server accepts shared memory
+	 * connections in. <br>
+	 * When set, clients on the same host connect through memory-mapped ring
+	 * buffers instead of a socket, with the same hooks and message handling.
+	 * This takes priority over the Unix socket path and the TCP port. If the
+	 * server is not stopped, this call will have no effect.
+	 * 
+	 * @param sharedMemoryDirectory
+	 *            The new directory, or null to not use shared memory.
+	 */
+	public final void setSharedMemoryDirectory(Path sharedMemoryDirectory) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the shared memory directory while the server is running."));
+			return;
+		}
+
+		this.sharedMemoryDirectory = sharedMemoryDirectory;
+	}
+
+	/**
+	 * Accessor method for the name clients in the same JVM connect to the
+	 * server by.
+	 * 
+	 * @return {@linkplain String} The name of the server, or null if the
+	 *         server is not in-process.
+	 */
+	public final String getInProcessName() {
+		return inProcessName;
+	}
+
+	/**
+	 * Mutator method for the name clients in the same JVM connect to the
+	 * server by. <br>
+	 * When set, clients connect through lock-free queues in memory instead of
+	 * a socket, with the same hooks and message handling. This takes priority
+	 * over every other transport, and no two running servers may share a
+	 * name. If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param inProcessName
+	 *            The new name of the server, or null to not be in-process.
+	 */
+	public final void setInProcessName(String inProcessName) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the in-process name while the server is running."));
+			return;
+		}
+
+		this.inProcessName = inProcessName;
+	}
+
+	/**
+	 * Accessor method for whether in-process connections pass messages by
+	 * reference.
+	 * 
+	 * @return boolean True if messages are passed by reference, false if they
+	 *         are serialized.
+	 */
+	public final boolean isPassReferences() {
+		return passReferences;
+	}
+
+	/**
+	 * Mutator method for whether in-process connections pass messages by
+	 * reference. <br>
+	 * When enabled, messages between the server and its in-process clients
+	 * are handed over as they are, without being serialized, so they need not
+	 * be {@linkplain java.io.Serializable}. The sender and the receiver then
+	 * share the message, so neither should change it after it is sent. This
+	 * has no effect on other transports. If the server is not stopped, this
+	 * call will have no effect.
+	 * 
+	 * @param passReferences
+	 *            True to pass messages by reference, false to serialize them.
+	 */
+	public final void setPassReferences(boolean passReferences) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change reference passing while the server is running."));
+			return;
+		}
+
+		this.passReferences = passReferences;
+	}
+
+	/**
+	 * Accessor method for the journal that messages to clients are recorded
+	 * in.
+	 * 
+	 * @return {@linkplain TCPJournal} The journal, or null if messages are not
+	 *         journaled.
+	 */
+	public final TCPJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Mutator method for the journal that messages to clients are recorded
+	 * in. <br>
+	 * Only connections given a journal key are journaled. The journal is
+	 * owned by the caller, who closes it once the server no longer uses it.
+	 * If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param journal
+	 *            The new journal, or null to not journal messages.
+	 */
+	public final void setJournal(TCPJournal journal) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the journal while the server is running."));
+			return;
+		}
+
+		this.journal = journal;
+	}
+
+	/**
+	 * Accessor method for how long the session of a disconnected client is
+	 * kept.
+	 * 
+	 * @return {@linkplain Duration} How long sessions are kept, or null if the
+	 *         server does not use sessions.
+	 */
+	public final Duration getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Mutator method for how long the session of a disconnected client is
+	 * kept. <br>
+	 * When set, each client is given a session that holds its info,
+	 * attributes and topic patterns. A {@linkplain TCPClient} that uses
+	 * sessions and reconnects within the timeout gets its session back, and
+	 * is sent again the messages it did not receive, in one round trip.
+	 * Messages published while a client is disconnected are not kept. The
+	 * server waits for the first message of each client before calling the
+	 * connected hook, and every message sent is serialized, including on
+	 * in-process connections that pass references. If the server is not
+	 * stopped, this call will have no effect.
+	 * 
+	 * @param sessionTimeout
+	 *            How long to keep sessions, or null to not use sessions.
+	 */
+	public final void setSessionTimeout(Duration sessionTimeout) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the session timeout while the server is running."));
+			return;
+		}
+
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * Accessor method for the number of sent messages each session keeps.
+	 * 
+	 * @return int The number of messages kept for resending.
+	 */
+	public final int getSessionBufferSize() {
+		return sessionBufferSize;
+	}
+
+	/**
+	 * Mutator method for the number of sent messages each session keeps. <br>
+	 * A client that missed more messages than this when it resumes is only
+	 * sent the most recent ones. If the server is not stopped, this call will
+	 * have no effect.
+	 * 
+	 * @param sessionBufferSize
+	 *            The new number of messages kept. Must be positive.
+	 */
+	public final void setSessionBufferSize(int sessionBufferSize) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the session buffer size while the server is running."));
+			return;
+		}
+
+		if (sessionBufferSize <= 0) {
+			handleException(new ConnectionException("The session buffer size must be positive. Size: " + sessionBufferSize));
+			return;
+		}
+
+		this.sessionBufferSize = sessionBufferSize;
+	}
+
+	/**
+	 * Accessor method for the TLS context the server accepts clients with.
+	 * 
+	 * @return {@linkplain SSLContext} The TLS context, or null if the server
+	 *         does not use TLS.
+	 */
+	public final SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Mutator method for the TLS context the server accepts clients with. <br>
+	 * When set, the server's TCP port only accepts TLS connections. The
+	 * handshake is done on the client's own thread before the connected hook,
+	 * so a slow handshake never holds up the acceptors. Handshakes are resumed
+	 * from the context's server session cache, and from session tickets on
+	 * TLS 1.3, so the size and lifetime of the cache are set on
+	 * {@link SSLContext#getServerSessionContext()}. This has no effect on the
+	 * other transports. If the server is not stopped, this call will have no
+	 * effect.
+	 * 
+	 * @param sslContext
+	 *            The new TLS context, or null to not use TLS.
+	 */
+	public final void setSSLContext(SSLContext sslContext) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the TLS context while the server is running."));
+			return;
+		}
+
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Accessor method for whether TLS clients must authenticate with a
+	 * certificate.
+	 * 
+	 * @return boolean True if client certificates are required, false if not.
+	 */
+	public final boolean isNeedClientAuth() {
+		return needClientAuth;
+	}
+
+	/**
+	 * Mutator method for whether TLS clients must authenticate with a
+	 * certificate. If the server is not stopped, this call will have no
+	 * effect.
+	 * 
+	 * @param needClientAuth
+	 *            True to require client certificates, false to not.
+	 */
+	public final void setNeedClientAuth(boolean needClientAuth) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change client authentication while the server is running."));
+			return;
+		}
+
+		this.needClientAuth = needClientAuth;
+	}
+
+	/**
+	 * Accessor method for whether the frames sent to clients end with a
+	 * checksum.
+	 * 
+	 * @return boolean True if frames are sent with checksums, false if not.
+	 */
+	public final boolean isFrameChecksums() {
+		return frameChecksums;
+	}
+
+	/**
+	 * Mutator method for whether the frames sent to clients end with a CRC32C
+	 * checksum. <br>
+	 * Frames received with a checksum are always checked, before they are
+	 * deserialized, and a frame that does not match closes the connection,
+	 * since its length cannot be trusted either. Clients must be of a version
+	 * that reads checksums. This has no effect on in-process clients. If the
+	 * server is not stopped, this call will have no effect.
+	 * 
+	 * @param frameChecksums
+	 *            True to send frames with checksums, false to not.
+	 */
+	public final void setFrameChecksums(boolean frameChecksums) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change frame checksums while the server is running."));
+			return;
+		}
+
+		this.frameChecksums = frameChecksums;
+	}
+
+	/**
+	 * Accessor method for the weights of the outbound priority lanes.
+	 * 
+	 * @return int[] A copy of the weight of each {@linkplain TCPPriority}, in
+	 *         order, or null if the lanes are served in strict priority.
+	 */
+	public final int[] getPriorityWeights() {
+		return priorityWeights == null ? null : priorityWeights.clone();
+	}
+
+	/**
+	 * Mutator method for the weights of the outbound priority lanes. <br>
+	 * With no weights, the default, each connection always writes a queued
+	 * frame of the highest priority next, so a steady stream of high priority
+	 * messages holds lower ones back. With weights, the lanes take turns, each
+	 * writing up to its weight in frames per turn, highest priority first, so
+	 * every lane gets a share of the socket. If the server is not stopped,
+	 * this call will have no effect.
+	 * 
+	 * @param priorityWeights
+	 *            The positive weight of each {@linkplain TCPPriority}, in
+	 *            order, or none for strict priority.
+	 */
+	public final void setPriorityWeights(int... priorityWeights) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the priority weights while the server is running."));
+			return;
+		}
+
+		if (priorityWeights == null || priorityWeights.length == 0) {
+			this.priorityWeights = null;
+			return;
+		}
+
+		if (priorityWeights.length != TCPPriority.values().length) {
+			handleException(new ConnectionException("There must be one priority weight for each priority. Count: " + priorityWeights.length));
+			return;
+		}
+		for (int weight : priorityWeights) {
+			if (weight <= 0) {
+				handleException(new ConnectionException("The priority weights must be positive. Value: " + weight));
+				return;
+			}
+		}
+
+		this.priorityWeights = priorityWeights.clone();
+	}
+
+	/**
+	 * Accessor method for the address of the server.
+	 * 
+	 * @return {@linkplain InetAddress} The address of the server.
+	 */
+	public final InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Mutator method for the address of the server. <br>
+	 * If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param address
+	 *            The new address of the server.
+	 */
+	public final void setAddress(String address) {
+		try {
+			setAddress(InetAddress.getByName(address));
+		} catch (UnknownHostException e) {
+			handleException(new ConnectionException("Host name could not be resolved. Name: " + address, e));
+		}
+	}
+
+	/**
+	 * Mutator method for the address of the server. <br>
+	 * If the server is not stopped, this call will have no effect.
+	 * 
+	 * @param address
+	 *            The new address of the server.
+	 */
+	public final void setAddress(InetAddress address) {
+		if (!isStopped()) {
+			handleException(new ConnectionException("Cannot change the address while the server is running."));
+			return;
+		}
+
+		this.address = address;
+	}
+
+	/**
+	 * Accessor method to check if the server is currently in a running state.
+	 * <br>
+	 * The listener state is read without taking a lock.
+	 * 
+	 * @return boolean True if the sever is in a running state, false if not.
+	 */
+	public final boolean isRunning() {
+		return listenerState.get() == TCPListenerState.Running;
+	}
+
+	/**
+	 * Accessor method to check if the server is currently in a paused state.
+	 * <br>
+	 * The listener state is read without taking a lock.
+	 * 
+	 * @return boolean True if the server is in paused state, false if not.
+	 */
+	public final boolean isPaused() {
+		return listenerState.get() == TCPListenerState.Paused;
+	}
+
+	/**
+	 * Accessor method to check if the server is currently in a stopped state.
+	 * <br>
+	 * The listener state is read without taking a lock.
+	 * 
+	 * @return boolean True if the server is in a stopped state, false if not.
+	 */
+	public final boolean isStopped() {
+		return listenerState.get() == TCPListenerState.Stopped;
+	}
+
+	/**
+	 * Accessor method for the thread group of the server.
+	 * 
+	 * @return {@linkplain ThreadGroup} The thread group of the server.
+	 */
+	ThreadGroup getClientConnections() {
+		return clientConnections;
+	}
+
+	/**
+	 * Accessor for the listener thread state. <br>
+	 * The state is read without taking a lock.
+	 * 
+	 * @return {@linkplain TCPListenerState} The value of the listener thread
+	 *         state flag.
+	 */
+	TCPListenerState getListenerState() {
+		return listenerState.get();
+	}
+
+	/**
+	 * Waits until the accept rate limit allows another connection to be
+	 * accepted. <br>
+	 * Connections that are not accepted yet wait in the socket backlog.
+	 */
+	void awaitAcceptPermit() {
+		TCPTokenBucket bucket = acceptBucket;
+		if (bucket == null) {
+			return;
+		}
+
+		long wait;
+		while ((wait = bucket.tryAcquire(1)) > 0 && !isStopped()) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * Checks the connection limits and, if they allow it, counts the given
+	 * address as connected.
+	 * 
+	 * @param clientAddress
+	 *            The address of the new client.
+	 * @return boolean True if the client was admitted, false if it is over a
+	 *         limit.
+	 */
+	boolean admitConnection(InetAddress clientAddress) {
+		if (maxConnections != UNLIMITED && admittedConnections.incrementAndGet() > maxConnections) {
+			admittedConnections.decrementAndGet();
+			return false;
+		}
+
+		if (maxConnectionsPerAddress != UNLIMITED && clientAddress != null) {
+			// The count is checked and raised in one step, so a release of
+			// the same address cannot remove it in between.
+			boolean[] admitted = { false };
+			admittedPerAddress.compute(clientAddress, (key, count) -> {
+				int current = count == null ? 0 : count;
+				if (current >= maxConnectionsPerAddress) {
+					return count;
+				}
+
+				admitted[0] = true;
+				return current + 1;
+			});
+
+			if (!admitted[0]) {
+				if (maxConnections != UNLIMITED) {
+					admittedConnections.decrementAndGet();
+				}
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops counting a connection from the given address toward the connection
+	 * limits.
+	 * 
+	 * @param clientAddress
+	 *            The address of the client that is gone.
+	 */
+	void releaseConnection(InetAddress clientAddress) {
+		if (maxConnections != UNLIMITED) {
+			admittedConnections.decrementAndGet();
+		}
+
+		if (maxConnectionsPerAddress != UNLIMITED && clientAddress != null) {
+			admittedPerAddress.computeIfPresent(clientAddress, (key, count) -> count <= 1 ? null : count - 1);
+		}
+	}
+
+	/**
+	 * Sets aside memory for a client under the server's memory limit.
+	 * 
+	 * @param bytes
+	 *            The number of bytes to set aside.
+	 * @return boolean True if the memory was set aside, false if it would go
+	 *         over the limit.
+	 */
+	boolean reserveMemory(long bytes) {
+		long used;
+		do {
+			used = memoryUsed.get();
+			if (memoryLimit != UNLIMITED && used + bytes > memoryLimit) {
+				return false;
+			}
+		} while (!memoryUsed.compareAndSet(used, used + bytes));
+
+		return true;
+	}
+
+	/**
+	 * Gives back memory set aside by {@link #reserveMemory(long)}.
+	 * 
+	 * @param bytes
+	 *            The number of bytes to give back.
+	 */
+	void releaseMemory(long bytes) {
+		memoryUsed.addAndGet(-bytes);
+	}
+
+	/**
+	 * Accessor for the filter messages from clients are deserialized with.
+	 * 
+	 * @return {@linkplain ObjectInputFilter} The filter, or null if there are
+	 *         no limits or class filter.
+	 */
+	ObjectInputFilter getInboundFilter() {
+		return inboundFilter;
+	}
+
+	/**
+	 * Hook method called when a new connection is refused because it is over
+	 * the connection limits. <br>
+	 * The connection has already been closed. The default implementation does
+	 * nothing.
+	 * 
+	 * @param clientAddress
+	 *            The address of the refused client.
+	 */
+	protected void clientRejected(InetAddress clientAddress) {
+	}
+
+	/**
+	 * Passes a received message through the interceptors, then to the
+	 * client's inbound subscriber if it has one, or else to the handler
+	 * registered for its type, or to the client message received hook if
+	 * there is none.
+	 * 
+	 * @param client
+	 *            The client that sent the message.
+	 * @param msg
+	 *            The message sent by the client.
+	 */
+	void messageReceived(ClientConnection client, Object msg) {
+		if (!interceptors.isEmpty()) {
+			msg = interceptors.inbound(client, msg);
+		}
+		if (msg == null || client.publishInbound(msg)) {
+			return;
+		}
+
+		if (!router.route(client, msg)) {
+			clientMessageReceived(client, msg);
+		}
+	}
+
+	/**
+	 * Passes a message being sent to a client through the interceptors.
+	 * 
+	 * @param client
+	 *            The client the message is being sent to.
+	 * @param msg
+	 *            The message being sent.
+	 * @return {@linkplain Object} The message to send, or null if it was
+	 *         dropped.
+	 */
+	Object interceptOutbound(ClientConnection client, Object msg) {
+		return interceptors.isEmpty() ? msg : interceptors.outbound(client, msg);
+	}
+
+	/**
+	 * Checks whether clients are given sessions.
+	 * 
+	 * @return boolean True if the server uses sessions, false if not.
+	 */
+	boolean isSessionsEnabled() {
+		return sessionTimeout != null;
+	}
+
+	/**
+	 * Opens a new session for the given connection, which takes over the
+	 * connection's state. <br>
+	 * Expired sessions are removed at most once per session timeout.
+	 * 
+	 * @param client
+	 *            The connection that opened the session.
+	 * @param info
+	 *            The info of the connection.
+	 * @param attributes
+	 *            The attributes of the connection.
+	 * @param topics
+	 *            The topic patterns of the connection.
+	 * @return {@linkplain TCPSession} The new session.
+	 */
+	TCPSession openSession(ClientConnection client, ConcurrentHashMap<String, String> info, ConnectionAttributes attributes,
+			Set<String> topics) {
+		long now = System.nanoTime();
+		long lastSweep = lastSessionSweep.get();
+		if (now - lastSweep > sessionTimeout.toNanos() && lastSessionSweep.compareAndSet(lastSweep, now)) {
+			sessions.values().removeIf(expired -> expired.isExpired(now));
+		}
+
+		TCPSession session = new TCPSession(client, info, attributes, topics, sessionBufferSize);
+		sessions.put(session.getToken(), session);
+		return session;
+	}
+
+	/**
+	 * Finds the session with the given token, if it has not expired.
+	 * 
+	 * @param token
+	 *            The token sent by the client.
+	 * @return {@linkplain TCPSession} The session, or null if there is none.
+	 */
+	TCPSession findSession(String token) {
+		TCPSession session = sessions.get(token);
+		if (session != null && session.isExpired(System.nanoTime())) {
+			sessions.remove(token, session);
+			return null;
+		}
+
+		return session;
+	}
+
+	/**
+	 * Releases a session from a connection that has closed, starting its
+	 * timeout.
+	 * 
+	 * @param session
+	 *            The session of the connection.
+	 * @param client
+	 *            The connection that closed.
+	 */
+	void releaseSession(TCPSession session, ClientConnection client) {
+		Duration timeout = sessionTimeout;
+		long expiresAt = System.nanoTime() + (timeout == null ? 0 : timeout.toNanos());
+		session.detach(client, expiresAt);
+	}
+
+	/**
+	 * Removes the given client from the topic index, but leaves its topic
+	 * patterns in place so they can be restored.
+	 * 
+	 * @param client
+	 *            The client to remove.
+	 */
+	void removeSubscriptions(ClientConnection client) {
+		for (String topic : client.getTopics()) {
+			topics.unsubscribe(client, topic);
+		}
+	}
+
+	/**
+	 * Adds the given client back to the topic index for each of its topic
+	 * patterns.
+	 * 
+	 * @param client
+	 *            The client to restore.
+	 */
+	void restoreSubscriptions(ClientConnection client) {
+		for (String topic : client.getTopics()) {
+			topics.subscribe(client, topic);
+		}
+	}
+
+	/**
+	 * Hook method called when a client reconnects and resumes its session.
+	 * <br>
+	 * The client's info, attributes and topic patterns are those of its
+	 * session. The default implementation calls
+	 * {@link #clientConnected(ClientConnection)}.
+	 * 
+	 * @param client
+	 *            The client that resumed its session.
+	 */
+	protected void clientResumed(ClientConnection client) {
+		clientConnected(client);
+	}
+
+	/**
+	 * Hook method called when a new client has connected to the server.
+	 * 
+	 * @param client
+	 *            The client that has connected to the server.
+	 */
+	protected abstract void clientConnected(ClientConnection client);
+
+	/**
+	 * Hook method called when a client has disconnected from the server.
+	 * 
+	 * @param client
+	 *            The client that has disconnected from the server.
+	 */
+	protected abstract void clientDisconnected(ClientConnection client);
+
+	/**
+	 * Hook method called when a message from a client has been received.
+	 * 
+	 * @param client
+	 *            The client that sent the message.
+	 * @param msg
+	 *            The message sent by the client.
+	 */
+	protected abstract void clientMessageReceived(ClientConnection client, Object msg);
+
+	/**
+	 * Hook method called when a client has thrown an exception.
+	 * 
+	 * @param client
+	 *            The client that threw the exception.
+	 * @param e
+	 *            The exception that was thrown by the client.
+	 */
+	protected abstract void handleClientException(ClientConnection client, Exception e);
+
+	/**
+	 * Hook method called when the server has thrown an exception.
+	 * 
+	 * @param e
+	 *            The exception thrown by the server.
+	 */
+	protected abstract void handleException(Exception e);
+
+	/**
+	 * Hook method called when the server is started.
+	 */
+	protected abstract void serverStarted();
+
+	/**
+	 * Hook method called when the server is paused.
+	 */
+	protected abstract void serverPaused();
+
+	/**
+	 * Hook method called when the server is stopped.
+	 */
+	protected abstract void serverStopped();
+
+	/**
+	 * Initializes the server sockets using the port, backlog, timeout, and
+	 * address. <br>
+	 * One socket is created per acceptor when port reuse is enabled and
+	 * supported, otherwise a single socket is shared by all acceptors.
+	 * 
+	 * @return boolean True if the sockets were initialized successfully, false
+	 *         if not.
+	 */
+	private boolean initialize() {
+		// An in-process name is a single listener shared by all acceptors.
+		if (inProcessName != null) {
+			try {
+				endpointListeners = new TCPEndpointListener[] { new InProcessEndpointListener(inProcessName, passReferences) };
+			} catch (IOException e) {
+				handleException(new ConnectionException("A problem occured while binding the in-process name.", e));
+				return false;
+			}
+
+			return true;
+		}
+
+		// A shared memory directory is a single listener shared by all
+		// acceptors.
+		if (sharedMemoryDirectory != null) {
+			try {
+				endpointListeners = new TCPEndpointListener[] { new SharedMemoryEndpointListener(sharedMemoryDirectory) };
+			} catch (IOException e) {
+				handleException(new ConnectionException("A problem occured while intializing the shared memory directory.", e));
+				return false;
+			}
+
+			return true;
+		}
+
+		// A Unix domain socket is a single listener shared by all acceptors.
+		if (unixSocketPath != null) {
+			try {
+				endpointListeners = new TCPEndpointListener[] {
+						new ChannelEndpointListener(UnixDomainSocketAddress.of(unixSocketPath), backlog) };
+			} catch (IOException e) {
+				handleException(new ConnectionException("A problem occured while intializing the socket.", e));
+				return false;
+			}
+
+			return true;
+		}
+
+		int count = 1;
+		if (reusePort && acceptors > 1) {
+			try (ServerSocket probe = new ServerSocket()) {
+				if (probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					count = acceptors;
+				} else {
+					handleException(new ConnectionException("SO_REUSEPORT is not supported. The acceptors will share one socket."));
+				}
+			} catch (IOException e) {
+				handleException(new ConnectionException("A problem occured while intializing the socket.", e));
+				return false;
+			}
+		}
+
+		ServerSocket[] serverSockets = new ServerSocket[count];
 		try {
-			serverSocket = address == null ? new ServerSocket(port, backlog) : new ServerSocket(port, backlog, address);
-			serverSocket.setSoTimeout(timeout);
+			for (int i = 0; i < count; i++) {
+				ServerSocket serverSocket = createServerSocket();
+				if (count > 1) {
+					serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				serverSocket.bind(new InetSocketAddress(address, port), backlog);
+				serverSocket.setSoTimeout(timeout);
+
+				serverSockets[i] = serverSocket;
+			}
 		} catch (IOException e) {
+			// Close whatever was already bound before giving up.
+			for (ServerSocket serverSocket : serverSockets) {
+				try {
+					if (serverSocket != null) {
+						serverSocket.close();
+					}
+				} catch (IOException ignored) {
+				}
+			}
+
 			handleException(new ConnectionException("A problem occured while intializing the socket.", e));
 			return false;
 		}
 
+		endpointListeners = new TCPEndpointListener[count];
+		for (int i = 0; i < count; i++) {
+			endpointListeners[i] = new SocketEndpointListener(serverSockets[i]);
+		}
+
 		return true;
 	}
 
+	/**
+	 * Creates an unbound server socket, which accepts TLS connections if the
+	 * server has a TLS context.
+	 * 
+	 * @return {@linkplain ServerSocket} The new server socket.
+	 * @throws IOException
+	 *             If the socket could not be created.
+	 */
+	private ServerSocket createServerSocket() throws IOException {
+		if (sslContext == null) {
+			return new ServerSocket();
+		}
+
+		SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+		serverSocket.setNeedClientAuth(needClientAuth);
+		return serverSocket;
+	}
+
+	/**
+	 * Stops the listener threads and closes the server sockets. <br>
+	 * Does nothing to the sockets if the server was never started.
+	 */
+	private void stopListening() {
+		listenerState.set(TCPListenerState.Stopped);
+
+		TCPServerConnectionListenerThread[] threads = listenerThreads;
+		if (threads == null) {
+			return;
+		}
+		listenerThreads = null;
+
+		// Close the sockets first, which wakes any thread blocked in accept,
+		// then wake any thread that is parked while paused.
+		closeServerSockets();
+		for (TCPServerConnectionListenerThread listenerThread : threads) {
+			LockSupport.unpark(listenerThread);
+		}
+
+		// Join the listener threads.
+		for (TCPServerConnectionListenerThread listenerThread : threads) {
+			try {
+				listenerThread.join();
+			} catch (InterruptedException e) {
+				handleException(e);
+			}
+		}
+	}
+
+	/**
+	 * Closes every server socket.
+	 */
+	private void closeServerSockets() {
+		for (TCPEndpointListener endpointListener : endpointListeners) {
+			try {
+				endpointListener.close();
+			} catch (IOException e) {
+				handleException(e);
+			}
+		}
+	}
+
+	/**
+	 * Wakes every listener thread that is parked while the server is paused.
+	 */
+	private void unparkListeners() {
+		TCPServerConnectionListenerThread[] threads = listenerThreads;
+		if (threads == null) {
+			return;
+		}
+
+		for (TCPServerConnectionListenerThread listenerThread : threads) {
+			LockSupport.unpark(listenerThread);
+		}
+	}
+
+	/**
+	 * Accessor method for the connections of all connected clients.
+	 * 
+	 * @return {@linkplain ClientConnection}[] The connected clients.
+	 */
+	private ClientConnection[] getAllClients() {
+		Thread[] connections = getAllConnections();
+
+		// The thread group may hold fewer threads than its estimate.
+		int count = 0;
+		ClientConnection[] clients = new ClientConnection[connections.length];
+		for (Thread connection : connections) {
+			if (connection != null) {
+				clients[count++] = ((ClientConnectionInputReaderThread) connection).getParentConnection();
+			}
+		}
+
+		return count == clients.length ? clients : Arrays.copyOf(clients, count);
+	}
+
 	/**
 	 * Accessor method for the threads in the client connection thread group.
 	 * 
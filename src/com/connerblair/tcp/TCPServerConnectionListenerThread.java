@@ -1,28 +1,41 @@
 package com.connerblair.tcp;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The thread that is responsible for accepting incoming connections from new
- * clients.
- * 
+ * clients. <br>
+ * A server may run several of these threads, either sharing one listener or
+ * each with its own. Stream setup for a new client is done on the client's
+ * own thread, so this thread goes straight back to accepting.
+ *
  * @author Conner Blair
  * @version 1.0
  */
 class TCPServerConnectionListenerThread extends Thread {
 	private TCPServer parentServer;
+	private TCPEndpointListener endpointListener;
+	private int acceptorIndex;
 
 	/**
 	 * Creates a new instance of the TCPServerConnectionListenerThread, with the
-	 * specified TCPServer.
-	 * 
+	 * specified TCPServer, endpoint listener, and acceptor index.
+	 *
 	 * @param parentServer
 	 *            The server that owns this thread.
+	 * @param endpointListener
+	 *            The {@linkplain TCPEndpointListener} this thread accepts
+	 *            connections from.
+	 * @param acceptorIndex
+	 *            The index of this thread among the server's acceptors.
 	 */
-	TCPServerConnectionListenerThread(TCPServer parentServer) {
-		super();
+	TCPServerConnectionListenerThread(TCPServer parentServer, TCPEndpointListener endpointListener, int acceptorIndex) {
+		super("TCPServer_Acceptor_" + acceptorIndex);
 		this.parentServer = parentServer;
+		this.endpointListener = endpointListener;
+		this.acceptorIndex = acceptorIndex;
 	}
 
 	/**
@@ -30,30 +43,61 @@ class TCPServerConnectionListenerThread extends Thread {
 	 */
 	@Override
 	public void run() {
-		// Call to server's server started hook method.
-		parentServer.serverStarted();
+		// Call to server's server started hook method. Only the first acceptor
+		// makes the call, so the hook runs once per start.
+		if (acceptorIndex == 0) {
+			parentServer.serverStarted();
+		}
 
 		while (parentServer.getListenerState() != TCPListenerState.Stopped) {
-			// Listening thread is in a paused state. Sleep for 50ms and check
-			// again.
+			// Listening thread is in a paused state. Park until the server is
+			// resumed or stopped.
 			if (parentServer.getListenerState() == TCPListenerState.Paused) {
-				try {
-					Thread.sleep(50);
-				} catch (Exception e) {
-				}
-
+				LockSupport.park(this);
 				continue;
 			}
 
+			// Wait for the accept rate limit before taking another connection.
+			parentServer.awaitAcceptPermit();
+
 			// Accepts new connections and spawns new threads for each one.
+			TCPEndpoint clientEndpoint;
+			try {
+				clientEndpoint = endpointListener.accept();
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) {
+				// The socket is closed when the server is stopped.
+				if (parentServer.getListenerState() != TCPListenerState.Stopped) {
+					parentServer.handleException(e);
+				}
+				continue;
+			}
+
+			// A connection accepted just as the server was paused is held
+			// until the server is resumed.
+			while (parentServer.getListenerState() == TCPListenerState.Paused) {
+				LockSupport.park(this);
+			}
+
 			try {
-				Socket clientSocket = parentServer.getServerSocket().accept();
+				if (parentServer.getListenerState() == TCPListenerState.Stopped) {
+					clientEndpoint.close();
+					break;
+				}
 
-				synchronized (this) {
-					new ClientConnection(parentServer, clientSocket);
+				// Refuse the connection if it is over the connection limits.
+				if (!parentServer.admitConnection(clientEndpoint.getInetAddress())) {
+					clientEndpoint.close();
+					parentServer.clientRejected(clientEndpoint.getInetAddress());
+					continue;
 				}
 			} catch (IOException e) {
+				parentServer.handleException(e);
+				continue;
 			}
+
+			new ClientConnection(parentServer, clientEndpoint, true);
 		}
 	}
 }
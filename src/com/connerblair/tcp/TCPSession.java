@@ -0,0 +1,336 @@
+package com.connerblair.tcp;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of a client that outlives its connection. <br>
+ * A session holds the info, attributes and topic patterns of a client, and
+ * the last messages sent to it. When the client reconnects with the session's
+ * token before the session expires, the new connection takes the session
+ * over, and the messages the client did not receive are sent again. <br>
+ * Every message sent to a session is numbered, and is sent to whichever
+ * connection holds the session at the time. The client counts the messages it
+ * receives, so the count it sends on reconnecting is the number of the last
+ * message it handled.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPSession {
+	private static final SecureRandom random = new SecureRandom();
+
+	private final String token;
+	private final ConcurrentHashMap<String, String> info;
+	private final ConnectionAttributes attributes;
+	private final Set<String> topics;
+
+	private final byte[][] sent;
+	private long sequence = 0;
+	private volatile ClientConnection owner;
+	private long expiresAt;
+
+	/**
+	 * Creates a new instance of the TCPSession class, that takes over the
+	 * state of the specified connection.
+	 *
+	 * @param owner
+	 *            The connection that opened the session.
+	 * @param info
+	 *            The info of the connection.
+	 * @param attributes
+	 *            The attributes of the connection.
+	 * @param topics
+	 *            The topic patterns of the connection.
+	 * @param bufferSize
+	 *            The number of sent messages kept for resending.
+	 */
+	TCPSession(ClientConnection owner, ConcurrentHashMap<String, String> info, ConnectionAttributes attributes,
+			Set<String> topics, int bufferSize) {
+		byte[] tokenBytes = new byte[16];
+		random.nextBytes(tokenBytes);
+
+		this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+		this.owner = owner;
+		this.info = info;
+		this.attributes = attributes;
+		this.topics = topics;
+		this.sent = new byte[bufferSize][];
+	}
+
+	/**
+	 * Accessor for the token the client resumes the session with.
+	 *
+	 * @return String The token of the session.
+	 */
+	String getToken() {
+		return token;
+	}
+
+	/**
+	 * Accessor for the info of the client.
+	 *
+	 * @return {@linkplain ConcurrentHashMap} The info of the client.
+	 */
+	ConcurrentHashMap<String, String> getInfo() {
+		return info;
+	}
+
+	/**
+	 * Accessor for the attributes of the client.
+	 *
+	 * @return {@linkplain ConnectionAttributes} The attributes of the client.
+	 */
+	ConnectionAttributes getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Accessor for the topic patterns of the client.
+	 *
+	 * @return {@linkplain Set} The topic patterns of the client.
+	 */
+	Set<String> getTopics() {
+		return topics;
+	}
+
+	/**
+	 * Accessor for the connection that holds the session.
+	 *
+	 * @return {@linkplain ClientConnection} The connection, or null if the
+	 *         session is waiting to be resumed.
+	 */
+	ClientConnection getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Numbers a message, keeps it for resending, and sends it to the
+	 * connection that holds the session, if any. <br>
+	 * The message is only queued while the session is locked, and written
+	 * once the lock is released, so a send blocked on a full socket never
+	 * keeps another connection from taking the session over.
+	 *
+	 * @param frame
+	 *            The encoded message to send.
+	 */
+	void send(byte[] frame) {
+		ClientConnection target;
+		synchronized (this) {
+			sequence++;
+			sent[(int) (sequence % sent.length)] = frame;
+
+			target = owner;
+			if (target != null && !target.queueFrame(frame, TCPPriority.Normal)) {
+				target = null;
+			}
+		}
+
+		if (target != null) {
+			target.flushOutbound();
+		}
+	}
+
+	/**
+	 * Tells the connection that opened the session about it.
+	 *
+	 * @throws IOException
+	 *             If the reply could not be serialized.
+	 */
+	void welcome() throws IOException {
+		byte[] frame = TCPFrameCodec.encode(new Welcome(token, false, 0));
+
+		ClientConnection target;
+		synchronized (this) {
+			target = owner;
+			if (target != null && !target.queueFrame(frame, TCPPriority.Normal)) {
+				target = null;
+			}
+		}
+
+		if (target != null) {
+			target.flushOutbound();
+		}
+	}
+
+	/**
+	 * Moves the session to a new connection, and sends it every kept message
+	 * after the last one the client received. <br>
+	 * Messages that are no longer kept are skipped, and the client is told
+	 * where the messages it is sent start from.
+	 *
+	 * @param connection
+	 *            The connection taking the session over.
+	 * @param received
+	 *            The number of the last message the client received.
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return {@linkplain ClientConnection} The connection that held the
+	 *         session before, which the caller should close, or null if there
+	 *         was none.
+	 * @throws IOException
+	 *             If the session has expired, or the reply could not be
+	 *             serialized.
+	 */
+	ClientConnection attach(ClientConnection connection, long received, long now) throws IOException {
+		ClientConnection previous;
+		boolean queued = false;
+		synchronized (this) {
+			if (isExpired(now)) {
+				throw new IOException("The session has expired.");
+			}
+
+			previous = owner;
+			owner = connection;
+
+			// The frames are queued in order under the lock, and written
+			// after it is released.
+			long from = Math.max(Math.min(received, sequence), Math.max(0, sequence - sent.length));
+			queued |= connection.queueFrame(TCPFrameCodec.encode(new Welcome(token, true, from)), TCPPriority.Normal);
+			for (long i = from + 1; i <= sequence; i++) {
+				queued |= connection.queueFrame(sent[(int) (i % sent.length)], TCPPriority.Normal);
+			}
+		}
+
+		if (queued) {
+			connection.flushOutbound();
+		}
+		return previous == connection ? null : previous;
+	}
+
+	/**
+	 * Releases the session from a connection that has closed. The session
+	 * expires if it is not resumed before the given time.
+	 *
+	 * @param connection
+	 *            The connection that closed.
+	 * @param expiresAt
+	 *            The {@link System#nanoTime()} at which the session expires.
+	 * @return boolean True if the connection held the session, false if the
+	 *         session had already moved on.
+	 */
+	synchronized boolean detach(ClientConnection connection, long expiresAt) {
+		if (owner != connection) {
+			return false;
+		}
+
+		owner = null;
+		this.expiresAt = expiresAt;
+		return true;
+	}
+
+	/**
+	 * Checks whether the session was released and not resumed in time.
+	 *
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return boolean True if the session has expired, false if not.
+	 */
+	synchronized boolean isExpired(long now) {
+		return owner == null && now - expiresAt > 0;
+	}
+
+	/**
+	 * The first message a client sends when it uses sessions.
+	 */
+	static final class Hello implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String token;
+		private final long received;
+
+		/**
+		 * Creates a new instance of the Hello class.
+		 *
+		 * @param token
+		 *            The token of the session to resume, or null to open a
+		 *            new session.
+		 * @param received
+		 *            The number of the last message the client received.
+		 */
+		Hello(String token, long received) {
+			this.token = token;
+			this.received = received;
+		}
+
+		/**
+		 * Accessor for the token of the session to resume.
+		 *
+		 * @return String The token, or null to open a new session.
+		 */
+		String getToken() {
+			return token;
+		}
+
+		/**
+		 * Accessor for the number of the last message the client received.
+		 *
+		 * @return long The number of the last message.
+		 */
+		long getReceived() {
+			return received;
+		}
+	}
+
+	/**
+	 * The server's reply to a {@linkplain Hello}.
+	 */
+	static final class Welcome implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String token;
+		private final boolean resumed;
+		private final long sequence;
+
+		/**
+		 * Creates a new instance of the Welcome class.
+		 *
+		 * @param token
+		 *            The token of the session.
+		 * @param resumed
+		 *            Whether an existing session was resumed.
+		 * @param sequence
+		 *            The number of the message before the first message that
+		 *            follows.
+		 */
+		Welcome(String token, boolean resumed, long sequence) {
+			this.token = token;
+			this.resumed = resumed;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Accessor for the token of the session.
+		 *
+		 * @return String The token of the session.
+		 */
+		String getToken() {
+			return token;
+		}
+
+		/**
+		 * Accessor for whether an existing session was resumed.
+		 *
+		 * @return boolean True if the session was resumed, false if it is
+		 *         new.
+		 */
+		boolean isResumed() {
+			return resumed;
+		}
+
+		/**
+		 * Accessor for the number the client counts the following messages
+		 * from.
+		 *
+		 * @return long The number of the message before the first message
+		 *         that follows.
+		 */
+		long getSequence() {
+			return sequence;
+		}
+	}
+}
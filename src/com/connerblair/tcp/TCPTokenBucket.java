@@ -0,0 +1,79 @@
+package com.connerblair.tcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket used to rate limit connections and messages. <br>
+ * The bucket is kept as a single theoretical arrival time, the moment at which
+ * the bucket would be full again, and is updated with one compare-and-set per
+ * acquisition. A request larger than the burst size is allowed through when
+ * the bucket is full, and the bucket then goes into debt. <br>
+ * Times are kept in fixed point, in units of 2^-16 nanoseconds, so the cost
+ * of a token stays exact to a few parts per million even at a billion
+ * tokens per second. Only differences between times are used, so the fixed
+ * point times may wrap around like {@link System#nanoTime()}.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPTokenBucket {
+	// The number of fraction bits in the fixed point times.
+	private static final int SHIFT = 16;
+	// The most debt a single request can take on, about four hours.
+	private static final long MAX_COST = 1L << 60;
+
+	private final long costPerToken;
+	private final long burst;
+	private final AtomicLong fullAt;
+
+	/**
+	 * Creates a new instance of the TCPTokenBucket class, that refills at the
+	 * given rate and holds at most one second's worth of tokens.
+	 *
+	 * @param tokensPerSecond
+	 *            The number of tokens added each second. Must be positive.
+	 */
+	TCPTokenBucket(long tokensPerSecond) {
+		this.costPerToken = Math.max(1L, (TimeUnit.SECONDS.toNanos(1) << SHIFT) / tokensPerSecond);
+		this.burst = TimeUnit.SECONDS.toNanos(1) << SHIFT;
+		this.fullAt = new AtomicLong(System.nanoTime() << SHIFT);
+	}
+
+	/**
+	 * Attempts to take the given number of tokens from the bucket.
+	 *
+	 * @param tokens
+	 *            The number of tokens to take.
+	 * @return long Zero if the tokens were taken, otherwise the number of
+	 *         nanoseconds to wait before they could be.
+	 */
+	long tryAcquire(long tokens) {
+		long cost = tokens > MAX_COST / costPerToken ? MAX_COST : tokens * costPerToken;
+
+		while (true) {
+			long now = System.nanoTime() << SHIFT;
+			long current = fullAt.get();
+			long start = current - now < 0 ? now : current;
+			long next = start + cost;
+
+			// Refuse only if the bucket is not full and would be overdrawn.
+			// Oversized requests never wait longer than it takes to refill.
+			long wait = next - now - burst;
+			if (wait > 0 && current - now > 0) {
+				return toNanos(Math.min(wait, current - now));
+			}
+
+			if (fullAt.compareAndSet(current, next)) {
+				return 0L;
+			}
+		}
+	}
+
+	/**
+	 * Converts a fixed point time to whole nanoseconds, rounding up.
+	 */
+	private static long toNanos(long time) {
+		return (time + (1L << SHIFT) - 1) >>> SHIFT;
+	}
+}
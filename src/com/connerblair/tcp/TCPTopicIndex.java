@@ -0,0 +1,445 @@
+package com.connerblair.tcp;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The index of topic subscriptions used by the {@linkplain TCPServer} to fan
+ * out published messages. <br>
+ * Topics are made of levels separated by '/'. A subscription pattern may use
+ * '*' to match exactly one level, and '#' as its last level to match zero or
+ * more levels. <br>
+ * Subscribers are held in copy-on-write arrays, so publishing never takes a
+ * lock. Exact patterns are looked up in a hash map, and wildcard patterns are
+ * matched by walking a trie. Trie nodes left without subscribers or children
+ * are pruned when the last subscription through them is removed, so
+ * patterns that are only used for a while do not grow the trie. The
+ * subscriber arrays a publish matches are gathered in a buffer kept per
+ * thread, so a publish allocates no more than the merged result.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class TCPTopicIndex {
+	static final char LEVEL_SEPARATOR = '/';
+	static final String SINGLE_LEVEL_WILDCARD = "*";
+	static final String MULTI_LEVEL_WILDCARD = "#";
+
+	private static final ClientConnection[] NO_SUBSCRIBERS = new ClientConnection[0];
+
+	// Merges up to this many subscribers are checked for duplicates by
+	// scanning, and larger ones with a map.
+	private static final int SCAN_MERGE_LIMIT = 16;
+
+	private static final ThreadLocal<Matches> MATCHES = ThreadLocal.withInitial(Matches::new);
+
+	private final ConcurrentHashMap<String, ClientConnection[]> exactSubscriptions = new ConcurrentHashMap<String, ClientConnection[]>();
+	private final TopicNode wildcardRoot = new TopicNode();
+	private final AtomicInteger wildcardSubscriptions = new AtomicInteger();
+
+	/**
+	 * Checks that the given string is a valid subscription pattern.
+	 *
+	 * @param pattern
+	 *            The pattern to check.
+	 * @return boolean True if the pattern is valid, false if not.
+	 */
+	static boolean isValidPattern(String pattern) {
+		if (pattern == null || pattern.isEmpty()) {
+			return false;
+		}
+
+		// The multi-level wildcard may only appear as the whole last level.
+		int index = pattern.indexOf(MULTI_LEVEL_WILDCARD);
+		return index < 0 || (index == pattern.length() - 1 && (index == 0 || pattern.charAt(index - 1) == LEVEL_SEPARATOR));
+	}
+
+	/**
+	 * Checks that the given string is a valid topic to publish to. <br>
+	 * Published topics cannot contain wildcards.
+	 *
+	 * @param topic
+	 *            The topic to check.
+	 * @return boolean True if the topic is valid, false if not.
+	 */
+	static boolean isValidTopic(String topic) {
+		return topic != null && !topic.isEmpty() && !isWildcardPattern(topic);
+	}
+
+	/**
+	 * Adds a subscription to the index.
+	 *
+	 * @param client
+	 *            The client that is subscribing.
+	 * @param pattern
+	 *            The topic pattern to subscribe to.
+	 * @return boolean True if the subscription was added, false if the client
+	 *         was already subscribed to the pattern.
+	 */
+	boolean subscribe(final ClientConnection client, String pattern) {
+		final boolean[] added = new boolean[1];
+
+		if (!isWildcardPattern(pattern)) {
+			exactSubscriptions.compute(pattern, (key, subscribers) -> {
+				ClientConnection[] updated = with(subscribers, client);
+				added[0] = updated != subscribers;
+				return updated;
+			});
+
+			return added[0];
+		}
+
+		// Children are only added under the lock of their parent, and a node
+		// that has been pruned is never used again, so a walk that meets one
+		// starts over from the root.
+		String[] levels = splitLevels(pattern);
+		while (true) {
+			TopicNode node = addPath(levels);
+			if (node == null) {
+				continue;
+			}
+
+			synchronized (node) {
+				if (node.removed) {
+					continue;
+				}
+
+				ClientConnection[] updated = with(node.subscribers, client);
+				added[0] = updated != node.subscribers;
+				node.subscribers = updated;
+			}
+			break;
+		}
+
+		if (added[0]) {
+			wildcardSubscriptions.incrementAndGet();
+		}
+
+		return added[0];
+	}
+
+	/**
+	 * Removes a subscription from the index.
+	 *
+	 * @param client
+	 *            The client that is unsubscribing.
+	 * @param pattern
+	 *            The topic pattern to unsubscribe from.
+	 * @return boolean True if the subscription was removed, false if the client
+	 *         was not subscribed to the pattern.
+	 */
+	boolean unsubscribe(final ClientConnection client, String pattern) {
+		final boolean[] removed = new boolean[1];
+
+		if (!isWildcardPattern(pattern)) {
+			exactSubscriptions.computeIfPresent(pattern, (key, subscribers) -> {
+				ClientConnection[] updated = without(subscribers, client);
+				removed[0] = updated != subscribers;
+				return updated.length == 0 ? null : updated;
+			});
+
+			return removed[0];
+		}
+
+		String[] levels = splitLevels(pattern);
+		TopicNode[] path = new TopicNode[levels.length + 1];
+		path[0] = wildcardRoot;
+		for (int i = 0; i < levels.length; i++) {
+			path[i + 1] = path[i].children.get(levels[i]);
+			if (path[i + 1] == null) {
+				return false;
+			}
+		}
+
+		TopicNode node = path[levels.length];
+		synchronized (node) {
+			ClientConnection[] updated = without(node.subscribers, client);
+			removed[0] = updated != node.subscribers;
+			node.subscribers = updated;
+		}
+
+		if (removed[0]) {
+			wildcardSubscriptions.decrementAndGet();
+			prune(path, levels);
+		}
+
+		return removed[0];
+	}
+
+	/**
+	 * Walks the wildcard trie along the given levels, adding the nodes that
+	 * are missing.
+	 *
+	 * @param levels
+	 *            The levels of the pattern.
+	 * @return TopicNode The node of the last level, or null if the walk met a
+	 *         node that was pruned and must start over.
+	 */
+	private TopicNode addPath(String[] levels) {
+		TopicNode node = wildcardRoot;
+		for (String level : levels) {
+			synchronized (node) {
+				if (node.removed) {
+					return null;
+				}
+				node = node.children.computeIfAbsent(level, key -> new TopicNode());
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Removes the nodes of a path that have neither subscribers nor children,
+	 * from the last level back up to the first node still in use. <br>
+	 * Each node is removed under the locks of both its parent and itself, so
+	 * no subscription can be added to it or below it at the same time.
+	 *
+	 * @param path
+	 *            The nodes of the path, starting with the root.
+	 * @param levels
+	 *            The levels of the pattern the path was walked along.
+	 */
+	private void prune(TopicNode[] path, String[] levels) {
+		for (int i = levels.length; i > 0; i--) {
+			TopicNode parent = path[i - 1];
+			TopicNode node = path[i];
+			synchronized (parent) {
+				synchronized (node) {
+					if (node.removed || node.subscribers.length > 0 || !node.children.isEmpty()) {
+						return;
+					}
+
+					node.removed = true;
+					parent.children.remove(levels[i - 1], node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds every client subscribed to a pattern that matches the given topic.
+	 * <br>
+	 * A client that matches more than one pattern is only returned once.
+	 *
+	 * @param topic
+	 *            The topic being published to.
+	 * @return {@linkplain ClientConnection}[] The matching subscribers. This
+	 *         array may be shared and must not be modified.
+	 */
+	ClientConnection[] match(String topic) {
+		ClientConnection[] exact = exactSubscriptions.get(topic);
+
+		// Fast path for servers that only use exact topics.
+		if (wildcardSubscriptions.get() == 0) {
+			return exact == null ? NO_SUBSCRIBERS : exact;
+		}
+
+		Matches matches = MATCHES.get();
+		try {
+			if (exact != null) {
+				matches.add(exact);
+			}
+			collect(wildcardRoot, topic, 0, matches);
+
+			if (matches.size == 0) {
+				return NO_SUBSCRIBERS;
+			}
+			if (matches.size == 1) {
+				return matches.arrays[0];
+			}
+
+			return matches.merge();
+		} finally {
+			matches.clear();
+		}
+	}
+
+	/**
+	 * Walks the wildcard trie, collecting the subscribers of every node that
+	 * matches the remaining levels of the topic.
+	 *
+	 * @param node
+	 *            The node reached so far.
+	 * @param topic
+	 *            The topic being published to.
+	 * @param start
+	 *            The index of the first character of the next level, or a
+	 *            value past the end of the topic if every level is consumed.
+	 * @param matches
+	 *            The buffer the matching subscriber arrays are added to.
+	 */
+	private void collect(TopicNode node, String topic, int start, Matches matches) {
+		// A multi-level wildcard matches whatever is left of the topic.
+		TopicNode rest = node.children.get(MULTI_LEVEL_WILDCARD);
+		if (rest != null && rest.subscribers.length > 0) {
+			matches.add(rest.subscribers);
+		}
+
+		if (start > topic.length()) {
+			if (node.subscribers.length > 0) {
+				matches.add(node.subscribers);
+			}
+			return;
+		}
+
+		int end = topic.indexOf(LEVEL_SEPARATOR, start);
+		if (end < 0) {
+			end = topic.length();
+		}
+
+		TopicNode child = node.children.get(topic.substring(start, end));
+		if (child != null) {
+			collect(child, topic, end + 1, matches);
+		}
+
+		TopicNode any = node.children.get(SINGLE_LEVEL_WILDCARD);
+		if (any != null) {
+			collect(any, topic, end + 1, matches);
+		}
+	}
+
+	/**
+	 * Checks if the given pattern contains a wildcard level.
+	 *
+	 * @param pattern
+	 *            The pattern to check.
+	 * @return boolean True if the pattern contains a wildcard, false if not.
+	 */
+	private static boolean isWildcardPattern(String pattern) {
+		for (String level : splitLevels(pattern)) {
+			if (level.equals(SINGLE_LEVEL_WILDCARD) || level.equals(MULTI_LEVEL_WILDCARD)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Splits a topic or pattern into its levels.
+	 *
+	 * @param pattern
+	 *            The topic or pattern to split.
+	 * @return String[] The levels of the topic.
+	 */
+	private static String[] splitLevels(String pattern) {
+		return pattern.split(String.valueOf(LEVEL_SEPARATOR), -1);
+	}
+
+	/**
+	 * Returns a copy of the array with the given client appended, or the same
+	 * array if the client is already present.
+	 */
+	private static ClientConnection[] with(ClientConnection[] subscribers, ClientConnection client) {
+		if (subscribers == null) {
+			return new ClientConnection[] { client };
+		}
+
+		for (ClientConnection subscriber : subscribers) {
+			if (subscriber == client) {
+				return subscribers;
+			}
+		}
+
+		ClientConnection[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+		updated[subscribers.length] = client;
+
+		return updated;
+	}
+
+	/**
+	 * Returns a copy of the array with the given client removed, or the same
+	 * array if the client is not present.
+	 */
+	private static ClientConnection[] without(ClientConnection[] subscribers, ClientConnection client) {
+		for (int i = 0; i < subscribers.length; i++) {
+			if (subscribers[i] == client) {
+				ClientConnection[] updated = new ClientConnection[subscribers.length - 1];
+				System.arraycopy(subscribers, 0, updated, 0, i);
+				System.arraycopy(subscribers, i + 1, updated, i, subscribers.length - i - 1);
+
+				return updated;
+			}
+		}
+
+		return subscribers;
+	}
+
+	/**
+	 * The subscriber arrays matched by a publish, reused by each publish on
+	 * the same thread.
+	 */
+	private static final class Matches {
+		ClientConnection[][] arrays = new ClientConnection[8][];
+		int size = 0;
+		final IdentityHashMap<ClientConnection, Boolean> seen = new IdentityHashMap<ClientConnection, Boolean>();
+
+		/**
+		 * Adds the subscribers of a matching subscription.
+		 */
+		void add(ClientConnection[] subscribers) {
+			if (size == arrays.length) {
+				arrays = Arrays.copyOf(arrays, size * 2);
+			}
+			arrays[size++] = subscribers;
+		}
+
+		/**
+		 * Merges the matched arrays into a new one, dropping clients that
+		 * matched more than once.
+		 */
+		ClientConnection[] merge() {
+			int total = 0;
+			for (int i = 0; i < size; i++) {
+				total += arrays[i].length;
+			}
+
+			ClientConnection[] merged = new ClientConnection[total];
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				for (ClientConnection subscriber : arrays[i]) {
+					if (total <= SCAN_MERGE_LIMIT ? !contains(merged, count, subscriber)
+							: seen.put(subscriber, Boolean.TRUE) == null) {
+						merged[count++] = subscriber;
+					}
+				}
+			}
+			seen.clear();
+
+			return count == total ? merged : Arrays.copyOf(merged, count);
+		}
+
+		/**
+		 * Drops the references to the matched arrays.
+		 */
+		void clear() {
+			Arrays.fill(arrays, 0, size, null);
+			size = 0;
+		}
+
+		/**
+		 * Checks if a client is among the first subscribers of an array.
+		 */
+		private static boolean contains(ClientConnection[] subscribers, int count, ClientConnection client) {
+			for (int i = 0; i < count; i++) {
+				if (subscribers[i] == client) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * A node of the wildcard trie, holding one level of a pattern.
+	 */
+	private static final class TopicNode {
+		final ConcurrentHashMap<String, TopicNode> children = new ConcurrentHashMap<String, TopicNode>();
+		volatile ClientConnection[] subscribers = NO_SUBSCRIBERS;
+		boolean removed = false;
+	}
+}
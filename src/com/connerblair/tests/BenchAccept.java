@@ -0,0 +1,107 @@
+package com.connerblair.tests;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPServer;
+
+public class BenchAccept {
+	private static final int PORT = 4880;
+	private static final int CONNECTIONS = 2000;
+	private static final int CONNECTING_THREADS = 4;
+
+	private static class AcceptServer extends TCPServer {
+		private final CountDownLatch connected = new CountDownLatch(CONNECTIONS);
+
+		public AcceptServer(int acceptors, boolean reusePort) {
+			super(PORT, "localhost");
+			setAcceptors(acceptors);
+			setReusePort(reusePort);
+		}
+
+		public boolean awaitConnected() throws InterruptedException {
+			return connected.await(60, TimeUnit.SECONDS);
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+			connected.countDown();
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	// Opens and closes plain sockets from several threads as fast as they
+	// connect, and prints how fast the server accepts them with one or more
+	// acceptors, sharing a socket or each with its own.
+	public static void main(String[] args) throws InterruptedException {
+		run(1, false);
+		run(2, false);
+		run(4, false);
+		run(2, true);
+		run(4, true);
+	}
+
+	private static void run(int acceptors, boolean reusePort) throws InterruptedException {
+		AcceptServer server = new AcceptServer(acceptors, reusePort);
+		server.start();
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		Thread[] threads = new Thread[CONNECTING_THREADS];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < CONNECTIONS / CONNECTING_THREADS; j++) {
+					try {
+						new Socket("localhost", PORT).close();
+					} catch (IOException e) {
+						System.out.println(e.getMessage());
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		boolean done = server.awaitConnected();
+		long elapsed = System.nanoTime() - start;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println(acceptors + " acceptors" + (reusePort ? " with SO_REUSEPORT" : "") + ": "
+				+ (done ? CONNECTIONS * 1000000000L / elapsed + " connections per second."
+						: "not every connection was accepted."));
+		server.stop();
+		Thread.sleep(200);
+	}
+}
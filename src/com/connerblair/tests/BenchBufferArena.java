@@ -0,0 +1,162 @@
+package com.connerblair.tests;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.buffers.BufferArena;
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+import com.sun.management.ThreadMXBean;
+
+public class BenchBufferArena {
+	private static final int PORT = 4884;
+	private static final int WARMUP_ROUND_TRIPS = 5000;
+	private static final int ROUND_TRIPS = 20000;
+	private static final int MESSAGE_SIZE = 1024;
+
+	private static final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static class EchoServer extends TCPServer {
+
+		public EchoServer() {
+			super(PORT, "localhost");
+
+			on(byte[].class, (client, msg) -> client.sendToClient(msg));
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	// Sends the message back each time it returns, until the round trips are
+	// done.
+	private static class EchoClient extends TCPClient {
+		private volatile CountDownLatch done;
+		private volatile int remaining;
+
+		public EchoClient() {
+			super(PORT, "localhost");
+
+			on(byte[].class, msg -> {
+				if (--remaining > 0) {
+					sendToServer(msg);
+				} else {
+					done.countDown();
+				}
+			});
+		}
+
+		public void echo(int roundTrips) throws InterruptedException {
+			remaining = roundTrips;
+			done = new CountDownLatch(1);
+			sendToServer(new byte[MESSAGE_SIZE]);
+			if (!done.await(60, TimeUnit.SECONDS)) {
+				System.out.println("Not every message came back.");
+			}
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+		}
+
+		@Override
+		protected void connectionClosed() {
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Echoes a 1 KB message back and forth and prints the bytes allocated by
+	// every thread for each message sent one way, with the shared arena
+	// pooling buffers, with leak detection on, and with nothing pooled.
+	public static void main(String[] args) throws InterruptedException {
+		BufferArena arena = BufferArena.shared();
+
+		run("Pooled");
+
+		arena.setLeakDetection(true);
+		run("Leak detection");
+		System.out.println("Leak detection: " + arena.getLeaks().size() + " buffers not released.");
+		arena.setLeakDetection(false);
+
+		// With no budget for the shared pools and no cache on this thread,
+		// every buffer is allocated anew. The reader threads keep no cache of
+		// their own.
+		arena.setMaxPooledBytes(1);
+		arena.disableThreadCache();
+		run("Not pooled");
+	}
+
+	private static void run(String name) throws InterruptedException {
+		EchoServer server = new EchoServer();
+		server.start();
+		Thread.sleep(200);
+
+		EchoClient client = new EchoClient();
+		client.openConnection();
+		client.echo(WARMUP_ROUND_TRIPS);
+
+		long arrays = BufferArena.shared().getAllocated();
+		long bytes = allocatedBytes();
+		client.echo(ROUND_TRIPS);
+		bytes = allocatedBytes() - bytes;
+		arrays = BufferArena.shared().getAllocated() - arrays;
+
+		System.out.println(name + ": " + bytes / (2L * ROUND_TRIPS) + " bytes allocated per message, " + arrays
+				+ " arrays allocated by the arena.");
+
+		client.closeConnection();
+		server.stop();
+		Thread.sleep(200);
+	}
+
+	// Adds up the bytes allocated by every live thread.
+	private static long allocatedBytes() {
+		long total = 0;
+		for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (allocated > 0) {
+				total += allocated;
+			}
+		}
+		return total;
+	}
+}
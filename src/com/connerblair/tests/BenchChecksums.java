@@ -0,0 +1,140 @@
+package com.connerblair.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class BenchChecksums {
+	private static final int PORT = 4883;
+	private static final int WARMUP_MESSAGES = 20000;
+	private static final int MESSAGES = 100000;
+	private static final int MESSAGE_SIZE = 1024;
+	private static final int ROUNDS = 4;
+
+	private static class EchoServer extends TCPServer {
+
+		public EchoServer(boolean checksums) {
+			super(PORT, "localhost");
+			setFrameChecksums(checksums);
+
+			on(byte[].class, (client, msg) -> client.sendToClient(msg));
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	private static class EchoClient extends TCPClient {
+		private final AtomicInteger echoed = new AtomicInteger();
+		private volatile CountDownLatch done;
+		private volatile int expected;
+
+		public EchoClient(boolean checksums) {
+			super(PORT, "localhost");
+			setFrameChecksums(checksums);
+
+			on(byte[].class, msg -> {
+				if (echoed.incrementAndGet() == expected) {
+					done.countDown();
+				}
+			});
+		}
+
+		// Sends the messages, and waits for every one to come back.
+		public long echo(int messages) throws InterruptedException {
+			echoed.set(0);
+			expected = messages;
+			done = new CountDownLatch(1);
+
+			byte[] message = new byte[MESSAGE_SIZE];
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				sendToServer(message);
+			}
+			if (!done.await(60, TimeUnit.SECONDS)) {
+				System.out.println("Not every message came back.");
+			}
+			return System.nanoTime() - start;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+		}
+
+		@Override
+		protected void connectionClosed() {
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Echoes 1 KB messages with and without CRC32C frame checksums on both
+	// sides, taking turns so both see the same machine, and prints how many
+	// messages go each way per second.
+	public static void main(String[] args) throws InterruptedException {
+		for (int round = 1; round <= ROUNDS; round++) {
+			run(round, false);
+			run(round, true);
+		}
+	}
+
+	private static void run(int round, boolean checksums) throws InterruptedException {
+		EchoServer server = new EchoServer(checksums);
+		server.start();
+		Thread.sleep(200);
+
+		EchoClient client = new EchoClient(checksums);
+		client.openConnection();
+		client.echo(WARMUP_MESSAGES);
+		long elapsed = client.echo(MESSAGES);
+
+		System.out.println("Round " + round + (checksums ? ", checksums: " : ", no checksums: ")
+				+ MESSAGES * 1000000000L / elapsed + " messages per second, " + elapsed / MESSAGES
+				+ " ns per message.");
+
+		client.closeConnection();
+		server.stop();
+		Thread.sleep(200);
+	}
+}
@@ -0,0 +1,271 @@
+package com.connerblair.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.connerblair.udp.UDPConnector;
+import com.connerblair.udp.UDPPeer;
+import com.connerblair.udp.UDPReliableReceiver;
+import com.connerblair.udp.UDPReliableSender;
+
+public class BenchFec {
+	private static final String GROUP = "239.1.2.6";
+	private static final int GROUP_PORT = 4451;
+	private static final int RELAY_PORT = 4452;
+	private static final int MESSAGES = 5000;
+	private static final int MESSAGE_SIZE = 256;
+	private static final int PUBLISH_BATCH = 4;
+
+	// The packet types of the reliable multicast protocol, found after its
+	// two byte magic number.
+	private static final int TYPE_OFFSET = 2;
+	private static final byte DATA = 1;
+	private static final byte NAK = 3;
+	private static final byte PARITY = 6;
+
+	private static class Sender extends UDPReliableSender {
+
+		public Sender(boolean fec) {
+			super("127.0.0.1", RELAY_PORT);
+			if (fec) {
+				setFecGroupSize(10);
+				setFecParity(2);
+			}
+		}
+
+		@Override
+		protected byte[] createSnapshot(long sequence) {
+			return null;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Sender: " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Passes the stream on to the group, dropping data and parity packets at
+	// random, and passes the NAKs of the receiver back to the sender.
+	private static class Relay extends UDPConnector {
+		private final byte[] buf = new byte[65536];
+		private final double loss;
+		private final Random random = new Random(42);
+		private final InetAddress group;
+		private volatile SocketAddress sender;
+		private final ConcurrentLinkedQueue<DatagramPacket> packets = new ConcurrentLinkedQueue<DatagramPacket>();
+		private volatile int dropped = 0;
+		private volatile int naks = 0;
+
+		public Relay(String multicastInterface, double loss) throws UnknownHostException {
+			super(RELAY_PORT);
+			this.loss = loss;
+			this.group = InetAddress.getByName(GROUP);
+
+			setAddr((InetAddress) null);
+			setMulticast(true);
+			setMulticastInterface(multicastInterface);
+			setTimeToLive(0);
+			setMulticastLoopback(true);
+		}
+
+		public int getDropped() {
+			return dropped;
+		}
+
+		public int getNaks() {
+			return naks;
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+			byte[] data = new byte[packet.getLength()];
+			System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+			byte type = data.length > TYPE_OFFSET ? data[TYPE_OFFSET] : 0;
+
+			if (type == NAK) {
+				naks++;
+				if (sender != null) {
+					packets.offer(new DatagramPacket(data, data.length, sender));
+				}
+				return;
+			}
+
+			sender = packet.getSocketAddress();
+			if ((type == DATA || type == PARITY) && random.nextDouble() < loss) {
+				dropped++;
+				return;
+			}
+			packets.offer(new DatagramPacket(data, data.length, group, GROUP_PORT));
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return packets.poll();
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Relay: " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Records how long after publishing each message was delivered.
+	private static class Receiver extends UDPReliableReceiver {
+		private final long[] delays = new long[MESSAGES];
+		private volatile long expected = 1;
+		private volatile int lost = 0;
+
+		public Receiver(String multicastInterface) {
+			super(GROUP, GROUP_PORT);
+			setMulticastInterface(multicastInterface);
+		}
+
+		public boolean isDone() {
+			return expected > MESSAGES;
+		}
+
+		public long getDelivered() {
+			return expected - 1 - lost;
+		}
+
+		public long[] getDelays() {
+			long[] sorted = Arrays.copyOf(delays, (int) getDelivered());
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		@Override
+		protected void handleMessage(UDPPeer sender, long sequence, byte[] message) {
+			delays[(int) (sequence - 1 - lost)] = System.nanoTime() - ByteBuffer.wrap(message).getLong();
+			expected = sequence + 1;
+		}
+
+		@Override
+		protected void handleSnapshot(UDPPeer sender, long sequence, byte[] snapshot) {
+		}
+
+		@Override
+		protected void messagesLost(UDPPeer sender, long first, long last) {
+			lost += last - first + 1;
+			expected = last + 1;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Receiver: " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Sends a paced stream through a relay that loses packets at random, with
+	// and without parity packets, and prints how many NAKs the receiver sent,
+	// how many messages it rebuilt and how long delivery took. The relay
+	// polls for packets to pass on, so the run without loss shows the delay
+	// it adds on its own. The interface must support multicast; pass another
+	// interface, such as "eth0", where loopback does not.
+	public static void main(String[] args) throws Exception {
+		String multicastInterface = args.length > 0 ? args[0] : "lo";
+
+		for (double loss : new double[] { 0.0, 0.01, 0.05, 0.1 }) {
+			run(multicastInterface, loss, false);
+			run(multicastInterface, loss, true);
+		}
+	}
+
+	private static void run(String multicastInterface, double loss, boolean fec) throws Exception {
+		Relay relay = new Relay(multicastInterface, loss);
+		relay.start();
+
+		Receiver receiver = new Receiver(multicastInterface);
+		receiver.start();
+
+		Sender sender = new Sender(fec);
+		sender.start();
+		Thread.sleep(200);
+
+		byte[] message = new byte[MESSAGE_SIZE];
+		for (int i = 1; i <= MESSAGES; i++) {
+			ByteBuffer.wrap(message).putLong(System.nanoTime());
+			sender.publish(message);
+			if (i % PUBLISH_BATCH == 0) {
+				Thread.sleep(1);
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!receiver.isDone() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		long[] delays = receiver.getDelays();
+		System.out.println((int) (loss * 100) + "% loss" + (fec ? ", FEC 10+2" : ", no FEC") + ": dropped "
+				+ relay.getDropped() + ", NAKs " + relay.getNaks() + ", rebuilt " + receiver.getMessagesRecovered()
+				+ ", delivered " + receiver.getDelivered() + " of " + MESSAGES
+				+ (delays.length > 0 ? ", median " + delays[delays.length / 2] / 1000 + " us, p99 "
+						+ delays[delays.length * 99 / 100] / 1000 + " us, max " + delays[delays.length - 1] / 1000
+						+ " us." : "."));
+
+		sender.stop();
+		receiver.stop();
+		relay.stop();
+		Thread.sleep(200);
+	}
+}
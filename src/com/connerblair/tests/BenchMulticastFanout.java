@@ -0,0 +1,203 @@
+package com.connerblair.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.connerblair.udp.UDPConnector;
+
+public class BenchMulticastFanout {
+	private static final String GROUP = "239.1.2.4";
+	private static final int GROUP_PORT = 4438;
+	private static final int FIRST_UNICAST_PORT = 4440;
+	private static final int RECEIVERS = 8;
+	private static final int MESSAGES = 5000;
+	private static final int MESSAGE_SIZE = 512;
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static class Receiver extends UDPConnector {
+		private final byte[] buf = new byte[MESSAGE_SIZE];
+		private volatile int received = 0;
+
+		public Receiver(int port, String multicastInterface) {
+			super(port);
+			setAddr((InetAddress) null);
+			setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+			if (multicastInterface != null) {
+				setMulticast(true);
+				setMulticastInterface(multicastInterface);
+				joinGroup(GROUP);
+			}
+		}
+
+		public int getReceived() {
+			return received;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Receiver: " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+			received++;
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return null;
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	private static class Sender extends UDPConnector {
+		private final ConcurrentLinkedQueue<DatagramPacket> packets = new ConcurrentLinkedQueue<DatagramPacket>();
+		private volatile int sent = 0;
+		private volatile long lastSent;
+
+		public Sender(String multicastInterface) {
+			super(0);
+			setAddr((InetAddress) null);
+			if (multicastInterface != null) {
+				setMulticast(true);
+				setMulticastInterface(multicastInterface);
+				setTimeToLive(0);
+				setMulticastLoopback(true);
+			}
+		}
+
+		public void send(DatagramPacket packet) {
+			packets.offer(packet);
+		}
+
+		public int getSent() {
+			return sent;
+		}
+
+		public long getLastSent() {
+			return lastSent;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Sender: " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			DatagramPacket packet = packets.poll();
+			if (packet != null) {
+				sent++;
+				lastSent = System.nanoTime();
+			}
+			return packet;
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return new byte[MESSAGE_SIZE];
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Sends the same messages to every receiver, once to a group they all
+	// joined and once to each receiver in turn, and prints what each costs
+	// the sender. Pass an interface that supports multicast, such as "lo" or
+	// "eth0".
+	public static void main(String[] args) throws InterruptedException, UnknownHostException {
+		String multicastInterface = args.length > 0 ? args[0] : "lo";
+
+		run("Unicast", null);
+		run("Multicast", multicastInterface);
+	}
+
+	private static void run(String name, String multicastInterface) throws InterruptedException, UnknownHostException {
+		Receiver[] receivers = new Receiver[RECEIVERS];
+		for (int i = 0; i < RECEIVERS; i++) {
+			receivers[i] = new Receiver(multicastInterface == null ? FIRST_UNICAST_PORT + i : GROUP_PORT,
+					multicastInterface);
+			receivers[i].start();
+		}
+		Sender sender = new Sender(multicastInterface);
+
+		// Every packet is built before the clock starts, so only sending is
+		// timed.
+		byte[] data = new byte[MESSAGE_SIZE];
+		InetAddress group = InetAddress.getByName(GROUP);
+		InetAddress localhost = InetAddress.getByName("localhost");
+		for (int i = 0; i < MESSAGES; i++) {
+			if (multicastInterface == null) {
+				for (int j = 0; j < RECEIVERS; j++) {
+					sender.send(new DatagramPacket(data, data.length, localhost, FIRST_UNICAST_PORT + j));
+				}
+			} else {
+				sender.send(new DatagramPacket(data, data.length, group, GROUP_PORT));
+			}
+		}
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		sender.start();
+		int expected = multicastInterface == null ? MESSAGES * RECEIVERS : MESSAGES;
+		while (sender.getSent() < expected) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(1000);
+
+		long delivered = 0;
+		for (Receiver receiver : receivers) {
+			delivered += receiver.getReceived();
+		}
+		long elapsed = sender.getLastSent() - start;
+		System.out.println(name + ": " + sender.getSent() + " datagrams sent in " + elapsed / 1000000 + " ms ("
+				+ (elapsed / sender.getSent()) + " ns each), " + delivered + " of " + MESSAGES * RECEIVERS
+				+ " delivered.");
+
+		sender.stop();
+		for (Receiver receiver : receivers) {
+			receiver.stop();
+		}
+		Thread.sleep(200);
+	}
+}
@@ -0,0 +1,172 @@
+package com.connerblair.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPPriority;
+import com.connerblair.tcp.TCPServer;
+
+public class BenchPriority {
+	private static final int PORT = 4885;
+	private static final int BULK_THREADS = 3;
+	private static final int BULK_SIZE = 32 * 1024;
+	// The bulk threads wait while this much is queued for the client, so the
+	// queue stays full without growing without bound. It is well above what
+	// the socket buffers hold, so most of the data ahead of a ping is still
+	// queued where priority can pass it.
+	private static final long BULK_QUEUED = 8 * 1024 * 1024;
+	private static final int PINGS = 50;
+	private static final long PING_INTERVAL_MILLIS = 20;
+
+	private static class BulkServer extends TCPServer {
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private volatile ClientConnection client;
+
+		public BulkServer(int... priorityWeights) {
+			super(PORT, "localhost");
+			setPriorityWeights(priorityWeights);
+		}
+
+		public ClientConnection awaitClient() throws InterruptedException {
+			connected.await(10, TimeUnit.SECONDS);
+			return client;
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+			this.client = client;
+			connected.countDown();
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	// Records how long each ping took to arrive. The pings carry the time
+	// they were sent, which works since both ends share the process.
+	private static class PingClient extends TCPClient {
+		private final long[] latencies = new long[PINGS];
+		private final CountDownLatch done = new CountDownLatch(PINGS);
+		private int pings = 0;
+
+		public PingClient() {
+			super(PORT, "localhost");
+
+			on(Long.class, sent -> {
+				latencies[pings++] = System.nanoTime() - sent;
+				done.countDown();
+			});
+		}
+
+		public long[] awaitLatencies() throws InterruptedException {
+			if (!done.await(30, TimeUnit.SECONDS)) {
+				System.out.println("Not every ping arrived.");
+			}
+
+			long[] sorted = Arrays.copyOf(latencies, pings);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+		}
+
+		@Override
+		protected void connectionClosed() {
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Keeps a client's queue full of bulk messages from several threads, and
+	// prints how long pings take to reach it when sent behind the bulk
+	// messages, ahead of them, and ahead of them with weighted lanes.
+	public static void main(String[] args) throws InterruptedException {
+		run("Normal priority", TCPPriority.Normal);
+		run("High priority, strict", TCPPriority.High);
+		run("High priority, weights 4/2/1", TCPPriority.High, 4, 2, 1);
+	}
+
+	private static void run(String name, TCPPriority priority, int... priorityWeights) throws InterruptedException {
+		BulkServer server = new BulkServer(priorityWeights);
+		server.start();
+		Thread.sleep(200);
+
+		PingClient client = new PingClient();
+		client.openConnection();
+		ClientConnection connection = server.awaitClient();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] bulk = new Thread[BULK_THREADS];
+		for (int i = 0; i < bulk.length; i++) {
+			bulk[i] = new Thread(() -> {
+				byte[] message = new byte[BULK_SIZE];
+				while (running.get()) {
+					if (connection.getMemoryUsed() < BULK_QUEUED) {
+						connection.sendToClient(message);
+					} else {
+						Thread.yield();
+					}
+				}
+			});
+			bulk[i].start();
+		}
+		Thread.sleep(500);
+
+		for (int i = 0; i < PINGS; i++) {
+			connection.sendToClient(System.nanoTime(), priority);
+			Thread.sleep(PING_INTERVAL_MILLIS);
+		}
+		long[] latencies = client.awaitLatencies();
+
+		running.set(false);
+		for (Thread thread : bulk) {
+			thread.join();
+		}
+
+		System.out.println(name + ": median " + latencies[latencies.length / 2] / 1000 + " us, p90 "
+				+ latencies[latencies.length * 9 / 10] / 1000 + " us over " + latencies.length + " pings.");
+
+		client.closeConnection();
+		server.stop();
+		Thread.sleep(200);
+	}
+}
@@ -0,0 +1,178 @@
+package com.connerblair.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import com.connerblair.udp.UDPConnector;
+
+public class BenchReplayWindow {
+	private static final int PORT = 4453;
+	private static final int PACKETS = 100000;
+	private static final int PACKET_SIZE = 64;
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static class Receiver extends UDPConnector {
+		private final byte[] buf = new byte[PACKET_SIZE];
+		private final boolean sequenced;
+		private volatile int handled = 0;
+		private volatile long firstHandled;
+		private volatile long lastHandled;
+
+		public Receiver(boolean sequenced) {
+			super(PORT, "localhost");
+			this.sequenced = sequenced;
+			setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+		}
+
+		public int getHandled() {
+			return handled;
+		}
+
+		public long getElapsed() {
+			return lastHandled - firstHandled;
+		}
+
+		@Override
+		protected long getSequenceNumber(DatagramPacket packet) {
+			return sequenced ? ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).getLong() : -1;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Receiver: " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+			long now = System.nanoTime();
+			if (handled++ == 0) {
+				firstHandled = now;
+			}
+			lastHandled = now;
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return null;
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Sends every sequence number twice in a row, as a retransmitting or
+	// duplicating path would.
+	private static class Sender extends UDPConnector {
+		private final byte[] buf = new byte[PACKET_SIZE];
+		private final InetAddress receiver;
+		private volatile int sent = 0;
+
+		public Sender() throws UnknownHostException {
+			super(0, "localhost");
+			this.receiver = InetAddress.getByName("localhost");
+		}
+
+		public boolean isDone() {
+			return sent == 2 * PACKETS;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Sender: " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			if (sent == 2 * PACKETS) {
+				return null;
+			}
+
+			byte[] data = new byte[PACKET_SIZE];
+			ByteBuffer.wrap(data).putLong(sent / 2 + 1);
+			sent++;
+			return new DatagramPacket(data, data.length, receiver, PORT);
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Prints how many of the doubled packets are handled, how many are
+	// dropped as duplicates and how fast they are received, with and without
+	// sequence numbers checked against the replay window.
+	public static void main(String[] args) throws Exception {
+		run(false);
+		run(true);
+	}
+
+	private static void run(boolean sequenced) throws Exception {
+		Receiver receiver = new Receiver(sequenced);
+		receiver.start();
+		Thread.sleep(200);
+
+		Sender sender = new Sender();
+		sender.start();
+		while (!sender.isDone()) {
+			Thread.sleep(10);
+		}
+
+		// Wait for the receiver to go quiet.
+		int handled;
+		do {
+			handled = receiver.getHandled();
+			Thread.sleep(200);
+		} while (receiver.getHandled() != handled);
+
+		long received = receiver.getHandled() + receiver.getDuplicates() + receiver.getOutOfWindow();
+		System.out.println((sequenced ? "Replay window" : "No sequence numbers") + ": handled " + handled
+				+ ", duplicates " + receiver.getDuplicates() + ", out of window " + receiver.getOutOfWindow()
+				+ ", received " + received + " of " + 2 * PACKETS + ", "
+				+ received * 1000000000L / receiver.getElapsed() + " packets per second.");
+
+		sender.stop();
+		receiver.stop();
+		Thread.sleep(200);
+	}
+}
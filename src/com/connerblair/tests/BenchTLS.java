@@ -0,0 +1,176 @@
+package com.connerblair.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class BenchTLS {
+	private static final int PORT = 4878;
+	private static final int WARMUP_CONNECTIONS = 20;
+	private static final int CONNECTIONS = 200;
+	private static final int MESSAGES = 5000;
+	private static final int MESSAGE_SIZE = 16 * 1024;
+
+	private static class BenchServer extends TCPServer {
+		private final AtomicInteger received = new AtomicInteger();
+
+		public BenchServer() {
+			super(PORT, "localhost");
+
+			on(String.class, (client, msg) -> client.sendToClient(msg));
+			on(byte[].class, (client, msg) -> {
+				if (received.incrementAndGet() == MESSAGES) {
+					client.sendToClient("Done.");
+				}
+			});
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	private static class BenchClient extends TCPClient {
+		private final CountDownLatch replied = new CountDownLatch(1);
+
+		public BenchClient(SSLContext sslContext) {
+			super(PORT, "localhost");
+			setSSLContext(sslContext);
+
+			on(String.class, msg -> replied.countDown());
+		}
+
+		public boolean awaitReply() throws InterruptedException {
+			return replied.await(10, TimeUnit.SECONDS);
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+		}
+
+		@Override
+		protected void connectionClosed() {
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Prints the time to connect and get a first reply with a full handshake,
+	// a resumed handshake and no TLS at all, then the rate bulk messages are
+	// sent at with and without TLS.
+	public static void main(String[] args) throws Exception {
+		SSLContext sslContext = TestTLS.createSSLContext();
+
+		handshakes("Plain", null, false);
+		handshakes("TLS full handshake", sslContext, true);
+		handshakes("TLS resumed handshake", sslContext, false);
+
+		throughput("Plain", null);
+		throughput("TLS", sslContext);
+	}
+
+	private static void handshakes(String name, SSLContext sslContext, boolean full) throws InterruptedException {
+		BenchServer server = new BenchServer();
+		server.setSSLContext(sslContext);
+		server.start();
+
+		long total = 0;
+		for (int i = 0; i < WARMUP_CONNECTIONS + CONNECTIONS; i++) {
+			// Dropping the sessions the client has cached makes it do a full
+			// handshake.
+			if (full) {
+				SSLSessionContext sessions = sslContext.getClientSessionContext();
+				sessions.getIds().asIterator().forEachRemaining(id -> {
+					SSLSession session = sessions.getSession(id);
+					if (session != null) {
+						session.invalidate();
+					}
+				});
+			}
+
+			long start = System.nanoTime();
+			BenchClient client = new BenchClient(sslContext);
+			client.openConnection();
+			client.sendToServer("Ping");
+			if (!client.awaitReply()) {
+				System.out.println(name + ": no reply.");
+			}
+			if (i >= WARMUP_CONNECTIONS) {
+				total += System.nanoTime() - start;
+			}
+			client.closeConnection();
+		}
+
+		System.out.println(name + ": " + total / CONNECTIONS / 1000 + " us per connection, "
+				+ CONNECTIONS * 1000000000L / total + " connections per second.");
+		server.stop();
+	}
+
+	private static void throughput(String name, SSLContext sslContext) throws InterruptedException {
+		BenchServer server = new BenchServer();
+		server.setSSLContext(sslContext);
+		server.start();
+
+		BenchClient client = new BenchClient(sslContext);
+		client.openConnection();
+
+		byte[] message = new byte[MESSAGE_SIZE];
+		long start = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++) {
+			client.sendToServer(message);
+		}
+		if (!client.awaitReply()) {
+			System.out.println(name + ": not all messages arrived.");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(name + ": " + (long) MESSAGES * MESSAGE_SIZE * 1000 / elapsed + " MB/s, "
+				+ MESSAGES * 1000000000L / elapsed + " messages per second.");
+		client.closeConnection();
+		server.stop();
+	}
+}
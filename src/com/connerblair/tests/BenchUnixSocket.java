@@ -0,0 +1,144 @@
+package com.connerblair.tests;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class BenchUnixSocket {
+	private static final int PORT = 4881;
+	private static final int WARMUP_ROUND_TRIPS = 2000;
+	private static final int ROUND_TRIPS = 20000;
+
+	private static class EchoServer extends TCPServer {
+
+		public EchoServer() {
+			super(PORT, "localhost");
+
+			on(Long.class, (client, msg) -> client.sendToClient(msg));
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+		}
+	}
+
+	// Sends a timestamp, waits for it to come back and sends the next one,
+	// recording each round trip.
+	private static class PingClient extends TCPClient {
+		private final long[] roundTrips = new long[WARMUP_ROUND_TRIPS + ROUND_TRIPS];
+		private final CountDownLatch done = new CountDownLatch(1);
+		private int count = 0;
+
+		public PingClient() {
+			super(PORT, "localhost");
+
+			on(Long.class, sent -> {
+				roundTrips[count++] = System.nanoTime() - sent;
+				if (count < roundTrips.length) {
+					sendToServer(System.nanoTime());
+				} else {
+					done.countDown();
+				}
+			});
+		}
+
+		public long[] ping() throws InterruptedException {
+			sendToServer(System.nanoTime());
+			if (!done.await(60, TimeUnit.SECONDS)) {
+				System.out.println("Not every ping came back.");
+			}
+
+			long[] measured = Arrays.copyOfRange(roundTrips, WARMUP_ROUND_TRIPS, roundTrips.length);
+			Arrays.sort(measured);
+			return measured;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+		}
+
+		@Override
+		protected void connectionClosed() {
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Prints the round trip time of small messages over loopback TCP and
+	// over a Unix domain socket.
+	public static void main(String[] args) throws InterruptedException, IOException {
+		Path dir = Files.createTempDirectory("unix");
+		Path socketPath = dir.resolve("bench.sock");
+
+		run("TCP", null);
+		run("Unix domain socket", socketPath);
+
+		Files.deleteIfExists(socketPath);
+		Files.delete(dir);
+	}
+
+	private static void run(String name, Path socketPath) throws InterruptedException {
+		EchoServer server = new EchoServer();
+		if (socketPath != null) {
+			server.setUnixSocketPath(socketPath);
+		}
+		server.start();
+		Thread.sleep(200);
+
+		PingClient client = new PingClient();
+		if (socketPath != null) {
+			client.setUnixSocketPath(socketPath);
+		}
+		client.openConnection();
+
+		long[] roundTrips = client.ping();
+		System.out.println(name + ": median " + roundTrips[roundTrips.length / 2] / 1000 + " us, p99 "
+				+ roundTrips[roundTrips.length * 99 / 100] / 1000 + " us over " + ROUND_TRIPS + " round trips.");
+
+		client.closeConnection();
+		server.stop();
+	}
+}
@@ -0,0 +1,128 @@
+package com.connerblair.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.tcp.AttributeKey;
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.LongAttributeKey;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class TestAttributes {
+	private static final int PORT = 4879;
+	private static final int MESSAGES = 5;
+
+	// Keys are created once, and each is given its own slot on every
+	// connection.
+	private static final AttributeKey<String> NAME = AttributeKey.newKey("Name");
+	private static final LongAttributeKey RECEIVED = LongAttributeKey.newKey("Received");
+
+	private static final CountDownLatch replied = new CountDownLatch(MESSAGES);
+
+	private static class AttributeServer extends TCPServer {
+		private int clientNum = 0;
+
+		public AttributeServer() {
+			super(PORT, "localhost");
+
+			on(String.class, this::stringReceived);
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+			client.setAttribute(NAME, "Client " + clientNum);
+			clientNum++;
+			System.out.println(client.getAttribute(NAME) + " Connected.");
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+			System.out.println(client.getAttribute(NAME) + " Disconnected after " + client.getLongAttribute(RECEIVED)
+					+ " messages.");
+		}
+
+		private void stringReceived(ClientConnection client, String clientMsg) {
+			long received = client.addToLongAttribute(RECEIVED, 1);
+			System.out.println(client.getAttribute(NAME) + ": " + clientMsg);
+
+			client.sendToClient("Message " + received + " from " + client.getAttribute(NAME));
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+			System.out.println(client.getAttribute(NAME) + ": Unexpected message " + msg);
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+			System.out.println(client.getAttribute(NAME) + ": " + e.getMessage());
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+			System.out.println("Server Started.");
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+			System.out.println("Server Stopped.");
+		}
+	}
+
+	private static class AttributeClient extends TCPClient {
+
+		public AttributeClient() {
+			super(PORT, "localhost");
+
+			on(String.class, serverMsg -> {
+				System.out.println("Server: " + serverMsg);
+				replied.countDown();
+			});
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+			System.out.println("Connection Opened");
+		}
+
+		@Override
+		protected void connectionClosed() {
+			System.out.println("Connection Closed");
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		AttributeServer server = new AttributeServer();
+		server.start();
+
+		AttributeClient client = new AttributeClient();
+		client.openConnection();
+		for (int i = 0; i < MESSAGES; i++) {
+			client.sendToServer("Hello Server.");
+		}
+
+		replied.await(10, TimeUnit.SECONDS);
+		client.closeConnection();
+		Thread.sleep(100);
+		server.stop();
+	}
+}
@@ -0,0 +1,184 @@
+package com.connerblair.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.connerblair.udp.UDPConnector;
+
+public class TestMulticast {
+	private static final String GROUP = "239.1.2.3";
+	private static final int GROUP_PORT = 4437;
+	private static final int RECEIVERS = 3;
+	private static final int MESSAGES = 10;
+
+	private static class Receiver extends UDPConnector {
+		private final byte[] buf = new byte[128];
+		private final String name;
+		private volatile int received = 0;
+
+		public Receiver(String name, String multicastInterface) {
+			super(GROUP_PORT);
+			this.name = name;
+
+			// The receiver is bound to the wildcard address, so it hears the
+			// group on the interface it joins it on.
+			setAddr((InetAddress) null);
+			setMulticast(true);
+			setMulticastInterface(multicastInterface);
+			joinGroup(GROUP);
+		}
+
+		public int getReceived() {
+			return received;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(name + ": " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+			received++;
+			System.out.println(name + " received: " + ByteBuffer.wrap(packet.getData(), packet.getOffset(), 4).getInt());
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return null;
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	private static class Sender extends UDPConnector {
+		private final ConcurrentLinkedQueue<DatagramPacket> packets = new ConcurrentLinkedQueue<DatagramPacket>();
+		private final InetAddress group;
+
+		public Sender(String multicastInterface) throws UnknownHostException {
+			super(0);
+			group = InetAddress.getByName(GROUP);
+
+			// A time to live of zero keeps the packets on this host, and
+			// loopback hands them to the groups joined here.
+			setAddr((InetAddress) null);
+			setMulticast(true);
+			setMulticastInterface(multicastInterface);
+			setTimeToLive(0);
+			setMulticastLoopback(true);
+		}
+
+		public void send(int message) {
+			byte[] data = ByteBuffer.allocate(4).putInt(message).array();
+			packets.offer(new DatagramPacket(data, data.length, group, GROUP_PORT));
+		}
+
+		public boolean isSent() {
+			return packets.isEmpty();
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Sender: " + e.getMessage());
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return packets.poll();
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return new byte[128];
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+			System.out.println("Sender running.");
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+			System.out.println("Sender stopped.");
+		}
+	}
+
+	// The interface must support multicast. Loopback does on most systems,
+	// but not all; pass another interface, such as "eth0", where it does not.
+	public static void main(String[] args) throws InterruptedException, UnknownHostException {
+		String multicastInterface = args.length > 0 ? args[0] : "lo";
+
+		Receiver[] receivers = new Receiver[RECEIVERS];
+		for (int i = 0; i < RECEIVERS; i++) {
+			receivers[i] = new Receiver("Receiver " + i, multicastInterface);
+			receivers[i].start();
+		}
+
+		Sender sender = new Sender(multicastInterface);
+		sender.start();
+
+		for (int i = 0; i < MESSAGES; i++) {
+			sender.send(i);
+		}
+		while (!sender.isSent()) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(500);
+
+		// A receiver that left the group should hear nothing more.
+		receivers[0].leaveGroup(GROUP);
+		int before = receivers[0].getReceived();
+		sender.send(MESSAGES);
+		while (!sender.isSent()) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(500);
+
+		boolean passed = receivers[0].getReceived() == before;
+		for (int i = 0; i < RECEIVERS; i++) {
+			int expected = i == 0 ? MESSAGES : MESSAGES + 1;
+			System.out.println("Receiver " + i + ": " + receivers[i].getReceived() + " of " + expected);
+			passed &= receivers[i].getReceived() == expected;
+		}
+		System.out.println(passed ? "Passed." : "Failed.");
+
+		sender.stop();
+		for (Receiver receiver : receivers) {
+			receiver.stop();
+		}
+	}
+}
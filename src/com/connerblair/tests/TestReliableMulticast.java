@@ -0,0 +1,277 @@
+package com.connerblair.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.connerblair.udp.UDPConnector;
+import com.connerblair.udp.UDPPeer;
+import com.connerblair.udp.UDPReliableReceiver;
+import com.connerblair.udp.UDPReliableSender;
+
+public class TestReliableMulticast {
+	private static final String GROUP = "239.1.2.5";
+	private static final int GROUP_PORT = 4439;
+	private static final int RELAY_PORT = 4450;
+	private static final int MESSAGES = 5000;
+	private static final int PUBLISH_BATCH = 20;
+	private static final int SNAPSHOT_SIZE = 100 * 1024;
+
+	// The packet types of the reliable multicast protocol, found after its
+	// two byte magic number.
+	private static final int TYPE_OFFSET = 2;
+	private static final byte DATA = 1;
+	private static final byte NAK = 3;
+	private static final byte SNAPSHOT_REQUEST = 4;
+
+	private static class Sender extends UDPReliableSender {
+
+		// The sender sends its stream to the relay, which passes it on to the
+		// group.
+		public Sender() {
+			super("127.0.0.1", RELAY_PORT);
+		}
+
+		@Override
+		protected byte[] createSnapshot(long sequence) {
+			// The state is the number of messages published, padded out so
+			// the snapshot takes many chunks.
+			return ByteBuffer.allocate(SNAPSHOT_SIZE).putLong(sequence).array();
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Sender: " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// Passes the stream on to the group, dropping every Nth message, repairs
+	// included, and passes the NAKs and snapshot requests of the receivers
+	// back to the sender.
+	private static class Relay extends UDPConnector {
+		private final byte[] buf = new byte[65536];
+		private final int dropEvery;
+		private final InetAddress group;
+		private volatile SocketAddress sender;
+		private final ConcurrentLinkedQueue<DatagramPacket> packets = new ConcurrentLinkedQueue<DatagramPacket>();
+		private int messages = 0;
+		private volatile int dropped = 0;
+
+		public Relay(String multicastInterface, int dropEvery) throws UnknownHostException {
+			super(RELAY_PORT);
+			this.dropEvery = dropEvery;
+			this.group = InetAddress.getByName(GROUP);
+
+			setAddr((InetAddress) null);
+			setMulticast(true);
+			setMulticastInterface(multicastInterface);
+			setTimeToLive(0);
+			setMulticastLoopback(true);
+		}
+
+		public int getDropped() {
+			return dropped;
+		}
+
+		@Override
+		protected void handlePacketReceived(DatagramPacket packet) {
+			byte[] data = new byte[packet.getLength()];
+			System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+			byte type = data.length > TYPE_OFFSET ? data[TYPE_OFFSET] : 0;
+
+			if (type == NAK || type == SNAPSHOT_REQUEST) {
+				if (sender != null) {
+					packets.offer(new DatagramPacket(data, data.length, sender));
+				}
+				return;
+			}
+
+			sender = packet.getSocketAddress();
+			if (type == DATA && ++messages % dropEvery == 0) {
+				dropped++;
+				return;
+			}
+			packets.offer(new DatagramPacket(data, data.length, group, GROUP_PORT));
+		}
+
+		@Override
+		protected DatagramPacket createPacketToSend() {
+			return packets.poll();
+		}
+
+		@Override
+		protected byte[] getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println("Relay: " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	private static class Receiver extends UDPReliableReceiver {
+		private final String name;
+		private volatile long expected = 1;
+		private volatile int snapshots = 0;
+		private volatile int errors = 0;
+
+		public Receiver(String name, String multicastInterface) {
+			super(GROUP, GROUP_PORT);
+			this.name = name;
+			setMulticastInterface(multicastInterface);
+		}
+
+		public boolean isDone() {
+			return expected > MESSAGES;
+		}
+
+		public long getDelivered() {
+			return expected - 1;
+		}
+
+		public int getSnapshots() {
+			return snapshots;
+		}
+
+		public int getErrors() {
+			return errors;
+		}
+
+		@Override
+		protected void handleMessage(UDPPeer sender, long sequence, byte[] message) {
+			if (sequence != expected || ByteBuffer.wrap(message).getInt() != sequence) {
+				System.out.println(name + ": expected " + expected + " but received " + sequence);
+				errors++;
+			}
+			expected = sequence + 1;
+		}
+
+		@Override
+		protected void handleSnapshot(UDPPeer sender, long sequence, byte[] snapshot) {
+			if (snapshot.length != SNAPSHOT_SIZE || ByteBuffer.wrap(snapshot).getLong() != sequence) {
+				System.out.println(name + ": bad snapshot at " + sequence);
+				errors++;
+			}
+			snapshots++;
+			expected = sequence + 1;
+		}
+
+		@Override
+		protected void messagesLost(UDPPeer sender, long first, long last) {
+			System.out.println(name + ": lost " + first + " to " + last);
+			errors++;
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(name + ": " + e.getMessage());
+		}
+
+		@Override
+		protected void receiverRunning() {
+		}
+
+		@Override
+		protected void senderRunning() {
+		}
+
+		@Override
+		protected void receiverStopped() {
+		}
+
+		@Override
+		protected void senderStopped() {
+		}
+	}
+
+	// The interface must support multicast. Loopback does on most systems,
+	// but not all; pass another interface, such as "eth0", where it does not.
+	// The second argument is how often the relay drops a message.
+	public static void main(String[] args) throws Exception {
+		String multicastInterface = args.length > 0 ? args[0] : "lo";
+		int dropEvery = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Relay relay = new Relay(multicastInterface, dropEvery);
+		relay.start();
+
+		Receiver early = new Receiver("Early receiver", multicastInterface);
+		early.start();
+
+		Sender sender = new Sender();
+		sender.start();
+		Thread.sleep(200);
+
+		// The messages are published at a steady rate, so they are still
+		// kept for repair when the NAKs arrive. The late receiver joins half
+		// way, and catches up from a snapshot.
+		Receiver late = new Receiver("Late receiver", multicastInterface);
+		for (int i = 1; i <= MESSAGES; i++) {
+			if (i == MESSAGES / 2) {
+				while (early.getDelivered() < MESSAGES / 2 - 1) {
+					Thread.sleep(10);
+				}
+				late.start();
+				Thread.sleep(200);
+			}
+			sender.publish(ByteBuffer.allocate(4).putInt(i).array());
+			if (i % PUBLISH_BATCH == 0) {
+				Thread.sleep(1);
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((!early.isDone() || !late.isDone()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		System.out.println("Relay dropped " + relay.getDropped() + " messages.");
+		System.out.println("Early receiver: " + early.getDelivered() + " of " + MESSAGES + ", "
+				+ early.getErrors() + " errors.");
+		System.out.println("Late receiver: " + late.getDelivered() + " of " + MESSAGES + ", " + late.getSnapshots()
+				+ " snapshots, " + late.getErrors() + " errors.");
+		boolean passed = early.isDone() && late.isDone() && early.getErrors() == 0 && late.getErrors() == 0
+				&& late.getSnapshots() == 1 && relay.getDropped() > 0;
+		System.out.println(passed ? "Passed." : "Failed.");
+
+		sender.stop();
+		early.stop();
+		late.stop();
+		relay.stop();
+	}
+}
@@ -0,0 +1,142 @@
+package com.connerblair.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class TestSlowConsumer {
+	private static final int PORT = 4876;
+	private static final int MESSAGES = 500;
+	private static final int MESSAGE_SIZE = 64 * 1024;
+	private static final long READ_DELAY_MILLIS = 10;
+	private static final int SNAPSHOT_SIZE = 4 * 1024 * 1024;
+
+	private static final CountDownLatch received = new CountDownLatch(MESSAGES + 1);
+	private static volatile ClientConnection connection;
+
+	private static class SlowServer extends TCPServer {
+		private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		public SlowServer() {
+			super(PORT, "localhost");
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+			connection = client;
+
+			// Another thread writes a large snapshot first, and holds the
+			// socket while the client slowly reads it, so the publisher's
+			// first messages can only be queued.
+			new Thread(() -> client.sendToClient(new byte[SNAPSHOT_SIZE])).start();
+
+			// Publish as fast as the connection lets the publisher go. The
+			// messages are delivered on the executor, so submitting blocks
+			// once the subscriber stops requesting.
+			new Thread(() -> {
+				try (SubmissionPublisher<Object> publisher = new SubmissionPublisher<>(executor, 16)) {
+					publisher.subscribe(client.outbound());
+					for (int i = 0; i < MESSAGES; i++) {
+						publisher.submit(new byte[MESSAGE_SIZE]);
+					}
+				}
+			}).start();
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+			System.out.println("Client Disconnected.");
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+			System.out.println("Client: " + e.getMessage());
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+			System.out.println("Server Started.");
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+			executor.shutdownNow();
+			System.out.println("Server Stopped.");
+		}
+	}
+
+	private static class SlowClient extends TCPClient {
+
+		public SlowClient() {
+			super(PORT, "localhost");
+
+			on(byte[].class, msg -> {
+				try {
+					Thread.sleep(READ_DELAY_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.countDown();
+			});
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+			System.out.println("Connection Opened");
+		}
+
+		@Override
+		protected void connectionClosed() {
+			System.out.println("Connection Closed");
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		SlowServer server = new SlowServer();
+		server.start();
+
+		SlowClient client = new SlowClient();
+		client.openConnection();
+
+		// The memory the server holds for the client should stay at a few
+		// messages, however far the client falls behind.
+		while (received.getCount() > 0) {
+			Thread.sleep(1000);
+
+			ClientConnection current = connection;
+			System.out.println("Received: " + (MESSAGES + 1 - received.getCount()) + ", Server memory: "
+					+ (current == null ? 0 : current.getMemoryUsed()) + ", Peak: "
+					+ (current == null ? 0 : current.getPeakMemoryUsed()));
+		}
+
+		client.closeConnection();
+		server.stop();
+	}
+}
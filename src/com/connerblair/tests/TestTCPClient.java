@@ -6,6 +6,8 @@ public class TestTCPClient extends TCPClient {
 	
 	public TestTCPClient() {
 		super(4875, "localhost");
+
+		on(String.class, serverMsg -> System.out.println("Server: " + serverMsg));
 	}
 
 	@Override
@@ -26,8 +28,7 @@ public class TestTCPClient extends TCPClient {
 
 	@Override
 	protected void handleMessageFromServer(Object msg) {
-		String serverMsg = (String) msg;
-		System.out.println("Server: " + serverMsg);		
+		System.out.println("Server: Unexpected message " + msg);
 	}
 	
 	public static void main(String[] args) {
@@ -8,6 +8,8 @@ public class TestTCPServer extends TCPServer {
 
 	public TestTCPServer() {
 		super(4875, "localhost");
+
+		on(String.class, this::stringReceived);
 	}
 
 	@Override
@@ -23,14 +25,17 @@ public class TestTCPServer extends TCPServer {
 		System.out.println("Client Disconnected.");
 	}
 
-	@Override
-	protected void clientMessageReceived(ClientConnection client, Object msg) {
-		String clientMsg = (String) msg;
+	private void stringReceived(ClientConnection client, String clientMsg) {
 		System.out.println(client.getInfo("Name") + ": " + clientMsg);
 		
 		client.sendToClient("I got your message: " + clientMsg);
 	}
 
+	@Override
+	protected void clientMessageReceived(ClientConnection client, Object msg) {
+		System.out.println(client.getInfo("Name") + ": Unexpected message " + msg);
+	}
+
 	@Override
 	protected void handleClientException(ClientConnection client, Exception e) {
 		System.out.println(client.getInfo("Name") + ": " + e.getMessage());
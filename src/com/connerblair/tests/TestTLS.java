@@ -0,0 +1,165 @@
+package com.connerblair.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.connerblair.tcp.ClientConnection;
+import com.connerblair.tcp.TCPClient;
+import com.connerblair.tcp.TCPServer;
+
+public class TestTLS {
+	private static final int PORT = 4877;
+	private static final String ALIAS = "test";
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	private static final CountDownLatch replied = new CountDownLatch(1);
+	private static volatile String reply;
+
+	private static class EchoServer extends TCPServer {
+
+		public EchoServer() {
+			super(PORT, "localhost");
+
+			on(String.class, (client, msg) -> client.sendToClient(msg));
+		}
+
+		@Override
+		protected void clientConnected(ClientConnection client) {
+			System.out.println("Client Connected.");
+		}
+
+		@Override
+		protected void clientDisconnected(ClientConnection client) {
+			System.out.println("Client Disconnected.");
+		}
+
+		@Override
+		protected void clientMessageReceived(ClientConnection client, Object msg) {
+		}
+
+		@Override
+		protected void handleClientException(ClientConnection client, Exception e) {
+			System.out.println("Client: " + e.getMessage());
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void serverStarted() {
+			System.out.println("Server Started.");
+		}
+
+		@Override
+		protected void serverPaused() {
+		}
+
+		@Override
+		protected void serverStopped() {
+			System.out.println("Server Stopped.");
+		}
+	}
+
+	private static class EchoClient extends TCPClient {
+
+		public EchoClient() {
+			super(PORT, "localhost");
+
+			on(String.class, msg -> {
+				reply = msg;
+				replied.countDown();
+			});
+		}
+
+		@Override
+		protected void handleException(Exception e) {
+			System.out.println(e.getMessage());
+		}
+
+		@Override
+		protected void connectionOpened() {
+			System.out.println("Connection Opened");
+		}
+
+		@Override
+		protected void connectionClosed() {
+			System.out.println("Connection Closed");
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+		}
+	}
+
+	// Generates a self-signed certificate for localhost with keytool, and
+	// creates a context that presents it and trusts nothing else.
+	public static SSLContext createSSLContext() throws IOException, InterruptedException, GeneralSecurityException {
+		Path dir = Files.createTempDirectory("tls");
+		File keyStoreFile = dir.resolve("test.p12").toFile();
+		try {
+			Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+					"-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+					"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+					"-keystore", keyStoreFile.getPath(), "-storepass", new String(PASSWORD)).inheritIO().start();
+			if (keytool.waitFor() != 0) {
+				throw new IOException("keytool failed with exit code " + keytool.exitValue());
+			}
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			try (InputStream in = new FileInputStream(keyStoreFile)) {
+				keyStore.load(in, PASSWORD);
+			}
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, PASSWORD);
+
+			KeyStore trustStore = KeyStore.getInstance("PKCS12");
+			trustStore.load(null, null);
+			trustStore.setCertificateEntry(ALIAS, keyStore.getCertificate(ALIAS));
+			TrustManagerFactory trustManagers = TrustManagerFactory
+					.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(trustStore);
+
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+			return sslContext;
+		} finally {
+			keyStoreFile.delete();
+			dir.toFile().delete();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		SSLContext sslContext = createSSLContext();
+
+		EchoServer server = new EchoServer();
+		server.setSSLContext(sslContext);
+		server.start();
+
+		EchoClient client = new EchoClient();
+		client.setSSLContext(sslContext);
+		client.openConnection();
+		client.sendToServer("Hello over TLS.");
+
+		boolean passed = replied.await(10, TimeUnit.SECONDS) && "Hello over TLS.".equals(reply);
+		System.out.println("Server: " + reply);
+		System.out.println(passed ? "Passed." : "Failed.");
+
+		client.closeConnection();
+		server.stop();
+	}
+}
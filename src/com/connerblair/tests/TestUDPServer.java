@@ -1,10 +1,10 @@
 package com.connerblair.tests;
 
 import java.net.DatagramPacket;
-import java.net.InetAddress;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.connerblair.udp.UDPConnector;
+import com.connerblair.udp.UDPPeer;
 
 public class TestUDPServer extends UDPConnector {
     private static int port = 4435;
@@ -27,15 +27,30 @@ public class TestUDPServer extends UDPConnector {
 
     @Override
     public synchronized void handlePacketReceived(DatagramPacket packet) {
-        String msg = new String(packet.getData()).trim();
+        System.out.println("Unexpected packet without a peer.");
+    }
+
+    @Override
+    protected synchronized void handlePacketReceived(UDPPeer peer, DatagramPacket packet) {
+        String msg = new String(packet.getData(), packet.getOffset(), packet.getLength()).trim();
 
-        System.out.println("From client: " + msg);
+        System.out.println("From client " + peer + ": " + msg);
 
         if (msg.equalsIgnoreCase("ping")) {
-            responses.offer(new Packet(packet.getAddress(), packet.getPort(), "pong"));
+            responses.offer(new Packet(peer, "pong"));
         }
     }
 
+    @Override
+    protected void peerConnected(UDPPeer peer) {
+        System.out.println("Peer connected: " + peer);
+    }
+
+    @Override
+    protected void peerTimedOut(UDPPeer peer) {
+        System.out.println("Peer timed out: " + peer + " after " + peer.getPacketsReceived() + " packets.");
+    }
+
     @Override
     public synchronized DatagramPacket createPacketToSend() {
         Packet nextResponse = responses.poll();
@@ -45,7 +60,7 @@ public class TestUDPServer extends UDPConnector {
 
         byte[] data = nextResponse.Message.getBytes();
 
-        return new DatagramPacket(data, data.length, nextResponse.Address, nextResponse.Port);
+        return nextResponse.Peer.createPacket(data, data.length);
     }
 
     public static void main(String[] args) {
@@ -79,13 +94,11 @@ public class TestUDPServer extends UDPConnector {
     }
 
     private class Packet {
-        public InetAddress Address;
-        public int Port;
+        public UDPPeer Peer;
         public String Message;
 
-        public Packet(InetAddress address, int port, String message) {
-            Address = address;
-            Port = port;
+        public Packet(UDPPeer peer, String message) {
+            Peer = peer;
             Message = message;
         }
     }
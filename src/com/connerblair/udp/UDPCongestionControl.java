@@ -0,0 +1,242 @@
+package com.connerblair.udp;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the rate packets are sent to one peer from the feedback the peer
+ * gives. <br>
+ * The connector has no acknowledgements of its own, so the protocol built on
+ * it reports each acknowledgement with its round trip time, and each loss it
+ * detects. The rate then grows by about one segment per round trip, as TCP's
+ * window does, and halves at most once per round trip on loss. In
+ * {@link Mode#DELAY} mode the growth is scaled by how far the queuing delay,
+ * the round trip time above the lowest seen, is below the target delay, and
+ * turns into a decrease in proportion to how far it is above, so the rate
+ * backs off before the bottleneck queue overflows. <br>
+ * A control is attached to a peer with
+ * {@link UDPConnector#setCongestionControl(UDPPeer, UDPCongestionControl)},
+ * and packets to the peer are then paced to its rate. It is thread safe.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class UDPCongestionControl {
+	public static final long DEF_INITIAL_RATE = 1024 * 1024;
+	public static final long DEF_MIN_RATE = 16 * 1024;
+	public static final long DEF_MAX_RATE = 1024L * 1024 * 1024;
+	public static final int DEF_SEGMENT_SIZE = 1200;
+	public static final Duration DEF_TARGET_DELAY = Duration.ofMillis(25);
+
+	private static final double SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// Round trip times below this are treated as this, so the growth per
+	// acknowledgement stays bounded on a local network.
+	private static final long MIN_RTT = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * The signals the rate is adjusted by.
+	 */
+	public enum Mode {
+		/** Grow until packets are lost. */
+		LOSS,
+		/** Grow while the queuing delay is below the target, and on loss. */
+		DELAY
+	}
+
+	private final Mode mode;
+	private final long minRate;
+	private final long maxRate;
+	private final UDPPacer pacer;
+
+	private int segmentSize = DEF_SEGMENT_SIZE;
+	private long targetDelay = DEF_TARGET_DELAY.toNanos();
+
+	private double rate;
+	private long smoothedRtt = 0;
+	private long lowestRtt = Long.MAX_VALUE;
+	private long lastDecrease;
+
+	/**
+	 * Creates a new instance of the UDPCongestionControl class, with the
+	 * specified mode and the default rates.
+	 *
+	 * @param mode
+	 *            The signals the rate is adjusted by.
+	 */
+	public UDPCongestionControl(Mode mode) {
+		this(mode, DEF_INITIAL_RATE, DEF_MIN_RATE, DEF_MAX_RATE);
+	}
+
+	/**
+	 * Creates a new instance of the UDPCongestionControl class, with the
+	 * specified mode and rates.
+	 *
+	 * @param mode
+	 *            The signals the rate is adjusted by.
+	 * @param initialRate
+	 *            The rate to start at, in bytes per second.
+	 * @param minRate
+	 *            The lowest rate, in bytes per second.
+	 * @param maxRate
+	 *            The highest rate, in bytes per second.
+	 */
+	public UDPCongestionControl(Mode mode, long initialRate, long minRate, long maxRate) {
+		if (minRate <= 0 || maxRate < minRate) {
+			throw new IllegalArgumentException("The rates must be positive, and the highest at least the lowest.");
+		}
+
+		this.mode = mode;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.rate = Math.min(maxRate, Math.max(minRate, initialRate));
+		this.pacer = new UDPPacer((long) rate, 4 * DEF_SEGMENT_SIZE);
+		this.lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * Accessor method for the signals the rate is adjusted by.
+	 *
+	 * @return {@linkplain Mode} The mode of the control.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Accessor method for the rate packets are sent at.
+	 *
+	 * @return long The rate in bytes per second.
+	 */
+	public synchronized long getRate() {
+		return (long) rate;
+	}
+
+	/**
+	 * Accessor method for the smoothed round trip time.
+	 *
+	 * @return {@linkplain Duration} The round trip time, or zero before the
+	 *         first acknowledgement.
+	 */
+	public synchronized Duration getSmoothedRtt() {
+		return Duration.ofNanos(smoothedRtt);
+	}
+
+	/**
+	 * Accessor method for the size of a segment, which the rate grows by per
+	 * round trip.
+	 *
+	 * @return int The segment size in bytes.
+	 */
+	public synchronized int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Mutator method for the size of a segment, which the rate grows by per
+	 * round trip. It should be about the size of the packets sent.
+	 *
+	 * @param segmentSize
+	 *            The new segment size in bytes.
+	 */
+	public synchronized void setSegmentSize(int segmentSize) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("The segment size must be positive. Value: " + segmentSize);
+		}
+
+		this.segmentSize = segmentSize;
+		pacer.setBurst(4 * segmentSize);
+	}
+
+	/**
+	 * Accessor method for the queuing delay aimed for in
+	 * {@link Mode#DELAY} mode.
+	 *
+	 * @return {@linkplain Duration} The target delay.
+	 */
+	public synchronized Duration getTargetDelay() {
+		return Duration.ofNanos(targetDelay);
+	}
+
+	/**
+	 * Mutator method for the queuing delay aimed for in
+	 * {@link Mode#DELAY} mode.
+	 *
+	 * @param targetDelay
+	 *            The new target delay.
+	 */
+	public synchronized void setTargetDelay(Duration targetDelay) {
+		if (targetDelay == null || targetDelay.isNegative() || targetDelay.isZero()) {
+			throw new IllegalArgumentException("The target delay must be positive.");
+		}
+
+		this.targetDelay = targetDelay.toNanos();
+	}
+
+	/**
+	 * Reports that the peer acknowledged data.
+	 *
+	 * @param bytes
+	 *            The number of bytes acknowledged.
+	 * @param rtt
+	 *            The round trip time of the acknowledged data, in
+	 *            nanoseconds.
+	 */
+	public synchronized void onAck(int bytes, long rtt) {
+		rtt = Math.max(MIN_RTT, rtt);
+		smoothedRtt = smoothedRtt == 0 ? rtt : (7 * smoothedRtt + rtt) / 8;
+		lowestRtt = Math.min(lowestRtt, rtt);
+
+		// Growing by a segment per round trip means each byte acknowledged
+		// adds its share of a segment per round trip to the rate.
+		double seconds = smoothedRtt / SECOND;
+		double growth = bytes * (double) segmentSize / (rate * seconds * seconds);
+
+		if (mode == Mode.DELAY) {
+			double queuing = rtt - lowestRtt;
+			if (queuing <= targetDelay) {
+				growth *= (targetDelay - queuing) / targetDelay;
+			} else {
+				// Above the target the rate falls by a share of itself per
+				// round trip, up to half at twice the target, as a fixed
+				// decrease would let the queue swing past the target.
+				double excess = Math.min(1, (queuing - targetDelay) / targetDelay);
+				growth = -excess / 2 * bytes / seconds;
+			}
+		}
+
+		update(rate + growth);
+	}
+
+	/**
+	 * Reports that the peer lost data. The rate is halved, unless it was
+	 * already halved within the last round trip, since losses from one burst
+	 * usually show up together.
+	 */
+	public synchronized void onLoss() {
+		long now = System.nanoTime();
+		if (now - lastDecrease < smoothedRtt) {
+			return;
+		}
+
+		lastDecrease = now;
+		update(rate / 2);
+	}
+
+	/**
+	 * Accessor for the pacer of the peer.
+	 *
+	 * @return {@linkplain UDPPacer} The pacer that spaces packets to the rate.
+	 */
+	UDPPacer getPacer() {
+		return pacer;
+	}
+
+	/**
+	 * Sets the rate within its bounds, and passes it to the pacer.
+	 */
+	private void update(double rate) {
+		this.rate = Math.min(maxRate, Math.max(minRate, rate));
+		pacer.setRate((long) this.rate);
+	}
+}
@@ -1,10 +1,21 @@
 package com.connerblair.udp;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
 
 import com.connerblair.exceptions.ConnectionException;
 
@@ -16,18 +27,65 @@ import com.connerblair.exceptions.ConnectionException;
  */
 public abstract class UDPConnector {
 	public static final int DEF_PORT = -1;
+	public static final Duration DEF_PEER_TIMEOUT = Duration.ofSeconds(30);
+	public static final int DEF_TIME_TO_LIVE = 1;
+	public static final int DEF_RECEIVE_BUFFER_SIZE = 0;
+	public static final long DEF_SEND_RATE = 0;
+	public static final int DEF_SEND_BURST = 64 * 1024;
+	public static final int DEF_REPLAY_WINDOW_SIZE = 1024;
+
+	private static final long MIN_SWEEP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MAX_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final long SENDER_IDLE = TimeUnit.MILLISECONDS.toNanos(100);
 
 	private int port;
 	private InetAddress addr;
 
+	// Only the receiver thread uses the peer table.
+	private final UDPPeerTable peers = new UDPPeerTable();
+	private volatile int peerCount = 0;
+	private int replayWindowSize = DEF_REPLAY_WINDOW_SIZE;
+	private volatile long duplicates = 0;
+	private volatile long outOfWindow = 0;
+	private Duration peerTimeout = DEF_PEER_TIMEOUT;
+	private long lastSweep;
+
+	// Packets are paced to the send rate, and to the rate of their peer if it
+	// has a congestion control. The peers with one are kept in a table that is
+	// replaced on change, so the sender thread can read it without locking.
+	private final UDPPacer pacer = new UDPPacer(DEF_SEND_RATE, DEF_SEND_BURST);
+	private final Object controlLock = new Object();
+	private volatile UDPPeerTable controlled;
+
 	private DatagramSocket socket;
+	private int receiveBufferSize = DEF_RECEIVE_BUFFER_SIZE;
+
+	// Packets with checksums are copied into the send buffer, which only the
+	// sender thread uses, as are the send checksum and packet. Likewise the
+	// receive checksum is only used by the receiver thread.
+	private boolean checksums = false;
+	private volatile long corruptPackets = 0;
+	private final CRC32C sendChecksum = new CRC32C();
+	private final CRC32C receiveChecksum = new CRC32C();
+	private byte[] sendBuffer = new byte[0];
+	private final DatagramPacket checksummedPacket = new DatagramPacket(sendBuffer, 0);
+
+	private boolean multicast = false;
+	private NetworkInterface multicastInterface;
+	private int timeToLive = DEF_TIME_TO_LIVE;
+	private boolean multicastLoopback = true;
+
+	// The groups to be in, and the socket that is in them while running, both
+	// guarded by the set.
+	private final Set<InetAddress> groups = new HashSet<InetAddress>();
+	private MulticastSocket groupSocket;
 
 	private final Object receiverLock = new Object();
 	private final Object senderLock = new Object();
 	private boolean receiverThreadRunning = false;
 	private boolean senderThreadRunning = false;
 	private UDPConnectorSocketReceiverThread receiverThread;
-	private UDPConnectorSocketSenderThread senderThread;
+	private volatile UDPConnectorSocketSenderThread senderThread;
 
 	/**
 	 * Creates a new instance of the UPDConnector class, with the default port.
@@ -106,6 +164,14 @@ public abstract class UDPConnector {
 			senderThreadRunning = false;
 		}
 
+		// Close the socket first, so the receiver thread is woken from any
+		// blocking receive. Closing it leaves every group.
+		synchronized (groups) {
+			groupSocket = null;
+		}
+		socket.close();
+		wakeSender();
+
 		// Join the two threads.
 		try {
 			receiverThread.join();
@@ -119,8 +185,15 @@ public abstract class UDPConnector {
 			handleException(e);
 		}
 
-		// Close the socket.
-		socket.close();
+		// Forget the peers, so a restarted connector hears from them anew.
+		synchronized (controlLock) {
+			controlled = null;
+		}
+		peers.clear(peer -> {
+			peer.setCongestionControl(null);
+			peerForgotten(peer);
+		});
+		peerCount = 0;
 
 		// Call the stopped hook methods.
 		receiverStopped();
@@ -190,6 +263,477 @@ public abstract class UDPConnector {
 		}
 	}
 
+	/**
+	 * Accessor method for how long a peer may send nothing before it is
+	 * forgotten.
+	 * 
+	 * @return {@linkplain Duration} The peer timeout, or zero if peers are
+	 *         never forgotten.
+	 */
+	public final Duration getPeerTimeout() {
+		return peerTimeout;
+	}
+
+	/**
+	 * Mutator method for how long a peer may send nothing before it is
+	 * forgotten and the peer timed out hook method is called. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param peerTimeout
+	 *            The new peer timeout, or zero to never forget peers.
+	 */
+	public final void setPeerTimeout(Duration peerTimeout) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change peer timeout while server is running."));
+		} else if (peerTimeout == null || peerTimeout.isNegative()) {
+			handleException(new ConnectionException("The peer timeout must not be negative."));
+		} else {
+			this.peerTimeout = peerTimeout;
+		}
+	}
+
+	/**
+	 * Accessor method for the rate the connector sends at.
+	 * 
+	 * @return long The send rate in bytes per second, or 0 for no limit.
+	 */
+	public final long getSendRate() {
+		return pacer.getRate();
+	}
+
+	/**
+	 * Mutator method for the rate the connector sends at. <br>
+	 * Packets are spaced out so that, after the first burst, no more than this
+	 * many bytes are sent in any second, which keeps bursts from overflowing
+	 * the receivers' buffers. It may be changed while the connector is
+	 * running, and applies from the next packet.
+	 * 
+	 * @param sendRate
+	 *            The new send rate in bytes per second, or 0 for no limit.
+	 */
+	public final void setSendRate(long sendRate) {
+		if (sendRate < 0) {
+			handleException(new ConnectionException("The send rate must not be negative. Value: " + sendRate));
+		} else {
+			pacer.setRate(sendRate);
+		}
+	}
+
+	/**
+	 * Accessor method for the number of bytes that may be sent at once by a
+	 * connector that has been idle.
+	 * 
+	 * @return int The send burst in bytes.
+	 */
+	public final int getSendBurst() {
+		return pacer.getBurst();
+	}
+
+	/**
+	 * Mutator method for the number of bytes that may be sent at once by a
+	 * connector that has been idle, before the send rate applies. It may be
+	 * changed while the connector is running.
+	 * 
+	 * @param sendBurst
+	 *            The new send burst in bytes.
+	 */
+	public final void setSendBurst(int sendBurst) {
+		if (sendBurst < 0) {
+			handleException(new ConnectionException("The send burst must not be negative. Value: " + sendBurst));
+		} else {
+			pacer.setBurst(sendBurst);
+		}
+	}
+
+	/**
+	 * Attaches a congestion control to a peer, so packets to the peer are
+	 * paced to the rate it sets as well as to the send rate. <br>
+	 * A packet that must wait for its peer's rate holds back the packets
+	 * after it, since they are sent in order. The control is dropped when the
+	 * peer is forgotten.
+	 * 
+	 * @param peer
+	 *            The peer to control the sending to.
+	 * @param congestionControl
+	 *            The congestion control, or null to stop pacing the peer on
+	 *            its own.
+	 */
+	public final void setCongestionControl(UDPPeer peer, UDPCongestionControl congestionControl) {
+		synchronized (controlLock) {
+			UDPPeerTable controlled = this.controlled == null ? new UDPPeerTable() : this.controlled.copy();
+			controlled.remove(peer.getAddress(), peer.getPort());
+			if (congestionControl != null) {
+				controlled.add(peer);
+			}
+
+			peer.setCongestionControl(congestionControl);
+			this.controlled = controlled.size() == 0 ? null : controlled;
+		}
+	}
+
+	/**
+	 * Accessor method for the size of the socket's receive buffer.
+	 * 
+	 * @return int The receive buffer size in bytes, or 0 for the system
+	 *         default.
+	 */
+	public final int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Mutator method for the size of the socket's receive buffer. Packets that
+	 * arrive while the buffer is full are dropped, so a larger buffer rides
+	 * out longer bursts. The system may cap the size. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param receiveBufferSize
+	 *            The new receive buffer size in bytes, or 0 for the system
+	 *            default.
+	 */
+	public final void setReceiveBufferSize(int receiveBufferSize) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change receive buffer size while server is running."));
+		} else if (receiveBufferSize < 0) {
+			handleException(new ConnectionException("The receive buffer size must not be negative. Value: " + receiveBufferSize));
+		} else {
+			this.receiveBufferSize = receiveBufferSize;
+		}
+	}
+
+	/**
+	 * Accessor method to see if the connector adds a checksum to the packets
+	 * it sends, and checks those it receives.
+	 * 
+	 * @return boolean True if packets carry checksums, false if not.
+	 */
+	public final boolean isChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Mutator method for whether the connector adds a CRC32C checksum to the
+	 * end of the packets it sends, and checks those it receives. <br>
+	 * A received packet that does not match its checksum is dropped before it
+	 * is handled, and the checksum is removed from those that do, so the hook
+	 * methods see the packets as they were sent. Both ends must use
+	 * checksums. The checksum takes four bytes of each packet. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param checksums
+	 *            True to use checksums, false to not.
+	 */
+	public final void setChecksums(boolean checksums) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change checksums while server is running."));
+		} else {
+			this.checksums = checksums;
+		}
+	}
+
+	/**
+	 * Accessor method for the number of packets dropped because they did not
+	 * match their checksum.
+	 * 
+	 * @return long The number of corrupt packets.
+	 */
+	public final long getCorruptPackets() {
+		return corruptPackets;
+	}
+
+	/**
+	 * Accessor method to see if the connector uses a multicast socket.
+	 * 
+	 * @return boolean True if the connector can join multicast groups, false
+	 *         if not.
+	 */
+	public final boolean isMulticast() {
+		return multicast;
+	}
+
+	/**
+	 * Mutator method for whether the connector uses a multicast socket, so it
+	 * can join multicast groups. <br>
+	 * A socket bound to one address, loopback included, neither receives
+	 * from groups nor sends to them on other interfaces, so a multicast
+	 * connector should have its address set to null. If the connector is not
+	 * stopped, this call will have no effect.
+	 * 
+	 * @param multicast
+	 *            True to use a multicast socket, false to use a plain one.
+	 */
+	public final void setMulticast(boolean multicast) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change multicast while server is running."));
+		} else {
+			this.multicast = multicast;
+		}
+	}
+
+	/**
+	 * Accessor method for the network interface multicast packets are sent
+	 * and groups are joined on.
+	 * 
+	 * @return {@linkplain NetworkInterface} The multicast interface, or null
+	 *         if the system chooses.
+	 */
+	public final NetworkInterface getMulticastInterface() {
+		return multicastInterface;
+	}
+
+	/**
+	 * Mutator method for the network interface multicast packets are sent
+	 * and groups are joined on. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param name
+	 *            The name of the new multicast interface, such as "lo" or
+	 *            "eth0".
+	 */
+	public final void setMulticastInterface(String name) {
+		try {
+			NetworkInterface multicastInterface = NetworkInterface.getByName(name);
+			if (multicastInterface == null) {
+				handleException(new ConnectionException("Network interface could not be found. Name: " + name));
+				return;
+			}
+
+			setMulticastInterface(multicastInterface);
+		} catch (SocketException e) {
+			handleException(new ConnectionException("Network interface could not be found. Name: " + name, e));
+		}
+	}
+
+	/**
+	 * Mutator method for the network interface multicast packets are sent
+	 * and groups are joined on. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param multicastInterface
+	 *            The new multicast interface, or null to let the system
+	 *            choose.
+	 */
+	public final void setMulticastInterface(NetworkInterface multicastInterface) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change multicast interface while server is running."));
+		} else {
+			this.multicastInterface = multicastInterface;
+		}
+	}
+
+	/**
+	 * Accessor method for the number of router hops multicast packets may
+	 * take.
+	 * 
+	 * @return int The time to live of multicast packets.
+	 */
+	public final int getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Mutator method for the number of router hops multicast packets may
+	 * take. Zero keeps them on this host, and one on the local network. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param timeToLive
+	 *            The new time to live, from 0 to 255.
+	 */
+	public final void setTimeToLive(int timeToLive) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change time to live while server is running."));
+		} else if (timeToLive < 0 || timeToLive > 255) {
+			handleException(new ConnectionException("The time to live must be from 0 to 255. Value: " + timeToLive));
+		} else {
+			this.timeToLive = timeToLive;
+		}
+	}
+
+	/**
+	 * Accessor method to see if multicast packets sent by the connector are
+	 * looped back to groups joined on this host.
+	 * 
+	 * @return boolean True if multicast packets are looped back, false if not.
+	 */
+	public final boolean isMulticastLoopback() {
+		return multicastLoopback;
+	}
+
+	/**
+	 * Mutator method for whether multicast packets sent by the connector are
+	 * looped back to groups joined on this host. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param multicastLoopback
+	 *            True to loop packets back, false to not.
+	 */
+	public final void setMulticastLoopback(boolean multicastLoopback) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change multicast loopback while server is running."));
+		} else {
+			this.multicastLoopback = multicastLoopback;
+		}
+	}
+
+	/**
+	 * Joins a multicast group, so the connector receives the packets sent to
+	 * it. <br>
+	 * A group joined while the connector is stopped is joined when it starts,
+	 * and a connector that is restarted joins its groups again.
+	 * 
+	 * @param group
+	 *            The address of the group to join.
+	 */
+	public final void joinGroup(String group) {
+		try {
+			joinGroup(InetAddress.getByName(group));
+		} catch (UnknownHostException e) {
+			handleException(new ConnectionException("Host name could not be resolved. Name: " + group, e));
+		}
+	}
+
+	/**
+	 * Joins a multicast group, so the connector receives the packets sent to
+	 * it. <br>
+	 * A group joined while the connector is stopped is joined when it starts,
+	 * and a connector that is restarted joins its groups again.
+	 * 
+	 * @param group
+	 *            The address of the group to join.
+	 */
+	public final void joinGroup(InetAddress group) {
+		if (!multicast) {
+			handleException(new ConnectionException("Cannot join a group without a multicast socket."));
+			return;
+		}
+		if (!group.isMulticastAddress()) {
+			handleException(new ConnectionException("The address is not a multicast address. Address: " + group));
+			return;
+		}
+
+		synchronized (groups) {
+			if (!groups.add(group) || groupSocket == null) {
+				return;
+			}
+
+			try {
+				groupSocket.joinGroup(new InetSocketAddress(group, 0), multicastInterface);
+			} catch (IOException e) {
+				groups.remove(group);
+				handleException(new ConnectionException("Could not join the multicast group. Group: " + group, e));
+			}
+		}
+	}
+
+	/**
+	 * Leaves a multicast group.
+	 * 
+	 * @param group
+	 *            The address of the group to leave.
+	 */
+	public final void leaveGroup(String group) {
+		try {
+			leaveGroup(InetAddress.getByName(group));
+		} catch (UnknownHostException e) {
+			handleException(new ConnectionException("Host name could not be resolved. Name: " + group, e));
+		}
+	}
+
+	/**
+	 * Leaves a multicast group.
+	 * 
+	 * @param group
+	 *            The address of the group to leave.
+	 */
+	public final void leaveGroup(InetAddress group) {
+		synchronized (groups) {
+			if (!groups.remove(group) || groupSocket == null) {
+				return;
+			}
+
+			try {
+				groupSocket.leaveGroup(new InetSocketAddress(group, 0), multicastInterface);
+			} catch (IOException e) {
+				handleException(new ConnectionException("Could not leave the multicast group. Group: " + group, e));
+			}
+		}
+	}
+
+	/**
+	 * Accessor method for the multicast groups the connector is in, or will
+	 * join when it starts.
+	 * 
+	 * @return {@linkplain Set} A copy of the groups of the connector.
+	 */
+	public final Set<InetAddress> getGroups() {
+		synchronized (groups) {
+			return new HashSet<InetAddress>(groups);
+		}
+	}
+
+	/**
+	 * Accessor method for the number of peers the connector has heard from
+	 * and not yet forgotten.
+	 * 
+	 * @return int The number of peers.
+	 */
+	public final int getPeerCount() {
+		return peerCount;
+	}
+
+	/**
+	 * Accessor method for the number of sequence numbers below the highest
+	 * received from a peer that are checked for duplicates.
+	 * 
+	 * @return int The size of the replay window.
+	 */
+	public final int getReplayWindowSize() {
+		return replayWindowSize;
+	}
+
+	/**
+	 * Mutator method for the number of sequence numbers below the highest
+	 * received from a peer that are checked for duplicates. A packet further
+	 * behind than this is dropped, since it cannot be told from a replay, so
+	 * the window should cover the reordering and retransmission delay of the
+	 * protocol. It takes one bit per sequence number for each peer. <br>
+	 * If the connector is not stopped, this call will have no effect.
+	 * 
+	 * @param replayWindowSize
+	 *            The new size of the replay window.
+	 */
+	public final void setReplayWindowSize(int replayWindowSize) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change replay window size while server is running."));
+		} else if (replayWindowSize < 1 || replayWindowSize > 1 << 24) {
+			handleException(new ConnectionException("The replay window size must be between 1 and " + (1 << 24)
+					+ ". Value: " + replayWindowSize));
+		} else {
+			this.replayWindowSize = replayWindowSize;
+		}
+	}
+
+	/**
+	 * Accessor method for the number of packets dropped because their
+	 * sequence number was already received from their peer.
+	 * 
+	 * @return long The number of duplicates.
+	 */
+	public final long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Accessor method for the number of packets dropped because their
+	 * sequence number was too far behind the highest received from their
+	 * peer to tell if it was a duplicate.
+	 * 
+	 * @return long The number of packets out of the window.
+	 */
+	public final long getOutOfWindow() {
+		return outOfWindow;
+	}
+
 	/**
 	 * Accessor method to see if the connector is running.
 	 * 
@@ -240,6 +784,208 @@ public abstract class UDPConnector {
 		}
 	}
 
+	/**
+	 * Finds or creates the peer a packet came from, drops the packet if its
+	 * sequence number was already received, and otherwise passes it to the
+	 * packet received hook method. Only the receiver thread calls this.
+	 * 
+	 * @param packet
+	 *            The packet received.
+	 */
+	void packetReceived(DatagramPacket packet) {
+		if (checksums && !removeChecksum(packet)) {
+			corruptPackets++;
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		UDPPeer peer = peers.get(packet.getAddress(), packet.getPort());
+		if (peer == null) {
+			peer = new UDPPeer(packet.getAddress(), packet.getPort(), now);
+			peers.add(peer);
+			peerCount = peers.size();
+			peerConnected(peer);
+		}
+		peer.received(now);
+
+		long sequence = getSequenceNumber(packet);
+		int check = sequence < 0 ? UDPReplayWindow.ACCEPTED : peer.checkSequence(sequence, replayWindowSize);
+		if (check == UDPReplayWindow.ACCEPTED) {
+			handlePacketReceived(peer, packet);
+		} else if (check == UDPReplayWindow.DUPLICATE) {
+			duplicates++;
+		} else {
+			outOfWindow++;
+		}
+
+		sweepPeers(now);
+	}
+
+	/**
+	 * Forgets every peer that has sent nothing for the peer timeout, if the
+	 * peers have not been checked recently. Only the receiver thread calls
+	 * this.
+	 * 
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 */
+	void sweepPeers(long now) {
+		long timeout = peerTimeout.toNanos();
+		if (timeout == 0 || now - lastSweep < sweepInterval(timeout)) {
+			return;
+		}
+		lastSweep = now;
+
+		peers.removeIdle(now - timeout, peer -> {
+			releaseCongestionControl(peer);
+			peerForgotten(peer);
+			peerTimedOut(peer);
+		});
+		peerCount = peers.size();
+	}
+
+	/**
+	 * Adds a checksum to a packet about to be sent, if the connector uses
+	 * checksums. The packet is copied, along with its checksum, into a buffer
+	 * that is kept for the next packet, so nothing is allocated once the
+	 * buffer has grown to the largest packet. Only the sender thread calls
+	 * this.
+	 * 
+	 * @param packet
+	 *            The packet to send.
+	 * @return {@linkplain DatagramPacket} The packet to send in its place,
+	 *         which is only valid until the next call.
+	 */
+	DatagramPacket addChecksum(DatagramPacket packet) {
+		if (!checksums) {
+			return packet;
+		}
+
+		int length = packet.getLength();
+		if (sendBuffer.length < length + 4) {
+			sendBuffer = new byte[Math.max(length + 4, 2 * sendBuffer.length)];
+		}
+		System.arraycopy(packet.getData(), packet.getOffset(), sendBuffer, 0, length);
+
+		sendChecksum.reset();
+		sendChecksum.update(sendBuffer, 0, length);
+		int crc = (int) sendChecksum.getValue();
+		sendBuffer[length] = (byte) (crc >>> 24);
+		sendBuffer[length + 1] = (byte) (crc >>> 16);
+		sendBuffer[length + 2] = (byte) (crc >>> 8);
+		sendBuffer[length + 3] = (byte) crc;
+
+		checksummedPacket.setData(sendBuffer, 0, length + 4);
+		checksummedPacket.setAddress(packet.getAddress());
+		checksummedPacket.setPort(packet.getPort());
+		return checksummedPacket;
+	}
+
+	/**
+	 * Checks a received packet against the checksum at its end, and removes
+	 * the checksum. Only the receiver thread calls this.
+	 * 
+	 * @param packet
+	 *            The packet received.
+	 * @return boolean True if the packet matches its checksum, false if it
+	 *         is corrupt.
+	 */
+	private boolean removeChecksum(DatagramPacket packet) {
+		int length = packet.getLength() - 4;
+		if (length < 0) {
+			return false;
+		}
+
+		byte[] data = packet.getData();
+		int end = packet.getOffset() + length;
+		int expected = (data[end] & 0xFF) << 24 | (data[end + 1] & 0xFF) << 16 | (data[end + 2] & 0xFF) << 8
+				| (data[end + 3] & 0xFF);
+
+		receiveChecksum.reset();
+		receiveChecksum.update(data, packet.getOffset(), length);
+		if ((int) receiveChecksum.getValue() != expected) {
+			return false;
+		}
+
+		packet.setLength(length);
+		return true;
+	}
+
+	/**
+	 * Reserves the sending of a packet with the pacers, and finds when it may
+	 * be sent. Only the sender thread calls this.
+	 * 
+	 * @param packet
+	 *            The packet to send.
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return long The {@link System#nanoTime()} at which the packet may be
+	 *         sent.
+	 */
+	long reserveSend(DatagramPacket packet, long now) {
+		long release = pacer.reserve(packet.getLength(), now);
+
+		UDPPeerTable controlled = this.controlled;
+		if (controlled != null) {
+			UDPPeer peer = controlled.get(packet.getAddress(), packet.getPort());
+			UDPCongestionControl congestionControl = peer == null ? null : peer.getCongestionControl();
+			if (congestionControl != null) {
+				long own = congestionControl.getPacer().reserve(packet.getLength(), now);
+				if (own - release > 0) {
+					release = own;
+				}
+			}
+		}
+
+		return release;
+	}
+
+	/**
+	 * Drops the congestion control of a peer that is forgotten.
+	 * 
+	 * @param peer
+	 *            The peer forgotten.
+	 */
+	private void releaseCongestionControl(UDPPeer peer) {
+		if (peer.getCongestionControl() != null) {
+			setCongestionControl(peer, null);
+		}
+	}
+
+	/**
+	 * Wakes the sender thread if it is waiting because there was nothing to
+	 * send, so it asks for a packet again at once.
+	 */
+	void wakeSender() {
+		Thread waiting = senderThread;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * Slot method called when there was nothing to send, for how long the
+	 * sender thread may wait before asking for a packet again. Subclasses in
+	 * this package override it to wake for their own timers.
+	 * 
+	 * @return long The longest wait in nanoseconds.
+	 */
+	long senderIdleNanos() {
+		return SENDER_IDLE;
+	}
+
+	/**
+	 * Hook method called when a peer is forgotten, because it timed out or
+	 * the connector stopped. Subclasses in this package override it to drop
+	 * what they keep for the peer.
+	 * 
+	 * @param peer
+	 *            The peer forgotten.
+	 */
+	void peerForgotten(UDPPeer peer) {
+	}
+
 	/**
 	 * Accessor method for the receiver lock object.
 	 * 
@@ -273,6 +1019,63 @@ public abstract class UDPConnector {
 	 */
 	protected abstract void handlePacketReceived(DatagramPacket packet);
 
+	/**
+	 * Hook method called when the connector receives a packet, with the peer
+	 * that sent it. <br>
+	 * The default implementation calls the packet received hook method
+	 * without the peer.
+	 * 
+	 * @param peer
+	 *            The peer that sent the packet.
+	 * @param packet
+	 *            The packet received.
+	 */
+	protected void handlePacketReceived(UDPPeer peer, DatagramPacket packet) {
+		handlePacketReceived(packet);
+	}
+
+	/**
+	 * Hook method called to find the sequence number of a received packet,
+	 * before it is handled. <br>
+	 * A packet whose sequence number was already received from its peer is
+	 * dropped as a duplicate, as is one too far behind the highest received
+	 * to tell, so retransmitted and duplicated packets are handled once.
+	 * Sequence numbers are checked per peer, and should rise with each packet
+	 * a peer sends; a peer that starts its numbers again is only heard once
+	 * it has been forgotten. <br>
+	 * The default implementation returns -1, so no packet is dropped.
+	 * 
+	 * @param packet
+	 *            The packet received.
+	 * @return long The sequence number of the packet, or -1 if it has none
+	 *         and should always be handled.
+	 */
+	protected long getSequenceNumber(DatagramPacket packet) {
+		return -1;
+	}
+
+	/**
+	 * Hook method called when the connector receives the first packet from a
+	 * peer, before the packet is handled. <br>
+	 * The default implementation does nothing.
+	 * 
+	 * @param peer
+	 *            The new peer.
+	 */
+	protected void peerConnected(UDPPeer peer) {
+	}
+
+	/**
+	 * Hook method called when a peer has sent nothing for the peer timeout
+	 * and is forgotten. A later packet from it makes a new peer. <br>
+	 * The default implementation does nothing.
+	 * 
+	 * @param peer
+	 *            The peer forgotten.
+	 */
+	protected void peerTimedOut(UDPPeer peer) {
+	}
+
 	/**
 	 * Slot method called when the connector needs a byte array to store
 	 * incoming data.
@@ -317,12 +1120,69 @@ public abstract class UDPConnector {
 	 */
 	private boolean initialize() {
 		try {
-			socket = addr == null ? new DatagramSocket(port) : new DatagramSocket(port, addr);
-		} catch (SocketException e) {
+			if (multicast) {
+				socket = createMulticastSocket();
+			} else {
+				socket = addr == null ? new DatagramSocket(port) : new DatagramSocket(port, addr);
+			}
+
+			if (receiveBufferSize > 0) {
+				socket.setReceiveBufferSize(receiveBufferSize);
+			}
+
+			// Wake the receiver thread now and then, so idle peers are
+			// forgotten even when no packets arrive.
+			long timeout = peerTimeout.toNanos();
+			if (timeout > 0) {
+				socket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(sweepInterval(timeout)));
+			}
+		} catch (IOException e) {
+			if (socket != null) {
+				socket.close();
+			}
 			handleException(new ConnectionException("A problem occured while intilizing the socket.", e));
 			return false;
 		}
 
+		lastSweep = System.nanoTime();
 		return true;
 	}
+
+	/**
+	 * Creates a multicast socket with the multicast settings of the
+	 * connector, and joins its groups.
+	 * 
+	 * @return {@linkplain MulticastSocket} The new socket.
+	 * @throws IOException
+	 *             If the socket could not be created or configured, or a group
+	 *             could not be joined.
+	 */
+	private MulticastSocket createMulticastSocket() throws IOException {
+		MulticastSocket multicastSocket = new MulticastSocket(
+				addr == null ? new InetSocketAddress(port) : new InetSocketAddress(addr, port));
+		socket = multicastSocket;
+
+		multicastSocket.setTimeToLive(timeToLive);
+		multicastSocket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, multicastLoopback);
+		if (multicastInterface != null) {
+			multicastSocket.setNetworkInterface(multicastInterface);
+		}
+
+		synchronized (groups) {
+			for (InetAddress group : groups) {
+				multicastSocket.joinGroup(new InetSocketAddress(group, 0), multicastInterface);
+			}
+			groupSocket = multicastSocket;
+		}
+
+		return multicastSocket;
+	}
+
+	/**
+	 * Finds how often the peers are checked for the given timeout: a quarter
+	 * of it, within bounds.
+	 */
+	private static long sweepInterval(long timeout) {
+		return Math.min(MAX_SWEEP_INTERVAL, Math.max(MIN_SWEEP_INTERVAL, timeout / 4));
+	}
 }
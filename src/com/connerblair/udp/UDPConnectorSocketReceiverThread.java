@@ -2,6 +2,7 @@ package com.connerblair.udp;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.SocketTimeoutException;
 
 /**
  * The thread used by the UDPConnector to handle incomming packets.
@@ -39,13 +40,30 @@ class UDPConnectorSocketReceiverThread extends Thread {
 
 		// Receive packet and call packet received hook.
 		while (parentConnector.isReceiverThreadRunning()) {
+			// A received packet shrinks the length to its own, so reset it to
+			// the whole buffer.
+			toReceive.setLength(buf.length);
+
 			try {
 				parentConnector.getSocket().receive(toReceive);
+			} catch (SocketTimeoutException e) {
+				// Nothing arrived, so just check for idle peers.
+				parentConnector.sweepPeers(System.nanoTime());
+				continue;
 			} catch (IOException e) {
-				parentConnector.handleException(e);
+				// A failed receive after the socket was closed is expected.
+				if (parentConnector.isReceiverThreadRunning()) {
+					parentConnector.handleException(e);
+				}
+				continue;
+			}
+
+			// Closing the socket can end a receive without a packet.
+			if (!parentConnector.isReceiverThreadRunning()) {
+				break;
 			}
 
-			parentConnector.handlePacketReceived(toReceive);
+			parentConnector.packetReceived(toReceive);
 		}
 	}
 }
@@ -2,6 +2,8 @@ package com.connerblair.udp;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The thread used by the UDPConnector to handle sending packets.
@@ -10,6 +12,9 @@ import java.net.DatagramPacket;
  * @version 1.0
  */
 class UDPConnectorSocketSenderThread extends Thread {
+	// How long before a packet's release time the thread stops sleeping.
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
 	private UDPConnector parentConnector;
 
 	/**
@@ -38,22 +43,56 @@ class UDPConnectorSocketSenderThread extends Thread {
 			// Get the packet to send as defined by the server.
 			toSend = parentConnector.createPacketToSend();
 
-			// If packet is null, wait 100ms and try again.
+			// If packet is null, wait until woken or for the idle time, and
+			// try again.
 			if (toSend == null) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					parentConnector.handleException(e);
-				}
-
+				LockSupport.parkNanos(this, parentConnector.senderIdleNanos());
 				continue;
 			}
 
+			// Add the checksum, and wait until the packet may be sent at the
+			// send rate.
+			toSend = parentConnector.addChecksum(toSend);
+			if (!awaitRelease(parentConnector.reserveSend(toSend, System.nanoTime()))) {
+				break;
+			}
+
 			// Send the packet.
 			try {
 				parentConnector.getSocket().send(toSend);
 			} catch (IOException e) {
-				parentConnector.handleException(e);
+				// A failed send after the socket was closed is expected.
+				if (parentConnector.isSenderThreadRunning()) {
+					parentConnector.handleException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until the release time of a packet. The thread sleeps for most of
+	 * the wait, and spins for the end of it, since sleeps overshoot by more
+	 * than the gap between packets at high rates.
+	 * 
+	 * @param release
+	 *            The {@link System#nanoTime()} to wait until.
+	 * @return boolean True if the time was reached, false if the connector
+	 *         stopped first.
+	 */
+	private boolean awaitRelease(long release) {
+		while (true) {
+			long wait = release - System.nanoTime();
+			if (wait <= 0) {
+				return true;
+			}
+			if (!parentConnector.isSenderThreadRunning()) {
+				return false;
+			}
+
+			if (wait > SPIN_NANOS) {
+				LockSupport.parkNanos(this, wait - SPIN_NANOS);
+			} else {
+				Thread.onSpinWait();
 			}
 		}
 	}
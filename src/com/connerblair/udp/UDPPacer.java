@@ -0,0 +1,114 @@
+package com.connerblair.udp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces packets out to a rate, allowing a burst. <br>
+ * The pacer keeps the time at which everything reserved so far would have
+ * been sent at the rate. A packet may go as soon as that time is no more than
+ * the burst ahead of now, and moves it on by the packet's share of a second.
+ * Release times are kept in nanoseconds with the remainder carried over, so
+ * the rate holds exactly over time however coarsely the sender thread sleeps.
+ * <br>
+ * Only the sender thread reserves, but the rate may be changed from any
+ * thread.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class UDPPacer {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private volatile long rate;
+	private volatile int burst;
+
+	private long due;
+	private long remainder = 0;
+
+	/**
+	 * Creates a new instance of the UDPPacer class, with the specified rate
+	 * and burst.
+	 *
+	 * @param rate
+	 *            The rate in bytes per second, or 0 for no limit.
+	 * @param burst
+	 *            The number of bytes that may be sent at once.
+	 */
+	UDPPacer(long rate, int burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.due = System.nanoTime();
+	}
+
+	/**
+	 * Accessor for the rate of the pacer.
+	 *
+	 * @return long The rate in bytes per second, or 0 for no limit.
+	 */
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Mutator for the rate of the pacer. It applies from the next packet
+	 * reserved.
+	 *
+	 * @param rate
+	 *            The new rate in bytes per second, or 0 for no limit.
+	 */
+	void setRate(long rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * Accessor for the burst of the pacer.
+	 *
+	 * @return int The number of bytes that may be sent at once.
+	 */
+	int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Mutator for the burst of the pacer.
+	 *
+	 * @param burst
+	 *            The new number of bytes that may be sent at once.
+	 */
+	void setBurst(int burst) {
+		this.burst = burst;
+	}
+
+	/**
+	 * Reserves the sending of a packet, and finds when it may be sent.
+	 *
+	 * @param bytes
+	 *            The size of the packet.
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return long The {@link System#nanoTime()} at which the packet may be
+	 *         sent, which is now if it may be sent at once.
+	 */
+	long reserve(int bytes, long now) {
+		long rate = this.rate;
+		if (rate <= 0) {
+			due = now;
+			return now;
+		}
+
+		// An idle pacer saves up at most one burst.
+		long allowance = burst * SECOND / rate;
+		if (due - (now - allowance) < 0) {
+			due = now - allowance;
+			remainder = 0;
+		}
+
+		long release = due - now > 0 ? due : now;
+
+		long cost = bytes * SECOND + remainder;
+		due += cost / rate;
+		remainder = cost % rate;
+
+		return release;
+	}
+}
@@ -0,0 +1,205 @@
+package com.connerblair.udp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Builds the parity packets of a {@linkplain UDPReliableSender}. <br>
+ * The messages of a stream are split into groups of the group size, and each
+ * group into as many lanes as there are parity packets, the messages taking
+ * the lanes in turn. The parity packet of a lane is the XOR of the messages in
+ * it, so a receiver that lost any one of them can rebuild it from the others,
+ * and a burst of losses no longer than the number of lanes costs each lane at
+ * most one message. <br>
+ * Each lane is built into a buffer that is kept from group to group, and sent
+ * with a packet that is kept as well, so no memory is allocated once the
+ * buffers have grown to the largest message. Only the sender thread uses it.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class UDPParityEncoder {
+	// Reads and writes eight bytes of an array at a time, at any index.
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final int groupSize;
+	private final int parity;
+
+	private final byte[][] lanes;
+	private final ByteBuffer[] headers;
+	private final int[] laneLengths;
+	private final int[] lengthXors;
+	private final DatagramPacket[] packets;
+
+	private long first;
+	private int count = 0;
+	private boolean finished = false;
+	private int next = 0;
+
+	/**
+	 * Creates a new instance of the UDPParityEncoder class, with the
+	 * specified group size and number of parity packets per group.
+	 *
+	 * @param groupSize
+	 *            The number of messages in a group.
+	 * @param parity
+	 *            The number of parity packets sent for each group.
+	 * @param to
+	 *            The address to send the parity packets to.
+	 */
+	UDPParityEncoder(int groupSize, int parity, SocketAddress to) {
+		this.groupSize = groupSize;
+		this.parity = parity;
+		this.lanes = new byte[parity][];
+		this.headers = new ByteBuffer[parity];
+		this.laneLengths = new int[parity];
+		this.lengthXors = new int[parity];
+		this.packets = new DatagramPacket[parity];
+
+		for (int i = 0; i < parity; i++) {
+			lanes[i] = new byte[UDPReliableProtocol.PARITY_HEADER_SIZE];
+			headers[i] = ByteBuffer.wrap(lanes[i]);
+			packets[i] = new DatagramPacket(lanes[i], 0, to);
+		}
+	}
+
+	/**
+	 * Adds a sent message to the group being built. The group must not have
+	 * parity packets waiting to be sent.
+	 *
+	 * @param sequence
+	 *            The sequence number of the message.
+	 * @param data
+	 *            The array holding the message.
+	 * @param offset
+	 *            The index of the first byte of the message.
+	 * @param length
+	 *            The number of bytes in the message.
+	 */
+	void add(long sequence, byte[] data, int offset, int length) {
+		if (count == 0) {
+			first = sequence;
+		}
+
+		int lane = count % parity;
+		byte[] buffer = grow(lane, length);
+		int start = UDPReliableProtocol.PARITY_HEADER_SIZE;
+
+		if (count < parity) {
+			System.arraycopy(data, offset, buffer, start, length);
+			laneLengths[lane] = length;
+			lengthXors[lane] = length;
+		} else {
+			// Past the longest message so far, the lane holds old bytes.
+			if (length > laneLengths[lane]) {
+				Arrays.fill(buffer, start + laneLengths[lane], start + length, (byte) 0);
+				laneLengths[lane] = length;
+			}
+			xor(data, offset, buffer, start, length);
+			lengthXors[lane] ^= length;
+		}
+
+		if (++count == groupSize) {
+			finish();
+		}
+	}
+
+	/**
+	 * Ends the group early, so its parity is sent without waiting for it to
+	 * fill.
+	 */
+	void finish() {
+		if (count > 0) {
+			finished = true;
+		}
+	}
+
+	/**
+	 * Accessor to see if messages have been added since the last parity was
+	 * sent.
+	 *
+	 * @return boolean True if the group holds messages, false if not.
+	 */
+	boolean isOpen() {
+		return count > 0 && !finished;
+	}
+
+	/**
+	 * Finds the next parity packet of a finished group. The packet is reused
+	 * for the next group, so it must be sent before more messages are added.
+	 *
+	 * @param stream
+	 *            The id of the sender's stream.
+	 * @return {@linkplain DatagramPacket} The parity packet, or null if there
+	 *         is none waiting to be sent.
+	 */
+	DatagramPacket next(long stream) {
+		if (!finished) {
+			return null;
+		}
+
+		int lane = next++;
+		headers[lane].clear().putShort(UDPReliableProtocol.MAGIC).put(UDPReliableProtocol.PARITY).putLong(stream)
+				.putLong(first).putShort((short) count).putShort((short) parity).putShort((short) lane)
+				.putInt(lengthXors[lane]);
+
+		DatagramPacket packet = packets[lane];
+		packet.setData(lanes[lane], 0, UDPReliableProtocol.PARITY_HEADER_SIZE + laneLengths[lane]);
+
+		// A group smaller than the number of lanes leaves some lanes empty,
+		// and the next group starts once the last lane used is sent.
+		if (next == Math.min(count, parity)) {
+			count = 0;
+			finished = false;
+			next = 0;
+		}
+
+		return packet;
+	}
+
+	/**
+	 * XORs a range of one array into another.
+	 *
+	 * @param source
+	 *            The array to XOR in.
+	 * @param sourceOffset
+	 *            The index of the first byte to XOR in.
+	 * @param target
+	 *            The array to XOR into.
+	 * @param targetOffset
+	 *            The index of the first byte to XOR into.
+	 * @param length
+	 *            The number of bytes.
+	 */
+	static void xor(byte[] source, int sourceOffset, byte[] target, int targetOffset, int length) {
+		int i = 0;
+		for (; i <= length - 8; i += 8) {
+			long value = (long) LONGS.get(target, targetOffset + i) ^ (long) LONGS.get(source, sourceOffset + i);
+			LONGS.set(target, targetOffset + i, value);
+		}
+		for (; i < length; i++) {
+			target[targetOffset + i] ^= source[sourceOffset + i];
+		}
+	}
+
+	/**
+	 * Makes sure the buffer of a lane can hold a message of the given length.
+	 */
+	private byte[] grow(int lane, int length) {
+		byte[] buffer = lanes[lane];
+		int needed = UDPReliableProtocol.PARITY_HEADER_SIZE + length;
+		if (buffer.length < needed) {
+			byte[] grown = new byte[Math.max(needed, 2 * buffer.length)];
+			System.arraycopy(buffer, 0, grown, 0, buffer.length);
+			lanes[lane] = buffer = grown;
+			headers[lane] = ByteBuffer.wrap(grown);
+		}
+
+		return buffer;
+	}
+}
@@ -0,0 +1,211 @@
+package com.connerblair.udp;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A remote socket that has sent packets to a {@linkplain UDPConnector}. <br>
+ * The connector creates a peer for each address and port it receives from,
+ * and forgets the peer once nothing has been received from it for the peer
+ * timeout. Each peer can carry a state object, so a connector can keep what
+ * it knows about a peer without a table of its own.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public final class UDPPeer {
+	private final InetSocketAddress socketAddress;
+
+	private volatile Object state;
+	private volatile UDPCongestionControl congestionControl;
+	private volatile long lastReceived;
+	private volatile long packetsReceived = 0;
+
+	// Only the receiver thread uses the replay window.
+	private UDPReplayWindow replayWindow;
+	private volatile long duplicates = 0;
+	private volatile long outOfWindow = 0;
+
+	/**
+	 * Creates a new instance of the UDPPeer class, for the specified address
+	 * and port.
+	 *
+	 * @param address
+	 *            The address of the peer.
+	 * @param port
+	 *            The port of the peer.
+	 * @param now
+	 *            The {@link System#nanoTime()} the peer was first heard from.
+	 */
+	UDPPeer(InetAddress address, int port, long now) {
+		this.socketAddress = new InetSocketAddress(address, port);
+		this.lastReceived = now;
+	}
+
+	/**
+	 * Accessor method for the address of the peer.
+	 *
+	 * @return {@linkplain InetAddress} The address of the peer.
+	 */
+	public InetAddress getAddress() {
+		return socketAddress.getAddress();
+	}
+
+	/**
+	 * Accessor method for the port of the peer.
+	 *
+	 * @return int The port of the peer.
+	 */
+	public int getPort() {
+		return socketAddress.getPort();
+	}
+
+	/**
+	 * Accessor method for the address and port of the peer.
+	 *
+	 * @return {@linkplain InetSocketAddress} The socket address of the peer.
+	 */
+	public InetSocketAddress getSocketAddress() {
+		return socketAddress;
+	}
+
+	/**
+	 * Accessor method for the state object of the peer.
+	 *
+	 * @return {@linkplain Object} The state of the peer, or null if none has
+	 *         been set.
+	 */
+	public Object getState() {
+		return state;
+	}
+
+	/**
+	 * Mutator method for the state object of the peer.
+	 *
+	 * @param state
+	 *            The new state of the peer.
+	 */
+	public void setState(Object state) {
+		this.state = state;
+	}
+
+	/**
+	 * Accessor method for the congestion control of the peer.
+	 *
+	 * @return {@linkplain UDPCongestionControl} The congestion control, or
+	 *         null if packets to the peer are not paced on their own.
+	 */
+	public UDPCongestionControl getCongestionControl() {
+		return congestionControl;
+	}
+
+	/**
+	 * Mutator for the congestion control of the peer. Only the connector calls
+	 * this, so the peer and its pacing stay in step.
+	 *
+	 * @param congestionControl
+	 *            The new congestion control, or null for none.
+	 */
+	void setCongestionControl(UDPCongestionControl congestionControl) {
+		this.congestionControl = congestionControl;
+	}
+
+	/**
+	 * Accessor method for the time the last packet was received from the
+	 * peer.
+	 *
+	 * @return long The {@link System#nanoTime()} of the last packet.
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+
+	/**
+	 * Accessor method for the number of packets received from the peer.
+	 *
+	 * @return long The number of packets received.
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	/**
+	 * Accessor method for the number of packets from the peer dropped because
+	 * their sequence number was already received.
+	 *
+	 * @return long The number of duplicates.
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Accessor method for the number of packets from the peer dropped because
+	 * their sequence number was too far behind the highest received to tell
+	 * if it was a duplicate.
+	 *
+	 * @return long The number of packets out of the window.
+	 */
+	public long getOutOfWindow() {
+		return outOfWindow;
+	}
+
+	/**
+	 * Creates a packet addressed to the peer.
+	 *
+	 * @param data
+	 *            The data to send.
+	 * @param length
+	 *            The number of bytes of the data to send.
+	 * @return {@linkplain DatagramPacket} The packet to send.
+	 */
+	public DatagramPacket createPacket(byte[] data, int length) {
+		return new DatagramPacket(data, length, socketAddress);
+	}
+
+	/**
+	 * Records a packet received from the peer. Only the receiver thread calls
+	 * this.
+	 *
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 */
+	void received(long now) {
+		lastReceived = now;
+		packetsReceived++;
+	}
+
+	/**
+	 * Checks the sequence number of a packet from the peer against those
+	 * already received, and counts the packet if it is dropped. Only the
+	 * receiver thread calls this.
+	 *
+	 * @param sequence
+	 *            The sequence number of the packet.
+	 * @param windowSize
+	 *            The size of the replay window, if the peer does not have
+	 *            one yet.
+	 * @return int The result of the check, as defined by
+	 *         {@linkplain UDPReplayWindow}.
+	 */
+	int checkSequence(long sequence, int windowSize) {
+		if (replayWindow == null) {
+			replayWindow = new UDPReplayWindow(windowSize);
+		}
+
+		int result = replayWindow.check(sequence);
+		if (result == UDPReplayWindow.DUPLICATE) {
+			duplicates++;
+		} else if (result == UDPReplayWindow.TOO_OLD) {
+			outOfWindow++;
+		}
+
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return socketAddress.toString();
+	}
+}
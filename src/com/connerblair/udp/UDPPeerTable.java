@@ -0,0 +1,284 @@
+package com.connerblair.udp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * The peers a connector has received packets from, keyed by address and port.
+ * <br>
+ * IPv4 peers are kept in an open addressing table whose keys are the address
+ * and port packed into a long, so finding the peer of a packet reads two
+ * arrays and allocates nothing. Removed entries are filled by shifting the
+ * entries after them back, so the table never fills with tombstones no matter
+ * how many peers come and go. IPv6 peers, which do not fit a long, are kept in
+ * a {@linkplain HashMap}. <br>
+ * The table is not thread safe. Only the receiver thread uses it.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class UDPPeerTable {
+	private static final int MIN_CAPACITY = 16;
+
+	// Set in every key, so an empty slot (0) never matches a peer.
+	private static final long PRESENT = 1L << 48;
+
+	private long[] keys;
+	private UDPPeer[] peers;
+	private int mask;
+	private int shift;
+	private int size = 0;
+
+	private final HashMap<InetSocketAddress, UDPPeer> others = new HashMap<InetSocketAddress, UDPPeer>();
+
+	/**
+	 * Creates a new, empty instance of the UDPPeerTable class.
+	 */
+	UDPPeerTable() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Accessor for the number of peers in the table.
+	 *
+	 * @return int The number of peers.
+	 */
+	int size() {
+		return size + others.size();
+	}
+
+	/**
+	 * Finds the peer with the specified address and port.
+	 *
+	 * @param address
+	 *            The address of the peer.
+	 * @param port
+	 *            The port of the peer.
+	 * @return {@linkplain UDPPeer} The peer, or null if it is not in the
+	 *         table.
+	 */
+	UDPPeer get(InetAddress address, int port) {
+		if (!(address instanceof Inet4Address)) {
+			return others.get(new InetSocketAddress(address, port));
+		}
+
+		long key = key(address, port);
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long current = keys[i];
+			if (current == key) {
+				return peers[i];
+			}
+			if (current == 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Adds a peer that is not in the table.
+	 *
+	 * @param peer
+	 *            The peer to add.
+	 */
+	void add(UDPPeer peer) {
+		InetAddress address = peer.getAddress();
+		if (!(address instanceof Inet4Address)) {
+			others.put(peer.getSocketAddress(), peer);
+			return;
+		}
+
+		// Keep the table at most half full, so probe sequences stay short.
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+
+		insert(key(address, peer.getPort()), peer);
+		size++;
+	}
+
+	/**
+	 * Removes the peer with the specified address and port, if it is in the
+	 * table.
+	 *
+	 * @param address
+	 *            The address of the peer.
+	 * @param port
+	 *            The port of the peer.
+	 */
+	void remove(InetAddress address, int port) {
+		if (!(address instanceof Inet4Address)) {
+			others.remove(new InetSocketAddress(address, port));
+			return;
+		}
+
+		long key = key(address, port);
+		for (int i = slot(key); keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				removeAt(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Creates a copy of the table, for a table that is replaced rather than
+	 * changed so other threads can read it.
+	 *
+	 * @return {@linkplain UDPPeerTable} A table with the same peers.
+	 */
+	UDPPeerTable copy() {
+		UDPPeerTable copy = new UDPPeerTable();
+		copy.allocate(keys.length);
+		System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+		System.arraycopy(peers, 0, copy.peers, 0, peers.length);
+		copy.size = size;
+		copy.others.putAll(others);
+		return copy;
+	}
+
+	/**
+	 * Removes every peer that has received nothing since the given time.
+	 *
+	 * @param before
+	 *            The {@link System#nanoTime()} before which a peer is idle.
+	 * @param removed
+	 *            Called with each peer removed.
+	 */
+	void removeIdle(long before, Consumer<UDPPeer> removed) {
+		int i = 0;
+		while (i < keys.length) {
+			UDPPeer peer = peers[i];
+			if (peer != null && peer.getLastReceived() - before < 0) {
+				// The slot may be refilled by a later entry, so check it
+				// again.
+				removeAt(i);
+				removed.accept(peer);
+			} else {
+				i++;
+			}
+		}
+
+		Iterator<UDPPeer> others = this.others.values().iterator();
+		while (others.hasNext()) {
+			UDPPeer peer = others.next();
+			if (peer.getLastReceived() - before < 0) {
+				others.remove();
+				removed.accept(peer);
+			}
+		}
+
+		// Give back the memory of a table that has mostly emptied.
+		if (keys.length > MIN_CAPACITY && size * 8 < keys.length) {
+			resize(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size)) * 4));
+		}
+	}
+
+	/**
+	 * Removes every peer.
+	 *
+	 * @param removed
+	 *            Called with each peer removed.
+	 */
+	void clear(Consumer<UDPPeer> removed) {
+		for (UDPPeer peer : peers) {
+			if (peer != null) {
+				removed.accept(peer);
+			}
+		}
+		for (UDPPeer peer : others.values()) {
+			removed.accept(peer);
+		}
+
+		allocate(MIN_CAPACITY);
+		size = 0;
+		others.clear();
+	}
+
+	/**
+	 * Packs an IPv4 address and a port into a key.
+	 */
+	private static long key(InetAddress address, int port) {
+		// The hash code of an IPv4 address is the address itself, and reading
+		// it does not copy the address into a new array.
+		return PRESENT | (address.hashCode() & 0xFFFFFFFFL) << 16 | port;
+	}
+
+	/**
+	 * Finds the slot a key is first looked for in.
+	 */
+	private int slot(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	/**
+	 * Puts a key in the first free slot of its probe sequence.
+	 */
+	private void insert(long key, UDPPeer peer) {
+		int i = slot(key);
+		while (keys[i] != 0) {
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		peers[i] = peer;
+	}
+
+	/**
+	 * Empties a slot, and shifts back the entries after it that would no
+	 * longer be found.
+	 */
+	private void removeAt(int hole) {
+		size--;
+
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			long key = keys[i];
+			if (key == 0) {
+				break;
+			}
+
+			// An entry can move to the hole only if the hole lies between
+			// its home slot and where it is now.
+			int home = slot(key);
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = key;
+				peers[hole] = peers[i];
+				hole = i;
+			}
+		}
+
+		keys[hole] = 0;
+		peers[hole] = null;
+	}
+
+	/**
+	 * Moves every entry into a table of the given capacity.
+	 */
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		UDPPeer[] oldPeers = peers;
+
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				insert(oldKeys[i], oldPeers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the arrays with empty ones of the given capacity, which must be
+	 * a power of two.
+	 */
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		peers = new UDPPeer[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+}
@@ -0,0 +1,123 @@
+package com.connerblair.udp;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The packets exchanged by a {@linkplain UDPReliableSender} and its
+ * {@linkplain UDPReliableReceiver}s. <br>
+ * Every packet starts with a magic number, its type and the id of the
+ * sender's stream, which changes when a sender is created so receivers can
+ * tell a restarted sender from a lossy one. The rest depends on the type:
+ * <ul>
+ * <li>DATA: the sequence number, then the message.</li>
+ * <li>HEARTBEAT: the last sequence number sent, and the oldest still kept for
+ * repair.</li>
+ * <li>NAK: the first and last sequence numbers of a range that is
+ * missing.</li>
+ * <li>SNAPSHOT_REQUEST: nothing more.</li>
+ * <li>SNAPSHOT: the sequence number the snapshot was taken at, the index of
+ * the chunk and the number of chunks, then the chunk.</li>
+ * <li>PARITY: the first sequence number of a group of messages, the number of
+ * messages in it, the number of parity packets sent for it and which of them
+ * this is, the XOR of the lengths of the messages it covers, then the XOR of
+ * those messages.</li>
+ * </ul>
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class UDPReliableProtocol {
+	static final short MAGIC = 0x524D;
+
+	static final byte DATA = 1;
+	static final byte HEARTBEAT = 2;
+	static final byte NAK = 3;
+	static final byte SNAPSHOT_REQUEST = 4;
+	static final byte SNAPSHOT = 5;
+	static final byte PARITY = 6;
+
+	static final int HEADER_SIZE = 2 + 1 + 8;
+	static final int DATA_HEADER_SIZE = HEADER_SIZE + 8;
+	static final int SNAPSHOT_HEADER_SIZE = HEADER_SIZE + 8 + 4 + 4;
+	static final int PARITY_HEADER_SIZE = HEADER_SIZE + 8 + 2 + 2 + 2 + 4;
+
+	// The largest payload of a UDP datagram over IPv4.
+	static final int MAX_DATAGRAM = 65507;
+
+	// Snapshot chunks are kept under a typical MTU, so losing one fragment
+	// does not lose a whole chunk.
+	static final int SNAPSHOT_CHUNK_SIZE = 1400;
+
+	/**
+	 * This class only contains static methods and cannot be instantiated.
+	 */
+	private UDPReliableProtocol() {
+	}
+
+	/**
+	 * Starts a packet of the given type.
+	 *
+	 * @param type
+	 *            The type of the packet.
+	 * @param stream
+	 *            The id of the sender's stream.
+	 * @param bodySize
+	 *            The number of bytes that follow the header.
+	 * @return {@linkplain ByteBuffer} A buffer holding the header, with room
+	 *         for the body.
+	 */
+	static ByteBuffer start(byte type, long stream, int bodySize) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+		buffer.putShort(MAGIC).put(type).putLong(stream);
+		return buffer;
+	}
+
+	/**
+	 * Creates a packet from a filled buffer.
+	 *
+	 * @param buffer
+	 *            The buffer holding the packet.
+	 * @param to
+	 *            The address to send the packet to.
+	 * @return {@linkplain DatagramPacket} The packet to send.
+	 */
+	static DatagramPacket packet(ByteBuffer buffer, SocketAddress to) {
+		return new DatagramPacket(buffer.array(), buffer.position(), to);
+	}
+
+	/**
+	 * Reads the header of a received packet.
+	 *
+	 * @param packet
+	 *            The packet received.
+	 * @return {@linkplain ByteBuffer} A buffer positioned after the stream id,
+	 *         or null if the packet is not part of the protocol.
+	 */
+	static ByteBuffer read(DatagramPacket packet) {
+		ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+		if (buffer.remaining() < HEADER_SIZE || buffer.getShort() != MAGIC) {
+			return null;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Encodes a heartbeat.
+	 *
+	 * @param stream
+	 *            The id of the sender's stream.
+	 * @param last
+	 *            The last sequence number sent.
+	 * @param oldest
+	 *            The oldest sequence number kept for repair.
+	 * @param to
+	 *            The address to send the heartbeat to.
+	 * @return {@linkplain DatagramPacket} The heartbeat.
+	 */
+	static DatagramPacket heartbeat(long stream, long last, long oldest, SocketAddress to) {
+		return packet(start(HEARTBEAT, stream, 16).putLong(last).putLong(oldest), to);
+	}
+}
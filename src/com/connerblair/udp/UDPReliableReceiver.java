@@ -0,0 +1,855 @@
+package com.connerblair.udp;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.exceptions.ConnectionException;
+
+/**
+ * Receives the numbered streams of {@linkplain UDPReliableSender}s on a
+ * multicast group, and hands each sender's messages to the connector in
+ * order. <br>
+ * A message that arrives after a gap is held until the gap is filled. For
+ * each missing message the receiver waits a random time of up to the NAK
+ * delay before sending a NAK, so that when many receivers lose the same
+ * message, the repair prompted by the first NAK reaches the others before
+ * they send theirs. A NAK that goes unanswered is sent again every NAK
+ * interval, and after the NAK attempts the message is given up as lost. NAKs
+ * are also limited to a fixed rate, so a receiver that loses a burst of
+ * messages does not flood the sender. <br>
+ * A receiver that starts after a sender has begun asks it for a snapshot, and
+ * goes on from the message the snapshot was taken at. <br>
+ * When the sender sends parity packets, a message lost from a group is
+ * rebuilt from the parity and the rest of the group as soon as they have
+ * arrived, without a NAK. <br>
+ * The message hook methods are called one at a time, by either of the
+ * connector's threads.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public abstract class UDPReliableReceiver extends UDPConnector {
+	public static final int DEF_WINDOW_SIZE = 4096;
+	public static final Duration DEF_NAK_DELAY = Duration.ofMillis(5);
+	public static final Duration DEF_NAK_INTERVAL = Duration.ofMillis(50);
+	public static final int DEF_NAK_ATTEMPTS = 10;
+	public static final int DEF_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	// The most NAKs sent per second, and in a burst.
+	private static final int NAK_RATE = 1000;
+	private static final int NAK_BURST = 64;
+	private static final long NAK_SPACING = TimeUnit.SECONDS.toNanos(1) / NAK_RATE;
+
+	private static final long MAX_IDLE = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// Marks a message that was given up as lost.
+	private static final byte[] LOST = new byte[0];
+
+	private final byte[] receiveBuffer = new byte[UDPReliableProtocol.MAX_DATAGRAM];
+
+	// The streams and everything below are guarded by the lock.
+	private final Object streamLock = new Object();
+	private final HashMap<UDPPeer, Stream> streams = new HashMap<UDPPeer, Stream>();
+	private final ArrayDeque<DatagramPacket> outbox = new ArrayDeque<DatagramPacket>();
+	private double nakTokens = NAK_BURST;
+	private long nakRefilled = System.nanoTime();
+	private long nextDue;
+	private long messagesRecovered = 0;
+
+	private int windowSize = DEF_WINDOW_SIZE;
+	private long nakDelay = DEF_NAK_DELAY.toNanos();
+	private long nakInterval = DEF_NAK_INTERVAL.toNanos();
+	private int nakAttempts = DEF_NAK_ATTEMPTS;
+	private boolean catchUp = true;
+
+	/**
+	 * Creates a new instance of the UDPReliableReceiver class, that joins the
+	 * specified group.
+	 *
+	 * @param group
+	 *            The address of the multicast group to join.
+	 * @param port
+	 *            The port the senders of the group send to.
+	 */
+	protected UDPReliableReceiver(String group, int port) {
+		super(port);
+
+		// Bind to every address, so the socket receives from the group. A
+		// large buffer keeps bursts from being lost before they are read.
+		setAddr((InetAddress) null);
+		setMulticast(true);
+		setReceiveBufferSize(DEF_RECEIVE_BUFFER_SIZE);
+		joinGroup(group);
+	}
+
+	/**
+	 * Accessor method for the number of messages after a gap that are held
+	 * until the gap is filled.
+	 *
+	 * @return int The size of the window.
+	 */
+	public final int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Mutator method for the number of messages after a gap that are held
+	 * until the gap is filled. A message that falls further behind than this
+	 * is given up as lost. <br>
+	 * If the receiver is not stopped, this call will have no effect.
+	 *
+	 * @param windowSize
+	 *            The new size of the window.
+	 */
+	public final void setWindowSize(int windowSize) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change window size while server is running."));
+		} else if (windowSize < 1) {
+			handleException(new ConnectionException("The window size must be positive. Value: " + windowSize));
+		} else {
+			this.windowSize = windowSize;
+		}
+	}
+
+	/**
+	 * Accessor method for the longest random wait before the first NAK for a
+	 * missing message.
+	 *
+	 * @return {@linkplain Duration} The NAK delay.
+	 */
+	public final Duration getNakDelay() {
+		return Duration.ofNanos(nakDelay);
+	}
+
+	/**
+	 * Mutator method for the longest random wait before the first NAK for a
+	 * missing message. A longer delay lets more receivers find a message
+	 * repaired before they ask for it, at the cost of slower repairs. <br>
+	 * If the receiver is not stopped, this call will have no effect.
+	 *
+	 * @param nakDelay
+	 *            The new NAK delay.
+	 */
+	public final void setNakDelay(Duration nakDelay) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change NAK delay while server is running."));
+		} else if (nakDelay == null || nakDelay.isNegative()) {
+			handleException(new ConnectionException("The NAK delay must not be negative."));
+		} else {
+			this.nakDelay = nakDelay.toNanos();
+		}
+	}
+
+	/**
+	 * Accessor method for how long to wait for a repair before sending a NAK
+	 * again.
+	 *
+	 * @return {@linkplain Duration} The NAK interval.
+	 */
+	public final Duration getNakInterval() {
+		return Duration.ofNanos(nakInterval);
+	}
+
+	/**
+	 * Mutator method for how long to wait for a repair before sending a NAK
+	 * again. <br>
+	 * If the receiver is not stopped, this call will have no effect.
+	 *
+	 * @param nakInterval
+	 *            The new NAK interval.
+	 */
+	public final void setNakInterval(Duration nakInterval) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change NAK interval while server is running."));
+		} else if (nakInterval == null || nakInterval.isNegative() || nakInterval.isZero()) {
+			handleException(new ConnectionException("The NAK interval must be positive."));
+		} else {
+			this.nakInterval = nakInterval.toNanos();
+		}
+	}
+
+	/**
+	 * Accessor method for the number of NAKs sent for a message before it is
+	 * given up as lost.
+	 *
+	 * @return int The number of NAK attempts.
+	 */
+	public final int getNakAttempts() {
+		return nakAttempts;
+	}
+
+	/**
+	 * Mutator method for the number of NAKs sent for a message before it is
+	 * given up as lost. <br>
+	 * If the receiver is not stopped, this call will have no effect.
+	 *
+	 * @param nakAttempts
+	 *            The new number of NAK attempts.
+	 */
+	public final void setNakAttempts(int nakAttempts) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change NAK attempts while server is running."));
+		} else if (nakAttempts < 1) {
+			handleException(new ConnectionException("The NAK attempts must be positive. Value: " + nakAttempts));
+		} else {
+			this.nakAttempts = nakAttempts;
+		}
+	}
+
+	/**
+	 * Accessor method to see if the receiver asks senders it has not heard
+	 * from before for a snapshot.
+	 *
+	 * @return boolean True if the receiver catches up from snapshots, false if
+	 *         not.
+	 */
+	public final boolean isCatchUp() {
+		return catchUp;
+	}
+
+	/**
+	 * Mutator method for whether the receiver asks senders it has not heard
+	 * from before for a snapshot. Without one, the receiver starts from the
+	 * first message it receives. <br>
+	 * If the receiver is not stopped, this call will have no effect.
+	 *
+	 * @param catchUp
+	 *            True to catch up from snapshots, false to not.
+	 */
+	public final void setCatchUp(boolean catchUp) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change catch up while server is running."));
+		} else {
+			this.catchUp = catchUp;
+		}
+	}
+
+	/**
+	 * Accessor method for the number of lost messages rebuilt from parity
+	 * packets.
+	 *
+	 * @return long The number of messages recovered.
+	 */
+	public final long getMessagesRecovered() {
+		synchronized (streamLock) {
+			return messagesRecovered;
+		}
+	}
+
+	/**
+	 * Hook method called with each message of a sender, in order. The message
+	 * should not be changed, since it is kept for a while to rebuild lost
+	 * messages from parity packets.
+	 *
+	 * @param sender
+	 *            The sender of the message.
+	 * @param sequence
+	 *            The sequence number of the message.
+	 * @param message
+	 *            The message.
+	 */
+	protected abstract void handleMessage(UDPPeer sender, long sequence, byte[] message);
+
+	/**
+	 * Hook method called with the snapshot a sender was asked for, before
+	 * the messages that follow it. <br>
+	 * The default implementation does nothing.
+	 *
+	 * @param sender
+	 *            The sender of the snapshot.
+	 * @param sequence
+	 *            The sequence number of the last message the snapshot holds.
+	 * @param snapshot
+	 *            The snapshot.
+	 */
+	protected void handleSnapshot(UDPPeer sender, long sequence, byte[] snapshot) {
+	}
+
+	/**
+	 * Hook method called when messages of a sender are given up as lost, in
+	 * their place in the order. <br>
+	 * The default implementation does nothing.
+	 *
+	 * @param sender
+	 *            The sender of the messages.
+	 * @param first
+	 *            The sequence number of the first message lost.
+	 * @param last
+	 *            The sequence number of the last message lost.
+	 */
+	protected void messagesLost(UDPPeer sender, long first, long last) {
+	}
+
+	/**
+	 * Handles the messages, heartbeats and snapshots of the senders.
+	 */
+	@Override
+	protected final void handlePacketReceived(UDPPeer peer, DatagramPacket packet) {
+		ByteBuffer in = UDPReliableProtocol.read(packet);
+		if (in == null) {
+			return;
+		}
+
+		byte type = in.get();
+		long id = in.getLong();
+		long now = System.nanoTime();
+
+		synchronized (streamLock) {
+			if (type == UDPReliableProtocol.DATA && in.remaining() >= 8) {
+				long sequence = in.getLong();
+				byte[] message = new byte[in.remaining()];
+				in.get(message);
+				receiveMessage(peer, stream(peer, id, sequence - 1, now), sequence, message, now);
+			} else if (type == UDPReliableProtocol.HEARTBEAT && in.remaining() >= 16) {
+				long last = in.getLong();
+				receiveHeartbeat(peer, stream(peer, id, last, now), last, in.getLong(), now);
+			} else if (type == UDPReliableProtocol.SNAPSHOT && in.remaining() >= 16) {
+				Stream stream = streams.get(peer);
+				if (stream != null && stream.id == id) {
+					long sequence = in.getLong();
+					int index = in.getInt();
+					int count = in.getInt();
+					byte[] chunk = new byte[in.remaining()];
+					in.get(chunk);
+					receiveSnapshot(peer, stream, sequence, index, count, chunk, now);
+				}
+			} else if (type == UDPReliableProtocol.PARITY
+					&& in.remaining() >= UDPReliableProtocol.PARITY_HEADER_SIZE - UDPReliableProtocol.HEADER_SIZE) {
+				Stream stream = streams.get(peer);
+				if (stream != null && stream.id == id) {
+					receiveParity(peer, stream, in, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Not called, since packets are handled with their peer.
+	 */
+	@Override
+	protected final void handlePacketReceived(DatagramPacket packet) {
+	}
+
+	/**
+	 * Returns the buffer messages are received into.
+	 */
+	@Override
+	protected final byte[] getByteBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * Returns the next NAK or snapshot request that is due.
+	 */
+	@Override
+	protected final DatagramPacket createPacketToSend() {
+		synchronized (streamLock) {
+			if (outbox.isEmpty()) {
+				tick(System.nanoTime());
+			}
+
+			return outbox.poll();
+		}
+	}
+
+	/**
+	 * Waits at most until the next NAK is due.
+	 */
+	@Override
+	long senderIdleNanos() {
+		synchronized (streamLock) {
+			return Math.max(0, Math.min(MAX_IDLE, nextDue - System.nanoTime()));
+		}
+	}
+
+	/**
+	 * Drops the stream of a sender that has been forgotten.
+	 */
+	@Override
+	void peerForgotten(UDPPeer peer) {
+		synchronized (streamLock) {
+			streams.remove(peer);
+		}
+	}
+
+	/**
+	 * Finds the stream of a sender, and starts a new one if the sender is new
+	 * or has restarted.
+	 *
+	 * @param peer
+	 *            The sender.
+	 * @param id
+	 *            The id of the stream.
+	 * @param delivered
+	 *            The sequence number to start after, if the stream is new.
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return {@linkplain Stream} The stream of the sender.
+	 */
+	private Stream stream(UDPPeer peer, long id, long delivered, long now) {
+		Stream stream = streams.get(peer);
+		if (stream != null && stream.id == id) {
+			return stream;
+		}
+
+		stream = new Stream(id, windowSize, delivered);
+		streams.put(peer, stream);
+
+		// A sender heard from part way through its stream is asked for a
+		// snapshot of what came before.
+		if (catchUp && delivered > 0) {
+			stream.awaitingSnapshot = true;
+			requestSnapshot(peer, stream, now);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Holds a received message, notes any gap before it, and delivers the
+	 * messages that are now in order.
+	 */
+	private void receiveMessage(UDPPeer peer, Stream stream, long sequence, byte[] message, long now) {
+		if (sequence <= stream.delivered) {
+			return;
+		}
+		if (sequence > stream.delivered + stream.size()) {
+			skipTo(peer, stream, sequence - stream.size());
+		}
+
+		int index = stream.index(sequence);
+		if (stream.pending[index] == null || stream.pending[index] == LOST) {
+			stream.pending[index] = message;
+		}
+
+		if (sequence > stream.highest) {
+			scheduleNaks(stream, stream.highest + 1, sequence - 1, now);
+			stream.highest = sequence;
+		}
+
+		deliver(peer, stream);
+	}
+
+	/**
+	 * Notes the messages a heartbeat shows were sent but not received, and
+	 * gives up on those the sender no longer keeps.
+	 */
+	private void receiveHeartbeat(UDPPeer peer, Stream stream, long last, long oldest, long now) {
+		if (last > stream.highest) {
+			if (last > stream.delivered + stream.size()) {
+				skipTo(peer, stream, last - stream.size());
+			}
+
+			scheduleNaks(stream, stream.highest + 1, last, now);
+			stream.highest = last;
+		}
+
+		if (!stream.awaitingSnapshot && oldest - 1 > stream.delivered) {
+			skipTo(peer, stream, Math.min(oldest - 1, stream.highest));
+		}
+
+		deliver(peer, stream);
+	}
+
+	/**
+	 * Collects the chunks of a snapshot, and goes on from it once they have
+	 * all arrived.
+	 */
+	private void receiveSnapshot(UDPPeer peer, Stream stream, long sequence, int index, int count, byte[] chunk,
+			long now) {
+		if (!stream.awaitingSnapshot) {
+			return;
+		}
+
+		if (count <= 0) {
+			resume(peer, stream, sequence, null, now);
+			return;
+		}
+
+		// Chunks of an older snapshot are replaced by those of a newer one.
+		if (stream.chunks == null || stream.snapshotSequence != sequence || stream.chunks.length != count) {
+			stream.chunks = new byte[count][];
+			stream.chunksReceived = 0;
+			stream.snapshotSequence = sequence;
+		}
+		if (index < 0 || index >= count || stream.chunks[index] != null) {
+			return;
+		}
+
+		stream.chunks[index] = chunk;
+		if (++stream.chunksReceived < count) {
+			return;
+		}
+
+		int length = 0;
+		for (byte[] part : stream.chunks) {
+			length += part.length;
+		}
+		byte[] snapshot = new byte[length];
+		int offset = 0;
+		for (byte[] part : stream.chunks) {
+			System.arraycopy(part, 0, snapshot, offset, part.length);
+			offset += part.length;
+		}
+
+		resume(peer, stream, sequence, snapshot, now);
+	}
+
+	/**
+	 * Rebuilds the message a parity packet covers, if it is the only one of
+	 * them missing. The parity is XORed with the others where it was
+	 * received, so only the rebuilt message is allocated.
+	 */
+	private void receiveParity(UDPPeer peer, Stream stream, ByteBuffer in, long now) {
+		long first = in.getLong();
+		int count = in.getShort() & 0xFFFF;
+		int parity = in.getShort() & 0xFFFF;
+		int lane = in.getShort() & 0xFFFF;
+		int length = in.getInt();
+		if (stream.awaitingSnapshot || first < 1 || lane >= parity) {
+			return;
+		}
+
+		long missing = 0;
+		for (long i = first + lane; i < first + count; i += parity) {
+			if (stream.message(i) == null) {
+				if (missing != 0) {
+					return;
+				}
+				missing = i;
+			}
+		}
+
+		// Nothing is missing, or it was given up on already.
+		if (missing <= stream.delivered) {
+			return;
+		}
+
+		byte[] data = in.array();
+		int offset = in.arrayOffset() + in.position();
+		for (long i = first + lane; i < first + count; i += parity) {
+			if (i != missing) {
+				byte[] message = stream.message(i);
+				UDPParityEncoder.xor(message, 0, data, offset, Math.min(message.length, in.remaining()));
+				length ^= message.length;
+			}
+		}
+		if (length < 0 || length > in.remaining()) {
+			return;
+		}
+
+		messagesRecovered++;
+		receiveMessage(peer, stream, missing, Arrays.copyOfRange(data, offset, offset + length), now);
+	}
+
+	/**
+	 * Goes on from the message a snapshot was taken at, dropping the messages
+	 * it holds and asking for those missing after it.
+	 *
+	 * @param snapshot
+	 *            The snapshot, or null if the stream goes on without one.
+	 */
+	private void resume(UDPPeer peer, Stream stream, long sequence, byte[] snapshot, long now) {
+		stream.awaitingSnapshot = false;
+		stream.chunks = null;
+
+		if (sequence >= stream.delivered) {
+			stream.clear(stream.delivered + 1, sequence);
+			stream.delivered = sequence;
+			stream.highest = Math.max(stream.highest, sequence);
+		} else {
+			// Messages from before the first one received are asked for,
+			// as far back as the window reaches.
+			stream.delivered = Math.max(sequence, stream.highest - stream.size());
+		}
+
+		if (snapshot != null) {
+			handleSnapshot(peer, sequence, snapshot);
+		}
+
+		scheduleNaks(stream, stream.delivered + 1, stream.highest, now);
+		deliver(peer, stream);
+	}
+
+	/**
+	 * Moves the start of the window up to the given sequence number,
+	 * delivering the messages held before it and giving up on the rest.
+	 */
+	private void skipTo(UDPPeer peer, Stream stream, long sequence) {
+		// While waiting for a snapshot, nothing is delivered; the snapshot
+		// covers what is dropped.
+		if (stream.awaitingSnapshot) {
+			stream.clear(stream.delivered + 1, sequence);
+			stream.delivered = sequence;
+			return;
+		}
+
+		long lostFrom = 0;
+
+		// Messages too far behind to be held at all are simply lost.
+		long first = stream.delivered + 1;
+		if (sequence - first >= stream.size()) {
+			long held = sequence - stream.size() + 1;
+			stream.clear(first, held - 1);
+			lostFrom = first;
+			first = held;
+		}
+
+		for (long i = first; i <= sequence; i++) {
+			int index = stream.index(i);
+			byte[] message = stream.pending[index];
+			stream.reset(index);
+
+			if (message == null || message == LOST) {
+				if (lostFrom == 0) {
+					lostFrom = i;
+				}
+			} else {
+				if (lostFrom != 0) {
+					messagesLost(peer, lostFrom, i - 1);
+					lostFrom = 0;
+				}
+				stream.delivered = i;
+				stream.keep(index, i, message);
+				handleMessage(peer, i, message);
+			}
+		}
+
+		if (lostFrom != 0) {
+			messagesLost(peer, lostFrom, sequence);
+		}
+		stream.delivered = sequence;
+	}
+
+	/**
+	 * Delivers the messages that follow the last delivered without a gap, and
+	 * the loss of those given up on.
+	 */
+	private void deliver(UDPPeer peer, Stream stream) {
+		if (stream.awaitingSnapshot) {
+			return;
+		}
+
+		long lostFrom = 0;
+		while (stream.delivered < stream.highest) {
+			long next = stream.delivered + 1;
+			int index = stream.index(next);
+			byte[] message = stream.pending[index];
+			if (message == null) {
+				break;
+			}
+
+			stream.reset(index);
+			stream.delivered = next;
+			if (message == LOST) {
+				if (lostFrom == 0) {
+					lostFrom = next;
+				}
+				continue;
+			}
+
+			if (lostFrom != 0) {
+				messagesLost(peer, lostFrom, next - 1);
+				lostFrom = 0;
+			}
+			stream.keep(index, next, message);
+			handleMessage(peer, next, message);
+		}
+
+		if (lostFrom != 0) {
+			messagesLost(peer, lostFrom, stream.delivered);
+		}
+	}
+
+	/**
+	 * Sets the first NAK of each missing message in a range for a random time
+	 * within the NAK delay.
+	 */
+	private void scheduleNaks(Stream stream, long first, long last, long now) {
+		first = Math.max(first, stream.delivered + 1);
+		if (stream.awaitingSnapshot || first > last) {
+			return;
+		}
+
+		boolean scheduled = false;
+		for (long i = first; i <= last; i++) {
+			int index = stream.index(i);
+			if (stream.pending[index] == null) {
+				stream.nakAt[index] = now + (nakDelay == 0 ? 0 : ThreadLocalRandom.current().nextLong(nakDelay));
+				stream.naks[index] = 0;
+				scheduled = true;
+			}
+		}
+
+		// Have the sender thread work out when the first of them is due.
+		if (scheduled) {
+			nextDue = now;
+			wakeSender();
+		}
+	}
+
+	/**
+	 * Queues a request for a snapshot.
+	 */
+	private void requestSnapshot(UDPPeer peer, Stream stream, long now) {
+		stream.snapshotRequested = now;
+		stream.snapshotAttempts++;
+		outbox.add(UDPReliableProtocol.packet(UDPReliableProtocol.start(UDPReliableProtocol.SNAPSHOT_REQUEST, stream.id, 0),
+				peer.getSocketAddress()));
+		wakeSender();
+	}
+
+	/**
+	 * Queues the NAKs and snapshot requests that are due, gives up on the
+	 * messages that have run out of NAK attempts, and finds when the next NAK
+	 * is due.
+	 */
+	private void tick(long now) {
+		nakTokens = Math.min(NAK_BURST, nakTokens + (double) (now - nakRefilled) / NAK_SPACING);
+		nakRefilled = now;
+
+		nextDue = now + MAX_IDLE;
+		for (Map.Entry<UDPPeer, Stream> entry : streams.entrySet()) {
+			UDPPeer peer = entry.getKey();
+			Stream stream = entry.getValue();
+
+			if (stream.awaitingSnapshot) {
+				if (now - stream.snapshotRequested >= nakInterval) {
+					if (stream.snapshotAttempts >= nakAttempts) {
+						// The sender is not answering, so go on without it.
+						resume(peer, stream, stream.delivered, null, now);
+					} else {
+						requestSnapshot(peer, stream, now);
+					}
+				}
+				nextDue = Math.min(nextDue, stream.snapshotRequested + nakInterval);
+				continue;
+			}
+
+			// Consecutive messages that are due go in one NAK.
+			boolean gaveUp = false;
+			long rangeFirst = 0;
+			for (long i = stream.delivered + 1; i <= stream.highest; i++) {
+				int index = stream.index(i);
+				boolean due = stream.pending[index] == null && stream.nakAt[index] - now <= 0;
+
+				if (due && stream.naks[index] >= nakAttempts) {
+					stream.pending[index] = LOST;
+					gaveUp = true;
+				} else if (due && rangeFirst == 0 && nakTokens < 1) {
+					// Over the NAK rate, so wait for the next token.
+					nextDue = Math.min(nextDue, now + NAK_SPACING);
+				} else if (due) {
+					if (rangeFirst == 0) {
+						rangeFirst = i;
+						nakTokens--;
+					}
+					stream.naks[index]++;
+					stream.nakAt[index] = now + nakInterval;
+					nextDue = Math.min(nextDue, now + nakInterval);
+					continue;
+				} else if (stream.pending[index] == null) {
+					nextDue = Math.min(nextDue, stream.nakAt[index]);
+				}
+
+				if (rangeFirst != 0) {
+					outbox.add(nak(peer, stream, rangeFirst, i - 1));
+					rangeFirst = 0;
+				}
+			}
+			if (rangeFirst != 0) {
+				outbox.add(nak(peer, stream, rangeFirst, stream.highest));
+			}
+
+			if (gaveUp) {
+				deliver(peer, stream);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a NAK for a range of missing messages.
+	 */
+	private static DatagramPacket nak(UDPPeer peer, Stream stream, long first, long last) {
+		return UDPReliableProtocol.packet(
+				UDPReliableProtocol.start(UDPReliableProtocol.NAK, stream.id, 16).putLong(first).putLong(last),
+				peer.getSocketAddress());
+	}
+
+	/**
+	 * What a receiver knows of one sender's stream.
+	 */
+	private static final class Stream {
+		private final long id;
+		private final byte[][] pending;
+		private final long[] nakAt;
+		private final int[] naks;
+
+		// The messages delivered last, kept for rebuilding from parity.
+		private final byte[][] kept;
+		private final long[] keptSequences;
+
+		private long delivered;
+		private long highest;
+
+		private boolean awaitingSnapshot = false;
+		private long snapshotRequested;
+		private int snapshotAttempts = 0;
+		private long snapshotSequence;
+		private byte[][] chunks;
+		private int chunksReceived;
+
+		private Stream(long id, int size, long delivered) {
+			this.id = id;
+			this.pending = new byte[size][];
+			this.nakAt = new long[size];
+			this.naks = new int[size];
+			this.kept = new byte[size][];
+			this.keptSequences = new long[size];
+			this.delivered = delivered;
+			this.highest = delivered;
+		}
+
+		private int size() {
+			return pending.length;
+		}
+
+		private int index(long sequence) {
+			return (int) (sequence % pending.length);
+		}
+
+		private void keep(int index, long sequence, byte[] message) {
+			kept[index] = message;
+			keptSequences[index] = sequence;
+		}
+
+		private byte[] message(long sequence) {
+			int index = index(sequence);
+			if (sequence > delivered) {
+				byte[] message = sequence - delivered > pending.length ? null : pending[index];
+				return message == LOST ? null : message;
+			}
+
+			return keptSequences[index] == sequence ? kept[index] : null;
+		}
+
+		private void reset(int index) {
+			pending[index] = null;
+			naks[index] = 0;
+		}
+
+		private void clear(long first, long last) {
+			for (long i = Math.max(first, last - pending.length + 1); i <= last; i++) {
+				reset(index(i));
+			}
+		}
+	}
+}
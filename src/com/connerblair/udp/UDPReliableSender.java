@@ -0,0 +1,672 @@
+package com.connerblair.udp;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.connerblair.exceptions.ConnectionException;
+
+/**
+ * Sends a numbered stream of messages to a multicast group, and repairs the
+ * messages receivers report missing. <br>
+ * Each message is sent to the group once. The last messages sent are kept in
+ * a window, and a {@linkplain UDPReliableReceiver} that finds a gap in the
+ * numbers sends a NAK for the missing range, which is answered by sending
+ * those messages to the group again. Since one repair reaches every receiver,
+ * NAKs for a message that was repaired within the repair holdoff are ignored.
+ * Each receiver may only have messages repaired at a fixed rate, a NAK
+ * repairs at most a fixed number of messages, and the queue of repairs is
+ * bounded, so a receiver cannot make the sender flood the group. The messages
+ * left out are asked for again by the receiver's next NAK. <br>
+ * A heartbeat is sent to the group when there is nothing else to send, so
+ * receivers notice losses at the end of the stream and learn which messages
+ * can no longer be repaired. <br>
+ * A receiver that joins late asks for a snapshot, which the
+ * {@link #createSnapshot(long)} hook method provides. Its chunks are sent as
+ * the repairs drain, and only so many snapshots are sent at once. <br>
+ * Parity packets can also be sent for each group of messages, so receivers
+ * rebuild a lost message from the rest of its group without waiting a round
+ * trip for a repair. See {@link #setFecGroupSize(int)}.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+public abstract class UDPReliableSender extends UDPConnector {
+	public static final int DEF_WINDOW_SIZE = 4096;
+	public static final Duration DEF_HEARTBEAT_INTERVAL = Duration.ofMillis(100);
+	public static final Duration DEF_REPAIR_HOLDOFF = Duration.ofMillis(10);
+	public static final int DEF_FEC_GROUP_SIZE = 0;
+	public static final int DEF_FEC_PARITY = 1;
+
+	// The most messages repaired for one receiver per second, and in a burst.
+	private static final int REPAIR_RATE = 2000;
+	private static final int REPAIR_BURST = 256;
+	private static final long REPAIR_SPACING = TimeUnit.SECONDS.toNanos(1) / REPAIR_RATE;
+
+	// The most messages one NAK repairs, and the most packets queued.
+	private static final int MAX_REPAIR_RANGE = REPAIR_BURST;
+	private static final int MAX_REPAIRS = 4096;
+
+	// The most snapshots being sent at once.
+	private static final int MAX_SNAPSHOTS = 16;
+
+	private final long stream = ThreadLocalRandom.current().nextLong();
+	private final byte[] receiveBuffer = new byte[UDPReliableProtocol.HEADER_SIZE + 64];
+	private InetSocketAddress group;
+
+	// Held while publishing, so a snapshot can be taken between messages.
+	private final Object publishLock = new Object();
+
+	// The window and everything below are guarded by the lock.
+	private final Object windowLock = new Object();
+	private int windowSize = DEF_WINDOW_SIZE;
+	private byte[][] window = new byte[DEF_WINDOW_SIZE][];
+	private long[] lastRepair = new long[DEF_WINDOW_SIZE];
+	private long sequence = 0;
+	private long sent = 0;
+	private boolean publisherWaiting = false;
+	private final ArrayDeque<DatagramPacket> repairs = new ArrayDeque<DatagramPacket>();
+	private final ArrayDeque<SnapshotTransfer> snapshots = new ArrayDeque<SnapshotTransfer>();
+	private final HashMap<UDPPeer, RepairBudget> repairBudgets = new HashMap<UDPPeer, RepairBudget>();
+	private long lastSend;
+
+	private long heartbeatInterval = DEF_HEARTBEAT_INTERVAL.toNanos();
+	private long repairHoldoff = DEF_REPAIR_HOLDOFF.toNanos();
+	private int fecGroupSize = DEF_FEC_GROUP_SIZE;
+	private int fecParity = DEF_FEC_PARITY;
+	private UDPParityEncoder parityEncoder;
+
+	/**
+	 * Creates a new instance of the UDPReliableSender class, that sends to the
+	 * specified group from any free port.
+	 *
+	 * @param group
+	 *            The address of the multicast group to send to.
+	 * @param port
+	 *            The port the receivers of the group are bound to.
+	 */
+	protected UDPReliableSender(String group, int port) {
+		super(0);
+
+		// Bind to every address, so the socket can send on any interface.
+		setAddr((InetAddress) null);
+		setMulticast(true);
+
+		try {
+			this.group = new InetSocketAddress(InetAddress.getByName(group), port);
+		} catch (UnknownHostException e) {
+			handleException(new ConnectionException("Host name could not be resolved. Name: " + group, e));
+		}
+	}
+
+	/**
+	 * Sends a message to the group. <br>
+	 * If the sender is falling behind, so the message would push a message
+	 * that has not been sent yet out of the window, this call waits until
+	 * there is room.
+	 *
+	 * @param message
+	 *            The message to send.
+	 * @return long The sequence number of the message, or -1 if it was not
+	 *         sent.
+	 */
+	public final long publish(byte[] message) {
+		return publish(message, 0, message.length);
+	}
+
+	/**
+	 * Sends part of an array to the group as a message. <br>
+	 * If the sender is falling behind, so the message would push a message
+	 * that has not been sent yet out of the window, this call waits until
+	 * there is room.
+	 *
+	 * @param message
+	 *            The array holding the message.
+	 * @param offset
+	 *            The index of the first byte of the message.
+	 * @param length
+	 *            The number of bytes in the message.
+	 * @return long The sequence number of the message, or -1 if it was not
+	 *         sent.
+	 */
+	public final long publish(byte[] message, int offset, int length) {
+		// A checksum takes the last four bytes of the datagram.
+		int room = UDPReliableProtocol.MAX_DATAGRAM - UDPReliableProtocol.DATA_HEADER_SIZE - (isChecksums() ? 4 : 0);
+		if (length > room) {
+			handleException(new ConnectionException("The message is too large for a datagram. Length: " + length));
+			return -1;
+		}
+
+		long published;
+		synchronized (publishLock) {
+			synchronized (windowLock) {
+				while (sequence - sent >= windowSize) {
+					if (!isRunning()) {
+						handleException(new ConnectionException("Cannot publish while the sender is stopped."));
+						return -1;
+					}
+
+					publisherWaiting = true;
+					try {
+						windowLock.wait(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						handleException(e);
+						return -1;
+					}
+				}
+
+				sequence++;
+				int index = index(sequence);
+				window[index] = UDPReliableProtocol.start(UDPReliableProtocol.DATA, stream, 8 + length)
+						.putLong(sequence).put(message, offset, length).array();
+				lastRepair[index] = System.nanoTime() - repairHoldoff;
+				published = sequence;
+			}
+		}
+
+		wakeSender();
+		return published;
+	}
+
+	/**
+	 * Accessor method for the sequence number of the last message published.
+	 *
+	 * @return long The last sequence number, or 0 if nothing was published.
+	 */
+	public final long getSequence() {
+		synchronized (windowLock) {
+			return sequence;
+		}
+	}
+
+	/**
+	 * Accessor method for the group the sender sends to.
+	 *
+	 * @return {@linkplain InetSocketAddress} The address and port of the
+	 *         group.
+	 */
+	public final InetSocketAddress getGroup() {
+		return group;
+	}
+
+	/**
+	 * Accessor method for the number of sent messages kept for repair.
+	 *
+	 * @return int The size of the window.
+	 */
+	public final int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Mutator method for the number of sent messages kept for repair. <br>
+	 * If the sender is not stopped, this call will have no effect.
+	 *
+	 * @param windowSize
+	 *            The new size of the window.
+	 */
+	public final void setWindowSize(int windowSize) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change window size while server is running."));
+		} else if (windowSize < 1) {
+			handleException(new ConnectionException("The window size must be positive. Value: " + windowSize));
+		} else {
+			synchronized (windowLock) {
+				// Messages already published keep their place in the stream.
+				byte[][] window = new byte[windowSize][];
+				long[] lastRepair = new long[windowSize];
+				for (long i = Math.max(1, sequence - Math.min(windowSize, this.windowSize) + 1); i <= sequence; i++) {
+					window[(int) (i % windowSize)] = this.window[index(i)];
+					lastRepair[(int) (i % windowSize)] = this.lastRepair[index(i)];
+				}
+
+				this.window = window;
+				this.lastRepair = lastRepair;
+				this.windowSize = windowSize;
+				this.sent = Math.max(sent, sequence - windowSize);
+			}
+		}
+	}
+
+	/**
+	 * Accessor method for how often a heartbeat is sent when there is nothing
+	 * else to send.
+	 *
+	 * @return {@linkplain Duration} The heartbeat interval.
+	 */
+	public final Duration getHeartbeatInterval() {
+		return Duration.ofNanos(heartbeatInterval);
+	}
+
+	/**
+	 * Mutator method for how often a heartbeat is sent when there is nothing
+	 * else to send. <br>
+	 * If the sender is not stopped, this call will have no effect.
+	 *
+	 * @param heartbeatInterval
+	 *            The new heartbeat interval.
+	 */
+	public final void setHeartbeatInterval(Duration heartbeatInterval) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change heartbeat interval while server is running."));
+		} else if (heartbeatInterval == null || heartbeatInterval.isNegative() || heartbeatInterval.isZero()) {
+			handleException(new ConnectionException("The heartbeat interval must be positive."));
+		} else {
+			this.heartbeatInterval = heartbeatInterval.toNanos();
+		}
+	}
+
+	/**
+	 * Accessor method for how long NAKs for a message are ignored after it is
+	 * repaired.
+	 *
+	 * @return {@linkplain Duration} The repair holdoff.
+	 */
+	public final Duration getRepairHoldoff() {
+		return Duration.ofNanos(repairHoldoff);
+	}
+
+	/**
+	 * Mutator method for how long NAKs for a message are ignored after it is
+	 * repaired, since the repair reaches every receiver that sent one. <br>
+	 * If the sender is not stopped, this call will have no effect.
+	 *
+	 * @param repairHoldoff
+	 *            The new repair holdoff.
+	 */
+	public final void setRepairHoldoff(Duration repairHoldoff) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change repair holdoff while server is running."));
+		} else if (repairHoldoff == null || repairHoldoff.isNegative()) {
+			handleException(new ConnectionException("The repair holdoff must not be negative."));
+		} else {
+			this.repairHoldoff = repairHoldoff.toNanos();
+		}
+	}
+
+	/**
+	 * Accessor method for the number of messages in each group that parity
+	 * packets are sent for.
+	 *
+	 * @return int The group size, or 0 if no parity is sent.
+	 */
+	public final int getFecGroupSize() {
+		return fecGroupSize;
+	}
+
+	/**
+	 * Mutator method for the number of messages in each group that parity
+	 * packets are sent for. <br>
+	 * After each group, the parity packets are sent, so a receiver that lost
+	 * no more than one message covered by a parity packet rebuilds it at
+	 * once. When there is nothing more to send, the parity of the messages
+	 * since the last group is sent as well, so the last messages of a burst
+	 * are covered. Smaller groups recover more losses, at the cost of more
+	 * packets. <br>
+	 * If the sender is not stopped, this call will have no effect.
+	 *
+	 * @param fecGroupSize
+	 *            The new group size, or 0 to send no parity.
+	 */
+	public final void setFecGroupSize(int fecGroupSize) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change FEC group size while server is running."));
+		} else if (fecGroupSize < 0 || fecGroupSize > Short.MAX_VALUE) {
+			handleException(new ConnectionException("The FEC group size must be between 0 and " + Short.MAX_VALUE
+					+ ". Value: " + fecGroupSize));
+		} else {
+			this.fecGroupSize = fecGroupSize;
+			updateParity();
+		}
+	}
+
+	/**
+	 * Accessor method for the number of parity packets sent for each group.
+	 *
+	 * @return int The number of parity packets.
+	 */
+	public final int getFecParity() {
+		return fecParity;
+	}
+
+	/**
+	 * Mutator method for the number of parity packets sent for each group.
+	 * <br>
+	 * The messages of a group take turns between the parity packets, so each
+	 * parity packet can rebuild one message of its share, and a burst of
+	 * losses up to this long can be rebuilt whole. A group size of 10 with 2
+	 * parity packets sends 20% more packets. <br>
+	 * If the sender is not stopped, this call will have no effect.
+	 *
+	 * @param fecParity
+	 *            The new number of parity packets.
+	 */
+	public final void setFecParity(int fecParity) {
+		if (isRunning()) {
+			handleException(new ConnectionException("Cannot change FEC parity while server is running."));
+		} else if (fecParity < 1 || fecParity > Short.MAX_VALUE) {
+			handleException(new ConnectionException("The FEC parity must be between 1 and " + Short.MAX_VALUE
+					+ ". Value: " + fecParity));
+		} else {
+			this.fecParity = fecParity;
+			updateParity();
+		}
+	}
+
+	/**
+	 * Slot method called when a late receiver asks for a snapshot of the
+	 * state the stream has built up. <br>
+	 * It is called while publishing is held off, so the snapshot should hold
+	 * the state after the message with the given sequence number, and the
+	 * receiver goes on from the message after it. Messages already published
+	 * go on being sent and repaired meanwhile. The default implementation
+	 * returns null, so late receivers start from the next message.
+	 *
+	 * @param sequence
+	 *            The sequence number of the last message published.
+	 * @return byte[] The snapshot, or null if there is none.
+	 */
+	protected byte[] createSnapshot(long sequence) {
+		return null;
+	}
+
+	/**
+	 * Handles the NAKs and snapshot requests of the receivers.
+	 */
+	@Override
+	protected final void handlePacketReceived(UDPPeer peer, DatagramPacket packet) {
+		ByteBuffer in = UDPReliableProtocol.read(packet);
+		if (in == null) {
+			return;
+		}
+
+		byte type = in.get();
+		if (in.getLong() != stream) {
+			return;
+		}
+
+		if (type == UDPReliableProtocol.NAK && in.remaining() >= 16) {
+			repair(peer, in.getLong(), in.getLong());
+		} else if (type == UDPReliableProtocol.SNAPSHOT_REQUEST) {
+			sendSnapshot(peer);
+		} else {
+			return;
+		}
+
+		wakeSender();
+	}
+
+	/**
+	 * Drops the repair budget and the snapshot being sent of a receiver that
+	 * has been forgotten.
+	 */
+	@Override
+	void peerForgotten(UDPPeer peer) {
+		synchronized (windowLock) {
+			repairBudgets.remove(peer);
+			snapshots.removeIf(transfer -> transfer.to.equals(peer.getSocketAddress()));
+		}
+	}
+
+	/**
+	 * Not called, since packets are handled with their peer.
+	 */
+	@Override
+	protected final void handlePacketReceived(DatagramPacket packet) {
+	}
+
+	/**
+	 * Returns the buffer NAKs and snapshot requests are received into.
+	 */
+	@Override
+	protected final byte[] getByteBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * Returns the next repair, then the next chunk of a snapshot, then the
+	 * parity of a finished group, then the next new message, then the parity of the messages since the last group,
+	 * then a heartbeat if none has been sent for the heartbeat interval.
+	 */
+	@Override
+	protected final DatagramPacket createPacketToSend() {
+		long now = System.nanoTime();
+
+		synchronized (windowLock) {
+			DatagramPacket packet = repairs.poll();
+			if (packet == null && !snapshots.isEmpty()) {
+				packet = nextSnapshotChunk();
+			}
+			if (packet == null && parityEncoder != null) {
+				packet = parityEncoder.next(stream);
+			}
+			if (packet == null && sent < sequence) {
+				sent++;
+				byte[] data = window[index(sent)];
+				packet = new DatagramPacket(data, data.length, group);
+				if (parityEncoder != null) {
+					parityEncoder.add(sent, data, UDPReliableProtocol.DATA_HEADER_SIZE,
+							data.length - UDPReliableProtocol.DATA_HEADER_SIZE);
+				}
+
+				if (publisherWaiting) {
+					publisherWaiting = false;
+					windowLock.notifyAll();
+				}
+			}
+			if (packet == null && parityEncoder != null && parityEncoder.isOpen()) {
+				parityEncoder.finish();
+				packet = parityEncoder.next(stream);
+			}
+			if (packet == null && now - lastSend >= heartbeatInterval) {
+				packet = UDPReliableProtocol.heartbeat(stream, sent, oldest(), group);
+			}
+
+			if (packet != null) {
+				lastSend = now;
+			}
+			return packet;
+		}
+	}
+
+	/**
+	 * Waits at most until the next heartbeat is due.
+	 */
+	@Override
+	long senderIdleNanos() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Queues the messages of a NAK that are still kept and were not repaired
+	 * within the holdoff, as far as the receiver's repair budget, the most
+	 * messages per NAK and the room left in the queue allow. A receiver that
+	 * asks for messages that are no longer kept is sent a heartbeat, so it
+	 * stops asking.
+	 *
+	 * @param peer
+	 *            The receiver that sent the NAK.
+	 * @param first
+	 *            The first missing sequence number.
+	 * @param last
+	 *            The last missing sequence number.
+	 */
+	private void repair(UDPPeer peer, long first, long last) {
+		long now = System.nanoTime();
+
+		synchronized (windowLock) {
+			long oldest = oldest();
+			if (first < oldest && repairs.size() < MAX_REPAIRS) {
+				repairs.add(UDPReliableProtocol.heartbeat(stream, sent, oldest, peer.getSocketAddress()));
+			}
+
+			RepairBudget budget = repairBudgets.get(peer);
+			if (budget == null) {
+				budget = new RepairBudget(now);
+				repairBudgets.put(peer, budget);
+			}
+			budget.refill(now);
+
+			int allowed = Math.min(Math.min((int) budget.tokens, MAX_REPAIR_RANGE), MAX_REPAIRS - repairs.size());
+			int queued = 0;
+
+			last = Math.min(last, sent);
+			for (long i = Math.max(first, oldest); i <= last && queued < allowed; i++) {
+				int index = index(i);
+				if (now - lastRepair[index] >= repairHoldoff) {
+					lastRepair[index] = now;
+					repairs.add(new DatagramPacket(window[index], window[index].length, group));
+					queued++;
+				}
+			}
+			budget.tokens -= queued;
+		}
+	}
+
+	/**
+	 * Takes a snapshot for a late receiver, and queues it to be sent in
+	 * chunks. <br>
+	 * Publishing is held off while the snapshot is taken, but the window is
+	 * not locked, so the hook method does not stall sending and repairs.
+	 *
+	 * @param peer
+	 *            The receiver that asked for the snapshot.
+	 */
+	private void sendSnapshot(UDPPeer peer) {
+		SocketAddress to = peer.getSocketAddress();
+
+		synchronized (publishLock) {
+			long taken;
+			synchronized (windowLock) {
+				// When too many snapshots are being sent the request is turned
+				// away, and the receiver asks again. So is a request from a
+				// receiver whose snapshot is still being sent.
+				if (snapshots.size() >= MAX_SNAPSHOTS) {
+					return;
+				}
+				for (SnapshotTransfer transfer : snapshots) {
+					if (transfer.to.equals(to)) {
+						return;
+					}
+				}
+				taken = sequence;
+			}
+
+			byte[] snapshot = createSnapshot(taken);
+
+			synchronized (windowLock) {
+				snapshots.add(new SnapshotTransfer(taken, snapshot, to));
+			}
+		}
+	}
+
+	/**
+	 * Encodes the next chunk of the snapshot at the head of the queue. The
+	 * snapshots being sent take turns, so a large one does not hold up the
+	 * rest.
+	 */
+	private DatagramPacket nextSnapshotChunk() {
+		SnapshotTransfer transfer = snapshots.poll();
+		if (transfer.snapshot == null) {
+			return snapshotChunk(transfer.sequence, 0, 0, null, 0, 0, transfer.to);
+		}
+
+		int chunk = UDPReliableProtocol.SNAPSHOT_CHUNK_SIZE;
+		int offset = transfer.next * chunk;
+		DatagramPacket packet = snapshotChunk(transfer.sequence, transfer.next, transfer.count, transfer.snapshot,
+				offset, Math.min(chunk, transfer.snapshot.length - offset), transfer.to);
+
+		if (++transfer.next < transfer.count) {
+			snapshots.add(transfer);
+		}
+		return packet;
+	}
+
+	/**
+	 * Encodes one chunk of a snapshot.
+	 */
+	private DatagramPacket snapshotChunk(long sequence, int index, int count, byte[] snapshot, int offset, int length,
+			SocketAddress to) {
+		ByteBuffer out = UDPReliableProtocol.start(UDPReliableProtocol.SNAPSHOT, stream, 16 + length).putLong(sequence)
+				.putInt(index).putInt(count);
+		if (length > 0) {
+			out.put(snapshot, offset, length);
+		}
+
+		return UDPReliableProtocol.packet(out, to);
+	}
+
+	/**
+	 * Sets up the parity of the stream for the group size and parity, or none
+	 * if the group size is 0.
+	 */
+	private void updateParity() {
+		synchronized (windowLock) {
+			parityEncoder = fecGroupSize == 0 ? null
+					: new UDPParityEncoder(fecGroupSize, Math.min(fecParity, fecGroupSize), group);
+		}
+	}
+
+	/**
+	 * Finds the oldest sequence number still kept for repair.
+	 */
+	private long oldest() {
+		return Math.max(1, sequence - windowSize + 1);
+	}
+
+	/**
+	 * Finds the slot of the window a sequence number is kept in.
+	 */
+	private int index(long sequence) {
+		return (int) (sequence % windowSize);
+	}
+
+	/**
+	 * A snapshot being sent to a late receiver, and the next chunk to send.
+	 */
+	private static final class SnapshotTransfer {
+		private final long sequence;
+		private final byte[] snapshot;
+		private final SocketAddress to;
+		private final int count;
+		private int next = 0;
+
+		private SnapshotTransfer(long sequence, byte[] snapshot, SocketAddress to) {
+			this.sequence = sequence;
+			this.snapshot = snapshot;
+			this.to = to;
+			this.count = snapshot == null ? 0
+					: Math.max(1, (snapshot.length + UDPReliableProtocol.SNAPSHOT_CHUNK_SIZE - 1)
+							/ UDPReliableProtocol.SNAPSHOT_CHUNK_SIZE);
+		}
+	}
+
+	/**
+	 * How many more messages may be repaired for one receiver.
+	 */
+	private static final class RepairBudget {
+		private double tokens = REPAIR_BURST;
+		private long refilled;
+
+		private RepairBudget(long now) {
+			this.refilled = now;
+		}
+
+		/**
+		 * Adds the tokens earned since the last refill, up to the burst.
+		 */
+		private void refill(long now) {
+			tokens = Math.min(REPAIR_BURST, tokens + (double) (now - refilled) / REPAIR_SPACING);
+			refilled = now;
+		}
+	}
+}
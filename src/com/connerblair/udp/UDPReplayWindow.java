@@ -0,0 +1,72 @@
+package com.connerblair.udp;
+
+/**
+ * Finds the packets of a peer that were already received, or are too old to
+ * tell, by their sequence numbers. <br>
+ * The window keeps one bit for each of the last sequence numbers up to the
+ * highest received, as in the IPsec anti-replay window. The bits are kept in
+ * a ring of words with one word more than the window needs, so when the
+ * highest sequence number moves on, whole words are cleared and no bits are
+ * shifted. Each check takes constant time and allocates nothing. Only the
+ * receiver thread uses it.
+ *
+ * @author Conner Blair
+ * @version 1.0
+ */
+final class UDPReplayWindow {
+	static final int ACCEPTED = 0;
+	static final int DUPLICATE = 1;
+	static final int TOO_OLD = 2;
+
+	private final int size;
+	private final long[] words;
+	private final int mask;
+
+	private long highest = -1;
+
+	/**
+	 * Creates a new instance of the UDPReplayWindow class, with the specified
+	 * size.
+	 *
+	 * @param size
+	 *            The number of sequence numbers below the highest received
+	 *            that are checked.
+	 */
+	UDPReplayWindow(int size) {
+		this.size = size;
+		this.words = new long[Integer.highestOneBit((size + 63) / 64) << 1];
+		this.mask = words.length - 1;
+	}
+
+	/**
+	 * Checks a sequence number, and records it if it is new.
+	 *
+	 * @param sequence
+	 *            The sequence number of a packet, which must not be negative.
+	 * @return int {@link #ACCEPTED} if the sequence number is new,
+	 *         {@link #DUPLICATE} if it was already received, or
+	 *         {@link #TOO_OLD} if it is too far below the highest to tell.
+	 */
+	int check(long sequence) {
+		if (sequence > highest) {
+			// Clear the words the window moves onto, at most the whole ring.
+			long word = highest < 0 ? -1 : highest >>> 6;
+			long steps = Math.min((sequence >>> 6) - word, words.length);
+			for (long i = 1; i <= steps; i++) {
+				words[(int) ((word + i) & mask)] = 0;
+			}
+			highest = sequence;
+		} else if (highest - sequence >= size) {
+			return TOO_OLD;
+		}
+
+		int index = (int) ((sequence >>> 6) & mask);
+		long bit = 1L << sequence;
+		if ((words[index] & bit) != 0) {
+			return DUPLICATE;
+		}
+
+		words[index] |= bit;
+		return ACCEPTED;
+	}
+}